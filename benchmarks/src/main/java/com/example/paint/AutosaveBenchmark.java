@@ -0,0 +1,81 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AutosaveBenchmark times one autosave checkpoint of a 4096x4096 drawing
+ * covered in soft brush strokes, after a stroke in each of a number of its
+ * tiles: copying, encoding and appending them to the recovery file,
+ * including the fsync and the occasional rewrite of the whole file.
+ *
+ * The cost should follow the changed tiles, not the size of the canvas: a
+ * checkpoint of one changed tile should take a few milliseconds, while
+ * changing all 256 tiles costs about as much as writing the whole drawing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g", "-Dpaint.autosaveLog=false",
+        "-Dpaint.autosaveKBps=0"})
+@State(Scope.Thread)
+public class AutosaveBenchmark {
+    static final int SIZE = 4096;
+
+    @Param({"1", "16", "256"})
+    int changedTiles;
+
+    LayerStack layers;
+    Autosave autosave;
+    File dir;
+    final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("autosave-bench").toFile();
+        System.setProperty("paint.recoveryDir", dir.getPath());
+        layers = LayerStack.withBackground(SIZE, SIZE, Color.WHITE.getRGB());
+        autosave = new Autosave("Benchmark", layers);
+        for (int i = 0; i < 4000; i++) {
+            int x = random.nextInt(SIZE), y = random.nextInt(SIZE);
+            stroke(x, y, x + random.nextInt(401) - 200, y + random.nextInt(401) - 200);
+        }
+        autosave.checkpoint(); // the first checkpoint writes every layer
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private void stroke(float x0, float y0, float x1, float y1) {
+        Color color = new Color(random.nextInt(0x1000000));
+        DabBrush brush = new DabBrush(layers.getActiveCanvas(), DabBrush.Tip.SOFT, color, 4 + random.nextInt(30), 1f);
+        brush.drawPolyline(new float[] {x0, x1}, new float[] {y0, y1}, 2);
+        brush.finish();
+    }
+
+    // Draw a short stroke in each of some tiles, then write a checkpoint of them.
+    @Benchmark
+    public void checkpoint() {
+        synchronized (layers) {
+            int columns = SIZE / TiledCanvas.TILE_SIZE;
+            for (int i = 0; i < changedTiles; i++) {
+                int tile = (i * 97) % (columns * columns); // spread over the canvas
+                float x = tile % columns * TiledCanvas.TILE_SIZE + 128, y = tile / columns * TiledCanvas.TILE_SIZE + 128;
+                stroke(x - 40, y, x + 40, y + random.nextInt(41) - 20);
+            }
+        }
+        autosave.checkpoint();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BrushBenchmark compares the stroke rasterizers on the same random walk of
+ * short segments, like the batches a drag produces: Graphics2D stroking
+ * (java2d, the old path) against each DabBrush tip.
+ *
+ * Run with -prof gc to check that the dab brush allocates nothing per
+ * segment once the tiles it touches exist.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class BrushBenchmark {
+    @Param({"java2d", "HARD", "SOFT", "AIRBRUSH", "TEXTURE"})
+    String engine;
+
+    @Param({"1", "5", "20"})
+    int brushSize;
+
+    TiledCanvas canvas;
+    StrokePipeline.Rasterizer rasterizer;
+    final float[] xs = new float[2], ys = new float[2];
+    final Random random = new Random(42);
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        canvas = PaintPanel.newCanvas(PaintBenchmark.WIDTH, PaintBenchmark.HEIGHT);
+        rasterizer = engine.equals("java2d")
+                ? StrokePipeline.java2d(canvas, Color.BLACK,
+                        new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND))
+                : new DabBrush(canvas, DabBrush.Tip.valueOf(engine), Color.BLACK, brushSize, 1f);
+        xs[1] = PaintBenchmark.WIDTH / 2f;
+        ys[1] = PaintBenchmark.HEIGHT / 2f;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        rasterizer.finish();
+    }
+
+    // One 10-20 pixel segment continuing the previous one.
+    @Benchmark
+    public Rectangle drawSegment() {
+        xs[0] = xs[1];
+        ys[0] = ys[1];
+        xs[1] = Math.max(10, Math.min(PaintBenchmark.WIDTH - 10, xs[0] + random.nextInt(41) - 20));
+        ys[1] = Math.max(10, Math.min(PaintBenchmark.HEIGHT - 10, ys[0] + random.nextInt(41) - 20));
+        return rasterizer.drawPolyline(xs, ys, 2);
+    }
+}
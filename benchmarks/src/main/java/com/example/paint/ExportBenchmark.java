@@ -0,0 +1,178 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExportBenchmark measures saving and opening drawings: FileHandler's PNG and
+ * JPG encoding and decoding (in memory, so disk speed does not count) and the
+ * Tracing Pad's PDF export (to a temporary file, as the app writes it).
+ * exportCanvas compares ImageEncoder's settings with flattening and writing
+ * through ImageIO, as saves did before; each setting prints the size of the
+ * file it makes, so time can be weighed against size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ExportBenchmark {
+
+    /** A flattened 800x600 drawing, and the same drawing encoded in the format. */
+    @State(Scope.Thread)
+    public static class Codec {
+        @Param({"png", "jpg"})
+        String format;
+
+        BufferedImage image;
+        byte[] encoded;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            image = TracingPadPanel.flatten(drawing());
+            encoded = encode(this);
+        }
+    }
+
+    /**
+     * A 3200x2400 drawing and how to export it: imageio-png and imageio-jpg
+     * flatten it and use ImageIO's defaults, png:level:filter and jpg:quality
+     * use ImageEncoder.
+     */
+    @State(Scope.Thread)
+    public static class Export {
+        @Param({"imageio-png", "png:1:none", "png:4:none", "png:6:none", "png:6:adaptive", "png:9:none",
+                "imageio-jpg", "jpg:0.75", "jpg:0.9"})
+        String encoder;
+
+        TiledCanvas snapshot;
+        ImageEncoder imageEncoder;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8 << 20);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            snapshot = drawing(3200, 2400).snapshot();
+            String[] setting = encoder.split(":");
+            if (setting[0].equals("png")) {
+                imageEncoder = new ImageEncoder("png", Integer.parseInt(setting[1]),
+                        ImageEncoder.Filter.valueOf(setting[2].toUpperCase()), 0);
+            } else if (setting[0].equals("jpg")) {
+                imageEncoder = new ImageEncoder("jpg", 0, ImageEncoder.Filter.NONE, Float.parseFloat(setting[1]));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.out.println(encoder + ": " + (buffer.size() + 1023) / 1024 + " KB");
+        }
+    }
+
+    /** A drawing on a tracing canvas and the PDF file it is exported to. */
+    @State(Scope.Thread)
+    public static class Pdf {
+        @Param({"LOSSLESS", "JPEG"})
+        PdfExporter.Compression compression;
+
+        TiledCanvas snapshot;
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            snapshot = drawing();
+            file = File.createTempFile("bench", ".pdf");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    // A canvas with a few hundred random strokes and shapes, replayed like a saved document.
+    static TiledCanvas drawing() {
+        return drawing(800, 600);
+    }
+
+    // As many strokes and shapes for the area as drawing() has for 800x600.
+    static TiledCanvas drawing(int width, int height) {
+        TiledCanvas canvas = TracingPadPanel.newCanvas(width, height);
+        Random random = new Random(42);
+        Color[] colors = {Color.BLACK, Color.BLUE, Color.RED, new Color(0, 128, 0)};
+        for (int i = 0; i < width * height / 1600; i++) {
+            Color color = colors[random.nextInt(colors.length)];
+            int x = random.nextInt(width), y = random.nextInt(height);
+            DrawingOp op;
+            if (i % 10 == 0) {
+                op = new DrawingOp.ShapeOp(DrawingOp.ShapeOp.Kind.values()[random.nextInt(3)], color,
+                        1 + random.nextInt(10), new Point(x, y),
+                        new Point(random.nextInt(width), random.nextInt(height)), 0);
+            } else {
+                DrawingOp.StrokeOp stroke = new DrawingOp.StrokeOp(false, color, 1 + random.nextInt(20),
+                        StrokePipeline.Smoothing.NONE, 0);
+                for (int j = 0; j < 30; j++) {
+                    x += random.nextInt(31) - 15;
+                    y += random.nextInt(31) - 15;
+                    stroke.addPoint(x, y, j * 8);
+                }
+                op = stroke;
+            }
+            op.apply(canvas);
+        }
+        canvas.compact();
+        return canvas;
+    }
+
+    static byte[] encode(Codec state) throws IOException {
+        state.buffer.reset();
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(state.buffer)) {
+            FileHandler.encode(FileHandler.writerFor(state.format), state.image, out);
+        }
+        return state.buffer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeImage(Codec state) throws IOException {
+        return encode(state);
+    }
+
+    @Benchmark
+    public BufferedImage decodeImage(Codec state) throws IOException {
+        try (MemoryCacheImageInputStream in = new MemoryCacheImageInputStream(
+                new ByteArrayInputStream(state.encoded))) {
+            return FileHandler.decode(in, "benchmark." + state.format, reader -> { });
+        }
+    }
+
+    @Benchmark
+    public int exportCanvas(Export state) throws IOException {
+        state.buffer.reset();
+        if (state.imageEncoder != null) {
+            state.imageEncoder.write(state.snapshot, Color.WHITE, state.buffer, percent -> { }, () -> false);
+        } else {
+            try (ImageOutputStream out = new MemoryCacheImageOutputStream(state.buffer)) {
+                FileHandler.encode(FileHandler.writerFor(state.encoder.substring("imageio-".length())),
+                        TracingPadPanel.flatten(state.snapshot), out);
+            }
+        }
+        return state.buffer.size();
+    }
+
+    // TracingPadPanel.saveAsPDF without the progress dialog: flatten, encode the page, write atomically.
+    @Benchmark
+    public void saveAsPDF(Pdf state) throws Exception {
+        TracingPadPanel.writePdf(state.file, state.snapshot, state.compression, percent -> { });
+    }
+}
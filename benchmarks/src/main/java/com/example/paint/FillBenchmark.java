@@ -0,0 +1,64 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FillBenchmark measures the paint bucket filling a whole 4096x4096 (16
+ * megapixel) canvas, sequentially and with the banded parallel fill.
+ *
+ * - blank: a fresh canvas, where every tile is uniform.
+ * - painted: every tile holds pixels with slight noise, filled with a
+ *   tolerance that covers the noise, so every pixel is read and compared.
+ *
+ * Targets (see README): blank under 10 ms, painted under 100 ms on one core,
+ * with parallel scaling with the cores on top of that.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+@State(Scope.Thread)
+public class FillBenchmark {
+    static final int SIZE = 4096;
+
+    @Param({"blank", "painted"})
+    String canvasContents;
+
+    @Param({"false", "true"})
+    boolean parallel;
+
+    TiledCanvas original, canvas;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        original = PaintPanel.newCanvas(SIZE, SIZE);
+        if (canvasContents.equals("painted")) {
+            Random random = new Random(42);
+            for (int ty = 0; ty < original.getRows(); ty++) {
+                for (int tx = 0; tx < original.getColumns(); tx++) {
+                    int[] pixels = original.editTilePixels(tx, ty);
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] = 0xFFF0F0F0 + random.nextInt(8) * 0x010101;
+                    }
+                }
+            }
+        }
+        canvas = PaintPanel.newCanvas(SIZE, SIZE);
+    }
+
+    // Start each fill from the original contents; copying is not timed.
+    @Setup(Level.Invocation)
+    public void reset() {
+        canvas.copyFrom(original);
+    }
+
+    @Benchmark
+    public Rectangle fillCanvas() {
+        return FloodFill.fill(canvas, 10, 10, Color.RED.getRGB(), 16, parallel);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LayerBenchmark paints on one layer of a stack and brings the composite up
+ * to date after each segment, as the Paint tab does before every repaint.
+ * Every layer but the white background is covered in half-transparent
+ * noise, so nothing can be skipped as uniform, and the middle layer is drawn
+ * on. With the below/above caches the time per segment should be about the
+ * same for 1 and 10 layers.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class LayerBenchmark {
+    @Param({"1", "10"})
+    int layerCount;
+
+    LayerStack layers;
+    StrokePipeline.Rasterizer rasterizer;
+    final float[] xs = new float[2], ys = new float[2];
+    final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = PaintBenchmark.WIDTH, height = PaintBenchmark.HEIGHT;
+        layers = LayerStack.withBackground(width, height, Color.WHITE.getRGB());
+        Random noise = new Random(7);
+        for (int i = 1; i < layerCount; i++) {
+            TiledCanvas canvas = layers.addLayer(i, "Layer " + i, 0).getCanvas();
+            for (int ty = 0; ty < canvas.getRows(); ty++) {
+                for (int tx = 0; tx < canvas.getColumns(); tx++) {
+                    int[] pixels = canvas.editTilePixels(tx, ty);
+                    for (int p = 0; p < pixels.length; p++) {
+                        pixels[p] = noise.nextInt(128) << 24 | noise.nextInt(0x1000000);
+                    }
+                }
+            }
+        }
+        layers.select(layerCount / 2);
+        layers.refresh();
+        xs[1] = width / 2f;
+        ys[1] = height / 2f;
+    }
+
+    @Setup(Level.Iteration)
+    public void newStroke() {
+        rasterizer = new DabBrush(layers.getActiveCanvas(), DabBrush.Tip.SOFT, Color.BLACK, 20, 1f);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        rasterizer.finish();
+    }
+
+    // One 10-20 pixel segment on the active layer, then the composite refresh for its damage.
+    @Benchmark
+    public Rectangle drawSegmentAndRefresh() {
+        xs[0] = xs[1];
+        ys[0] = ys[1];
+        xs[1] = Math.max(10, Math.min(PaintBenchmark.WIDTH - 10, xs[0] + random.nextInt(41) - 20));
+        ys[1] = Math.max(10, Math.min(PaintBenchmark.HEIGHT - 10, ys[0] + random.nextInt(41) - 20));
+        layers.invalidate(rasterizer.drawPolyline(xs, ys, 2));
+        return layers.refresh();
+    }
+}
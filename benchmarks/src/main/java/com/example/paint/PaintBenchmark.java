@@ -0,0 +1,185 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PaintBenchmark measures the drawing and compositing hot paths of the Paint
+ * and Tracing Pad tabs by feeding mouse events to real panels, so undo
+ * recording, journaling and damage tracking are included like in the app.
+ *
+ * The stroke pipeline runs synchronously (-Dpaint.strokePipeline=sync) so
+ * each operation has finished when the benchmark method returns. Panels are
+ * recreated every iteration to keep undo and journal memory bounded.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dpaint.strokePipeline=sync"})
+public class PaintBenchmark {
+    static final int WIDTH = 800, HEIGHT = 600;
+
+    /** A Paint tab with the brush at a given size. */
+    @State(Scope.Thread)
+    public static class Brush {
+        @Param({"1", "5", "20"})
+        int brushSize;
+
+        PaintPanel panel;
+        final Random random = new Random(42);
+        int x = WIDTH / 2, y = HEIGHT / 2;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            panel = newPaintPanel();
+            panel.setTool(PaintPanel.Tool.BRUSH);
+            panel.setBrushSize(brushSize);
+        }
+    }
+
+    /** A Paint tab with one of the shape tools selected. */
+    @State(Scope.Thread)
+    public static class Shapes {
+        @Param({"RECTANGLE", "CIRCLE", "LINE"})
+        PaintPanel.Tool shape;
+
+        PaintPanel panel;
+        final Random random = new Random(42);
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            panel = newPaintPanel();
+            panel.setTool(shape);
+        }
+    }
+
+    /** A Paint tab with a drawing on it, redrawn before every clear. */
+    @State(Scope.Thread)
+    public static class Drawn {
+        PaintPanel panel;
+
+        @Setup(Level.Iteration)
+        public void newPanel() {
+            panel = newPaintPanel();
+        }
+
+        @Setup(Level.Invocation)
+        public void draw() {
+            scribble(panel, new Random(42), 20);
+        }
+    }
+
+    /** A Paint tab with a drawing, and a screen-like image to paint it into. */
+    @State(Scope.Thread)
+    public static class Painted {
+        PaintPanel panel;
+        BufferedImage screen;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            panel = newPaintPanel();
+            scribble(panel, new Random(42), 20);
+            screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+    /** A Tracing Pad with a drawing, at the template's size and at a size it is scaled to. */
+    @State(Scope.Thread)
+    public static class Tracing {
+        @Param({"800x600", "1600x1200"})
+        String size;
+
+        TracingPadPanel panel;
+        BufferedImage screen;
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            String[] dims = size.split("x");
+            int width = Integer.parseInt(dims[0]), height = Integer.parseInt(dims[1]);
+            panel = new TracingPadPanel(); // loads resources/tracing_background.png
+            panel.setSize(width, height);
+            scribble(panel, new Random(42), 20);
+            screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            // The template is loaded and scaled in the background; measure once it is shown.
+            while (!panel.isBackgroundReady()) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static PaintPanel newPaintPanel() {
+        PaintPanel panel = new PaintPanel();
+        panel.setSize(WIDTH, HEIGHT);
+        return panel;
+    }
+
+    // Draw random strokes with whatever tool is selected.
+    static void scribble(Component panel, Random random, int strokes) {
+        for (int i = 0; i < strokes; i++) {
+            int x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            mouse(panel, MouseEvent.MOUSE_PRESSED, x, y);
+            for (int j = 0; j < 20; j++) {
+                x = clamp(x + random.nextInt(41) - 20, WIDTH);
+                y = clamp(y + random.nextInt(41) - 20, HEIGHT);
+                mouse(panel, MouseEvent.MOUSE_DRAGGED, x, y);
+            }
+            mouse(panel, MouseEvent.MOUSE_RELEASED, x, y);
+        }
+    }
+
+    static void mouse(Component panel, int id, int x, int y) {
+        int modifiers = id == MouseEvent.MOUSE_RELEASED ? 0 : MouseEvent.BUTTON1_DOWN_MASK;
+        panel.dispatchEvent(new MouseEvent(panel, id, System.currentTimeMillis(), modifiers, x, y, 1, false,
+                MouseEvent.BUTTON1));
+    }
+
+    static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max - 1, value));
+    }
+
+    // One brush stroke of a single segment, the drawLine of the Paint tab.
+    @Benchmark
+    public void drawLine(Brush state) {
+        int x1 = clamp(state.x + state.random.nextInt(81) - 40, WIDTH);
+        int y1 = clamp(state.y + state.random.nextInt(81) - 40, HEIGHT);
+        mouse(state.panel, MouseEvent.MOUSE_PRESSED, state.x, state.y);
+        mouse(state.panel, MouseEvent.MOUSE_DRAGGED, x1, y1);
+        mouse(state.panel, MouseEvent.MOUSE_RELEASED, x1, y1);
+        state.x = x1;
+        state.y = y1;
+    }
+
+    @Benchmark
+    public void drawShape(Shapes state) {
+        Random random = state.random;
+        int x = random.nextInt(WIDTH - 200), y = random.nextInt(HEIGHT - 200);
+        mouse(state.panel, MouseEvent.MOUSE_PRESSED, x, y);
+        mouse(state.panel, MouseEvent.MOUSE_RELEASED, x + 20 + random.nextInt(180), y + 20 + random.nextInt(180));
+    }
+
+    @Benchmark
+    public void clearCanvas(Drawn state) {
+        state.panel.clearCanvas();
+    }
+
+    @Benchmark
+    public void paintComponent(Painted state) {
+        Graphics2D g = state.screen.createGraphics();
+        state.panel.paintComponent(g);
+        g.dispose();
+    }
+
+    // Tracing Pad repaint: background template plus the drawing on top.
+    @Benchmark
+    public void paintTracingComponent(Tracing state) {
+        Graphics2D g = state.screen.createGraphics();
+        state.panel.paintComponent(g);
+        g.dispose();
+    }
+}
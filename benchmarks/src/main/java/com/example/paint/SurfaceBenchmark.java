@@ -0,0 +1,47 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SurfaceBenchmark measures one frame of the Paint tab's canvas surface
+ * after a brush-sized region changed: refreshing the display copy and
+ * blitting it into a screen-like TYPE_INT_RGB back buffer.
+ *
+ * The benchmarks run headless, so COMPATIBLE uses its TYPE_INT_RGB fallback
+ * and VOLATILE is left out; run CanvasSurface's main on a machine with a
+ * display to compare all surfaces against real screen formats.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class SurfaceBenchmark {
+    @Param({"ARGB", "COMPATIBLE"})
+    CanvasSurface.Kind kind;
+
+    CanvasSurface surface;
+    BufferedImage screen;
+    final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TiledCanvas canvas = ExportBenchmark.drawing();
+        surface = CanvasSurface.create(kind, canvas, () -> null, false);
+        screen = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public void paintFrame() {
+        surface.invalidate(new Rectangle(random.nextInt(736), random.nextInt(536), 64, 64));
+        Graphics g = screen.getGraphics();
+        surface.paint(g);
+        g.dispose();
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.paint;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZoomBenchmark paints a zoomed out view of an 8192x8192 drawing into a
+ * 1200x900 back buffer, from a CanvasMipmap whose tiles are built and from
+ * the canvas tiles scaled directly. The mipmap frame should cost about the
+ * same at every zoom, while the direct one grows with the canvas area shown.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class ZoomBenchmark {
+    private static final int SIZE = 8192;
+
+    @Param({"0.4", "0.1", "0.03"})
+    double scale;
+
+    TiledCanvas canvas;
+    CanvasMipmap mipmap;
+    Viewport viewport;
+    BufferedImage screen;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        canvas = PaintPanel.newCanvas(SIZE, SIZE);
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            Rectangle r = new Rectangle(random.nextInt(SIZE), random.nextInt(SIZE), 80, 80);
+            Color color = new Color(random.nextInt(0xFFFFFF));
+            canvas.draw(r, g -> {
+                g.setColor(color);
+                g.fillOval(r.x, r.y, r.width, r.height);
+            });
+        }
+        JPanel panel = new JPanel();
+        panel.setSize(1200, 900);
+        viewport = new Viewport(panel, canvas::getBounds);
+        viewport.zoomAt(scale, new Point(0, 0));
+        mipmap = new CanvasMipmap(canvas, () -> { });
+        screen = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 1000; i++) {
+            mipmap.paint(screen.createGraphics(), viewport); // build every tile in view
+        }
+    }
+
+    @Benchmark
+    public void mipmap() {
+        Graphics2D g = screen.createGraphics();
+        mipmap.paint(g, viewport);
+        g.dispose();
+    }
+
+    @Benchmark
+    public void direct() {
+        Graphics2D g = screen.createGraphics();
+        viewport.transform(g);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        canvas.paint(g);
+        g.dispose();
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Autosave keeps a recovery copy of a panel's layers, so a crash or closing
+ * the window loses at most the last few seconds of drawing. Every
+ * -Dpaint.autosaveSeconds (10 by default) the tiles changed since the last
+ * checkpoint are appended to a paint document named after the panel in the
+ * recovery directory (-Dpaint.recoveryDir, ~/.basic-paint/recovery by
+ * default), and a last checkpoint is written when the program exits.
+ *
+ * A checkpoint only holds the layers' lock to take copy-on-write snapshots
+ * of the layers that changed; encoding the changed tiles and writing them
+ * happen on the autosave thread, paced to -Dpaint.autosaveKBps (4096 KB/s
+ * by default, 0 for no limit). Each checkpoint is a single journal record (a LayerOp patch),
+ * so after a crash it is either complete or ignored. When layers were
+ * added, removed or reordered, or the patches have outgrown the drawing,
+ * the whole file is rewritten atomically instead, starting from a reset of
+ * every layer.
+ *
+ * Each checkpoint is timed by Telemetry, and its cost is printed
+ * ("Autosave Paint: ...") when run with -Dpaint.autosaveLog=true. On the
+ * next launch start offers to restore the recovery file; one that is not
+ * restored is kept as name-previous.bpj. Run with -Dpaint.autosave=false to turn
+ * autosave off; it is also off in headless runs such as the benchmarks.
+ */
+public class Autosave implements TiledCanvas.TileListener {
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("paint.autosave"));
+    private static final boolean LOG = Boolean.getBoolean("paint.autosaveLog");
+    private static final int INTERVAL_SECONDS = Math.max(1, Integer.getInteger("paint.autosaveSeconds", 10));
+    private static final long WRITE_LIMIT = Integer.getInteger("paint.autosaveKBps", 4096) * 1024L;
+    private static final long MIN_REWRITE_BYTES = 8 << 20; // patches appended before the file may be rewritten
+    private static final int EXIT_WAIT_SECONDS = 5;
+
+    private final String name;
+    private final LayerStack layers;
+    private final File dir;
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final TileCodec codec = new TileCodec(); // used on the autosave thread
+    private final Map<TiledCanvas, BitSet> changed = new IdentityHashMap<>(); // tiles changed since the last checkpoint
+    private final Set<TiledCanvas> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean dirty;               // something changed since the last checkpoint
+    private FileChannel lockChannel;     // holds the lock on the panel's recovery file while running
+    private volatile boolean exiting;    // write the last checkpoint at full speed
+
+    // State of the recovery file, on the autosave thread
+    private StrokeJournal journal;       // appends patches to the file; null until the next reset
+    private volatile StrokeJournal writing;
+    private List<TiledCanvas> savedLayers = Collections.emptyList(); // the layers the patches apply to
+    private long resetBytes, patchBytes;
+
+    /**
+     * Autosave for the layers of a panel; name identifies the panel and its
+     * recovery file. Changes are tracked from now on, but nothing is written
+     * until start is called.
+     */
+    public Autosave(String name, LayerStack layers) {
+        this.name = name;
+        this.layers = layers;
+        dir = new File(System.getProperty("paint.recoveryDir",
+                new File(System.getProperty("user.home"), ".basic-paint/recovery").getPath()));
+        file = new File(dir, name + "." + StrokeJournal.EXTENSION);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Autosave " + name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        layers.addTileListener(this);
+        layers.addChangeListener(this::layersChanged);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Leave a layer's tiles out of the checkpoints (only its properties are kept), e.g. a template that is redrawn.
+    public synchronized void skip(TiledCanvas canvas) {
+        skipped.add(canvas);
+        changed.remove(canvas);
+    }
+
+    @Override
+    public synchronized void tileWillChange(TiledCanvas canvas, int tx, int ty) {
+        if (!skipped.contains(canvas)) {
+            changed.computeIfAbsent(canvas, c -> new BitSet()).set(ty * TiledCanvas.GRID + tx);
+            dirty = true;
+        }
+    }
+
+    private synchronized void layersChanged() {
+        dirty = true;
+    }
+
+    /**
+     * Start checkpointing. If an earlier run left a recovery file, first ask
+     * whether to restore it: restore is then given the document read from
+     * it, on the EDT. Call on the EDT once the panel is shown or about to be.
+     */
+    public void start(Component parent, Consumer<StrokeJournal.Loaded> restore) {
+        if (!ENABLED || GraphicsEnvironment.isHeadless() || !lock()) {
+            return;
+        }
+        if (file.length() == 0) {
+            schedule();
+            return;
+        }
+        String when = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT)
+                .format(new Date(file.lastModified()));
+        int answer = JOptionPane.showConfirmDialog(parent,
+                "Your last " + name + " drawing (autosaved " + when + ") can be restored.\nRestore it?",
+                "Restore Drawing", JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) {
+            keepPrevious();
+            schedule();
+            return;
+        }
+        new FileTask<StrokeJournal.Loaded>(parent, "Restoring " + name) {
+            @Override
+            protected StrokeJournal.Loaded work() throws Exception {
+                try {
+                    return StrokeJournal.load(file);
+                } catch (Exception ex) {
+                    keepPrevious();
+                    throw ex;
+                }
+            }
+
+            @Override
+            protected void succeeded(StrokeJournal.Loaded loaded) {
+                restore.accept(loaded);
+            }
+
+            @Override
+            protected void finished() {
+                if (isCancelled()) {
+                    keepPrevious();
+                }
+                schedule();
+            }
+        }.start();
+    }
+
+    // Lock the panel's recovery file, so a second copy of the program leaves it alone.
+    private boolean lock() {
+        try {
+            Files.createDirectories(dir.toPath());
+            lockChannel = FileChannel.open(new File(dir, name + ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (lockChannel.tryLock() != null) {
+                return true;
+            }
+            lockChannel.close();
+            System.err.println("Autosave " + name + ": off, another copy of the program is saving to " + dir);
+        } catch (IOException | OverlappingFileLockException ex) {
+            System.err.println("Autosave " + name + ": off, cannot lock " + dir + ": " + ex);
+        }
+        return false;
+    }
+
+    // Move a recovery file that was not restored aside, so the first checkpoint does not overwrite it.
+    private void keepPrevious() {
+        try {
+            Files.move(file.toPath(), new File(dir, name + "-previous." + StrokeJournal.EXTENSION).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            System.err.println("Autosave " + name + ": cannot keep " + file + ": " + ex);
+        }
+    }
+
+    private void schedule() {
+        executor.scheduleWithFixedDelay(this::checkpoint, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::exit, "Autosave " + name + " at exit"));
+    }
+
+    // Write a last checkpoint without pacing, waiting a few seconds at most.
+    private void exit() {
+        exiting = true;
+        StrokeJournal current = writing;
+        if (current != null) {
+            current.setWriteLimit(0);
+        }
+        try {
+            executor.submit(this::checkpoint).get(EXIT_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            System.err.println("Autosave " + name + ": last checkpoint not written: " + ex);
+        }
+    }
+
+    // Write what changed since the last checkpoint, if anything. Runs on the autosave thread.
+    void checkpoint() {
+        long start = System.nanoTime();
+        Telemetry.Span span;
+        List<TiledCanvas> canvases = new ArrayList<>();
+        List<Layer> copies = new ArrayList<>();
+        List<BitSet> tileSets = new ArrayList<>();
+        boolean reset;
+        int active, width, height, backdrop;
+        long locked;
+        synchronized (layers) {
+            long entered = System.nanoTime();
+            Map<TiledCanvas, BitSet> taken;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                taken = new IdentityHashMap<>(changed);
+                changed.clear();
+            }
+            span = Telemetry.begin(Telemetry.Metric.AUTOSAVE);
+            for (Layer layer : layers.getLayers()) {
+                canvases.add(layer.getCanvas());
+            }
+            reset = journal == null || !canvases.equals(savedLayers)
+                    || patchBytes > Math.max(resetBytes, MIN_REWRITE_BYTES);
+            for (Layer layer : layers.getLayers()) {
+                TiledCanvas canvas = layer.getCanvas();
+                boolean unchanged = !reset && !taken.containsKey(canvas);
+                TiledCanvas copy = unchanged || isSkipped(canvas) ? blank(canvas) : canvas.snapshot();
+                Layer saved = new Layer(layer.getName(), copy);
+                saved.set(layer.getName(), layer.getOpacity(), layer.isVisible(), layer.getBlend(), layer.isLocked());
+                copies.add(saved);
+                tileSets.add(taken.get(canvas));
+            }
+            active = layers.getActiveIndex();
+            width = layers.getWidth();
+            height = layers.getHeight();
+            backdrop = layers.getComposite().getBackground();
+            locked = System.nanoTime() - entered;
+        }
+
+        long time = System.currentTimeMillis();
+        int tiles = 0;
+        long written = 0;
+        try {
+            DrawingOp.LayerOp op = reset ? DrawingOp.LayerOp.reset(copies, active, codec, time)
+                    : DrawingOp.LayerOp.patch(copies, active, tileSets, codec, time);
+            tiles = op.getTileCount();
+            StrokeJournal target = reset ? new StrokeJournal(width, height, backdrop) : journal;
+            target.setWriteLimit(exiting ? 0 : WRITE_LIMIT);
+            target.record(op);
+            writing = target;
+            written = target.save(file);
+            if (reset) {
+                journal = target;
+                savedLayers = canvases;
+                resetBytes = written;
+                patchBytes = 0;
+            } else {
+                patchBytes += written;
+            }
+            if (LOG) {
+                System.out.printf("Autosave %s: %s, %d tiles, %d KB written in %.1f ms (layers locked %.2f ms)%n",
+                        name, reset ? "all layers" : "changed tiles", tiles, (written + 1023) / 1024,
+                        (System.nanoTime() - start) / 1e6, locked / 1e6);
+            }
+        } catch (Exception ex) {
+            journal = null; // rewrite everything next time
+            synchronized (this) {
+                dirty = true;
+            }
+            System.err.println("Autosave " + name + ": cannot write " + file + ": " + ex);
+        } finally {
+            writing = null;
+            Telemetry.endAutosave(span, name, reset, tiles, written);
+        }
+    }
+
+    private synchronized boolean isSkipped(TiledCanvas canvas) {
+        return skipped.contains(canvas);
+    }
+
+    private static TiledCanvas blank(TiledCanvas canvas) {
+        return new TiledCanvas(canvas.getWidth(), canvas.getHeight(), canvas.getBackground());
+    }
+}
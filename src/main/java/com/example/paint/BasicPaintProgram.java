@@ -2,6 +2,12 @@ package com.example.paint;
 
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.function.Supplier;
 
 /**
  * Main class to launch the Basic Paint Program.
@@ -10,9 +16,17 @@ import javax.swing.*;
  * - Tracing Pad (for tracing images)
  * - Lessons (drawing instructions)
  * - Videos (embedded video player)
+ *
+ * Only the Paint tab is built at startup. The other tabs show a placeholder
+ * until they are first selected, so the JavaFX runtime behind the Videos tab
+ * is not started unless it is used. Startup timings are logged by
+ * StartupTimer.
  */
 public class BasicPaintProgram {
     public static void main(String[] args) {
+        StartupTimer.mainStarted();
+        CanvasSurface.prepare(); // time the canvas surfaces while the UI is built
+
         // Ensure UI creation runs on the Event Dispatch Thread
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("Basic Paint Program");
@@ -23,24 +37,52 @@ public class BasicPaintProgram {
             JTabbedPane tabbedPane = new JTabbedPane();
 
             // Paint tab: Core drawing features with file operations
-            PaintPanel paintPanel = new PaintPanel();
+            PaintPanel paintPanel = StartupTimer.time("Paint", PaintPanel::new);
             tabbedPane.addTab("Paint", paintPanel);
 
             // Tracing Pad tab: Preloaded background image for tracing
-            TracingPadPanel tracingPadPanel = new TracingPadPanel();
-            tabbedPane.addTab("Tracing Pad", tracingPadPanel);
+            addLazyTab(tabbedPane, "Tracing Pad", TracingPadPanel::new);
 
             // Lessons tab: Step-by-step drawing lessons for kids
-            LessonsPanel lessonsPanel = new LessonsPanel();
-            tabbedPane.addTab("Lessons", lessonsPanel);
+            addLazyTab(tabbedPane, "Lessons", LessonsPanel::new);
 
             // Videos tab: Embedded media player to play educational videos
-            VideoPlayerPanel videoPlayerPanel = new VideoPlayerPanel();
-            tabbedPane.addTab("Videos", videoPlayerPanel);
+            addLazyTab(tabbedPane, "Videos", VideoPlayerPanel::new);
 
             frame.add(tabbedPane);
             frame.setLocationRelativeTo(null); // Center the frame
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowOpened(WindowEvent e) {
+                    StartupTimer.frameVisible();
+                }
+            });
             frame.setVisible(true);
         });
     }
+
+    /**
+     * Add a tab whose panel is built the first time the tab is selected. A
+     * "Loading..." placeholder is shown meanwhile; the panel is built in a
+     * later event so the placeholder gets painted first.
+     */
+    static void addLazyTab(JTabbedPane tabs, String title, Supplier<? extends JComponent> factory) {
+        JPanel placeholder = new JPanel(new GridBagLayout());
+        placeholder.add(new JLabel("Loading " + title + "..."));
+        tabs.addTab(title, placeholder);
+        tabs.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (tabs.getSelectedComponent() != placeholder) {
+                    return;
+                }
+                tabs.removeChangeListener(this);
+                SwingUtilities.invokeLater(() -> {
+                    JComponent panel = StartupTimer.time(title, factory);
+                    tabs.setComponentAt(tabs.indexOfComponent(placeholder), panel);
+                    StartupTimer.panelBuilt(title);
+                });
+            }
+        });
+    }
 }
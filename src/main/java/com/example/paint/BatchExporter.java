@@ -0,0 +1,390 @@
+package com.example.paint;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BatchExporter is a headless command-line entry point for converting a
+ * folder of drawings (for example a whole class's work) without going
+ * through the file dialogs. Each image is loaded onto a canvas the way the
+ * Paint tab or the Tracing Pad opens it, flattened with the same code they
+ * save with, optionally shrunk, and written as PNG, JPG or PDF. Files are
+ * processed on a pool of worker threads, one per core by default, and a
+ * per-file timing table and the overall throughput are printed at the end.
+ * Outputs never overwrite each other or an input file.
+ *
+ * Usage:
+ *   java -Djava.awt.headless=true -cp target/classes:itextpdf.jar com.example.paint.BatchExporter
+ *        input-dir output-dir [options]
+ *
+ * Options:
+ *   --format png|jpg|pdf        output format (default png)
+ *   --mode paint|tracing        render like the Paint tab or the Tracing Pad (default paint)
+ *   --max-width N               shrink wider images to N pixels, keeping the aspect ratio
+ *   --max-height N              shrink taller images to N pixels, keeping the aspect ratio
+ *   --single-pdf NAME.pdf       combine every drawing into one PDF, one page per drawing
+ *   --pdf-compression lossless|jpeg
+ *   --jpeg-quality Q            0.0 to 1.0 for JPG output and JPEG PDF pages (default 0.85)
+ *   --threads N                 worker threads (default: number of cores)
+ */
+public class BatchExporter {
+    private String format = "png";
+    private String mode = "paint";
+    private int maxWidth = Integer.MAX_VALUE;
+    private int maxHeight = Integer.MAX_VALUE;
+    private String singlePdf;
+    private PdfExporter.Compression pdfCompression = PdfExporter.Compression.LOSSLESS;
+    private float jpegQuality = 0.85f;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // Timing for one input file, in milliseconds.
+    private static final class Result {
+        final String name;
+        double decodeMs, renderMs, encodeMs;
+        long bytes;
+        String error;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        double totalMs() {
+            return decodeMs + renderMs + encodeMs;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BatchExporter exporter = new BatchExporter();
+        List<String> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    paths.add(arg);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--format":
+                        exporter.format = value.toLowerCase(Locale.ROOT).replace("jpeg", "jpg");
+                        break;
+                    case "--mode":
+                        exporter.mode = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "--max-width":
+                        exporter.maxWidth = Integer.parseInt(value);
+                        break;
+                    case "--max-height":
+                        exporter.maxHeight = Integer.parseInt(value);
+                        break;
+                    case "--single-pdf":
+                        exporter.singlePdf = value;
+                        exporter.format = "pdf";
+                        break;
+                    case "--pdf-compression":
+                        exporter.pdfCompression = PdfExporter.Compression.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--jpeg-quality":
+                        exporter.jpegQuality = Float.parseFloat(value);
+                        break;
+                    case "--threads":
+                        exporter.threads = Math.max(1, Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (paths.size() != 2) {
+                throw new IllegalArgumentException("Expected an input and an output directory");
+            }
+            if (!Arrays.asList("png", "jpg", "pdf").contains(exporter.format)
+                    || !Arrays.asList("paint", "tracing").contains(exporter.mode)) {
+                throw new IllegalArgumentException("Unsupported --format or --mode");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: BatchExporter input-dir output-dir [--format png|jpg|pdf] "
+                    + "[--mode paint|tracing] [--max-width N] [--max-height N] [--single-pdf NAME.pdf] "
+                    + "[--pdf-compression lossless|jpeg] [--jpeg-quality Q] [--threads N]");
+            System.exit(2);
+        }
+        try {
+            int failures = exporter.run(new File(paths.get(0)), new File(paths.get(1)));
+            System.exit(failures == 0 ? 0 : 1);
+        } catch (Exception ex) {
+            System.err.println("Batch export failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Convert every image in the input directory; returns the number of files that failed.
+    public int run(File inputDir, File outputDir) throws Exception {
+        File[] inputs = inputDir.listFiles((dir, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg")
+                    || lower.endsWith(".gif") || lower.endsWith(".bmp");
+        });
+        if (inputs == null) {
+            throw new IOException("Not a directory: " + inputDir);
+        }
+        Arrays.sort(inputs);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+
+        long start = System.nanoTime();
+        List<Result> results;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            results = singlePdf != null
+                    ? exportSinglePdf(pool, inputs, new File(outputDir, singlePdf))
+                    : exportEach(pool, inputs, outputDir);
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return report(results, seconds);
+    }
+
+    // One output file per input, converted fully in parallel.
+    private List<Result> exportEach(ExecutorService pool, File[] inputs, File outputDir)
+            throws IOException, InterruptedException {
+        File[] outputs = outputFiles(inputs, outputDir);
+        Set<File> originals = new HashSet<>();
+        for (File input : inputs) {
+            originals.add(input.getCanonicalFile());
+        }
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < inputs.length; i++) {
+            File input = inputs[i], output = outputs[i];
+            futures.add(pool.submit(() -> {
+                Result result = new Result(input.getName());
+                try {
+                    if (originals.contains(output.getCanonicalFile())) {
+                        throw new IOException("Refusing to overwrite the input " + output.getName());
+                    }
+                    BufferedImage image = render(input, result);
+                    long t = System.nanoTime();
+                    FileHandler.writeAtomically(output, tmp -> writeFile(image, tmp));
+                    result.encodeMs = (System.nanoTime() - t) / 1e6;
+                    result.bytes = output.length();
+                } catch (Exception ex) {
+                    result.error = ex.toString();
+                }
+                return result;
+            }));
+        }
+        return collect(futures);
+    }
+
+    /**
+     * One PDF for all inputs. Workers decode and render ahead of the writer,
+     * but at most two pages per thread are held in memory at a time.
+     */
+    private List<Result> exportSinglePdf(ExecutorService pool, File[] inputs, File output) throws Exception {
+        List<Result> results = new ArrayList<>();
+        FileHandler.writeAtomically(output, tmp -> {
+            try (FileOutputStream out = new FileOutputStream(tmp);
+                 PdfExporter pdf = new PdfExporter(out, pdfCompression, jpegQuality)) {
+                Deque<Future<Object[]>> window = new ArrayDeque<>();
+                int next = 0;
+                while (next < inputs.length || !window.isEmpty()) {
+                    while (next < inputs.length && window.size() < threads * 2) {
+                        File input = inputs[next++];
+                        window.add(pool.submit(() -> {
+                            Result result = new Result(input.getName());
+                            BufferedImage image = null;
+                            try {
+                                image = render(input, result);
+                            } catch (Exception ex) {
+                                result.error = ex.toString();
+                            }
+                            return new Object[] { result, image };
+                        }));
+                    }
+                    Object[] done = window.poll().get();
+                    Result result = (Result) done[0];
+                    if (result.error == null) {
+                        long t = System.nanoTime();
+                        pdf.addPage((BufferedImage) done[1]);
+                        result.encodeMs = (System.nanoTime() - t) / 1e6;
+                    }
+                    results.add(result);
+                }
+            }
+        });
+        return results;
+    }
+
+    // Decode an input file and flatten it the way the chosen tab would save it.
+    private BufferedImage render(File input, Result result) throws IOException {
+        long t = System.nanoTime();
+        BufferedImage source = ImageIO.read(input);
+        if (source == null) {
+            throw new IOException("Unsupported image format");
+        }
+        result.decodeMs = (System.nanoTime() - t) / 1e6;
+
+        t = System.nanoTime();
+        int width = Math.min(source.getWidth(), TiledCanvas.MAX_DIMENSION);
+        int height = Math.min(source.getHeight(), TiledCanvas.MAX_DIMENSION);
+        boolean opaque = !format.equals("png");
+        BufferedImage image;
+        if (mode.equals("tracing")) {
+            TiledCanvas canvas = TracingPadPanel.newCanvas(width, height);
+            canvas.drawImage(source, 0, 0);
+            image = TracingPadPanel.flatten(canvas);
+        } else {
+            TiledCanvas canvas = PaintPanel.newCanvas(width, height);
+            PaintPanel.placeImage(canvas, source);
+            image = opaque ? canvas.toImage(BufferedImage.TYPE_INT_RGB, Color.WHITE) : canvas.toImage();
+        }
+        image = shrinkToFit(image, maxWidth, maxHeight);
+        result.renderMs = (System.nanoTime() - t) / 1e6;
+        return image;
+    }
+
+    /**
+     * Scale an image down to fit the given size, halving repeatedly with
+     * bilinear filtering so large reductions stay smooth. Smaller images are
+     * returned unchanged.
+     */
+    static BufferedImage shrinkToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(),
+                (double) maxHeight / image.getHeight()));
+        if (scale >= 1.0) {
+            return image;
+        }
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage current = image;
+        do {
+            int w = Math.max(targetWidth, current.getWidth() / 2);
+            int h = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, image.getType());
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (current.getWidth() != targetWidth || current.getHeight() != targetHeight);
+        return current;
+    }
+
+    private void writeFile(BufferedImage image, File file) throws Exception {
+        if (format.equals("pdf")) {
+            try (FileOutputStream out = new FileOutputStream(file);
+                 PdfExporter pdf = new PdfExporter(out, pdfCompression, jpegQuality)) {
+                pdf.addPage(image);
+            }
+            return;
+        }
+        ImageWriter writer = FileHandler.writerFor(format);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpg")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * The output file of each input: its name with the output format's
+     * extension. Inputs that differ only in extension (a.png and a.jpg) keep
+     * theirs in the name (a-png.png, a-jpg.png), so no output overwrites
+     * another; names that still clash are refused before anything is written.
+     */
+    private File[] outputFiles(File[] inputs, File outputDir) throws IOException {
+        Map<String, Integer> bases = new HashMap<>();
+        for (File input : inputs) {
+            bases.merge(baseName(input).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        File[] outputs = new File[inputs.length];
+        Map<String, File> taken = new HashMap<>();
+        for (int i = 0; i < inputs.length; i++) {
+            String base = baseName(inputs[i]);
+            if (bases.get(base.toLowerCase(Locale.ROOT)) > 1) {
+                String name = inputs[i].getName();
+                base += "-" + name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+            }
+            String name = base + "." + format;
+            File clash = taken.put(name.toLowerCase(Locale.ROOT), inputs[i]);
+            if (clash != null) {
+                throw new IOException(clash.getName() + " and " + inputs[i].getName() + " would both be saved as "
+                        + name);
+            }
+            outputs[i] = new File(outputDir, name);
+        }
+        return outputs;
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static List<Result> collect(List<Future<Result>> futures) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return results;
+    }
+
+    // Print the per-file timing table and throughput; returns the number of failures.
+    private int report(List<Result> results, double seconds) {
+        int failures = 0;
+        System.out.printf("%-40s %10s %10s %10s %10s %12s%n", "file", "decode ms", "render ms", "encode ms",
+                "total ms", "bytes");
+        for (Result r : results) {
+            if (r.error != null) {
+                failures++;
+                System.out.printf("%-40s FAILED: %s%n", r.name, r.error);
+            } else {
+                System.out.printf("%-40s %10.1f %10.1f %10.1f %10.1f %12d%n", r.name, r.decodeMs, r.renderMs,
+                        r.encodeMs, r.totalMs(), r.bytes);
+            }
+        }
+        int converted = results.size() - failures;
+        System.out.printf("%d of %d images in %.2f s on %d threads: %.1f images/sec%n", converted,
+                results.size(), seconds, threads, seconds > 0 ? converted / seconds : 0.0);
+        return failures;
+    }
+}
@@ -0,0 +1,513 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * CanvasFilter is an image filter for a layer: Gaussian blur, sharpen,
+ * grayscale, invert, brightness/contrast or posterize, with its settings.
+ *
+ * Filters work on the raw ARGB pixels, split into bands of rows that are
+ * processed in parallel on the common fork/join pool. The colour filters
+ * change each pixel on its own, so they run tile by tile and a uniform tile
+ * stays a single colour. Blur and sharpen need the neighbouring pixels: the
+ * layer is gathered into one raster, filtered and cut back into tiles.
+ *
+ * The Gaussian blur is three box blurs in a row, each done one dimension at
+ * a time with a running sum, so a pixel costs the same for any radius. The
+ * rows are blurred, the raster is transposed in cache-sized blocks, and the
+ * same row loop blurs the columns before it is transposed back; writing a
+ * pass's output transposed directly is twice as slow. Colours are blurred
+ * premultiplied by their alpha, so transparent pixels do not darken the
+ * edges of a stroke.
+ *
+ * Long runs check the cancelled flag between bands and report their
+ * progress (0-100) as bands complete.
+ */
+public class CanvasFilter {
+    static final int BAND_ROWS = 64;
+
+    /** The filters, with the settings each one takes. */
+    public enum Kind {
+        BLUR("Gaussian Blur", new Setting("Radius", 1, 200, 5)),
+        SHARPEN("Sharpen", new Setting("Amount %", 0, 500, 100), new Setting("Radius", 1, 20, 2)),
+        GRAYSCALE("Grayscale"),
+        INVERT("Invert"),
+        BRIGHTNESS_CONTRAST("Brightness/Contrast", new Setting("Brightness", -100, 100, 0),
+                new Setting("Contrast", -100, 100, 0)),
+        POSTERIZE("Posterize", new Setting("Levels", 2, 32, 4));
+
+        private final String label;
+        private final Setting[] settings;
+
+        Kind(String label, Setting... settings) {
+            this.label = label;
+            this.settings = settings;
+        }
+
+        public Setting[] getSettings() {
+            return settings.clone();
+        }
+
+        // Blur and sharpen read the pixels around each pixel; the others map pixels one by one.
+        boolean isSpatial() {
+            return this == BLUR || this == SHARPEN;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /** One integer setting of a filter, with its range and default. */
+    public static final class Setting {
+        public final String label;
+        public final int min, max, initial;
+
+        Setting(String label, int min, int max, int initial) {
+            this.label = label;
+            this.min = min;
+            this.max = max;
+            this.initial = initial;
+        }
+    }
+
+    /**
+     * The filtered tiles of a canvas, to be written back to it. A null pixel
+     * array stands for a uniform tile of the matching colour.
+     */
+    public static final class Result {
+        private final int cols;
+        private final int[][] data;
+        private final int[] colors;
+        private final boolean[] changed;
+
+        Result(int cols, int[][] data, int[] colors, boolean[] changed) {
+            this.cols = cols;
+            this.data = data;
+            this.colors = colors;
+            this.changed = changed;
+        }
+
+        /**
+         * Replace the canvas's tiles with the filtered ones and return the
+         * region that changed. Uniform tiles that kept their colour are left
+         * alone, so they are not copied into the undo history.
+         */
+        public Rectangle writeTo(TiledCanvas canvas) {
+            synchronized (canvas) {
+                Rectangle bounds = new Rectangle();
+                for (int index = 0; index < data.length; index++) {
+                    if (changed[index]) {
+                        int tx = index % cols, ty = index / cols;
+                        canvas.setTile(tx, ty, data[index], colors[index]);
+                        bounds.add(TiledCanvas.tileBounds(tx, ty));
+                    }
+                }
+                return bounds.intersection(canvas.getBounds());
+            }
+        }
+    }
+
+    private final Kind kind;
+    private final int[] values;
+
+    // A filter with the given setting values, in the order of kind.getSettings(); missing ones take their default.
+    public CanvasFilter(Kind kind, int... values) {
+        this.kind = kind;
+        this.values = new int[kind.settings.length];
+        for (int i = 0; i < this.values.length; i++) {
+            Setting setting = kind.settings[i];
+            int value = i < values.length ? values[i] : setting.initial;
+            this.values[i] = Math.max(setting.min, Math.min(setting.max, value));
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return kind.toString();
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Filter the tiles of a canvas without changing it, e.g. a snapshot taken
+     * so the user's canvas stays responsive; write the result back with
+     * Result.writeTo. Throws CancellationException once cancelled.
+     */
+    public Result apply(TiledCanvas source, IntConsumer progress, BooleanSupplier cancelled) {
+        int width, height, cols, rows;
+        int[][] data;
+        int[] colors;
+        synchronized (source) {
+            width = source.getWidth();
+            height = source.getHeight();
+            cols = source.getColumns();
+            rows = source.getRows();
+            data = new int[cols * rows][];
+            colors = new int[cols * rows];
+            for (int index = 0; index < data.length; index++) {
+                data[index] = source.getTilePixels(index % cols, index / cols);
+                colors[index] = source.getTileColor(index % cols, index / cols);
+            }
+        }
+        // The tile arrays may be shared with the live canvas, so results always go to new arrays.
+        int[][] outData = new int[data.length][];
+        int[] outColors = new int[data.length];
+        boolean[] changed = new boolean[data.length];
+        if (kind.isSpatial()) {
+            Work work = new Work(2L * height + filterRows(width, height), progress, cancelled);
+            int[] raster = gather(width, height, cols, data, colors, work);
+            filter(raster, width, height, 1, work);
+            scatter(raster, width, height, cols, data, colors, outData, outColors, changed, work);
+        } else {
+            Work work = new Work(rows, progress, cancelled);
+            int[] lut = lut();
+            int size = TiledCanvas.TILE_SIZE;
+            bands(rows, 1, work, (from, to) -> {
+                for (int index = from * cols; index < to * cols; index++) {
+                    if (data[index] == null) {
+                        outColors[index] = map(colors[index], lut);
+                        changed[index] = outColors[index] != colors[index];
+                    } else {
+                        int[] in = data[index], out = new int[size * size];
+                        for (int i = 0; i < out.length; i++) {
+                            out[i] = map(in[i], lut);
+                        }
+                        outData[index] = out;
+                        changed[index] = true;
+                    }
+                }
+            });
+        }
+        return new Result(cols, outData, outColors, changed);
+    }
+
+    /**
+     * Filter a raster of non-premultiplied ARGB pixels in place. Radii are
+     * multiplied by scale, so a preview of a scaled-down copy looks like the
+     * full-size result. Throws CancellationException once cancelled.
+     */
+    public void apply(int[] argb, int width, int height, double scale, IntConsumer progress, BooleanSupplier cancelled) {
+        if (kind.isSpatial()) {
+            filter(argb, width, height, scale, new Work(filterRows(width, height), progress, cancelled));
+        } else {
+            int[] lut = lut();
+            bands(height, BAND_ROWS, new Work(height, progress, cancelled), (from, to) -> {
+                for (int i = from * width; i < to * width; i++) {
+                    argb[i] = map(argb[i], lut);
+                }
+            });
+        }
+    }
+
+    // Rows processed by blur or sharpen: premultiply, three boxes and a transpose per dimension, unpremultiply.
+    private long filterRows(int width, int height) {
+        long blur = 2L * height + 4L * (width + height);
+        return kind == Kind.SHARPEN ? blur + height : blur;
+    }
+
+    private void filter(int[] argb, int width, int height, double scale, Work work) {
+        if (kind == Kind.BLUR) {
+            blur(argb, width, height, values[0] * scale, work);
+            return;
+        }
+        // Unsharp mask: push each colour away from its blurred value by the amount.
+        int amount = values[0];
+        int[] blurred = argb.clone();
+        blur(blurred, width, height, values[1] * scale, work);
+        bands(height, BAND_ROWS, work, (from, to) -> {
+            for (int i = from * width; i < to * width; i++) {
+                int p = argb[i], b = blurred[i];
+                argb[i] = p & 0xFF000000
+                        | sharpen(p >> 16 & 0xFF, b >> 16 & 0xFF, amount) << 16
+                        | sharpen(p >> 8 & 0xFF, b >> 8 & 0xFF, amount) << 8
+                        | sharpen(p & 0xFF, b & 0xFF, amount);
+            }
+        });
+    }
+
+    private static int sharpen(int value, int blurred, int amount) {
+        return clamp(value + (value - blurred) * amount / 100);
+    }
+
+    // Gaussian blur with standard deviation sigma, as three box blurs.
+    private static void blur(int[] argb, int width, int height, double sigma, Work work) {
+        int[] radii = boxRadii(sigma);
+        bands(height, BAND_ROWS, work, (from, to) -> {
+            for (int i = from * width; i < to * width; i++) {
+                argb[i] = premultiply(argb[i]);
+            }
+        });
+        int[] other = new int[argb.length];
+        boxRows(argb, other, width, height, radii, work);
+        transpose(other, argb, width, height, work);
+        boxRows(argb, other, height, width, radii, work);
+        transpose(other, argb, height, width, work);
+        bands(height, BAND_ROWS, work, (from, to) -> {
+            for (int i = from * width; i < to * width; i++) {
+                argb[i] = unpremultiply(argb[i]);
+            }
+        });
+    }
+
+    /**
+     * Radii of three box blurs that together approximate a Gaussian with
+     * standard deviation sigma (box widths after W. Jarosz, "Fast Image
+     * Convolutions", and P. Kovesi's extension to non-integer widths).
+     */
+    static int[] boxRadii(double sigma) {
+        int n = 3;
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        long m = Math.round((12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n) / (-4.0 * lower - 4));
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            radii[i] = ((i < m ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    // Blur the rows of a width x height raster with the three boxes, leaving the result in out.
+    private static void boxRows(int[] raster, int[] out, int width, int height, int[] radii, Work work) {
+        boxPass(raster, out, width, height, radii[0], work);
+        boxPass(out, raster, width, height, radii[1], work);
+        boxPass(raster, out, width, height, radii[2], work);
+    }
+
+    /**
+     * Box-blur each row of src (width x height) into dst. The window keeps a
+     * running sum per channel, so each pixel costs one add and one subtract
+     * whatever the radius; pixels past the edges repeat the edge pixel.
+     */
+    private static void boxPass(int[] src, int[] dst, int width, int height, int radius, Work work) {
+        if (radius <= 0) {
+            System.arraycopy(src, 0, dst, 0, width * height);
+            work.done(height);
+            return;
+        }
+        long scale = (1L << 32) / (2 * radius + 1);
+        long half = 1L << 31;
+        int last = width - 1;
+        bands(height, BAND_ROWS, work, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int row = y * width;
+                int first = src[row];
+                int a = (radius + 1) * (first >>> 24), r = (radius + 1) * (first >> 16 & 0xFF);
+                int g = (radius + 1) * (first >> 8 & 0xFF), b = (radius + 1) * (first & 0xFF);
+                for (int i = 1; i <= radius; i++) {
+                    int p = src[row + Math.min(i, last)];
+                    a += p >>> 24;
+                    r += p >> 16 & 0xFF;
+                    g += p >> 8 & 0xFF;
+                    b += p & 0xFF;
+                }
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = (int) (a * scale + half >>> 32) << 24 | (int) (r * scale + half >>> 32) << 16
+                            | (int) (g * scale + half >>> 32) << 8 | (int) (b * scale + half >>> 32);
+                    int in = src[row + Math.min(x + radius + 1, last)], out = src[row + Math.max(x - radius, 0)];
+                    a += (in >>> 24) - (out >>> 24);
+                    r += (in >> 16 & 0xFF) - (out >> 16 & 0xFF);
+                    g += (in >> 8 & 0xFF) - (out >> 8 & 0xFF);
+                    b += (in & 0xFF) - (out & 0xFF);
+                }
+            }
+        });
+    }
+
+    // Write the rows of src (width x height) as the columns of dst, a 32x32 block at a time.
+    private static void transpose(int[] src, int[] dst, int width, int height, Work work) {
+        int block = 32;
+        bands(height, block, work, (from, to) -> {
+            for (int x0 = 0; x0 < width; x0 += block) {
+                int x1 = Math.min(width, x0 + block);
+                for (int y = from; y < to; y++) {
+                    for (int x = x0, row = y * width; x < x1; x++) {
+                        dst[x * height + y] = src[row + x];
+                    }
+                }
+            }
+        });
+    }
+
+    static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return a << 24 | LayerStack.div255((argb >> 16 & 0xFF) * a) << 16
+                | LayerStack.div255((argb >> 8 & 0xFF) * a) << 8 | LayerStack.div255((argb & 0xFF) * a);
+    }
+
+    static int unpremultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255 || a == 0) {
+            return argb;
+        }
+        int half = a / 2;
+        return a << 24 | Math.min(255, ((argb >> 16 & 0xFF) * 255 + half) / a) << 16
+                | Math.min(255, ((argb >> 8 & 0xFF) * 255 + half) / a) << 8
+                | Math.min(255, ((argb & 0xFF) * 255 + half) / a);
+    }
+
+    // Table mapping a 0-255 channel value for the colour filters, or null for grayscale.
+    private int[] lut() {
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            switch (kind) {
+                case INVERT:
+                    lut[v] = 255 - v;
+                    break;
+                case BRIGHTNESS_CONTRAST: {
+                    // Contrast scales around mid-grey, from flat grey at -100 to a hard threshold at +100.
+                    double c = values[1] * 2.55;
+                    double factor = 259 * (c + 255) / (255 * (259 - c));
+                    lut[v] = clamp((int) Math.round(factor * (v - 128) + 128 + values[0] * 2.55));
+                    break;
+                }
+                case POSTERIZE: {
+                    int steps = values[0] - 1;
+                    lut[v] = (v * steps + 127) / 255 * 255 / steps;
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+        return lut;
+    }
+
+    // One pixel through a colour filter; fully transparent pixels are left as they are.
+    private static int map(int argb, int[] lut) {
+        if (argb >>> 24 == 0) {
+            return argb;
+        }
+        int r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+        if (lut == null) {
+            int gray = (77 * r + 150 * g + 29 * b + 128) >> 8;
+            return argb & 0xFF000000 | gray << 16 | gray << 8 | gray;
+        }
+        return argb & 0xFF000000 | lut[r] << 16 | lut[g] << 8 | lut[b];
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    // Copy the canvas's pixels into one raster, a tile row per band.
+    private static int[] gather(int width, int height, int cols, int[][] data, int[] colors, Work work) {
+        int size = TiledCanvas.TILE_SIZE;
+        int[] raster = new int[width * height];
+        bands(height, size, work, (from, to) -> {
+            for (int index = from / size * cols, tx = 0; tx < cols; tx++, index++) {
+                int x = tx * size, w = Math.min(size, width - x);
+                for (int y = from; y < to; y++) {
+                    if (data[index] == null) {
+                        Arrays.fill(raster, y * width + x, y * width + x + w, colors[index]);
+                    } else {
+                        System.arraycopy(data[index], (y - from) * size, raster, y * width + x, w);
+                    }
+                }
+            }
+        });
+        return raster;
+    }
+
+    /**
+     * Cut the filtered raster back into tiles. A tile whose pixels all came
+     * out the same becomes uniform, and the part of an edge tile past the
+     * canvas keeps its old pixels.
+     */
+    private static void scatter(int[] raster, int width, int height, int cols, int[][] data, int[] colors,
+                                int[][] outData, int[] outColors, boolean[] changed, Work work) {
+        int size = TiledCanvas.TILE_SIZE;
+        bands(height, size, work, (from, to) -> {
+            for (int index = from / size * cols, tx = 0; tx < cols; tx++, index++) {
+                int x = tx * size, w = Math.min(size, width - x), h = to - from;
+                int first = raster[from * width + x];
+                boolean uniform = w == size && h == size;
+                for (int y = from; y < to && uniform; y++) {
+                    for (int i = y * width + x, end = i + w; i < end; i++) {
+                        if (raster[i] != first) {
+                            uniform = false;
+                            break;
+                        }
+                    }
+                }
+                if (uniform) {
+                    outColors[index] = first;
+                    changed[index] = data[index] != null || colors[index] != first;
+                    continue;
+                }
+                int[] out = new int[size * size];
+                if (data[index] == null) {
+                    Arrays.fill(out, colors[index]);
+                } else if (w < size || h < size) {
+                    System.arraycopy(data[index], 0, out, 0, out.length);
+                }
+                for (int y = from; y < to; y++) {
+                    System.arraycopy(raster, y * width + x, out, (y - from) * size, w);
+                }
+                outData[index] = out;
+                changed[index] = true;
+            }
+        });
+    }
+
+    interface Band {
+        void run(int from, int to);
+    }
+
+    // Run a band of rows [from, to) at a time in parallel, checking for cancel before each one.
+    private static void bands(int rows, int bandRows, Work work, Band band) {
+        IntStream.range(0, (rows + bandRows - 1) / bandRows).parallel().forEach(i -> {
+            work.check();
+            int from = i * bandRows, to = Math.min(rows, from + bandRows);
+            band.run(from, to);
+            work.done(to - from);
+        });
+        work.check();
+    }
+
+    // Progress of a filter run, counted in rows of all its passes.
+    private static final class Work {
+        private final long total;
+        private final AtomicLong done = new AtomicLong();
+        private final IntConsumer progress;
+        private final BooleanSupplier cancelled;
+
+        Work(long total, IntConsumer progress, BooleanSupplier cancelled) {
+            this.total = Math.max(1, total);
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        void check() {
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+        }
+
+        void done(int rows) {
+            progress.accept((int) (done.addAndGet(rows) * 100 / total));
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * CanvasMipmap draws a canvas zoomed out from a pyramid of smaller copies,
+ * so a zoomed out view costs about as much as the panel has pixels however
+ * large the canvas is. Level k is the canvas at 1/2^k size in 256-pixel
+ * tiles; each tile is the 2x2 average (weighted by alpha) of the four
+ * tiles under it, premultiplied so it draws faster, and a tile whose four
+ * are one colour is stored as that colour. At a zoom between 1/2^k and 1/2^(k+1) level k is drawn, scaled
+ * down by less than half with bilinear filtering.
+ *
+ * Tiles are built the first time they are drawn and rebuilt after the
+ * canvas region under them is invalidated. A paint spends at most about
+ * 8 ms building tiles and repaints to build the rest, drawing the tiles not built
+ * yet from the canvas directly (or as they were before the last change),
+ * so zooming out on a large canvas never stalls the EDT.
+ *
+ * Like the composite it is made from, a mipmap is only used on the EDT.
+ */
+public class CanvasMipmap {
+    private static final int TILE = TiledCanvas.TILE_SIZE;
+    private static final int HALF = TILE / 2;
+    private static final long BUILD_BUDGET_NANOS = 8_000_000;
+
+    private final TiledCanvas canvas;
+    private final Runnable repaint;
+    private Level[] levels = new Level[1]; // levels[0] stays null: level 0 is the canvas
+    private int width, height;
+    private long budget;  // nanoseconds left for building tiles in this paint
+
+    /** Level k of the pyramid. */
+    private static final class Level {
+        final int cols, rows, width, height;
+        final BufferedImage[] tiles;  // null entry = uniform tile
+        final int[] colors;
+        final BitSet built = new BitSet();  // drawn at least once since the canvas was resized
+        final BitSet fresh = new BitSet();  // up to date with the canvas
+
+        Level(int canvasWidth, int canvasHeight, int k) {
+            width = (canvasWidth + (1 << k) - 1) >> k;
+            height = (canvasHeight + (1 << k) - 1) >> k;
+            cols = (width + TILE - 1) / TILE;
+            rows = (height + TILE - 1) / TILE;
+            tiles = new BufferedImage[cols * rows];
+            colors = new int[cols * rows];
+        }
+    }
+
+    // Mipmap of a canvas; repaint is called when a paint left tiles to build.
+    public CanvasMipmap(TiledCanvas canvas, Runnable repaint) {
+        this.canvas = canvas;
+        this.repaint = repaint;
+    }
+
+    // Mark the levels over a changed region of the canvas out of date.
+    public void invalidate(Rectangle r) {
+        if (r == null || r.isEmpty()) {
+            return;
+        }
+        Rectangle c = r.intersection(new Rectangle(0, 0, width, height));
+        if (c.isEmpty()) {
+            return;
+        }
+        for (int k = 1; k < levels.length; k++) {
+            Level level = levels[k];
+            int tx0 = (c.x >> k) / TILE, tx1 = ((c.x + c.width - 1) >> k) / TILE;
+            int ty0 = (c.y >> k) / TILE, ty1 = ((c.y + c.height - 1) >> k) / TILE;
+            for (int ty = ty0; ty <= ty1; ty++) {
+                level.fresh.clear(ty * level.cols + tx0, ty * level.cols + tx1 + 1);
+            }
+        }
+    }
+
+    /**
+     * Paint the canvas at the viewport's zoom, which should be below 1, in
+     * the clip of g. g is in view coordinates, as the panel paints.
+     */
+    public void paint(Graphics2D g, Viewport view) {
+        if (canvas.getWidth() != width || canvas.getHeight() != height) {
+            width = canvas.getWidth();
+            height = canvas.getHeight();
+            levels = new Level[1];
+        }
+        double scale = view.getScale();
+        int k = Math.min(30, (int) Math.floor(Math.log(1 / scale) / Math.log(2) + 1e-9));
+        if (k <= 0) {
+            Graphics2D direct = (Graphics2D) g.create();
+            view.transform(direct);
+            direct.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            canvas.paint(direct);
+            direct.dispose();
+            return;
+        }
+        Level level = level(k);
+        Rectangle clip = g.getClipBounds();
+        Rectangle shown = clip == null ? new Rectangle(0, 0, width, height)
+                : view.toCanvas(clip).intersection(new Rectangle(0, 0, width, height));
+        if (shown.isEmpty()) {
+            return;
+        }
+        int tx0 = (shown.x >> k) / TILE, tx1 = ((shown.x + shown.width - 1) >> k) / TILE;
+        int ty0 = (shown.y >> k) / TILE, ty1 = ((shown.y + shown.height - 1) >> k) / TILE;
+        budget = BUILD_BUDGET_NANOS;
+        boolean behind = false;
+        Color oldColor = g.getColor();
+        Object oldHint = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int index = ty * level.cols + tx;
+                // canvas region of the tile, and the view rectangle it lands on
+                int cx0 = (tx * TILE) << k, cx1 = Math.min(((tx + 1) * TILE) << k, width);
+                int cy0 = (ty * TILE) << k, cy1 = Math.min(((ty + 1) * TILE) << k, height);
+                int dx0 = view.viewX(cx0), dx1 = view.viewX(cx1);
+                int dy0 = view.viewY(cy0), dy1 = view.viewY(cy1);
+                if (!ensure(k, tx, ty)) {
+                    behind = true;
+                    if (!level.built.get(index)) {
+                        paintDirect(g, view, new Rectangle(dx0, dy0, dx1 - dx0, dy1 - dy0));
+                        continue;
+                    }
+                }
+                BufferedImage tile = level.tiles[index];
+                if (tile != null) {
+                    int sw = (cx1 - cx0 + (1 << k) - 1) >> k, sh = (cy1 - cy0 + (1 << k) - 1) >> k;
+                    g.drawImage(tile, dx0, dy0, dx1, dy1, 0, 0, sw, sh, null);
+                } else if ((level.colors[index] >>> 24) != 0) {
+                    g.setColor(new Color(level.colors[index], true));
+                    g.fillRect(dx0, dy0, dx1 - dx0, dy1 - dy0);
+                }
+            }
+        }
+        g.setColor(oldColor);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                oldHint != null ? oldHint : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        if (behind) {
+            repaint.run();
+        }
+    }
+
+    // Draw part of the view from the canvas itself, for tiles not built yet.
+    private void paintDirect(Graphics2D g, Viewport view, Rectangle area) {
+        Graphics2D direct = (Graphics2D) g.create();
+        direct.clipRect(area.x, area.y, area.width, area.height);
+        view.transform(direct);
+        canvas.paint(direct);
+        direct.dispose();
+    }
+
+    // Level k, creating the levels up to it.
+    private Level level(int k) {
+        if (k >= levels.length) {
+            Level[] grown = Arrays.copyOf(levels, k + 1);
+            for (int i = levels.length; i <= k; i++) {
+                grown[i] = new Level(width, height, i);
+            }
+            levels = grown;
+        }
+        return levels[k];
+    }
+
+    // Bring a tile up to date, building the tiles under it first. False if the time ran out.
+    private boolean ensure(int k, int tx, int ty) {
+        Level level = levels[k];
+        int index = ty * level.cols + tx;
+        if (level.fresh.get(index)) {
+            return true;
+        }
+        if (k > 1) {
+            Level below = levels[k - 1];
+            boolean ready = true;
+            for (int dy = 0; dy < 2; dy++) {
+                for (int dx = 0; dx < 2; dx++) {
+                    int cx = tx * 2 + dx, cy = ty * 2 + dy;
+                    if (cx < below.cols && cy < below.rows) {
+                        ready &= ensure(k - 1, cx, cy);
+                    }
+                }
+            }
+            if (!ready) {
+                return false;
+            }
+        }
+        if (budget <= 0) {
+            return false;
+        }
+        long start = System.nanoTime();
+        build(k, tx, ty);
+        budget -= System.nanoTime() - start;
+        return true;
+    }
+
+    // Average the four tiles under a tile of level k into it.
+    private void build(int k, int tx, int ty) {
+        Level level = levels[k];
+        int index = ty * level.cols + tx;
+        synchronized (canvas) {
+            int[][] sources = new int[4][];
+            int[] colors = new int[4];
+            boolean uniform = true;
+            for (int q = 0; q < 4; q++) {
+                int cx = tx * 2 + (q & 1), cy = ty * 2 + (q >> 1);
+                colors[q] = colors[0]; // past the edge of the canvas: never shown
+                if (k == 1) {
+                    if (cx < canvas.getColumns() && cy < canvas.getRows()) {
+                        sources[q] = canvas.getTilePixels(cx, cy);
+                        colors[q] = canvas.getTileColor(cx, cy);
+                    }
+                } else {
+                    Level below = levels[k - 1];
+                    if (cx < below.cols && cy < below.rows) {
+                        BufferedImage tile = below.tiles[cy * below.cols + cx];
+                        sources[q] = tile == null ? null : TiledCanvas.pixels(tile);
+                        colors[q] = below.colors[cy * below.cols + cx];
+                    }
+                }
+                uniform &= sources[q] == null && colors[q] == colors[0];
+            }
+            if (uniform) {
+                level.tiles[index] = null;
+                level.colors[index] = colors[0];
+            } else {
+                BufferedImage tile = level.tiles[index];
+                if (tile == null) {
+                    tile = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB_PRE);
+                    level.tiles[index] = tile;
+                }
+                int[] target = TiledCanvas.pixels(tile);
+                for (int q = 0; q < 4; q++) {
+                    int offset = (q >> 1) * HALF * TILE + (q & 1) * HALF;
+                    if (sources[q] == null) {
+                        int color = premultiply(colors[q]);
+                        for (int y = 0; y < HALF; y++) {
+                            Arrays.fill(target, offset + y * TILE, offset + y * TILE + HALF, color);
+                        }
+                    } else if (k == 1) {
+                        halve(sources[q], target, offset);
+                    } else {
+                        halvePremultiplied(sources[q], target, offset);
+                    }
+                }
+            }
+        }
+        level.built.set(index);
+        level.fresh.set(index);
+    }
+
+    // Average each 2x2 block of a canvas tile into one premultiplied pixel of a quarter of target.
+    static void halve(int[] source, int[] target, int offset) {
+        for (int y = 0; y < HALF; y++) {
+            int row = 2 * y * TILE;
+            int out = offset + y * TILE;
+            for (int x = 0; x < HALF; x++) {
+                int i = row + 2 * x;
+                int p0 = source[i], p1 = source[i + 1], p2 = source[i + TILE], p3 = source[i + TILE + 1];
+                if (p0 == p1 && p0 == p2 && p0 == p3) {
+                    target[out + x] = premultiply(p0);
+                    continue;
+                }
+                int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+                int r = ((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1
+                        + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3;
+                int g = ((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1
+                        + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3;
+                int b = (p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3;
+                int a = a0 + a1 + a2 + a3;
+                target[out + x] = (a + 2) / 4 << 24 | (r + 510) / 1020 << 16 | (g + 510) / 1020 << 8 | (b + 510) / 1020;
+            }
+        }
+    }
+
+    // Average each 2x2 block of a premultiplied level tile into one pixel of a quarter of target.
+    static void halvePremultiplied(int[] source, int[] target, int offset) {
+        for (int y = 0; y < HALF; y++) {
+            int row = 2 * y * TILE;
+            int out = offset + y * TILE;
+            for (int x = 0; x < HALF; x++) {
+                int i = row + 2 * x;
+                int p0 = source[i], p1 = source[i + 1], p2 = source[i + TILE], p3 = source[i + TILE + 1];
+                // average the bytes in two lanes at a time: alpha and green, red and blue
+                int ag = (p0 >>> 8 & 0xFF00FF) + (p1 >>> 8 & 0xFF00FF) + (p2 >>> 8 & 0xFF00FF) + (p3 >>> 8 & 0xFF00FF);
+                int rb = (p0 & 0xFF00FF) + (p1 & 0xFF00FF) + (p2 & 0xFF00FF) + (p3 & 0xFF00FF);
+                target[out + x] = ((ag + 0x20002) << 6 & 0xFF00FF00) | ((rb + 0x20002) >>> 2 & 0xFF00FF);
+            }
+        }
+    }
+
+    private static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        int r = ((argb >> 16) & 0xFF) * a / 255, g = ((argb >> 8) & 0xFF) * a / 255, b = (argb & 0xFF) * a / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    // Heap held by the built tiles, in bytes.
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Level level : levels) {
+            if (level != null) {
+                for (BufferedImage tile : level.tiles) {
+                    if (tile != null) {
+                        bytes += (long) TILE * TILE * 4;
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,364 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * CanvasSurface is how a panel puts its TiledCanvas on screen. The canvas
+ * stays the persistent copy of the drawing; a surface may keep a display
+ * copy in a faster format, refreshed only where the canvas changed.
+ *
+ * - ARGB: paint the canvas's ARGB tiles directly (no display copy).
+ * - COMPATIBLE: a display copy in the screen's pixel format
+ *   (GraphicsConfiguration.createCompatibleImage), so blits need no conversion.
+ * - VOLATILE: a display copy in a VolatileImage that can live in video
+ *   memory; when its contents are lost it is redrawn from the canvas.
+ *
+ * Select one with -Dpaint.canvasSurface=argb|compatible|volatile. The
+ * default, auto, times each option on this machine once in the background
+ * (see measure) and switches to the fastest when the result is in, painting
+ * with ARGB until then so startup never waits for it, and for good if the
+ * measurement fails.
+ */
+public abstract class CanvasSurface {
+    public enum Kind {
+        ARGB, COMPATIBLE, VOLATILE, AUTO
+    }
+
+    private static volatile CompletableFuture<Kind> fastest;
+
+    protected final TiledCanvas canvas;
+    protected final Supplier<GraphicsConfiguration> gcSource;
+    protected final boolean opaque;
+    protected Rectangle dirty; // display copy region that is out of date, on the EDT
+
+    protected CanvasSurface(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource, boolean opaque) {
+        this.canvas = canvas;
+        this.gcSource = gcSource;
+        this.opaque = opaque;
+    }
+
+    public abstract Kind getKind();
+
+    // Paint the canvas at the origin of g, within its clip.
+    public abstract void paint(Graphics g);
+
+    // Mark a region of the canvas as changed since it was last painted.
+    public void invalidate(Rectangle r) {
+        dirty = DrawingOp.union(dirty, r);
+    }
+
+    // Release the display copy, e.g. when the panel goes away.
+    public void dispose() {
+    }
+
+    /**
+     * Surface for a panel's canvas. gcSource gives the panel's current
+     * GraphicsConfiguration (null until it is shown, or when headless). An
+     * opaque surface may assume the canvas has no transparent pixels.
+     */
+    public static CanvasSurface create(Kind kind, TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource,
+                                       boolean opaque) {
+        switch (kind) {
+            case AUTO:
+                return new Auto(canvas, gcSource, opaque);
+            case COMPATIBLE:
+                return new Compatible(canvas, gcSource, opaque);
+            case VOLATILE:
+                return new Volatile(canvas, gcSource, opaque);
+            default:
+                return new Argb(canvas, gcSource, opaque);
+        }
+    }
+
+    // Surface of the kind selected with -Dpaint.canvasSurface.
+    public static CanvasSurface configured(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource,
+                                           boolean opaque) {
+        return create(configuredKind(), canvas, gcSource, opaque);
+    }
+
+    public static Kind configuredKind() {
+        return Kind.valueOf(System.getProperty("paint.canvasSurface", "auto").toUpperCase());
+    }
+
+    /**
+     * Start timing the surfaces in the background, so the result is ready by
+     * the time the first panel paints. Does nothing unless auto is selected.
+     */
+    public static void prepare() {
+        if (configuredKind() == Kind.AUTO) {
+            fastestFuture();
+        }
+    }
+
+    // The fastest kind on this machine, measured once per run.
+    public static Kind fastestKind() {
+        return fastestFuture().join();
+    }
+
+    private static synchronized CompletableFuture<Kind> fastestFuture() {
+        if (fastest == null) {
+            fastest = CompletableFuture.supplyAsync(() -> {
+                Map<Kind, Double> times = measure(defaultConfiguration(), 800, 600, 40);
+                Kind best = Kind.ARGB;
+                for (Map.Entry<Kind, Double> entry : times.entrySet()) {
+                    if (entry.getValue() < times.get(best)) {
+                        best = entry.getKey();
+                    }
+                }
+                StartupTimer.log("canvas surface " + best + " " + format(times));
+                return best;
+            }).exceptionally(ex -> Kind.ARGB); // a failed measurement keeps the default
+        }
+        return fastest;
+    }
+
+    static GraphicsConfiguration defaultConfiguration() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * Average milliseconds per frame for each surface kind, painting a canvas
+     * with a drawing into a screen-like back buffer (a compatible
+     * VolatileImage, as Swing uses) after a small region of it changed, like
+     * a brush stroke does. Without a screen VOLATILE is not measured.
+     */
+    public static Map<Kind, Double> measure(GraphicsConfiguration gc, int width, int height, int frames) {
+        TiledCanvas canvas = PaintPanel.newCanvas(width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            Rectangle r = new Rectangle(random.nextInt(width), random.nextInt(height), 40, 40);
+            Color color = new Color(random.nextInt(0xFFFFFF));
+            canvas.draw(r, g -> {
+                g.setColor(color);
+                g.fillOval(r.x, r.y, r.width, r.height);
+            });
+        }
+        Map<Kind, Double> times = new EnumMap<>(Kind.class);
+        for (Kind kind : new Kind[] { Kind.ARGB, Kind.COMPATIBLE, Kind.VOLATILE }) {
+            if (gc == null && kind == Kind.VOLATILE) {
+                continue;
+            }
+            Image target = gc != null ? gc.createCompatibleVolatileImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            CanvasSurface surface = create(kind, canvas, () -> gc, true);
+            long elapsed = 0;
+            for (int frame = -frames / 2; frame < frames; frame++) { // the first half warms up
+                Rectangle changed = new Rectangle(random.nextInt(width - 64), random.nextInt(height - 64), 64, 64);
+                surface.invalidate(changed);
+                long start = System.nanoTime();
+                Graphics g = target.getGraphics();
+                surface.paint(g);
+                g.dispose();
+                Toolkit.getDefaultToolkit().sync();
+                if (frame >= 0) {
+                    elapsed += System.nanoTime() - start;
+                }
+            }
+            surface.dispose();
+            target.flush();
+            times.put(kind, elapsed / 1e6 / frames);
+        }
+        return times;
+    }
+
+    private static String format(Map<Kind, Double> times) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Map.Entry<Kind, Double> entry : times.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey().name().toLowerCase()).append(String.format(" %.2f ms", entry.getValue()));
+        }
+        return sb.append(")").toString();
+    }
+
+    // Print the per-frame time of each surface on this machine.
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        System.out.println(format(measure(defaultConfiguration(), 800, 600, frames)));
+    }
+
+    // Redraw a region of the display copy from the canvas.
+    protected void render(Graphics2D g, Rectangle region) {
+        g.clip(region);
+        if (!opaque) {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(region.x, region.y, region.width, region.height);
+            g.setComposite(AlphaComposite.SrcOver);
+        }
+        canvas.paint(g);
+        g.dispose();
+    }
+
+    // True if the display copy needs to be reallocated for the canvas size.
+    protected boolean wrongSize(Image image) {
+        return image.getWidth(null) != canvas.getWidth() || image.getHeight(null) != canvas.getHeight();
+    }
+
+    /** Paints with ARGB until the fastest kind is known, then with that kind. */
+    static final class Auto extends CanvasSurface {
+        private CanvasSurface delegate;
+
+        Auto(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource, boolean opaque) {
+            super(canvas, gcSource, opaque);
+            delegate = new Argb(canvas, gcSource, opaque);
+            fastestFuture();
+        }
+
+        @Override
+        public Kind getKind() {
+            return delegate.getKind();
+        }
+
+        @Override
+        public void invalidate(Rectangle r) {
+            delegate.invalidate(r);
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            CompletableFuture<Kind> future = fastestFuture();
+            if (delegate instanceof Argb && future.isDone() && future.join() != Kind.ARGB) {
+                delegate = create(future.join(), canvas, gcSource, opaque);
+            }
+            delegate.paint(g);
+        }
+
+        @Override
+        public void dispose() {
+            delegate.dispose();
+        }
+    }
+
+    /** Paints the canvas tiles directly. */
+    static final class Argb extends CanvasSurface {
+        Argb(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource, boolean opaque) {
+            super(canvas, gcSource, opaque);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.ARGB;
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            dirty = null;
+            canvas.paint(g);
+        }
+    }
+
+    /** Keeps a display copy in the screen's pixel format. */
+    static final class Compatible extends CanvasSurface {
+        private BufferedImage buffer;
+        private GraphicsConfiguration bufferGc;
+
+        Compatible(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource, boolean opaque) {
+            super(canvas, gcSource, opaque);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.COMPATIBLE;
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            GraphicsConfiguration gc = gcSource.get();
+            if (buffer == null || gc != bufferGc || wrongSize(buffer)) {
+                int transparency = opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT;
+                buffer = gc != null ? gc.createCompatibleImage(canvas.getWidth(), canvas.getHeight(), transparency)
+                        : new BufferedImage(canvas.getWidth(), canvas.getHeight(),
+                                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE);
+                bufferGc = gc;
+                dirty = canvas.getBounds();
+            }
+            if (dirty != null) {
+                render(buffer.createGraphics(), dirty);
+                dirty = null;
+            }
+            g.drawImage(buffer, 0, 0, null);
+        }
+
+        @Override
+        public void dispose() {
+            buffer = null;
+        }
+    }
+
+    /** Keeps a display copy in a VolatileImage, redrawn from the canvas when lost. */
+    static final class Volatile extends CanvasSurface {
+        private VolatileImage buffer;
+        private int restores;
+
+        Volatile(TiledCanvas canvas, Supplier<GraphicsConfiguration> gcSource, boolean opaque) {
+            super(canvas, gcSource, opaque);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.VOLATILE;
+        }
+
+        // Number of times the contents were lost and redrawn from the canvas.
+        public int getRestoreCount() {
+            return restores;
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            GraphicsConfiguration gc = gcSource.get();
+            if (gc == null) {
+                canvas.paint(g); // not on screen yet
+                return;
+            }
+            do {
+                if (buffer == null || wrongSize(buffer)) {
+                    allocate(gc);
+                }
+                int status = buffer.validate(gc);
+                if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    allocate(gc);
+                } else if (status == VolatileImage.IMAGE_RESTORED) {
+                    restores++;
+                    dirty = canvas.getBounds();
+                }
+                if (dirty != null) {
+                    render(buffer.createGraphics(), dirty);
+                    dirty = null;
+                }
+                g.drawImage(buffer, 0, 0, null);
+                if (buffer.contentsLost()) {
+                    dirty = canvas.getBounds();
+                }
+            } while (dirty != null);
+        }
+
+        private void allocate(GraphicsConfiguration gc) {
+            if (buffer != null) {
+                buffer.flush();
+            }
+            buffer = gc.createCompatibleVolatileImage(canvas.getWidth(), canvas.getHeight(),
+                    opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT);
+            dirty = canvas.getBounds();
+        }
+
+        @Override
+        public void dispose() {
+            if (buffer != null) {
+                buffer.flush();
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.paint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ClassroomClient joins a drawing shared by a ClassroomServer and decodes
+ * what it sends (see ClassroomProtocol) for a Listener, usually a
+ * ClassroomReplica. connect waits for the session's size; start then reads
+ * on a thread of the client's own with a non-blocking socket. The listener
+ * is called on that thread and must not block it, or the server will find
+ * the client behind and sync it again.
+ */
+public class ClassroomClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    /** What a client receives, in order. */
+    public interface Listener {
+        // Replace the drawing with a keyframe. Until synced, the frames that follow catch up from it.
+        void snapshot(DrawingOp keyframe);
+
+        void operation(DrawingOp op);
+
+        // The presenter began a stroke (with its points so far); strokePoint adds the points that follow.
+        void strokeBegan(DrawingOp.StrokeOp stroke);
+
+        void strokePoint(int x, int y, long when);
+
+        // The end of a batch from the server.
+        void frameEnd(int sequence);
+
+        // Caught up: the frames that follow are live.
+        void synced();
+
+        // The connection is over: error is null if it was closed on this side.
+        void closed(IOException error);
+    }
+
+    private final SocketChannel channel;
+    private final int width, height, backdrop;
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    private Selector selector;
+    private volatile boolean closing;
+    private volatile long bytesReceived;
+    private int lastX, lastY;   // last point of the live stroke, which POINTS entries are relative to
+    private long lastTime;
+
+    private ClassroomClient(SocketChannel channel, int width, int height, int backdrop) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.backdrop = backdrop;
+    }
+
+    // Connect, say hello and wait for the session, blocking the caller (e.g. a FileTask) for up to 5 seconds.
+    public static ClassroomClient connect(InetSocketAddress address, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT_MS);
+            channel.socket().setSoTimeout(CONNECT_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer hello = ClassroomProtocol.hello(name);
+            while (hello.hasRemaining()) {
+                channel.write(hello);
+            }
+            // the socket timeout only applies to its stream, so read the session through it
+            byte[] session = new byte[ClassroomProtocol.HEADER_SIZE + 12];
+            int read = 0;
+            while (read < session.length) {
+                int n = channel.socket().getInputStream().read(session, read, session.length - read);
+                if (n < 0) {
+                    throw new IOException("The session was closed");
+                }
+                read += n;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(session);
+            if (frame.get() != ClassroomProtocol.SESSION || frame.getInt() != 12) {
+                throw new IOException("Not a classroom session");
+            }
+            return new ClassroomClient(channel, frame.getInt(), frame.getInt(), frame.getInt());
+        } catch (SocketTimeoutException ex) {
+            channel.close();
+            throw new IOException("No answer from " + address, ex);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Size of the shared drawing when the session started; keyframes grow it as the presenter's drawing grows.
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackdrop() {
+        return backdrop;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // Start receiving on a thread of its own.
+    public void start(Listener listener, String threadName) throws IOException {
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        Thread thread = new Thread(() -> run(listener), threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run(Listener listener) {
+        IOException error = null;
+        try {
+            while (!closing) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int n;
+                while ((n = channel.read(in)) > 0) {
+                    bytesReceived += n;
+                    in.flip();
+                    decode(listener);
+                    in.compact();
+                }
+                if (n < 0) {
+                    throw new IOException("The session was closed");
+                }
+            }
+        } catch (IOException ex) {
+            error = closing ? null : ex;
+        } catch (RuntimeException ex) {
+            error = new IOException("Bad data from the session", ex);
+        } finally {
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+        listener.closed(error);
+    }
+
+    // Hand every complete frame in the buffer to the listener, growing the buffer for a frame that does not fit.
+    private void decode(Listener listener) throws IOException {
+        while (true) {
+            byte type = in.remaining() > 0 ? in.get(in.position()) : 0;
+            ByteBuffer body = ClassroomProtocol.nextFrame(in);
+            if (body == null) {
+                int size = ClassroomProtocol.frameSize(in);
+                if (size > in.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Integer.highestOneBit(size - 1) << 1);
+                    larger.put(in);
+                    larger.flip();
+                    in = larger;
+                }
+                return;
+            }
+            switch (type) {
+                case ClassroomProtocol.SNAPSHOT:
+                    listener.snapshot(ClassroomProtocol.readOp(body));
+                    break;
+                case ClassroomProtocol.BATCH:
+                    decodeBatch(body, listener);
+                    break;
+                case ClassroomProtocol.SYNCED:
+                    listener.synced();
+                    break;
+                default:
+                    break; // SESSION again on a resync: the snapshot after it says it all
+            }
+        }
+    }
+
+    private void decodeBatch(ByteBuffer body, Listener listener) throws IOException {
+        int sequence = DrawingOp.readVarInt(body);
+        while (body.hasRemaining()) {
+            byte kind = body.get();
+            switch (kind) {
+                case ClassroomProtocol.OP:
+                    listener.operation(ClassroomProtocol.readOp(body));
+                    break;
+                case ClassroomProtocol.STROKE:
+                    DrawingOp.StrokeOp stroke = (DrawingOp.StrokeOp) ClassroomProtocol.readOp(body);
+                    int last = stroke.getPointCount() - 1;
+                    lastX = last < 0 ? 0 : stroke.getX(last);
+                    lastY = last < 0 ? 0 : stroke.getY(last);
+                    lastTime = last < 0 ? stroke.getTime() : stroke.getPointTime(last);
+                    listener.strokeBegan(stroke);
+                    break;
+                case ClassroomProtocol.POINTS:
+                    for (int n = DrawingOp.readVarInt(body); n > 0; n--) {
+                        lastX += DrawingOp.readVarInt(body);
+                        lastY += DrawingOp.readVarInt(body);
+                        lastTime += DrawingOp.readVarInt(body);
+                        listener.strokePoint(lastX, lastY, lastTime);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown batch entry " + kind);
+            }
+        }
+        listener.frameEnd(sequence);
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        if (selector != null) {
+            selector.wakeup();
+        } else {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+    }
+}
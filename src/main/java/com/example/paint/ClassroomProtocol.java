@@ -0,0 +1,105 @@
+package com.example.paint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ClassroomProtocol is the wire format of a classroom session between a
+ * ClassroomServer and its ClassroomClients. Every message is a frame:
+ * [type byte][body length int][body].
+ *
+ * HELLO (client to server): [magic int][version byte][name UTF].
+ * SESSION: [width int][height int][backdrop int], the size and backdrop of
+ * the shared drawing when the session started.
+ * SNAPSHOT: one DrawingOp record, a keyframe (LayerOp reset) of every layer.
+ * BATCH: [sequence varint] then entries up to the end of the frame, each a
+ * kind byte and its data: OP is a DrawingOp record to apply to the layers,
+ * STROKE a DrawingOp record of a stroke the presenter has just begun (with
+ * its points so far), and POINTS [count varint] more points of that stroke,
+ * each x, y and milliseconds as varint deltas from the stroke's last point.
+ * SYNCED: empty. A client that joins gets SESSION, the latest SNAPSHOT, the
+ * BATCHes since it and then SYNCED; live BATCHes follow.
+ */
+public final class ClassroomProtocol {
+    static final int MAGIC = 0x4250434C; // "BPCL"
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 5;
+
+    static final byte HELLO = 1;
+    static final byte SESSION = 2;
+    static final byte SNAPSHOT = 3;
+    static final byte BATCH = 4;
+    static final byte SYNCED = 5;
+
+    static final byte OP = 1;
+    static final byte STROKE = 2;
+    static final byte POINTS = 3;
+
+    private ClassroomProtocol() {
+    }
+
+    // A complete frame, ready to be written.
+    static ByteBuffer frame(byte type, byte[] body, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(type).putInt(length).put(body, 0, length);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer hello(String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(name);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // cannot happen for an in-memory stream
+        }
+        return frame(HELLO, bytes.toByteArray(), bytes.size());
+    }
+
+    static ByteBuffer session(int width, int height, int backdrop) {
+        ByteBuffer body = ByteBuffer.allocate(12).putInt(width).putInt(height).putInt(backdrop);
+        return frame(SESSION, body.array(), 12);
+    }
+
+    /**
+     * The body of the next complete frame in a buffer being read (flipped),
+     * which is moved past the frame; null, with the buffer left alone, if
+     * the frame is not all in. Read the type (in.get(in.position())) first.
+     */
+    static ByteBuffer nextFrame(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = in.getInt(in.position() + 1);
+        if (length < 0) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (in.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        int start = in.position() + HEADER_SIZE;
+        ByteBuffer body = in.duplicate();
+        body.position(start).limit(start + length);
+        in.position(start + length);
+        return body;
+    }
+
+    // Bytes a buffer must hold for the frame at its position to fit, or 0 if its header is not in yet.
+    static int frameSize(ByteBuffer in) {
+        return in.remaining() < HEADER_SIZE ? 0 : HEADER_SIZE + in.getInt(in.position() + 1);
+    }
+
+    // Decode a DrawingOp record at the buffer's position and move past it.
+    static DrawingOp readOp(ByteBuffer in) throws IOException {
+        byte type = in.get();
+        int length = in.getInt();
+        ByteBuffer payload = in.slice();
+        payload.limit(length);
+        in.position(in.position() + length);
+        return DrawingOp.read(type, payload);
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * ClassroomReplica is a copy of a shared drawing kept up to date from a
+ * ClassroomClient, in a LayerStack of its own. The client's thread only queues what it
+ * decodes; the operations are applied on the replica's own thread, all
+ * that has arrived at once, so a slow repaint never holds up the network
+ * and the receiver's own panels never wait for it. Each round ends with one
+ * call to the damage sink with the region that changed (null once the
+ * connection has ended and nothing else changed).
+ *
+ * The stroke the presenter is drawing is rasterized onto the layers point
+ * by point as it arrives, through a synchronous StrokePipeline fed exactly
+ * as replaying the stroke's record would feed it, and ended when the record
+ * arrives. So each stroke is rasterized once, and the result has the same
+ * pixels as a replay of the presenter's journal.
+ */
+public class ClassroomReplica implements ClassroomClient.Listener {
+    /** Told when a batch from the server has been applied. */
+    public interface FrameListener {
+        void applied(int sequence, boolean synced);
+
+        // Everything sent to catch up on joining has been applied.
+        default void caughtUp() {
+        }
+    }
+
+    private final LayerStack layers;
+    private final Consumer<Rectangle> damageSink;
+    private final BlockingQueue<Supplier<Rectangle>> queue = new LinkedBlockingQueue<>();
+    private volatile FrameListener frameListener;
+    private volatile boolean synced;
+    private volatile IOException error;
+    private volatile boolean closed;
+    private volatile long operations;
+
+    // Apply thread state
+    private DrawingOp.StrokeOp liveStroke; // as it began
+    private StrokePipeline live;
+    private int liveCount;                 // points of it rasterized
+    private Rectangle stepDamage;
+
+    /**
+     * A replica for a session of the given size and backdrop (see
+     * ClassroomClient), reporting changes to damageSink on its own thread.
+     */
+    public ClassroomReplica(int width, int height, int backdrop, Consumer<Rectangle> damageSink, String name) {
+        layers = new LayerStack(width, height, backdrop);
+        this.damageSink = damageSink;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    // Operations applied so far, snapshots included.
+    public long getOperationCount() {
+        return operations;
+    }
+
+    // Why the connection ended, or null if it is open or was closed on this side.
+    public IOException getError() {
+        return error;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+
+    @Override
+    public void snapshot(DrawingOp keyframe) {
+        synced = false;
+        queue.add(() -> {
+            live = null; // replaced along with everything else
+            return apply(keyframe);
+        });
+    }
+
+    @Override
+    public void operation(DrawingOp op) {
+        queue.add(() -> {
+            if (live != null && op instanceof DrawingOp.StrokeOp && op.getTime() == liveStroke.getTime()) {
+                return endLive((DrawingOp.StrokeOp) op);
+            }
+            if (op.isKeyframe()) {
+                live = null;
+            }
+            return apply(op);
+        });
+    }
+
+    @Override
+    public void strokeBegan(DrawingOp.StrokeOp stroke) {
+        queue.add(() -> {
+            Rectangle changed = endLive(liveStroke);
+            liveStroke = stroke;
+            liveCount = 0;
+            live = new StrokePipeline(layers, r -> stepDamage = DrawingOp.union(stepDamage, r), false,
+                    stroke.getSmoothing());
+            live.beginStroke(stroke.rasterizer(layers.getActiveCanvas()));
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                live.addPoint(stroke.getX(i), stroke.getY(i), stroke.getPointTime(i));
+                liveCount++;
+            }
+            return DrawingOp.union(changed, takeDamage());
+        });
+    }
+
+    @Override
+    public void strokePoint(int x, int y, long when) {
+        queue.add(() -> {
+            if (live == null) {
+                return null;
+            }
+            live.addPoint(x, y, when);
+            liveCount++;
+            return takeDamage();
+        });
+    }
+
+    @Override
+    public void frameEnd(int sequence) {
+        boolean caughtUp = synced;
+        queue.add(() -> {
+            FrameListener listener = frameListener;
+            if (listener != null) {
+                listener.applied(sequence, caughtUp);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void synced() {
+        synced = true;
+        queue.add(() -> {
+            FrameListener listener = frameListener;
+            if (listener != null) {
+                listener.caughtUp();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void closed(IOException error) {
+        this.error = error;
+        closed = true;
+        queue.add(() -> null); // a last round, so the sink hears about it
+    }
+
+    private Rectangle apply(DrawingOp op) {
+        Rectangle changed;
+        synchronized (layers) {
+            changed = op.apply(layers);
+            layers.ensureSize(0, 0); // grow to the largest layer, as the presenter's drawing grew
+        }
+        operations++;
+        return changed;
+    }
+
+    // Stroke damage since the last step, marked out of date on the layers.
+    private Rectangle takeDamage() {
+        Rectangle changed = stepDamage;
+        stepDamage = null;
+        layers.invalidate(changed);
+        return changed;
+    }
+
+    /**
+     * Finish the live stroke with the points of its record that have not
+     * come yet (none, unless some were drawn before sharing started), as the
+     * presenter finished it.
+     */
+    private Rectangle endLive(DrawingOp.StrokeOp finished) {
+        if (live == null) {
+            return null;
+        }
+        for (int i = liveCount; i < finished.getPointCount(); i++) {
+            live.addPoint(finished.getX(i), finished.getY(i), finished.getPointTime(i));
+        }
+        live.endStroke();
+        live = null;
+        layers.getActiveCanvas().compact();
+        operations++;
+        return takeDamage();
+    }
+
+    // Apply whatever has arrived, then report the region it changed, until the connection ends.
+    private void run() {
+        List<Supplier<Rectangle>> round = new ArrayList<>();
+        try {
+            while (true) {
+                round.add(queue.take());
+                queue.drainTo(round);
+                Rectangle changed = null;
+                for (Supplier<Rectangle> step : round) {
+                    changed = DrawingOp.union(changed, step.get());
+                }
+                round.clear();
+                if (changed != null || closed) {
+                    damageSink.accept(changed);
+                }
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
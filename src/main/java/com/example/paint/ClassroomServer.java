@@ -0,0 +1,525 @@
+package com.example.paint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ClassroomServer shares a drawing with the ClassroomClients that join it,
+ * e.g. a teacher's demo with the students' machines or a student's canvas
+ * with the projector. The presenter's panel hands it every operation it
+ * journals (publish) and the points of the stroke being drawn (strokeBegan,
+ * strokePoint); they go out in the compact binary form of ClassroomProtocol.
+ *
+ * All networking is done by one thread with non-blocking sockets and a
+ * selector. What is published is batched: once a frame
+ * (-Dpaint.classroomFrameMs, 16 by default) everything since the last frame
+ * is sent as one BATCH, with the stroke points coalesced into one entry,
+ * and the same bytes are queued to every client. A client that falls more
+ * than -Dpaint.classroomMaxQueuedKB (4096 by default) behind is not sent
+ * the frames it missed but synced again, as if it had just joined.
+ *
+ * A client that joins gets the latest keyframe and the batches since it.
+ * Once those outgrow the keyframe, wantsKeyframe asks the presenter for a
+ * new one (keyframe), so syncing never costs much more than two snapshots.
+ */
+public class ClassroomServer implements Closeable {
+    public static final int DEFAULT_PORT = Integer.getInteger("paint.classroomPort", 5150);
+    private static final long FRAME_NANOS = Math.max(1, Integer.getInteger("paint.classroomFrameMs", 16)) * 1_000_000L;
+    private static final long MAX_QUEUED = Math.max(64, Integer.getInteger("paint.classroomMaxQueuedKB", 4096)) * 1024L;
+    private static final long MIN_LOG_BYTES = 64 * 1024; // batches always kept before a new keyframe is asked for
+    private static final int MAX_GATHER = 64;            // buffers per gathering write
+
+    /** Told about every batch as it is sent, e.g. to measure latency. */
+    public interface FrameListener {
+        // firstPublished is the System.nanoTime of the oldest update in the batch.
+        void sent(int sequence, long firstPublished, int bytes, int clients);
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final ByteBuffer session;
+    private volatile FrameListener frameListener;
+    private volatile boolean closed;
+
+    // Updates waiting for the next frame, written by any thread under the lock
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    private long pendingSince;              // nanoTime of the oldest pending update; 0 if none
+    private final List<Object> ready = new ArrayList<>(); // Batches and keyframes (ByteBuffers) to send, in order
+    private int pointCount;                 // points coalesced into the open POINTS entry
+    private final ByteArrayOutputStream points = new ByteArrayOutputStream();
+    private final DataOutputStream pointsOut = new DataOutputStream(points);
+    private int lastX, lastY;               // last point of the live stroke sent
+    private long lastTime;
+    private boolean live;                   // a stroke is being drawn
+    private long liveTime;                  // when it began
+
+    // Network thread state
+    private final List<Client> clients = new ArrayList<>();
+    private ByteBuffer keyframe;            // SNAPSHOT frame late joiners start from
+    private final List<ByteBuffer> log = new ArrayList<>(); // BATCH frames since the keyframe
+    private long logBytes;
+    private volatile boolean keyframeWanted;
+    private int sequence;
+    private volatile int clientCount;
+    private volatile long bytesSent, framesSent, syncs;
+
+    /**
+     * Listen on a port (0 for any free one) for clients to join a drawing of
+     * the given size and backdrop, whose current state is the keyframe (a
+     * LayerOp reset).
+     */
+    public ClassroomServer(int port, int width, int height, int backdrop, DrawingOp keyframe) throws IOException {
+        session = ClassroomProtocol.session(width, height, backdrop);
+        byte[] record = keyframe.toBytes();
+        this.keyframe = ClassroomProtocol.frame(ClassroomProtocol.SNAPSHOT, record, record.length);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        thread = new Thread(this::run, "Classroom server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    // Bytes written to all clients so far.
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    // Batches sent so far (each once, however many clients it went to).
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    // Clients sent the keyframe and the batches since it: one per join, and one per client that fell behind.
+    public long getSyncCount() {
+        return syncs;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+
+    /**
+     * Send an operation with the next frame. A keyframe (e.g. after opening
+     * a document) is sent like any other and also becomes the one clients
+     * joining later start from. Operations must be published in the order
+     * they were applied.
+     */
+    public void publish(DrawingOp op) {
+        byte[] record = op.toBytes();
+        synchronized (lock) {
+            if (op instanceof DrawingOp.StrokeOp && live && op.getTime() == liveTime) {
+                live = false; // the stroke is over; its record finishes it on the clients
+            }
+            entry(ClassroomProtocol.OP, record);
+            if (op.isKeyframe()) {
+                live = false; // whatever was being drawn is replaced
+                rebase(record);
+            }
+        }
+    }
+
+    // True if a new keyframe would make joining cheaper; the presenter then passes one to keyframe.
+    public boolean wantsKeyframe() {
+        return keyframeWanted;
+    }
+
+    /**
+     * Make an up to date keyframe (a LayerOp reset of what has been
+     * published) the one clients join from. It is ignored, and asked for
+     * again, while a stroke is being drawn: it would hold part of the stroke
+     * and the clients would draw that part twice.
+     */
+    public void keyframe(DrawingOp reset) {
+        synchronized (lock) {
+            if (live) {
+                return;
+            }
+        }
+        byte[] record = reset.toBytes();
+        synchronized (lock) {
+            if (!live) {
+                keyframeWanted = false;
+                rebase(record);
+            }
+        }
+    }
+
+    /**
+     * A freehand stroke has begun; its points so far are sent with it, later
+     * ones through strokePoint. Clients draw it onto their layers as the
+     * points come, so call these in order with publish, from the thread that
+     * applies the edits.
+     */
+    public void strokeBegan(DrawingOp.StrokeOp stroke) {
+        byte[] record = stroke.toBytes();
+        synchronized (lock) {
+            closePoints();
+            entry(ClassroomProtocol.STROKE, record);
+            live = true;
+            liveTime = stroke.getTime();
+            int last = stroke.getPointCount() - 1;
+            lastX = last < 0 ? 0 : stroke.getX(last);
+            lastY = last < 0 ? 0 : stroke.getY(last);
+            lastTime = last < 0 ? stroke.getTime() : stroke.getPointTime(last);
+        }
+    }
+
+    // The next point of the stroke being drawn.
+    public void strokePoint(int x, int y, long when) {
+        synchronized (lock) {
+            if (!live) {
+                return; // sharing started part way through the stroke; its record will do
+            }
+            try {
+                DrawingOp.writeVarInt(pointsOut, x - lastX);
+                DrawingOp.writeVarInt(pointsOut, y - lastY);
+                DrawingOp.writeVarInt(pointsOut, (int) (when - lastTime));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex); // cannot happen for an in-memory stream
+            }
+            lastX = x;
+            lastY = y;
+            lastTime = when;
+            pointCount++;
+            touch();
+        }
+        // no wakeup: points go out with the next frame
+    }
+
+    // Add an entry to the pending batch. Called under the lock.
+    private void entry(byte kind, byte[] record) {
+        pending.write(kind);
+        pending.write(record, 0, record.length);
+        touch();
+    }
+
+    private void touch() {
+        if (pendingSince == 0) {
+            pendingSince = System.nanoTime();
+        }
+    }
+
+    // End the POINTS entry being coalesced, so what follows keeps its place. Called under the lock.
+    private void closePoints() {
+        if (pointCount == 0) {
+            return;
+        }
+        pending.write(ClassroomProtocol.POINTS);
+        writeVarInt(pendingOut, pointCount);
+        byte[] coalesced = points.toByteArray();
+        pending.write(coalesced, 0, coalesced.length);
+        points.reset();
+        pointCount = 0;
+    }
+
+    // Send what is pending as a batch, then start the log over from a keyframe. Called under the lock.
+    private void rebase(byte[] record) {
+        ready.add(takeBatch());
+        ready.add(ClassroomProtocol.frame(ClassroomProtocol.SNAPSHOT, record, record.length));
+    }
+
+    // The pending updates as a batch (possibly empty), leaving nothing pending. Called under the lock.
+    private Batch takeBatch() {
+        closePoints();
+        Batch batch = new Batch(pending, pendingSince);
+        pending = new ByteArrayOutputStream();
+        pendingOut = new DataOutputStream(pending);
+        pendingSince = 0;
+        return batch;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) {
+        try {
+            DrawingOp.writeVarInt(out, value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // cannot happen for an in-memory stream
+        }
+    }
+
+    // Entries collected for one BATCH frame.
+    private static final class Batch {
+        final ByteArrayOutputStream entries;
+        final long since;
+
+        Batch(ByteArrayOutputStream entries, long since) {
+            this.entries = entries;
+            this.since = since;
+        }
+    }
+
+    // One joined (or joining) client.
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(1024);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long queued;       // bytes in out
+        boolean joined;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private void run() {
+        long nextFrame = System.nanoTime() + FRAME_NANOS;
+        try {
+            while (!closed) {
+                long wait = Math.max(1, (nextFrame - System.nanoTime()) / 1_000_000);
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(client);
+                            }
+                        } catch (IOException ex) {
+                            drop(client);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+                long now = System.nanoTime();
+                if (now >= nextFrame) {
+                    sendFrame();
+                    nextFrame = Math.max(nextFrame + FRAME_NANOS, now + FRAME_NANOS / 2);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Classroom server stopped: " + ex.getMessage());
+        } finally {
+            for (Client client : new ArrayList<>(clients)) {
+                drop(client);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // batches are already a frame apart
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key);
+        key.attach(client);
+        clients.add(client);
+    }
+
+    // Clients only ever send their HELLO; after it, reading just notices when they leave.
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.in) < 0) {
+            drop(client);
+            return;
+        }
+        if (client.joined) {
+            client.in.clear();
+            return;
+        }
+        client.in.flip();
+        int type = client.in.remaining() > 0 ? client.in.get(client.in.position()) : 0;
+        ByteBuffer body = ClassroomProtocol.nextFrame(client.in);
+        if (body == null) {
+            if (!client.in.hasRemaining() || client.in.limit() < client.in.capacity()) {
+                client.in.compact();
+                return;
+            }
+            throw new IOException("HELLO too long");
+        }
+        if (type != ClassroomProtocol.HELLO || body.remaining() < 5 || body.getInt() != ClassroomProtocol.MAGIC
+                || body.get() != ClassroomProtocol.VERSION) {
+            throw new IOException("Not a classroom client");
+        }
+        client.in.clear();
+        client.joined = true;
+        clientCount++;
+        sync(client);
+        flush(client);
+    }
+
+    // Queue what a client needs to catch up: the session, the keyframe and the batches since it.
+    private void sync(Client client) {
+        syncs++;
+        queue(client, session);
+        queue(client, keyframe);
+        for (ByteBuffer frame : log) {
+            queue(client, frame);
+        }
+        queue(client, ClassroomProtocol.frame(ClassroomProtocol.SYNCED, new byte[0], 0));
+    }
+
+    private void queue(Client client, ByteBuffer frame) {
+        client.out.add(frame.duplicate());
+        client.queued += frame.remaining();
+    }
+
+    // Build this frame's batch, log it and queue it to every client.
+    private void sendFrame() {
+        List<Object> items;
+        synchronized (lock) {
+            ready.add(takeBatch());
+            items = new ArrayList<>(ready);
+            ready.clear();
+        }
+        for (Object item : items) {
+            if (item instanceof ByteBuffer) { // a new keyframe
+                keyframe = (ByteBuffer) item;
+                log.clear();
+                logBytes = 0;
+                continue;
+            }
+            Batch batch = (Batch) item;
+            if (batch.entries.size() == 0) {
+                continue;
+            }
+            ByteBuffer frame = batchFrame(batch);
+            log.add(frame);
+            logBytes += frame.remaining();
+            int sent = 0;
+            for (Client client : new ArrayList<>(clients)) {
+                if (!client.joined) {
+                    continue;
+                }
+                if (client.queued > MAX_QUEUED) {
+                    resync(client);
+                } else {
+                    queue(client, frame);
+                }
+                sent++;
+            }
+            framesSent++;
+            FrameListener listener = frameListener;
+            if (listener != null) {
+                listener.sent(sequence, batch.since, frame.remaining(), sent);
+            }
+        }
+        if (logBytes > Math.max(MIN_LOG_BYTES, keyframe.remaining())) {
+            keyframeWanted = true;
+        }
+        for (Client client : new ArrayList<>(clients)) {
+            if (!client.out.isEmpty()) {
+                try {
+                    flush(client);
+                } catch (IOException ex) {
+                    drop(client);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer batchFrame(Batch batch) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(batch.entries.size() + 5);
+        DataOutputStream out = new DataOutputStream(body);
+        writeVarInt(out, ++sequence);
+        byte[] entries = batch.entries.toByteArray();
+        body.write(entries, 0, entries.length);
+        return ClassroomProtocol.frame(ClassroomProtocol.BATCH, body.toByteArray(), body.size());
+    }
+
+    /**
+     * A client too far behind: keep the frame it is part way through, drop
+     * the rest and queue a fresh sync, which replaces the drawing on its side.
+     */
+    private void resync(Client client) {
+        ByteBuffer current = client.out.peekFirst();
+        client.out.clear();
+        client.queued = 0;
+        if (current != null && current.position() > 0) {
+            client.out.add(current);
+            client.queued = current.remaining();
+        }
+        sync(client);
+    }
+
+    // Write as much of a client's queue as the socket takes, and wait for it to drain if that is not all.
+    private void flush(Client client) throws IOException {
+        while (!client.out.isEmpty()) {
+            ByteBuffer[] buffers = new ByteBuffer[Math.min(MAX_GATHER, client.out.size())];
+            int n = 0;
+            for (ByteBuffer buffer : client.out) {
+                if (n == buffers.length) {
+                    break;
+                }
+                buffers[n++] = buffer;
+            }
+            long written = client.channel.write(buffers);
+            client.queued -= written;
+            bytesSent += written;
+            while (!client.out.isEmpty() && !client.out.peekFirst().hasRemaining()) {
+                client.out.removeFirst();
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        client.key.interestOps(client.out.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void drop(Client client) {
+        if (clients.remove(client) && client.joined) {
+            clientCount--;
+        }
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ex) {
+            // gone already
+        }
+    }
+
+    // Disconnect every client and stop listening.
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+}
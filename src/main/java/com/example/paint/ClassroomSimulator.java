@@ -0,0 +1,360 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClassroomSimulator puts a ClassroomServer under classroom load on this
+ * machine: a scripted presenter draws strokes (streamed point by point as
+ * the Paint tab streams them), shapes, fills and a layer change, while
+ * simulated students follow it with a ClassroomClient and ClassroomReplica
+ * each, some joining from the start and some part way through. It prints
+ * the latency from an update being published to each client decoding it
+ * and to each having applied it, the bandwidth used, what joining late cost, and checks that every
+ * replica ends up with exactly the presenter's pixels.
+ *
+ * Usage:
+ *   java -Djava.awt.headless=true -cp target/classes com.example.paint.ClassroomSimulator [options]
+ *
+ * Options:
+ *   --clients N     students following the session (default 50)
+ *   --late N        how many of them join part way through (default a fifth)
+ *   --seconds N     how long the presenter draws (default 10)
+ *   --rate N        stroke points per second, like mouse events (default 120)
+ *   --port N        port to listen on (default 0, any free one)
+ *
+ * The batching interval is -Dpaint.classroomFrameMs, as for the Paint tab.
+ */
+public class ClassroomSimulator {
+    private static final int WIDTH = 1280, HEIGHT = 800;
+
+    private int clients = 50;
+    private int late = -1;
+    private int seconds = 10;
+    private int rate = 120;
+    private int port;
+
+    private final Map<Integer, Long> published = new ConcurrentHashMap<>(); // batch sequence -> nanoTime
+    private final LatencyRecorder received = new LatencyRecorder(1 << 21);
+    private final LatencyRecorder latency = new LatencyRecorder(1 << 21);
+    private final LatencyRecorder syncTimes = new LatencyRecorder(4096);
+    private final AtomicInteger lastSent = new AtomicInteger();
+    private volatile long liveBytes; // batch bytes as broadcast, counted once (on the server thread)
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        ClassroomSimulator simulator = new ClassroomSimulator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--clients":
+                    simulator.clients = Math.max(1, value);
+                    break;
+                case "--late":
+                    simulator.late = value;
+                    break;
+                case "--seconds":
+                    simulator.seconds = Math.max(1, value);
+                    break;
+                case "--rate":
+                    simulator.rate = Math.max(1, value);
+                    break;
+                case "--port":
+                    simulator.port = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (simulator.late < 0) {
+            simulator.late = simulator.clients / 5;
+        }
+        simulator.run();
+    }
+
+    private void run() throws Exception {
+        LayerStack layers = LayerStack.withBackground(WIDTH, HEIGHT, Color.WHITE.getRGB());
+        TileCodec codec = new TileCodec();
+        ClassroomServer server = new ClassroomServer(port, WIDTH, HEIGHT, Color.WHITE.getRGB(),
+                DrawingOp.LayerOp.reset(layers, codec, System.currentTimeMillis()));
+        server.setFrameListener((sequence, firstPublished, bytes, recipients) -> {
+            published.put(sequence, firstPublished);
+            lastSent.set(sequence);
+            liveBytes += bytes;
+        });
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        System.out.printf("Classroom simulation: %d clients (%d joining late), %d s at %d points/s, port %d%n",
+                clients, late, seconds, rate, server.getPort());
+
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < clients - late; i++) {
+            students.add(join(address, i));
+        }
+        Presenter presenter = new Presenter(layers, codec, server);
+        Thread drawing = new Thread(presenter, "Presenter");
+        long start = System.nanoTime();
+        drawing.start();
+        for (int i = clients - late; i < clients; i++) {
+            long due = start + (long) ((i - (clients - late) + 1) * seconds * 1e9 / (late + 1));
+            Thread.sleep(Math.max(0, (due - System.nanoTime()) / 1_000_000));
+            students.add(join(address, i));
+        }
+        drawing.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long sentAtEnd = server.getBytesSent();
+
+        // let every replica apply the last batch before comparing pixels
+        Thread.sleep(100);
+        int last = lastSent.get();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline && !students.stream().allMatch(s -> s.applied >= last)) {
+            Thread.sleep(20);
+        }
+        BufferedImage expected = layers.flatten().toImage();
+        int same = 0, closed = 0;
+        long receivedBytes = 0;
+        for (Student student : students) {
+            receivedBytes += student.client.getBytesReceived();
+            if (student.replica.isClosed()) {
+                closed++;
+            } else if (sameImage(expected, student.replica.getLayers().flatten().toImage())) {
+                same++;
+            }
+            student.client.close();
+        }
+
+        System.out.printf("Presenter: %d strokes (%d points), %d other operations, %d keyframes%n",
+                presenter.strokes, presenter.points, presenter.others, presenter.keyframes);
+        System.out.printf("Batches: %d (%.1f/s), %.0f bytes on average%n", server.getFramesSent(),
+                server.getFramesSent() / elapsed, (double) liveBytes / Math.max(1, server.getFramesSent()));
+        System.out.printf("Latency, published to received by a client: %s%n", received.summary());
+        System.out.printf("Latency, published to applied on a client: %s%n", latency.summary());
+        System.out.printf("Bandwidth: %.1f KB/s per client live, %.1f KB/s out of the server in all "
+                        + "(%.2f MB in %.1f s, %.2f MB received by clients)%n",
+                liveBytes / 1024.0 / elapsed, sentAtEnd / 1024.0 / elapsed, sentAtEnd / 1048576.0, elapsed,
+                receivedBytes / 1048576.0);
+        System.out.printf("Syncs: %d (%d joins); time to catch up on joining: %s%n", server.getSyncCount(),
+                clients, syncTimes.summary());
+        System.out.printf("Replicas matching the presenter pixel for pixel: %d of %d (%d disconnected)%n",
+                same, clients, closed);
+        server.close();
+        if (same != clients) {
+            System.exit(1);
+        }
+    }
+
+    private Student join(InetSocketAddress address, int index) throws IOException {
+        long started = System.nanoTime();
+        ClassroomClient client = ClassroomClient.connect(address, "student-" + index);
+        Student student = new Student(client, new ClassroomReplica(client.getWidth(), client.getHeight(),
+                client.getBackdrop(), r -> { }, "Replica " + index));
+        student.replica.setFrameListener(new ClassroomReplica.FrameListener() {
+            @Override
+            public void applied(int sequence, boolean synced) {
+                student.applied = sequence;
+                Long sent = published.get(sequence);
+                if (synced && sent != null) {
+                    latency.record(System.nanoTime() - sent);
+                }
+            }
+
+            @Override
+            public void caughtUp() {
+                syncTimes.record(System.nanoTime() - started);
+            }
+        });
+        client.start(new Received(student.replica), "Client " + index);
+        return student;
+    }
+
+    // Passes everything on to a replica, timing each live batch as the client decodes it.
+    private final class Received implements ClassroomClient.Listener {
+        final ClassroomReplica replica;
+        boolean synced;
+
+        Received(ClassroomReplica replica) {
+            this.replica = replica;
+        }
+
+        @Override
+        public void snapshot(DrawingOp keyframe) {
+            synced = false;
+            replica.snapshot(keyframe);
+        }
+
+        @Override
+        public void operation(DrawingOp op) {
+            replica.operation(op);
+        }
+
+        @Override
+        public void strokeBegan(DrawingOp.StrokeOp stroke) {
+            replica.strokeBegan(stroke);
+        }
+
+        @Override
+        public void strokePoint(int x, int y, long when) {
+            replica.strokePoint(x, y, when);
+        }
+
+        @Override
+        public void frameEnd(int sequence) {
+            Long sent = published.get(sequence);
+            if (synced && sent != null) {
+                received.record(System.nanoTime() - sent);
+            }
+            replica.frameEnd(sequence);
+        }
+
+        @Override
+        public void synced() {
+            synced = true;
+            replica.synced();
+        }
+
+        @Override
+        public void closed(IOException error) {
+            replica.closed(error);
+        }
+    }
+
+    private static boolean sameImage(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        int[] rowA = new int[a.getWidth()], rowB = new int[a.getWidth()];
+        for (int y = 0; y < a.getHeight(); y++) {
+            a.getRGB(0, y, a.getWidth(), 1, rowA, 0, a.getWidth());
+            b.getRGB(0, y, b.getWidth(), 1, rowB, 0, b.getWidth());
+            if (!Arrays.equals(rowA, rowB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One simulated student.
+    private static final class Student {
+        final ClassroomClient client;
+        final ClassroomReplica replica;
+        volatile int applied;      // last batch applied
+
+        Student(ClassroomClient client, ClassroomReplica replica) {
+            this.client = client;
+            this.replica = replica;
+        }
+    }
+
+    /**
+     * Draws like a teacher at the board: strokes of 40 to 160 points
+     * streamed as they are drawn, a shape or fill every few strokes and a
+     * new layer half way through. Each finished operation is applied to the
+     * presenter's layers and then published, as the Paint tab's render
+     * thread does.
+     */
+    private final class Presenter implements Runnable {
+        final LayerStack layers;
+        final TileCodec codec;
+        final ClassroomServer server;
+        final Random random = new Random(7);
+        int strokes, points, others, keyframes;
+
+        Presenter(LayerStack layers, TileCodec codec, ClassroomServer server) {
+            this.layers = layers;
+            this.codec = codec;
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            long interval = 1_000_000_000L / rate;
+            long next = System.nanoTime();
+            boolean layerAdded = false;
+            try {
+                while (System.nanoTime() < end) {
+                    if (!layerAdded && System.nanoTime() > end - seconds * 500_000_000L) {
+                        layerAdded = true;
+                        publish(DrawingOp.LayerOp.add(1, "Layer 2", 0, System.currentTimeMillis()));
+                    }
+                    if (strokes % 5 == 4 && others < strokes / 5) {
+                        publish(otherOp());
+                        others++;
+                    }
+                    DrawingOp.StrokeOp stroke = newStroke();
+                    server.strokeBegan(stroke);
+                    int x = stroke.getX(0), y = stroke.getY(0);
+                    for (int n = 40 + random.nextInt(120); n > 0 && System.nanoTime() < end; n--) {
+                        next += interval;
+                        sleepUntil(next);
+                        x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(21) - 10));
+                        y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(21) - 10));
+                        long now = System.currentTimeMillis();
+                        stroke.addPoint(x, y, now);
+                        server.strokePoint(x, y, now);
+                        points++;
+                    }
+                    publish(stroke);
+                    strokes++;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private DrawingOp.StrokeOp newStroke() {
+            DabBrush.Tip[] tips = DabBrush.Tip.values();
+            DabBrush.Tip tip = random.nextBoolean() ? null : tips[random.nextInt(tips.length)];
+            long now = System.currentTimeMillis();
+            DrawingOp.StrokeOp stroke = new DrawingOp.StrokeOp(random.nextInt(10) == 0,
+                    new Color(random.nextInt(0xFFFFFF)), 2 + random.nextInt(20), StrokePipeline.Smoothing.NONE,
+                    tip, tip == null ? 1f : 0.5f + random.nextFloat() / 2, now);
+            stroke.addPoint(random.nextInt(WIDTH), random.nextInt(HEIGHT), now);
+            points++;
+            return stroke;
+        }
+
+        private DrawingOp otherOp() {
+            long now = System.currentTimeMillis();
+            Point a = new Point(random.nextInt(WIDTH), random.nextInt(HEIGHT));
+            Point b = new Point(a.x + random.nextInt(200), a.y + random.nextInt(200));
+            Color color = new Color(random.nextInt(0xFFFFFF));
+            switch (random.nextInt(4)) {
+                case 0:
+                    return new DrawingOp.FillOp(a.x, a.y, color, 32, now);
+                case 1:
+                    return new DrawingOp.ShapeOp(DrawingOp.ShapeOp.Kind.CIRCLE, color, 4, a, b, now);
+                case 2:
+                    return new DrawingOp.ShapeOp(DrawingOp.ShapeOp.Kind.LINE, color, 3, a, b, now);
+                default:
+                    return new DrawingOp.ShapeOp(DrawingOp.ShapeOp.Kind.RECTANGLE, color, 2, a, b, now);
+            }
+        }
+
+        // Apply, then share, then a keyframe if the server asks for one: as PaintPanel.record does.
+        private void publish(DrawingOp op) {
+            op.apply(layers);
+            server.publish(op);
+            if (server.wantsKeyframe()) {
+                server.keyframe(DrawingOp.LayerOp.reset(layers, codec, op.getTime()));
+                keyframes++;
+            }
+        }
+
+        private void sleepUntil(long nanos) throws InterruptedException {
+            long wait = nanos - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+
+/**
+ * ClassroomViewer is the window in which a joined classroom session is
+ * followed: the presenter's drawing as a ClassroomReplica keeps it, strokes
+ * appearing as they are drawn, zoomed and panned like the Paint tab (see
+ * Viewport). The replica applies what arrives on its own thread, so the
+ * viewer's own Paint tab stays free to draw along. A status line shows
+ * whether it has caught up and how much it has received.
+ */
+public class ClassroomViewer extends JPanel {
+    private final ClassroomClient client;
+    private final ClassroomReplica replica;
+    private final Viewport viewport;
+    private final CanvasSurface surface;
+    private final CanvasMipmap mipmap;
+    private final JLabel status = new JLabel(" ");
+    private final String address;
+    private final Timer statusTimer;
+
+    private ClassroomViewer(ClassroomClient client, String address) {
+        super(new BorderLayout());
+        this.client = client;
+        this.address = address;
+        replica = new ClassroomReplica(client.getWidth(), client.getHeight(), client.getBackdrop(),
+                r -> SwingUtilities.invokeLater(() -> repaintDamage(r)), "Classroom replica " + address);
+        LayerStack layers = replica.getLayers();
+        surface = CanvasSurface.configured(layers.getComposite(), this::getGraphicsConfiguration, true);
+        mipmap = new CanvasMipmap(layers.getComposite(), this::repaint);
+        viewport = new Viewport(this, layers::getBounds);
+        viewport.install();
+        status.setBorder(BorderFactory.createEmptyBorder(4, 8, 4, 8));
+        add(status, BorderLayout.NORTH);
+        setPreferredSize(new Dimension(client.getWidth(), client.getHeight() + 24));
+        statusTimer = new Timer(500, e -> updateStatus());
+    }
+
+    /**
+     * Show a session joined with ClassroomClient.connect in a window of its
+     * own; closing the window leaves the session. Must be called on the EDT.
+     */
+    public static void open(Component parent, ClassroomClient client, String address) {
+        ClassroomViewer viewer = new ClassroomViewer(client, address);
+        JFrame frame = new JFrame("Classroom: " + address);
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        frame.add(viewer);
+        frame.pack();
+        frame.setLocationRelativeTo(parent);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                viewer.statusTimer.stop();
+                client.close();
+                viewer.surface.dispose();
+            }
+        });
+        frame.setVisible(true);
+        viewer.viewport.fit();
+        try {
+            client.start(viewer.replica, "Classroom client " + address);
+        } catch (IOException ex) {
+            viewer.replica.closed(ex);
+        }
+        viewer.statusTimer.start();
+        viewer.updateStatus();
+    }
+
+    private void updateStatus() {
+        String text;
+        if (replica.isClosed()) {
+            text = replica.getError() == null ? "Left " + address
+                    : "Disconnected from " + address + ": " + replica.getError().getMessage();
+            statusTimer.stop();
+        } else {
+            text = (replica.isSynced() ? "Following " : "Catching up with ") + address + " - "
+                    + replica.getOperationCount() + " operations, "
+                    + (client.getBytesReceived() + 1023) / 1024 + " KB received";
+        }
+        status.setText(text);
+    }
+
+    // Repaint what a round of remote operations changed; on the EDT.
+    private void repaintDamage(Rectangle r) {
+        if (r == null) {
+            updateStatus(); // the connection ended
+            return;
+        }
+        repaint(viewport.toView(r));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Rectangle changed = replica.getLayers().refresh();
+        surface.invalidate(changed);
+        mipmap.invalidate(changed);
+        Graphics2D view = (Graphics2D) g.create();
+        if (viewport.getScale() < 1) {
+            mipmap.paint(view, viewport);
+            viewport.transform(view);
+        } else {
+            viewport.transform(view);
+            surface.paint(view);
+        }
+        view.dispose();
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * DabBrush is a stroke rasterizer that stamps a round dab every few pixels
+ * along the stroke, blending it straight into the canvas's tile pixel arrays
+ * instead of going through Graphics2D.
+ *
+ * Dab masks (8-bit coverage) are computed once per tip, size and quarter
+ * pixel offset and cached. Stamping reuses the brush's own buffers, so
+ * nothing is allocated per mouse event; only a stroke's first touch of a
+ * tile allocates (its pixels, if the tile was uniform, and a coverage tile).
+ *
+ * Opacity caps what one stroke can add: each pixel remembers the highest
+ * coverage the stroke gave it, and only the increase is blended, so
+ * overlapping dabs do not darken a half-transparent stroke. The airbrush
+ * instead builds up paint with every dab, like spraying.
+ *
+ * An erasing brush lowers the alpha of the pixels it covers instead, for
+ * layers with a transparent background.
+ *
+ * -Dpaint.brushEngine=java2d switches the Paint and Tracing Pad tabs back to
+ * stroking with Graphics2D for comparison.
+ */
+public final class DabBrush implements StrokePipeline.Rasterizer {
+    public enum Tip {
+        HARD("Hard", 1f, 0.15f),
+        SOFT("Soft", 0.3f, 0.1f),
+        AIRBRUSH("Airbrush", 0f, 0.1f),
+        TEXTURE("Crayon", 1f, 0.15f);
+
+        final String label;
+        final float hardness; // fraction of the radius painted at full strength
+        final float spacing;  // distance between dabs, as a fraction of the diameter
+
+        Tip(String label, float hardness, float spacing) {
+            this.label = label;
+            this.hardness = hardness;
+            this.spacing = spacing;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // False with -Dpaint.brushEngine=java2d: the tabs stroke with Graphics2D instead.
+    public static final boolean ENABLED = !"java2d".equalsIgnoreCase(System.getProperty("paint.brushEngine"));
+
+    private static final int PHASES = 4; // dab offsets cached per pixel, in each direction
+    private static final float AIRBRUSH_FLOW = 0.12f;
+    private static final int MAX_CACHED_MASKS = 4096;
+    private static final Map<Long, byte[]> MASKS = new ConcurrentHashMap<>();
+    private static final byte[] GRAIN = grain(64, 7);
+    private static final int TILE = TiledCanvas.TILE_SIZE;
+    // Coverage tiles of finished strokes, cleared and ready to reuse.
+    private static final ConcurrentLinkedQueue<byte[]> SPARE_COVERAGE = new ConcurrentLinkedQueue<>();
+    private static final int MAX_SPARE_COVERAGE = 64;
+
+    private final TiledCanvas canvas;
+    private final Tip tip;
+    private final float diameter;
+    private final int red, green, blue;
+    private final int strength; // 0-255: opacity times the colour's alpha
+    private final int radius;   // half the mask side, in pixels
+    private final float step;
+    private final boolean erase;
+
+    // Stroke state, used by the render thread only
+    private boolean started;
+    private float lastX, lastY, untilNext;
+    private int[][] tiles = new int[0][];    // tile pixels fetched during the current polyline
+    private int[] fetched = new int[16];     // indexes of those tiles
+    private int fetchedCount;
+    private byte[][] coverage = new byte[0][]; // highest coverage given to each pixel by this stroke
+    private final byte[][] masks = new byte[PHASES * PHASES][]; // this brush's dabs, by offset
+    private int damageX0, damageY0, damageX1, damageY1;
+    private final Rectangle damage = new Rectangle();
+
+    public DabBrush(TiledCanvas canvas, Tip tip, Color color, float diameter, float opacity) {
+        this(canvas, tip, color, diameter, opacity, false);
+    }
+
+    // A brush that erases to transparency when erase is set; the colour then only gives its alpha.
+    public DabBrush(TiledCanvas canvas, Tip tip, Color color, float diameter, float opacity, boolean erase) {
+        this.erase = erase;
+        this.canvas = canvas;
+        this.tip = tip;
+        this.diameter = Math.max(1f, diameter);
+        this.red = color.getRed();
+        this.green = color.getGreen();
+        this.blue = color.getBlue();
+        float flow = tip == Tip.AIRBRUSH ? AIRBRUSH_FLOW : 1f;
+        this.strength = Math.round(Math.max(0f, Math.min(1f, opacity)) * flow * color.getAlpha());
+        this.radius = (int) Math.ceil(this.diameter / 2) + 1;
+        this.step = Math.max(1f, this.diameter * tip.spacing);
+    }
+
+    /**
+     * Stamp dabs along the polyline, continuing the spacing from the previous
+     * call so a stroke looks the same however its points were batched.
+     */
+    @Override
+    public Rectangle drawPolyline(float[] xs, float[] ys, int count) {
+        damageX0 = damageY0 = Integer.MAX_VALUE;
+        damageX1 = damageY1 = Integer.MIN_VALUE;
+        int cols = canvas.getColumns(), tileCount = cols * canvas.getRows();
+        if (tiles.length != tileCount) { // first call, or the canvas grew and tiles were renumbered
+            finish();
+            tiles = new int[tileCount][];
+            coverage = new byte[tileCount][];
+        }
+        for (int i = 0; i < count; i++) {
+            float x = xs[i] + 0.5f, y = ys[i] + 0.5f; // points are on pixel corners, dabs centred on pixels
+            if (!started) {
+                started = true;
+                stamp(x, y, cols);
+                untilNext = step;
+            } else {
+                float dx = x - lastX, dy = y - lastY;
+                float length = (float) Math.sqrt(dx * dx + dy * dy);
+                float along = untilNext;
+                while (along <= length) {
+                    stamp(lastX + dx * along / length, lastY + dy * along / length, cols);
+                    along += step;
+                }
+                untilNext = along - length;
+            }
+            lastX = x;
+            lastY = y;
+        }
+        // Tiles may be shared with a snapshot or replaced by other edits before the next call
+        for (int i = 0; i < fetchedCount; i++) {
+            tiles[fetched[i]] = null;
+        }
+        fetchedCount = 0;
+        if (damageX0 >= damageX1) {
+            return null;
+        }
+        damage.setBounds(damageX0, damageY0, damageX1 - damageX0, damageY1 - damageY0);
+        return damage;
+    }
+
+    // Return this stroke's coverage tiles for the next stroke to use.
+    @Override
+    public void finish() {
+        for (int i = 0; i < coverage.length; i++) {
+            if (coverage[i] != null) {
+                if (SPARE_COVERAGE.size() < MAX_SPARE_COVERAGE) {
+                    Arrays.fill(coverage[i], (byte) 0);
+                    SPARE_COVERAGE.add(coverage[i]);
+                }
+                coverage[i] = null;
+            }
+        }
+    }
+
+    // Blend one dab centred at (x, y) into the tiles it covers.
+    private void stamp(float x, float y, int cols) {
+        int ix = (int) Math.floor(x), iy = (int) Math.floor(y);
+        int phaseX = (int) ((x - ix) * PHASES), phaseY = (int) ((y - iy) * PHASES);
+        byte[] mask = masks[phaseY * PHASES + phaseX];
+        if (mask == null) {
+            mask = mask(tip, diameter, phaseX, phaseY);
+            masks[phaseY * PHASES + phaseX] = mask;
+        }
+        int side = 2 * radius + 1;
+        int x0 = Math.max(0, ix - radius), y0 = Math.max(0, iy - radius);
+        int x1 = Math.min(canvas.getWidth(), ix + radius + 1), y1 = Math.min(canvas.getHeight(), iy + radius + 1);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int ty = y0 / TILE; ty <= (y1 - 1) / TILE; ty++) {
+            for (int tx = x0 / TILE; tx <= (x1 - 1) / TILE; tx++) {
+                int index = ty * cols + tx;
+                int[] pixels = tile(index, tx, ty);
+                byte[] cover = tip == Tip.AIRBRUSH ? null : coverageTile(index);
+                int left = Math.max(x0, tx * TILE), right = Math.min(x1, (tx + 1) * TILE);
+                int top = Math.max(y0, ty * TILE), bottom = Math.min(y1, (ty + 1) * TILE);
+                for (int py = top; py < bottom; py++) {
+                    int maskRow = (py - iy + radius) * side - ix + radius;
+                    int tileRow = (py - ty * TILE) * TILE - tx * TILE;
+                    for (int px = left; px < right; px++) {
+                        int m = mask[maskRow + px] & 0xFF;
+                        if (m == 0) {
+                            continue;
+                        }
+                        if (tip == Tip.TEXTURE) {
+                            m = m * (GRAIN[(py & 63) << 6 | px & 63] & 0xFF) / 255;
+                        }
+                        int c = m * strength / 255;
+                        int alpha;
+                        if (cover == null) {
+                            alpha = c;
+                        } else {
+                            int before = cover[tileRow + px] & 0xFF;
+                            if (c <= before) {
+                                continue;
+                            }
+                            cover[tileRow + px] = (byte) c;
+                            // Blending the increase over what the stroke already painted gives
+                            // the same result as blending the highest coverage over the original
+                            alpha = before == 255 ? 255 : (c - before) * 255 / (255 - before);
+                        }
+                        if (alpha > 0) {
+                            pixels[tileRow + px] = blend(pixels[tileRow + px], alpha);
+                        }
+                    }
+                }
+            }
+        }
+        damageX0 = Math.min(damageX0, x0);
+        damageY0 = Math.min(damageY0, y0);
+        damageX1 = Math.max(damageX1, x1);
+        damageY1 = Math.max(damageY1, y1);
+    }
+
+    // Blend the brush colour with the given alpha (0-255) over a non-premultiplied ARGB pixel, or erase that much.
+    private int blend(int dst, int alpha) {
+        int da = dst >>> 24;
+        if (erase) {
+            int left = div255(da * (255 - alpha));
+            return left == 0 ? 0 : left << 24 | dst & 0xFFFFFF;
+        }
+        int dr = dst >> 16 & 0xFF, dg = dst >> 8 & 0xFF, db = dst & 0xFF;
+        if (da == 255) {
+            return 0xFF000000
+                    | dr + div255((red - dr) * alpha) << 16
+                    | dg + div255((green - dg) * alpha) << 8
+                    | db + div255((blue - db) * alpha);
+        }
+        int keep = div255(da * (255 - alpha)); // destination weight
+        int oa = alpha + keep;
+        if (oa == 0) {
+            return 0;
+        }
+        return oa << 24
+                | (red * alpha + dr * keep) / oa << 16
+                | (green * alpha + dg * keep) / oa << 8
+                | (blue * alpha + db * keep) / oa;
+    }
+
+    // Round x / 255 for -65025 <= x <= 65025.
+    private static int div255(int x) {
+        return x >= 0 ? (x + 128 + ((x + 128) >> 8)) >> 8 : -((-x + 128 + ((-x + 128) >> 8)) >> 8);
+    }
+
+    private int[] tile(int index, int tx, int ty) {
+        int[] pixels = tiles[index];
+        if (pixels == null) {
+            pixels = canvas.editTilePixels(tx, ty);
+            tiles[index] = pixels;
+            if (fetchedCount == fetched.length) {
+                fetched = Arrays.copyOf(fetched, fetchedCount * 2);
+            }
+            fetched[fetchedCount++] = index;
+        }
+        return pixels;
+    }
+
+    private byte[] coverageTile(int index) {
+        byte[] cover = coverage[index];
+        if (cover == null) {
+            cover = SPARE_COVERAGE.poll();
+            if (cover == null) {
+                cover = new byte[TILE * TILE];
+            }
+            coverage[index] = cover;
+        }
+        return cover;
+    }
+
+    /**
+     * Coverage mask of a dab, (2 * radius + 1) pixels square, for a dab whose
+     * centre lies in the (phaseX, phaseY) quarter-pixel cell of the middle
+     * pixel. Shared by all brushes of the same size and hardness.
+     */
+    static byte[] mask(Tip tip, float diameter, int phaseX, int phaseY) {
+        int hardness = Math.round(tip.hardness * 100);
+        long key = (long) Math.round(diameter * 16) << 24 | (long) hardness << 8 | phaseX << 4 | phaseY;
+        byte[] mask = MASKS.get(key);
+        if (mask == null) {
+            if (MASKS.size() >= MAX_CACHED_MASKS) {
+                MASKS.clear();
+            }
+            mask = createMask(diameter, tip.hardness, (phaseX + 0.5f) / PHASES - 0.5f,
+                    (phaseY + 0.5f) / PHASES - 0.5f);
+            MASKS.put(key, mask);
+        }
+        return mask;
+    }
+
+    // Mask for a dab centred offsetX, offsetY pixels from the centre of the middle pixel.
+    private static byte[] createMask(float diameter, float hardness, float offsetX, float offsetY) {
+        float r = diameter / 2;
+        int radius = (int) Math.ceil(r) + 1, side = 2 * radius + 1;
+        byte[] mask = new byte[side * side];
+        for (int j = 0; j < side; j++) {
+            for (int i = 0; i < side; i++) {
+                float dx = i - radius - offsetX, dy = j - radius - offsetY;
+                float d = (float) Math.sqrt(dx * dx + dy * dy);
+                float coverage;
+                if (hardness >= 1f) {
+                    coverage = Math.max(0f, Math.min(1f, r + 0.5f - d)); // anti-aliased edge
+                } else if (d >= r) {
+                    coverage = 0f;
+                } else if (hardness > 0f) {
+                    float t = Math.max(0f, (d - r * hardness) / (r * (1 - hardness)));
+                    coverage = 1 - t * t * (3 - 2 * t); // smoothstep falloff
+                } else {
+                    float t = 1 - (d * d) / (r * r);
+                    coverage = t * t; // airbrush: strongest in the middle
+                }
+                mask[j * side + i] = (byte) Math.round(coverage * 255);
+            }
+        }
+        return mask;
+    }
+
+    // Paper grain for the crayon tip: smoothed noise, mostly light with darker pits.
+    private static byte[] grain(int size, long seed) {
+        Random random = new Random(seed);
+        float[] noise = new float[size * size];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextFloat();
+        }
+        byte[] grain = new byte[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float sum = 0;
+                for (int k = -1; k <= 1; k++) {
+                    sum += noise[y * size + (x + k + size) % size] + noise[((y + k + size) % size) * size + x];
+                }
+                float v = Math.min(1f, 0.35f + sum / 6 * 0.9f);
+                grain[y * size + x] = (byte) Math.round(v * 255);
+            }
+        }
+        return grain;
+    }
+}
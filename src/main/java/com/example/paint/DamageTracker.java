@@ -0,0 +1,83 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * DamageTracker collects the regions changed by drawing operations and
+ * repaints only their union instead of the whole panel.
+ *
+ * Run with -Dpaint.debugRepaint=true to outline the area repainted each frame.
+ */
+public class DamageTracker {
+    private static final Color DEBUG_FILL = new Color(255, 0, 0, 40);
+    private static final Color DEBUG_OUTLINE = new Color(255, 0, 0, 160);
+
+    private final JComponent owner;
+    private final boolean debug = Boolean.getBoolean("paint.debugRepaint");
+    private Rectangle pending;
+
+    public DamageTracker(JComponent owner) {
+        this.owner = owner;
+    }
+
+    // Bounding box of a stroked segment, padded by half the stroke width for round caps.
+    public static Rectangle segmentBounds(Point p1, Point p2, float strokeWidth) {
+        int pad = (int) Math.ceil(strokeWidth / 2f) + 1;
+        int x = Math.min(p1.x, p2.x) - pad;
+        int y = Math.min(p1.y, p2.y) - pad;
+        int width = Math.abs(p1.x - p2.x) + 2 * pad;
+        int height = Math.abs(p1.y - p2.y) + 2 * pad;
+        return new Rectangle(x, y, width, height);
+    }
+
+    // Bounding box of a stroked shape outline, padded by half the stroke width.
+    public static Rectangle strokeBounds(Shape shape, float strokeWidth) {
+        Rectangle r = shape.getBounds();
+        int pad = (int) Math.ceil(strokeWidth / 2f) + 1;
+        r.grow(pad, pad);
+        return r;
+    }
+
+    public void addSegment(Point p1, Point p2, float strokeWidth) {
+        add(segmentBounds(p1, p2, strokeWidth));
+    }
+
+    public void add(Rectangle r) {
+        if (r == null || r.isEmpty()) {
+            return;
+        }
+        if (pending == null) {
+            pending = new Rectangle(r);
+        } else {
+            pending.add(r);
+        }
+    }
+
+    // Request a repaint of everything damaged since the last flush.
+    public void flush() {
+        if (pending != null) {
+            owner.repaint(pending);
+            pending = null;
+        }
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    // Called at the end of paintComponent; shades the clip so each frame's repaint area is visible.
+    public void paintDebug(Graphics g) {
+        if (!debug) {
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, owner.getWidth(), owner.getHeight());
+        }
+        g.setColor(DEBUG_FILL);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setColor(DEBUG_OUTLINE);
+        g.drawRect(clip.x, clip.y, clip.width - 1, clip.height - 1);
+    }
+}
@@ -0,0 +1,899 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * DrawingOp is one recorded drawing operation: a brush or eraser stroke, a
+ * shape, a fill, a clear, a patch of raw tiles (for edits that are not vector
+ * operations, such as opening an image or undoing), or a change to the
+ * layers. Operations can be written to a compact binary form and replayed
+ * onto a canvas, or the active layer of a LayerStack, with the same
+ * rasterization the Paint tab uses.
+ *
+ * Binary form: [type byte][payload length int][payload]. Every payload starts
+ * with the time the operation started (epoch milliseconds); coordinates and
+ * point times are stored as zig-zag varint deltas.
+ */
+public abstract class DrawingOp {
+    public static final byte STROKE = 1;
+    public static final byte SHAPE = 2;
+    public static final byte CLEAR = 3;
+    public static final byte TILES = 4;
+    public static final byte KEYFRAME = 5; // full tile snapshot; replay can start here
+    public static final byte FILL = 6;
+    public static final byte DAB_STROKE = 7; // a stroke painted with a DabBrush tip
+    public static final byte LAYER = 8;
+
+    protected final long time;
+
+    protected DrawingOp(long time) {
+        this.time = time;
+    }
+
+    // Epoch milliseconds at which the operation started.
+    public long getTime() {
+        return time;
+    }
+
+    public abstract byte getType();
+
+    protected abstract void writePayload(DataOutputStream out) throws IOException;
+
+    // Replay the operation onto the canvas and return the region it changed.
+    public abstract Rectangle apply(TiledCanvas canvas);
+
+    // Replay the operation onto the active layer of a stack and return the region it changed.
+    public Rectangle apply(LayerStack layers) {
+        synchronized (layers) {
+            Rectangle changed = apply(layers.getActiveCanvas());
+            layers.invalidate(changed);
+            return changed;
+        }
+    }
+
+    // True if replaying can start at this operation: it replaces the whole drawing.
+    public boolean isKeyframe() {
+        return false;
+    }
+
+    // Write the record header and payload.
+    public void write(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeLong(time);
+        writePayload(data);
+        data.flush();
+        out.writeByte(getType());
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            write(new DataOutputStream(bytes));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // cannot happen for an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    // Decode one record payload (positioned after the header) of the given type.
+    public static DrawingOp read(byte type, ByteBuffer payload) throws IOException {
+        long time = payload.getLong();
+        switch (type) {
+            case STROKE:
+            case DAB_STROKE:
+                return StrokeOp.readPayload(time, type == DAB_STROKE, payload);
+            case SHAPE:
+                return ShapeOp.readPayload(time, payload);
+            case CLEAR:
+                return new ClearOp(time);
+            case FILL:
+                return FillOp.readPayload(time, payload);
+            case TILES:
+            case KEYFRAME:
+                return TilesOp.readPayload(time, type == KEYFRAME, payload);
+            case LAYER:
+                return LayerOp.readPayload(time, payload);
+            default:
+                throw new IOException("Unknown drawing operation type " + type);
+        }
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31); // zig-zag so small negatives stay small
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(ByteBuffer in) {
+        int v = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * A freehand brush or eraser stroke: the raw input points and their times,
+     * and the DabBrush tip and opacity it was painted with (no tip for strokes
+     * drawn with Java2D).
+     */
+    public static final class StrokeOp extends DrawingOp {
+        private final boolean eraser;
+        private final int color;
+        private final float width;
+        private final StrokePipeline.Smoothing smoothing;
+        private final DabBrush.Tip tip;
+        private final float opacity;
+        private int[] xs = new int[32], ys = new int[32];
+        private int[] offsets = new int[32]; // ms since the start of the stroke
+        private int count;
+        private long lastTime;
+
+        public StrokeOp(boolean eraser, Color color, float width, StrokePipeline.Smoothing smoothing, long time) {
+            this(eraser, color, width, smoothing, null, 1f, time);
+        }
+
+        public StrokeOp(boolean eraser, Color color, float width, StrokePipeline.Smoothing smoothing,
+                        DabBrush.Tip tip, float opacity, long time) {
+            super(time);
+            this.eraser = eraser;
+            this.color = color.getRGB();
+            this.width = width;
+            this.smoothing = smoothing;
+            this.tip = tip;
+            this.opacity = opacity;
+            this.lastTime = time;
+        }
+
+        public void addPoint(int x, int y, long when) {
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            xs[count] = x;
+            ys[count] = y;
+            lastTime = Math.max(lastTime, when);
+            offsets[count] = (int) (lastTime - time);
+            count++;
+        }
+
+        @Override
+        public byte getType() {
+            return tip == null ? STROKE : DAB_STROKE;
+        }
+
+        public boolean isEraser() {
+            return eraser;
+        }
+
+        public Color getColor() {
+            return new Color(color, true);
+        }
+
+        public float getWidth() {
+            return width;
+        }
+
+        public StrokePipeline.Smoothing getSmoothing() {
+            return smoothing;
+        }
+
+        // Brush tip, or null for a stroke drawn with Java2D.
+        public DabBrush.Tip getTip() {
+            return tip;
+        }
+
+        public float getOpacity() {
+            return opacity;
+        }
+
+        /**
+         * Rasterizer that paints this stroke: its DabBrush, or a Java2D stroke
+         * for strokes without a tip. The eraser paints its colour on an opaque
+         * canvas and erases to transparency on a transparent layer.
+         */
+        public StrokePipeline.Rasterizer rasterizer(TiledCanvas canvas) {
+            Color paint = new Color(color, true);
+            boolean erase = eraser && canvas.getBackground() >>> 24 == 0;
+            if (tip != null) {
+                return new DabBrush(canvas, tip, paint, width, opacity, erase);
+            }
+            BasicStroke stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+            if (erase) {
+                return StrokePipeline.java2d(canvas, Color.BLACK, stroke,
+                        AlphaComposite.getInstance(AlphaComposite.DST_OUT, opacity));
+            }
+            if (opacity < 1f) {
+                paint = new Color(paint.getRed(), paint.getGreen(), paint.getBlue(),
+                        Math.round(paint.getAlpha() * opacity));
+            }
+            return StrokePipeline.java2d(canvas, paint, stroke);
+        }
+
+        public int getPointCount() {
+            return count;
+        }
+
+        public int getX(int i) {
+            return xs[i];
+        }
+
+        public int getY(int i) {
+            return ys[i];
+        }
+
+        // Epoch milliseconds of point i.
+        public long getPointTime(int i) {
+            return time + offsets[i];
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) throws IOException {
+            out.writeBoolean(eraser);
+            out.writeInt(color);
+            out.writeFloat(width);
+            out.writeByte(smoothing.ordinal());
+            if (tip != null) {
+                out.writeByte(tip.ordinal());
+                out.writeFloat(opacity);
+            }
+            writeVarInt(out, count);
+            int px = 0, py = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, xs[i] - px);
+                writeVarInt(out, ys[i] - py);
+                writeVarInt(out, offsets[i] - (i > 0 ? offsets[i - 1] : 0)); // ms since the previous point
+                px = xs[i];
+                py = ys[i];
+            }
+        }
+
+        static StrokeOp readPayload(long time, boolean dab, ByteBuffer in) {
+            boolean eraser = in.get() != 0;
+            int color = in.getInt();
+            float width = in.getFloat();
+            StrokePipeline.Smoothing smoothing = StrokePipeline.Smoothing.values()[in.get()];
+            DabBrush.Tip tip = dab ? DabBrush.Tip.values()[in.get()] : null;
+            float opacity = dab ? in.getFloat() : 1f;
+            StrokeOp op = new StrokeOp(eraser, new Color(color, true), width, smoothing, tip, opacity, time);
+            int n = readVarInt(in);
+            int px = 0, py = 0;
+            long t = time;
+            for (int i = 0; i < n; i++) {
+                px += readVarInt(in);
+                py += readVarInt(in);
+                t += readVarInt(in);
+                op.addPoint(px, py, t);
+            }
+            return op;
+        }
+
+        // Replay through a synchronous stroke pipeline, exactly as the Paint tab rasterizes it.
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            return applyPoints(canvas, count);
+        }
+
+        // Replay only the first n points, e.g. to show a stroke in progress.
+        public Rectangle applyPoints(TiledCanvas canvas, int n) {
+            Rectangle[] damage = new Rectangle[1];
+            StrokePipeline pipeline = new StrokePipeline(canvas, r -> damage[0] = r, false, smoothing);
+            pipeline.beginStroke(rasterizer(canvas));
+            Rectangle total = null;
+            for (int i = 0; i < Math.min(n, count); i++) {
+                damage[0] = null;
+                pipeline.addPoint(xs[i], ys[i], System.currentTimeMillis());
+                total = union(total, damage[0]);
+            }
+            damage[0] = null;
+            pipeline.endStroke();
+            return union(total, damage[0]);
+        }
+    }
+
+    /** A rectangle, circle or line between two corner points. */
+    public static final class ShapeOp extends DrawingOp {
+        public enum Kind {
+            RECTANGLE, CIRCLE, LINE
+        }
+
+        private final Kind kind;
+        private final int color;
+        private final float width;
+        private final int x1, y1, x2, y2;
+        private final Shape shape;
+        private final Shape outline; // the stroked shape, filled when drawing
+
+        public ShapeOp(Kind kind, Color color, float width, Point start, Point end, long time) {
+            this(kind, color.getRGB(), width, start.x, start.y, end.x, end.y, time);
+        }
+
+        private ShapeOp(Kind kind, int color, float width, int x1, int y1, int x2, int y2, long time) {
+            super(time);
+            this.kind = kind;
+            this.color = color;
+            this.width = width;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.shape = createShape(kind, new Point(x1, y1), new Point(x2, y2));
+            this.outline = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)
+                    .createStrokedShape(shape);
+        }
+
+        /**
+         * The outline drawn for a shape dragged from start to end. Circles use
+         * the smaller side of the dragged box as their diameter.
+         */
+        public static Shape createShape(Kind kind, Point start, Point end) {
+            int x = Math.min(start.x, end.x);
+            int y = Math.min(start.y, end.y);
+            int width = Math.abs(start.x - end.x);
+            int height = Math.abs(start.y - end.y);
+            switch (kind) {
+                case RECTANGLE:
+                    return new Rectangle(x, y, width, height);
+                case CIRCLE:
+                    int diameter = Math.min(width, height);
+                    return new Ellipse2D.Float(x, y, diameter, diameter);
+                default:
+                    return new Line2D.Float(start, end);
+            }
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public Shape getShape() {
+            return shape;
+        }
+
+        public Color getColor() {
+            return new Color(color, true);
+        }
+
+        public float getWidth() {
+            return width;
+        }
+
+        @Override
+        public byte getType() {
+            return SHAPE;
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) throws IOException {
+            out.writeByte(kind.ordinal());
+            out.writeInt(color);
+            out.writeFloat(width);
+            writeVarInt(out, x1);
+            writeVarInt(out, y1);
+            writeVarInt(out, x2);
+            writeVarInt(out, y2);
+        }
+
+        static ShapeOp readPayload(long time, ByteBuffer in) {
+            Kind kind = Kind.values()[in.get()];
+            int color = in.getInt();
+            float width = in.getFloat();
+            return new ShapeOp(kind, color, width, readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in),
+                    time);
+        }
+
+        // Region the outline covers, padded for the stroke width.
+        public Rectangle getBounds() {
+            return DamageTracker.strokeBounds(shape, width);
+        }
+
+        /**
+         * Draw the outline with its colour and stroke. Used both for the live
+         * preview and on the canvas, so the committed shape matches the preview.
+         */
+        public void paint(Graphics2D g) {
+            g.setColor(new Color(color, true));
+            g.fill(outline);
+        }
+
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            Rectangle bounds = getBounds();
+            canvas.draw(bounds, this::paint);
+            return bounds;
+        }
+    }
+
+    /** A paint bucket fill from a point, replayed with FloodFill. */
+    public static final class FillOp extends DrawingOp {
+        private final int x, y, color, tolerance;
+
+        public FillOp(int x, int y, Color color, int tolerance, long time) {
+            this(x, y, color.getRGB(), tolerance, time);
+        }
+
+        private FillOp(int x, int y, int color, int tolerance, long time) {
+            super(time);
+            this.x = x;
+            this.y = y;
+            this.color = color;
+            this.tolerance = tolerance;
+        }
+
+        public Color getColor() {
+            return new Color(color, true);
+        }
+
+        public int getTolerance() {
+            return tolerance;
+        }
+
+        @Override
+        public byte getType() {
+            return FILL;
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) throws IOException {
+            writeVarInt(out, x);
+            writeVarInt(out, y);
+            out.writeInt(color);
+            out.writeByte(tolerance);
+        }
+
+        static FillOp readPayload(long time, ByteBuffer in) {
+            return new FillOp(readVarInt(in), readVarInt(in), in.getInt(), in.get() & 0xFF, time);
+        }
+
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            return FloodFill.fill(canvas, x, y, color, tolerance);
+        }
+    }
+
+    /** Clearing the whole canvas back to its background. */
+    public static final class ClearOp extends DrawingOp {
+        public ClearOp(long time) {
+            super(time);
+        }
+
+        @Override
+        public byte getType() {
+            return CLEAR;
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) {
+        }
+
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            canvas.clear();
+            return canvas.getBounds();
+        }
+    }
+
+    /**
+     * Raw contents of some tiles, encoded with TileCodec. A keyframe holds
+     * every tile that differs from the background and replaces the whole
+     * canvas when applied.
+     */
+    public static final class TilesOp extends DrawingOp {
+        private final boolean keyframe;
+        private final int canvasWidth, canvasHeight;
+        private final List<int[]> positions = new ArrayList<>();
+        private final List<byte[]> tiles = new ArrayList<>();
+
+        private TilesOp(boolean keyframe, int canvasWidth, int canvasHeight, long time) {
+            super(time);
+            this.keyframe = keyframe;
+            this.canvasWidth = canvasWidth;
+            this.canvasHeight = canvasHeight;
+        }
+
+        // Capture the tiles of the canvas that intersect the region.
+        public static TilesOp capture(TiledCanvas canvas, Rectangle region, TileCodec codec, long time) {
+            synchronized (canvas) {
+                TilesOp op = new TilesOp(false, canvas.getWidth(), canvas.getHeight(), time);
+                Rectangle r = region.intersection(canvas.getBounds());
+                if (r.isEmpty()) {
+                    return op;
+                }
+                int size = TiledCanvas.TILE_SIZE;
+                for (int ty = r.y / size; ty <= (r.y + r.height - 1) / size; ty++) {
+                    for (int tx = r.x / size; tx <= (r.x + r.width - 1) / size; tx++) {
+                        op.add(tx, ty, codec.encode(canvas, tx, ty));
+                    }
+                }
+                return op;
+            }
+        }
+
+        // Capture the tiles of the canvas in a set of tile indices (ty * TiledCanvas.GRID + tx).
+        public static TilesOp capture(TiledCanvas canvas, BitSet tileSet, TileCodec codec, long time) {
+            synchronized (canvas) {
+                TilesOp op = new TilesOp(false, canvas.getWidth(), canvas.getHeight(), time);
+                for (int i = tileSet.nextSetBit(0); i >= 0; i = tileSet.nextSetBit(i + 1)) {
+                    int tx = i % TiledCanvas.GRID, ty = i / TiledCanvas.GRID;
+                    if (tx < canvas.getColumns() && ty < canvas.getRows()) {
+                        op.add(tx, ty, codec.encode(canvas, tx, ty));
+                    }
+                }
+                return op;
+            }
+        }
+
+        // Capture every tile that differs from the background.
+        public static TilesOp keyframe(TiledCanvas canvas, TileCodec codec, long time) {
+            synchronized (canvas) {
+                TilesOp op = new TilesOp(true, canvas.getWidth(), canvas.getHeight(), time);
+                for (int ty = 0; ty < canvas.getRows(); ty++) {
+                    for (int tx = 0; tx < canvas.getColumns(); tx++) {
+                        if (canvas.getTilePixels(tx, ty) != null
+                                || canvas.getTileColor(tx, ty) != canvas.getBackground()) {
+                            op.add(tx, ty, codec.encode(canvas, tx, ty));
+                        }
+                    }
+                }
+                return op;
+            }
+        }
+
+        private void add(int tx, int ty, byte[] encoded) {
+            positions.add(new int[] { tx, ty });
+            tiles.add(encoded);
+        }
+
+        @Override
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+
+        public int getTileCount() {
+            return tiles.size();
+        }
+
+        @Override
+        public byte getType() {
+            return keyframe ? KEYFRAME : TILES;
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) throws IOException {
+            out.writeInt(canvasWidth);
+            out.writeInt(canvasHeight);
+            out.writeInt(tiles.size());
+            for (int i = 0; i < tiles.size(); i++) {
+                out.writeShort(positions.get(i)[0]);
+                out.writeShort(positions.get(i)[1]);
+                out.writeInt(tiles.get(i).length);
+                out.write(tiles.get(i));
+            }
+        }
+
+        static TilesOp readPayload(long time, boolean keyframe, ByteBuffer in) {
+            TilesOp op = new TilesOp(keyframe, in.getInt(), in.getInt(), time);
+            int n = in.getInt();
+            for (int i = 0; i < n; i++) {
+                int tx = in.getShort();
+                int ty = in.getShort();
+                byte[] encoded = new byte[in.getInt()];
+                in.get(encoded);
+                op.add(tx, ty, encoded);
+            }
+            return op;
+        }
+
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            TileCodec codec = new TileCodec();
+            synchronized (canvas) {
+                canvas.ensureSize(canvasWidth, canvasHeight);
+                if (keyframe) {
+                    canvas.clear();
+                }
+                Rectangle damage = keyframe ? canvas.getBounds() : null;
+                for (int i = 0; i < tiles.size(); i++) {
+                    int tx = positions.get(i)[0], ty = positions.get(i)[1];
+                    codec.decode(canvas, tx, ty, tiles.get(i));
+                    damage = union(damage, TiledCanvas.tileBounds(tx, ty));
+                }
+                return damage;
+            }
+        }
+    }
+
+    /**
+     * A change to the layers of a LayerStack: adding, removing, selecting,
+     * moving or restyling one layer. A reset holds every layer with its
+     * properties and tiles and is the keyframe of a layered document. A
+     * patch holds every layer's properties but only the tiles that changed
+     * since an earlier reset or patch of the same layers (the checkpoints of
+     * Autosave). A single canvas has no layers, so applying to one does
+     * nothing.
+     */
+    public static final class LayerOp extends DrawingOp {
+        public enum Action {
+            ADD, REMOVE, SELECT, UPDATE, MOVE, RESET, PATCH
+        }
+
+        private final Action action;
+        private final int index;  // the layer, or the active layer for a reset
+        private final int target; // where MOVE puts it
+        private final String name;
+        private final int background;
+        private final float opacity;
+        private final boolean visible, locked;
+        private final Layer.Blend blend;
+        private final List<LayerOp> entries = new ArrayList<>(); // RESET, PATCH: each layer's properties, bottom first
+        private final List<TilesOp> contents = new ArrayList<>(); // RESET, PATCH: each layer's (changed) tiles
+
+        private LayerOp(Action action, int index, int target, String name, int background, float opacity,
+                        boolean visible, Layer.Blend blend, boolean locked, long time) {
+            super(time);
+            this.action = action;
+            this.index = index;
+            this.target = target;
+            this.name = name;
+            this.background = background;
+            this.opacity = opacity;
+            this.visible = visible;
+            this.blend = blend;
+            this.locked = locked;
+        }
+
+        private LayerOp(Action action, int index, int target, long time) {
+            this(action, index, target, null, 0, 1f, true, Layer.Blend.NORMAL, false, time);
+        }
+
+        // Insert a blank layer at index and make it active.
+        public static LayerOp add(int index, String name, int background, long time) {
+            return new LayerOp(Action.ADD, index, 0, name, background, 1f, true, Layer.Blend.NORMAL, false, time);
+        }
+
+        public static LayerOp remove(int index, long time) {
+            return new LayerOp(Action.REMOVE, index, 0, time);
+        }
+
+        public static LayerOp select(int index, long time) {
+            return new LayerOp(Action.SELECT, index, 0, time);
+        }
+
+        public static LayerOp move(int from, int to, long time) {
+            return new LayerOp(Action.MOVE, from, to, time);
+        }
+
+        public static LayerOp update(int index, String name, float opacity, boolean visible, Layer.Blend blend,
+                                     boolean locked, long time) {
+            return new LayerOp(Action.UPDATE, index, 0, name, 0, opacity, visible, blend, locked, time);
+        }
+
+        // Capture every layer of the stack, with its tiles.
+        public static LayerOp reset(LayerStack layers, TileCodec codec, long time) {
+            synchronized (layers) {
+                return reset(layers.getLayers(), layers.getActiveIndex(), codec, time);
+            }
+        }
+
+        // Capture every layer of a list (e.g. copies of a stack's layers) with its tiles; active is the selected one.
+        public static LayerOp reset(List<Layer> layers, int active, TileCodec codec, long time) {
+            LayerOp op = new LayerOp(Action.RESET, active, 0, time);
+            for (Layer layer : layers) {
+                op.addEntry(layer, TilesOp.keyframe(layer.getCanvas(), codec, time));
+            }
+            return op;
+        }
+
+        /**
+         * Capture the properties of every layer of a list and the tiles of
+         * each one in changed (tile index sets, see TilesOp.capture; null
+         * for none), to be applied to the same layers as they were.
+         */
+        public static LayerOp patch(List<Layer> layers, int active, List<BitSet> changed, TileCodec codec,
+                                    long time) {
+            LayerOp op = new LayerOp(Action.PATCH, active, 0, time);
+            for (int i = 0; i < layers.size(); i++) {
+                BitSet tileSet = changed.get(i);
+                op.addEntry(layers.get(i), TilesOp.capture(layers.get(i).getCanvas(),
+                        tileSet == null ? new BitSet() : tileSet, codec, time));
+            }
+            return op;
+        }
+
+        private void addEntry(Layer layer, TilesOp tiles) {
+            entries.add(new LayerOp(Action.UPDATE, 0, 0, layer.getName(), layer.getCanvas().getBackground(),
+                    layer.getOpacity(), layer.isVisible(), layer.getBlend(), layer.isLocked(), time));
+            contents.add(tiles);
+        }
+
+        // Tiles held by a reset or patch.
+        public int getTileCount() {
+            int count = 0;
+            for (TilesOp tiles : contents) {
+                count += tiles.getTileCount();
+            }
+            return count;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public byte getType() {
+            return LAYER;
+        }
+
+        @Override
+        public boolean isKeyframe() {
+            return action == Action.RESET;
+        }
+
+        @Override
+        protected void writePayload(DataOutputStream out) throws IOException {
+            out.writeByte(action.ordinal());
+            writeVarInt(out, index);
+            switch (action) {
+                case ADD:
+                    writeName(out, name);
+                    out.writeInt(background);
+                    break;
+                case MOVE:
+                    writeVarInt(out, target);
+                    break;
+                case UPDATE:
+                    writeProperties(out);
+                    break;
+                case RESET:
+                case PATCH:
+                    writeVarInt(out, entries.size());
+                    for (int i = 0; i < entries.size(); i++) {
+                        out.writeInt(entries.get(i).background);
+                        entries.get(i).writeProperties(out);
+                        contents.get(i).writePayload(out);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void writeProperties(DataOutputStream out) throws IOException {
+            writeName(out, name);
+            out.writeFloat(opacity);
+            out.writeByte((visible ? 1 : 0) | (locked ? 2 : 0));
+            out.writeByte(blend.ordinal());
+        }
+
+        static LayerOp readPayload(long time, ByteBuffer in) {
+            Action action = Action.values()[in.get()];
+            int index = readVarInt(in);
+            switch (action) {
+                case ADD:
+                    return add(index, readName(in), in.getInt(), time);
+                case MOVE:
+                    return move(index, readVarInt(in), time);
+                case UPDATE:
+                    return readProperties(Action.UPDATE, index, 0, time, in);
+                case RESET:
+                case PATCH:
+                    LayerOp op = new LayerOp(action, index, 0, time);
+                    int n = readVarInt(in);
+                    for (int i = 0; i < n; i++) {
+                        int background = in.getInt();
+                        op.entries.add(readProperties(Action.UPDATE, 0, background, time, in));
+                        op.contents.add(TilesOp.readPayload(time, action == Action.RESET, in));
+                    }
+                    return op;
+                default:
+                    return new LayerOp(action, index, 0, time);
+            }
+        }
+
+        private static LayerOp readProperties(Action action, int index, int background, long time, ByteBuffer in) {
+            String name = readName(in);
+            float opacity = in.getFloat();
+            int flags = in.get();
+            return new LayerOp(action, index, 0, name, background, opacity, (flags & 1) != 0,
+                    Layer.Blend.values()[in.get()], (flags & 2) != 0, time);
+        }
+
+        private static void writeName(DataOutputStream out, String name) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readName(ByteBuffer in) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Rectangle apply(TiledCanvas canvas) {
+            return null;
+        }
+
+        @Override
+        public Rectangle apply(LayerStack layers) {
+            synchronized (layers) {
+                switch (action) {
+                    case ADD:
+                        layers.addLayer(index, name, background);
+                        break;
+                    case REMOVE:
+                        layers.removeLayer(index);
+                        break;
+                    case SELECT:
+                        layers.select(index);
+                        return null; // looks the same
+                    case MOVE:
+                        layers.moveLayer(index, target);
+                        break;
+                    case UPDATE:
+                        layers.update(index, name, opacity, visible, blend, locked);
+                        break;
+                    case PATCH:
+                        Rectangle damage = null;
+                        for (int i = 0; i < entries.size() && i < layers.getLayerCount(); i++) {
+                            LayerOp entry = entries.get(i);
+                            layers.update(i, entry.name, entry.opacity, entry.visible, entry.blend, entry.locked);
+                            damage = union(damage, contents.get(i).apply(layers.getLayer(i).getCanvas()));
+                        }
+                        layers.select(Math.min(index, layers.getLayerCount() - 1));
+                        layers.invalidate(damage);
+                        return damage;
+                    default:
+                        layers.removeAll();
+                        for (int i = 0; i < entries.size(); i++) {
+                            LayerOp entry = entries.get(i);
+                            Layer layer = layers.addLayer(i, entry.name, entry.background);
+                            layers.update(i, entry.name, entry.opacity, entry.visible, entry.blend, entry.locked);
+                            contents.get(i).apply(layer.getCanvas());
+                            layer.getCanvas().compact();
+                        }
+                        layers.select(index);
+                        break;
+                }
+                return layers.getBounds();
+            }
+        }
+    }
+
+    static Rectangle union(Rectangle a, Rectangle b) {
+        if (a == null) {
+            return b == null ? null : new Rectangle(b);
+        }
+        if (b != null) {
+            a.add(b);
+        }
+        return a;
+    }
+}
@@ -1,57 +1,244 @@
 package com.example.paint;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * FileHandler provides static methods to save and open images.
  * It uses JFileChooser to let users select the location and file format.
+ *
+ * Encoding and decoding run on a background executor (see FileTask) with a
+ * progress dialog and Cancel, so a large file or a slow disk never freezes
+ * the UI. Files are written to a temporary file and moved into place, and
+ * saves to the same file are serialized.
+ *
+ * The native paint document format is handled by StrokeJournal.
  */
 public class FileHandler {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "file-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ConcurrentHashMap<String, Object> FILE_LOCKS = new ConcurrentHashMap<>();
+
+    /** Writes the content of a file; used by writeAtomically. */
+    public interface ContentWriter {
+        void write(File file) throws Exception;
+    }
+
+    static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
     /**
-     * Saves the given BufferedImage to a file.
-     * Supports PNG and JPG formats.
+     * Lets the user choose a file to save to or open, offering images and
+     * paint documents (.bpj, see StrokeJournal). Returns null if cancelled.
+     * A file saved without an extension gets the one of the selected filter.
      */
-    public static void saveImage(BufferedImage image, Component parent) {
+    public static File chooseFile(Component parent, boolean save, File current) {
         JFileChooser fileChooser = new JFileChooser();
-        int option = fileChooser.showSaveDialog(parent);
-        if (option == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            try {
-                // Determine file extension from the filename; default to PNG.
-                String fileName = file.getName().toLowerCase();
-                String format = "png";
-                if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
-                    format = "jpg";
-                }
-                if (!fileName.contains(".")) {
-                    file = new File(file.getAbsolutePath() + "." + format);
+        FileNameExtensionFilter images = new FileNameExtensionFilter("Images (*.png, *.jpg)", "png", "jpg", "jpeg");
+        FileNameExtensionFilter documents = new FileNameExtensionFilter("Paint document (*.bpj)",
+                StrokeJournal.EXTENSION);
+        fileChooser.addChoosableFileFilter(images);
+        fileChooser.addChoosableFileFilter(documents);
+        fileChooser.setFileFilter(current != null ? documents : images);
+        if (current != null) {
+            fileChooser.setSelectedFile(current);
+        }
+        int option = save ? fileChooser.showSaveDialog(parent) : fileChooser.showOpenDialog(parent);
+        if (option != JFileChooser.APPROVE_OPTION) {
+            return null;
+        }
+        File file = fileChooser.getSelectedFile();
+        if (save && !file.getName().contains(".")) {
+            String extension = fileChooser.getFileFilter() == documents ? StrokeJournal.EXTENSION : "png";
+            file = new File(file.getAbsolutePath() + "." + extension);
+        }
+        return file;
+    }
+
+    /**
+     * Saves a snapshot of the canvas to an image file.
+     * Supports PNG and JPG formats. The snapshot is flattened and encoded in
+     * the background, so the caller can keep drawing on the live canvas.
+     */
+    public static void saveImage(TiledCanvas snapshot, File file, Component parent) {
+        // Determine file extension from the filename; default to PNG.
+        String fileName = file.getName().toLowerCase();
+        String format = "png";
+        if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
+            format = "jpg";
+        }
+        if (!fileName.contains(".")) {
+            file = new File(file.getAbsolutePath() + "." + format);
+        }
+        Color matte = format.equals("jpg") ? Color.WHITE : null; // JPEG has no alpha channel
+        exportImage(parent, file, snapshot, matte, ImageEncoder.configured(format), "Image saved successfully.");
+    }
+
+    /**
+     * Encodes a canvas snapshot in the background and writes it to the file,
+     * flattened over matte (null keeps the alpha channel of a PNG). The
+     * encoder reads the snapshot's tiles directly, so the caller can keep
+     * drawing on the live canvas and no full-size copy is made.
+     */
+    public static FileTask<File> exportImage(Component parent, File file, TiledCanvas snapshot, Color matte,
+                                             ImageEncoder encoder, String successMessage) {
+        FileTask<File> task = new FileTask<File>(parent, "Saving " + file.getName()) {
+            @Override
+            protected File work() throws Exception {
+                writeAtomically(file, tmp -> {
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                        encoder.write(snapshot, matte, out, this::progress, this::isCancelled);
+                    }
+                    if (isCancelled()) {
+                        throw new IOException("Save cancelled");
+                    }
+                });
+                return file;
+            }
+
+            @Override
+            protected void succeeded(File result) {
+                if (successMessage != null) {
+                    JOptionPane.showMessageDialog(parent, successMessage);
                 }
-                ImageIO.write(image, format, file);
-                JOptionPane.showMessageDialog(parent, "Image saved successfully.");
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(parent, "Error saving image: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
+        };
+        task.start();
+        return task;
+    }
+
+    // Encode an image to the stream and dispose of the writer.
+    static void encode(ImageWriter writer, BufferedImage image, ImageOutputStream out) throws IOException {
+        Telemetry.Span span = Telemetry.begin(Telemetry.Metric.IMAGE_ENCODE);
+        try {
+            writer.setOutput(out);
+            writer.write(image);
+            Telemetry.endImage(span, writer.getOriginatingProvider().getFormatNames()[0],
+                    image.getWidth(), image.getHeight());
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Decode the first image in the stream; onReader sees the reader first, e.g. to track progress.
+    static BufferedImage decode(ImageInputStream in, String name, Consumer<ImageReader> onReader)
+            throws IOException {
+        if (in == null) {
+            throw new IOException("Cannot read " + name);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + name);
+        }
+        ImageReader reader = readers.next();
+        onReader.accept(reader);
+        Telemetry.Span span = Telemetry.begin(Telemetry.Metric.IMAGE_DECODE);
+        try {
+            reader.setInput(in, true, true);
+            BufferedImage image = reader.read(0);
+            Telemetry.endImage(span, reader.getFormatName(), image.getWidth(), image.getHeight());
+            return image;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    static ImageWriter writerFor(String format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("Unsupported file format: " + format);
         }
+        return writers.next();
     }
-    
+
     /**
-     * Opens an image file and returns it as a BufferedImage.
+     * Write a file through a temporary file in the same directory that is
+     * moved over the target when complete, so readers never see a partial
+     * file and a failed or cancelled save leaves nothing behind. Concurrent
+     * writes to the same file run one after the other.
      */
-    public static BufferedImage openImage(Component parent) {
-        JFileChooser fileChooser = new JFileChooser();
-        int option = fileChooser.showOpenDialog(parent);
-        if (option == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
+    public static void writeAtomically(File target, ContentWriter writer) throws Exception {
+        synchronized (lockFor(target)) {
+            File dir = target.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile("." + target.getName(), ".part", dir);
             try {
-                return ImageIO.read(file);
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(parent, "Error opening image: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                writer.write(tmp);
+                try {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
             }
         }
-        return null;
+    }
+
+    private static Object lockFor(File file) {
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException ex) {
+            key = file.getAbsolutePath();
+        }
+        return FILE_LOCKS.computeIfAbsent(key, k -> new Object());
+    }
+
+    /**
+     * Opens an image file chosen by the user and decodes it in the background.
+     * The image is passed to onOpened on the Event Dispatch Thread.
+     */
+    public static void openImage(Component parent, Consumer<BufferedImage> onOpened) {
+        File file = ThumbnailGallery.choose(parent);
+        if (file != null) {
+            readImage(parent, file, onOpened);
+        }
+    }
+
+    // Decode an image file in the background and pass it to onOpened on the EDT.
+    public static FileTask<BufferedImage> readImage(Component parent, File file, Consumer<BufferedImage> onOpened) {
+        FileTask<BufferedImage> task = new FileTask<BufferedImage>(parent, "Opening " + file.getName()) {
+            @Override
+            protected BufferedImage work() throws Exception {
+                try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                    BufferedImage image = decode(in, file.getName(), reader -> track(reader, 0, 100));
+                    return isCancelled() ? null : image;
+                }
+            }
+
+            @Override
+            protected void succeeded(BufferedImage result) {
+                if (result != null) {
+                    onOpened.accept(result);
+                }
+            }
+        };
+        task.start();
+        return task;
     }
 }
@@ -0,0 +1,142 @@
+package com.example.paint;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * FileTask runs a slow file operation (encoding, decoding, PDF export) or
+ * image filter on FileHandler's background executor while a progress dialog
+ * with a Cancel button is shown. The result, or the error message, is
+ * delivered on the Event Dispatch Thread.
+ */
+public abstract class FileTask<T> extends SwingWorker<T, Void> {
+    private final Component parent;
+    private final String title;
+    private ProgressMonitor monitor;
+    private Timer cancelPoller;
+    private volatile ImageReader activeReader;
+    private volatile ImageWriter activeWriter;
+
+    protected FileTask(Component parent, String title) {
+        this.parent = parent;
+        this.title = title;
+    }
+
+    // The background work. Implementations should check isCancelled() between steps.
+    protected abstract T work() throws Exception;
+
+    // Called on the EDT with the result when the work finished normally.
+    protected void succeeded(T result) {
+    }
+
+    // Called on the EDT when the task is over, however it ended, before succeeded.
+    protected void finished() {
+    }
+
+    // Start the task with its progress dialog. Must be called on the EDT.
+    public void start() {
+        monitor = new ProgressMonitor(parent, title, null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        monitor.setMillisToPopup(400);
+        addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                monitor.setProgress((Integer) e.getNewValue());
+            }
+        });
+        cancelPoller = new Timer(100, e -> {
+            if (monitor.isCanceled() && !isDone()) {
+                cancelWork();
+            }
+        });
+        cancelPoller.start();
+        FileHandler.execute(this);
+    }
+
+    // Cancel the task, aborting any image reader or writer it is using.
+    public void cancelWork() {
+        ImageReader reader = activeReader;
+        if (reader != null) {
+            reader.abort();
+        }
+        ImageWriter writer = activeWriter;
+        if (writer != null) {
+            writer.abort();
+        }
+        cancel(false);
+    }
+
+    // Report progress as a percentage (0-100) from the background thread.
+    protected void progress(int percent) {
+        setProgress(Math.max(0, Math.min(100, percent)));
+    }
+
+    // Forward an ImageReader's progress to the dialog and let Cancel abort it.
+    protected void track(ImageReader reader, int from, int to) {
+        activeReader = reader;
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+                progress(from + (int) ((to - from) * percentageDone / 100f));
+            }
+
+            @Override public void sequenceStarted(ImageReader source, int minIndex) { }
+            @Override public void sequenceComplete(ImageReader source) { }
+            @Override public void imageStarted(ImageReader source, int imageIndex) { }
+            @Override public void imageComplete(ImageReader source) { }
+            @Override public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) { }
+            @Override public void thumbnailProgress(ImageReader source, float percentageDone) { }
+            @Override public void thumbnailComplete(ImageReader source) { }
+            @Override public void readAborted(ImageReader source) { }
+        });
+    }
+
+    // Forward an ImageWriter's progress to the dialog and let Cancel abort it.
+    protected void track(ImageWriter writer, int from, int to) {
+        activeWriter = writer;
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+            @Override
+            public void imageProgress(ImageWriter source, float percentageDone) {
+                progress(from + (int) ((to - from) * percentageDone / 100f));
+            }
+
+            @Override public void imageStarted(ImageWriter source, int imageIndex) { }
+            @Override public void imageComplete(ImageWriter source) { }
+            @Override public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) { }
+            @Override public void thumbnailProgress(ImageWriter source, float percentageDone) { }
+            @Override public void thumbnailComplete(ImageWriter source) { }
+            @Override public void writeAborted(ImageWriter source) { }
+        });
+    }
+
+    @Override
+    protected final T doInBackground() throws Exception {
+        return work();
+    }
+
+    @Override
+    protected final void done() {
+        cancelPoller.stop();
+        monitor.close();
+        finished();
+        if (isCancelled()) {
+            return;
+        }
+        try {
+            succeeded(get());
+        } catch (CancellationException ex) {
+            // cancelled by the user; nothing to report
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            JOptionPane.showMessageDialog(parent, title + " failed: " + cause.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * FilterDialog asks for a filter's settings and shows a live preview of the
+ * layer with the filter applied. The preview works on a copy of the layer
+ * scaled down to at most -Dpaint.filterPreviewSize pixels a side (360 by
+ * default), with the blur radii scaled to match, so it follows the spinners
+ * even on a large canvas. Each preview is rendered on a SwingWorker, and a
+ * change of setting cancels the one still running.
+ */
+public class FilterDialog extends JDialog {
+    static final int PREVIEW_SIZE = Integer.getInteger("paint.filterPreviewSize", 360);
+
+    private final CanvasFilter.Kind kind;
+    private final JSpinner[] spinners;
+    private final JLabel preview = new JLabel();
+    private final int[] source; // the scaled-down layer
+    private final int width, height;
+    private final double scale;
+    private SwingWorker<BufferedImage, Void> worker;
+    private CanvasFilter chosen;
+
+    private FilterDialog(Window owner, CanvasFilter.Kind kind, TiledCanvas layer) {
+        super(owner, kind.toString(), ModalityType.APPLICATION_MODAL);
+        this.kind = kind;
+        scale = Math.min(1, (double) PREVIEW_SIZE / Math.max(layer.getWidth(), layer.getHeight()));
+        width = Math.max(1, (int) Math.round(layer.getWidth() * scale));
+        height = Math.max(1, (int) Math.round(layer.getHeight() * scale));
+        BufferedImage image = scaledCopy(layer);
+        source = TiledCanvas.pixels(image).clone();
+
+        preview.setIcon(new ImageIcon(image));
+        preview.setOpaque(true);
+        preview.setBackground(Color.WHITE);
+        preview.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        add(preview, BorderLayout.CENTER);
+
+        CanvasFilter.Setting[] settings = kind.getSettings();
+        spinners = new JSpinner[settings.length];
+        JPanel controls = new JPanel(new GridLayout(0, 2, 8, 4));
+        for (int i = 0; i < settings.length; i++) {
+            CanvasFilter.Setting setting = settings[i];
+            spinners[i] = new JSpinner(new SpinnerNumberModel(setting.initial, setting.min, setting.max, 1));
+            spinners[i].addChangeListener(e -> updatePreview());
+            controls.add(new JLabel(setting.label + ":"));
+            controls.add(spinners[i]);
+        }
+
+        JButton apply = new JButton("Apply");
+        apply.addActionListener(e -> {
+            chosen = filter();
+            close();
+        });
+        JButton cancel = new JButton("Cancel");
+        cancel.addActionListener(e -> close());
+        JPanel buttons = new JPanel();
+        buttons.add(apply);
+        buttons.add(cancel);
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.setBorder(BorderFactory.createEmptyBorder(0, 8, 0, 8));
+        south.add(controls, BorderLayout.CENTER);
+        south.add(buttons, BorderLayout.SOUTH);
+        add(south, BorderLayout.SOUTH);
+        getRootPane().setDefaultButton(apply);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        pack();
+        updatePreview();
+    }
+
+    /**
+     * Show the settings of a filter for a layer (e.g. a snapshot of it) and
+     * wait until the dialog is closed. Returns the filter to apply, or null
+     * if the user cancelled.
+     */
+    public static CanvasFilter choose(Component parent, CanvasFilter.Kind kind, TiledCanvas layer) {
+        FilterDialog dialog = new FilterDialog(SwingUtilities.getWindowAncestor(parent), kind, layer);
+        dialog.setLocationRelativeTo(parent);
+        dialog.setVisible(true);
+        return dialog.chosen;
+    }
+
+    // The layer drawn into an ARGB image of the preview size.
+    private BufferedImage scaledCopy(TiledCanvas layer) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setComposite(AlphaComposite.Src);
+        g.scale(scale, scale);
+        layer.paint(g);
+        g.dispose();
+        return image;
+    }
+
+    private CanvasFilter filter() {
+        int[] values = new int[spinners.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (Integer) spinners[i].getValue();
+        }
+        return new CanvasFilter(kind, values);
+    }
+
+    // Filter a fresh copy of the scaled layer in the background and show it when done.
+    private void updatePreview() {
+        if (worker != null) {
+            worker.cancel(false);
+        }
+        CanvasFilter filter = filter();
+        worker = new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                int[] pixels = TiledCanvas.pixels(image);
+                System.arraycopy(source, 0, pixels, 0, pixels.length);
+                filter.apply(pixels, width, height, scale, percent -> { }, this::isCancelled);
+                return image;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return; // a newer preview is on its way
+                }
+                try {
+                    preview.setIcon(new ImageIcon(get()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    preview.setText(ex.getCause().getMessage()); // shown beside the last good preview
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    private void close() {
+        if (worker != null) {
+            worker.cancel(false);
+        }
+        dispose();
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * FloodFill is the paint bucket: it fills the area of similar colour around
+ * a point, working directly on the canvas's tile pixel arrays.
+ *
+ * The area is found first with a span (scanline) fill that marks whole runs
+ * of matching pixels in a bit mask. The fill colour is then written tile by
+ * tile: a tile the area covers completely just becomes a uniform tile, so
+ * filling a blank canvas allocates no pixels, and other tiles get the colour
+ * written where the mask is set.
+ *
+ * On canvases of -Dpaint.fillParallelPixels pixels or more (default 2M) the
+ * canvas is split into bands one tile row high. Bands are filled in
+ * parallel rounds; a span that reaches past a band's edge is handed to the
+ * neighbouring band for the next round, until no band has work left.
+ */
+public class FloodFill {
+    private static final long GUARDS = 0x0100_0100_0100_0100L;
+    static final int PARALLEL_PIXELS = Integer.getInteger("paint.fillParallelPixels", 1 << 21);
+    public static final int MAX_TOLERANCE = 255;
+
+    private final int width, height, cols, stride;
+    private final int[][] data;  // tile pixels, null for uniform tiles
+    private final int[] colors;  // colour of each uniform tile
+    private final long[] mask;   // pixels in the area, stride words per row
+    private final int target, tolerance;
+    private final long low, high; // target -/+ tolerance per channel, spread into lanes
+
+    private FloodFill(TiledCanvas canvas, int target, int tolerance) {
+        width = canvas.getWidth();
+        height = canvas.getHeight();
+        cols = canvas.getColumns();
+        stride = (width + 63) >> 6;
+        int tiles = cols * canvas.getRows();
+        data = new int[tiles][];
+        colors = new int[tiles];
+        for (int index = 0; index < tiles; index++) {
+            data[index] = canvas.getTilePixels(index % cols, index / cols);
+            colors[index] = canvas.getTileColor(index % cols, index / cols);
+        }
+        mask = new long[stride * height];
+        this.target = target;
+        this.tolerance = tolerance;
+        long low = 0, high = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int channel = target >>> shift & 0xFF;
+            low |= (long) Math.max(0, channel - tolerance) << 2 * shift;
+            high |= (long) Math.min(255, channel + tolerance) << 2 * shift;
+        }
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Fill the area around (x, y) whose colours are within tolerance (the
+     * largest difference in any ARGB channel, 0-255) of the colour at (x, y).
+     * Returns the bounding box of the filled area, empty if nothing changed.
+     */
+    public static Rectangle fill(TiledCanvas canvas, int x, int y, int color, int tolerance) {
+        return fill(canvas, x, y, color, tolerance,
+                (long) canvas.getWidth() * canvas.getHeight() >= PARALLEL_PIXELS);
+    }
+
+    static Rectangle fill(TiledCanvas canvas, int x, int y, int color, int tolerance, boolean parallel) {
+        synchronized (canvas) {
+            if (!canvas.getBounds().contains(x, y)) {
+                return new Rectangle();
+            }
+            int size = TiledCanvas.TILE_SIZE;
+            int[] tile = canvas.getTilePixels(x / size, y / size);
+            int target = tile == null ? canvas.getTileColor(x / size, y / size) : tile[y % size * size + x % size];
+            if (target == color && tolerance <= 0) {
+                return new Rectangle(); // already that colour
+            }
+            FloodFill fill = new FloodFill(canvas, target, Math.min(Math.max(tolerance, 0), MAX_TOLERANCE));
+            Rectangle bounds = fill.findArea(x, y, parallel);
+            fill.write(canvas, bounds, color, parallel);
+            return bounds;
+        }
+    }
+
+    // Colour of a canvas pixel; the shifts assume TILE_SIZE is 256.
+    private int pixel(int x, int y) {
+        int index = (y >> 8) * cols + (x >> 8);
+        int[] pixels = data[index];
+        return pixels == null ? colors[index] : pixels[(y & 0xFF) << 8 | (x & 0xFF)];
+    }
+
+    /**
+     * True if every channel of c is within tolerance of the target colour.
+     * The channels are spread into 16-bit lanes of a long with a guard bit
+     * above each, so one subtraction compares all four against their lower
+     * (or upper) bound: a lane keeps its guard bit unless it went below.
+     */
+    private boolean matches(int c) {
+        if (tolerance == 0) {
+            return c == target;
+        }
+        long lanes = spread(c);
+        return (((lanes | GUARDS) - low) & ((high | GUARDS) - lanes) & GUARDS) == GUARDS;
+    }
+
+    private static long spread(int c) {
+        return c & 0xFFL | (c & 0xFF00L) << 8 | (c & 0xFF0000L) << 16 | (c & 0xFF000000L) << 24;
+    }
+
+    // First pixel at or after x in row y that is not in the area yet, or Integer.MAX_VALUE.
+    private int nextUnmarked(int x, int y) {
+        int row = y * stride;
+        for (int w = x >> 6; w < stride; w++) {
+            long free = ~mask[row + w] & (w == x >> 6 ? -1L << x : -1L);
+            if (free != 0) {
+                return w << 6 | Long.numberOfTrailingZeros(free);
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Last pixel of the run of matching pixels in row y that starts at x.
+     * Scans one tile at a time and skips matching uniform tiles whole. Runs
+     * are always grown to full length, so a matching pixel next to a run is
+     * never in the area yet and the mask need not be checked here.
+     */
+    private int runEnd(int x, int y) {
+        int rowStart = (y >> 8) * cols, offset = (y & 0xFF) << 8;
+        while (x < width - 1) {
+            int next = x + 1, end = Math.min(width - 1, next | 0xFF);
+            int[] pixels = data[rowStart + (next >> 8)];
+            if (pixels == null) {
+                if (!matches(colors[rowStart + (next >> 8)])) {
+                    return x;
+                }
+            } else {
+                while (next <= end && matches(pixels[offset | next & 0xFF])) {
+                    next++;
+                }
+                if (next <= end) {
+                    return next - 1;
+                }
+            }
+            x = end;
+        }
+        return x;
+    }
+
+    // First pixel of the run of matching pixels in row y that ends at x.
+    private int runStart(int x, int y) {
+        int rowStart = (y >> 8) * cols, offset = (y & 0xFF) << 8;
+        while (x > 0) {
+            int next = x - 1, end = next & ~0xFF;
+            int[] pixels = data[rowStart + (next >> 8)];
+            if (pixels == null) {
+                if (!matches(colors[rowStart + (next >> 8)])) {
+                    return x;
+                }
+            } else {
+                while (next >= end && matches(pixels[offset | next & 0xFF])) {
+                    next--;
+                }
+                if (next >= end) {
+                    return next + 1;
+                }
+            }
+            x = end;
+        }
+        return x;
+    }
+
+    // Set the mask bits of pixels x0..x1 (inclusive) of a row.
+    private void mark(int y, int x0, int x1) {
+        int row = y * stride;
+        int w0 = x0 >> 6, w1 = x1 >> 6;
+        long first = -1L << x0, last = -1L >>> (63 - (x1 & 63));
+        if (w0 == w1) {
+            mask[row + w0] |= first & last;
+            return;
+        }
+        mask[row + w0] |= first;
+        Arrays.fill(mask, row + w0 + 1, row + w1, -1L);
+        mask[row + w1] |= last;
+    }
+
+    // Mark every pixel of the area connected to (x, y) and return its bounding box.
+    private Rectangle findArea(int x, int y, boolean parallel) {
+        int bandHeight = parallel ? TiledCanvas.TILE_SIZE : height;
+        Band[] bands = new Band[(height + bandHeight - 1) / bandHeight];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = new Band(i * bandHeight, Math.min(height, (i + 1) * bandHeight));
+        }
+        bands[y / bandHeight].seeds.push(x, x, y);
+        boolean pending = true;
+        while (pending) {
+            IntStream indexes = IntStream.range(0, bands.length).filter(i -> !bands[i].seeds.isEmpty());
+            (parallel ? indexes.parallel() : indexes).forEach(i -> bands[i].run());
+            pending = false;
+            for (int i = 0; i < bands.length; i++) {
+                if (i > 0) {
+                    bands[i - 1].seeds.addAll(bands[i].up);
+                }
+                if (i < bands.length - 1) {
+                    bands[i + 1].seeds.addAll(bands[i].down);
+                }
+                bands[i].up.clear();
+                bands[i].down.clear();
+            }
+            for (Band band : bands) {
+                pending |= !band.seeds.isEmpty();
+            }
+        }
+        Rectangle bounds = null;
+        for (Band band : bands) {
+            if (band.maxX >= 0) {
+                bounds = DrawingOp.union(bounds,
+                        new Rectangle(band.minX, band.minY, band.maxX - band.minX + 1, band.maxY - band.minY + 1));
+            }
+        }
+        return bounds;
+    }
+
+    /** Rows top to bottom - 1, filled by one thread at a time. */
+    private final class Band {
+        final int top, bottom;
+        final IntStack seeds = new IntStack(); // spans to scan: left, right, y
+        final IntStack up = new IntStack();    // spans for the band above
+        final IntStack down = new IntStack();  // spans for the band below
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+
+        Band(int top, int bottom) {
+            this.top = top;
+            this.bottom = bottom;
+        }
+
+        void run() {
+            while (!seeds.isEmpty()) {
+                int y = seeds.pop(), right = seeds.pop(), left = seeds.pop();
+                for (int x = nextUnmarked(left, y); x <= right; x = nextUnmarked(x, y)) {
+                    if (!matches(pixel(x, y))) {
+                        x++;
+                        continue;
+                    }
+                    // Grow the run both ways, then queue the rows above and below it
+                    int x0 = runStart(x, y), x1 = runEnd(x, y);
+                    mark(y, x0, x1);
+                    minX = Math.min(minX, x0);
+                    maxX = Math.max(maxX, x1);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                    queue(x0, x1, y - 1);
+                    queue(x0, x1, y + 1);
+                    x = x1 + 1;
+                }
+            }
+        }
+
+        private void queue(int left, int right, int y) {
+            if (y < 0 || y >= height) {
+                return;
+            }
+            (y < top ? up : y >= bottom ? down : seeds).push(left, right, y);
+        }
+    }
+
+    // Write the colour wherever the mask is set, tile by tile.
+    private void write(TiledCanvas canvas, Rectangle bounds, int color, boolean parallel) {
+        int size = TiledCanvas.TILE_SIZE;
+        List<int[]> partial = new ArrayList<>(); // tile x, tile y
+        List<int[]> pixels = new ArrayList<>();
+        for (int ty = bounds.y / size; ty <= (bounds.y + bounds.height - 1) / size; ty++) {
+            for (int tx = bounds.x / size; tx <= (bounds.x + bounds.width - 1) / size; tx++) {
+                int x1 = Math.min(width, (tx + 1) * size), y1 = Math.min(height, (ty + 1) * size);
+                long count = 0;
+                for (int y = ty * size; y < y1; y++) {
+                    for (int w = tx * size >> 6; w <= (x1 - 1) >> 6; w++) {
+                        count += Long.bitCount(mask[y * stride + w]);
+                    }
+                }
+                if (count == (long) (x1 - tx * size) * (y1 - ty * size)) {
+                    canvas.setTile(tx, ty, null, color); // covered: no pixels needed
+                } else if (count > 0) {
+                    partial.add(new int[] { tx, ty });
+                    pixels.add(canvas.editTilePixels(tx, ty)); // on this thread, which holds the lock
+                }
+            }
+        }
+        IntStream indexes = IntStream.range(0, partial.size());
+        (parallel ? indexes.parallel() : indexes).forEach(i -> {
+            int tx = partial.get(i)[0], ty = partial.get(i)[1];
+            int[] tile = pixels.get(i);
+            int y1 = Math.min(height, (ty + 1) * size), x1 = Math.min(width, (tx + 1) * size);
+            for (int y = ty * size; y < y1; y++) {
+                int offset = (y - ty * size) * size - tx * size;
+                for (int w = tx * size >> 6; w <= (x1 - 1) >> 6; w++) {
+                    long bits = mask[y * stride + w];
+                    if (bits == -1L) {
+                        Arrays.fill(tile, offset + (w << 6), offset + (w << 6) + 64, color);
+                        continue;
+                    }
+                    while (bits != 0) {
+                        tile[offset + (w << 6) + Long.numberOfTrailingZeros(bits)] = color;
+                        bits &= bits - 1;
+                    }
+                }
+            }
+        });
+    }
+
+    /** Growable stack of ints, pushed and popped in threes. */
+    private static final class IntStack {
+        private int[] values = new int[48];
+        private int size;
+
+        void push(int a, int b, int c) {
+            if (size + 3 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = a;
+            values[size++] = b;
+            values[size++] = c;
+        }
+
+        int pop() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void addAll(IntStack other) {
+            for (int i = 0; i < other.size; i += 3) {
+                push(other.values[i], other.values[i + 1], other.values[i + 2]);
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
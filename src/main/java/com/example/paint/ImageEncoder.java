@@ -0,0 +1,522 @@
+package com.example.paint;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ImageEncoder writes a canvas snapshot as PNG or JPEG straight from its
+ * tiles, flattened over a matte colour (or, for PNG without one, with its
+ * alpha), so no full-size flattened copy of the drawing is made.
+ *
+ * PNG is encoded here: the rows are cut into strips of about 512 KB that
+ * are filtered and deflated in parallel on the common fork/join pool, as
+ * pigz does. Every strip but the last ends with a sync flush, so the
+ * compressed strips join into one zlib stream, and each strip is primed
+ * with the last 32 KB of the one before as its dictionary, so the file is
+ * barely larger than with a single deflater. Only a few strips are in
+ * memory at a time. The level (0-9, -Dpaint.pngLevel, 6 by default) trades
+ * size for time. The row filter (-Dpaint.pngFilter) is none by default,
+ * which suits drawings of flat colour best; sub, up, average and paeth, or
+ * adaptive (the best per row, chosen as libpng does), make photos smaller.
+ *
+ * JPEG is encoded by ImageIO at -Dpaint.jpegQuality (0.9 by default), from
+ * an image whose pixels are read from the tiles a row at a time.
+ */
+public class ImageEncoder {
+    private static final int STRIP_BYTES = 512 * 1024;
+    private static final int WINDOW = 32 * 1024; // deflate's dictionary
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /** PNG row filters; ADAPTIVE chooses one per row. */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    private final String format;
+    private final int level;
+    private final Filter filter;
+    private final float jpegQuality;
+
+    /**
+     * An encoder for "png" or "jpg". level and filter only apply to PNG,
+     * jpegQuality (0.0 to 1.0) only to JPEG.
+     */
+    public ImageEncoder(String format, int level, Filter filter, float jpegQuality) {
+        if (!format.equals("png") && !format.equals("jpg")) {
+            throw new IllegalArgumentException("Unsupported file format: " + format);
+        }
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("PNG level must be between 0 and 9: " + level);
+        }
+        this.format = format;
+        this.level = level;
+        this.filter = filter;
+        this.jpegQuality = jpegQuality;
+    }
+
+    // An encoder for the format with the -Dpaint.pngLevel, -Dpaint.pngFilter and -Dpaint.jpegQuality settings.
+    public static ImageEncoder configured(String format) {
+        return new ImageEncoder(format, Integer.getInteger("paint.pngLevel", 6),
+                Filter.valueOf(System.getProperty("paint.pngFilter", "none").toUpperCase()),
+                Float.parseFloat(System.getProperty("paint.jpegQuality", "0.9")));
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Encode the canvas to out, flattened over matte; a null matte keeps
+     * the alpha channel (PNG only, JPEG is flattened over white). progress
+     * hears percentages, and cancelled is checked between strips.
+     */
+    public void write(TiledCanvas canvas, Color matte, OutputStream out, IntConsumer progress,
+                      BooleanSupplier cancelled) throws IOException {
+        Telemetry.Span span = Telemetry.begin(Telemetry.Metric.IMAGE_ENCODE);
+        if (format.equals("png")) {
+            writePng(canvas, matte == null ? null : matte.getRGB(), out, progress, cancelled);
+        } else {
+            writeJpeg(canvas, matte == null ? Color.WHITE.getRGB() : matte.getRGB(), out);
+        }
+        Telemetry.endImage(span, format, canvas.getWidth(), canvas.getHeight());
+    }
+
+    private void writePng(TiledCanvas canvas, Integer matte, OutputStream out, IntConsumer progress,
+                          BooleanSupplier cancelled) throws IOException {
+        int bytesPerPixel = matte == null ? 4 : 3;
+        writePng(canvas.getWidth(), canvas.getHeight(), bytesPerPixel,
+                () -> new Rows(canvas, matte, bytesPerPixel), out, progress, cancelled);
+    }
+
+    /** Reads a row of an image as RGB or RGBA bytes; one is made per strip, so it may keep state. */
+    interface RowSource {
+        void read(int y, byte[] row);
+    }
+
+    /** Takes the compressed data of an image, a chunk at a time, in order. */
+    interface DataSink {
+        void write(byte[] data, int length) throws IOException;
+    }
+
+    // A whole PNG of RGB (3 bytes per pixel) or RGBA (4) rows.
+    void writePng(int width, int height, int bytesPerPixel, Supplier<RowSource> rows, OutputStream out,
+                  IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeSignature(data);
+        writeHeader(data, width, height, bytesPerPixel);
+        deflate(width, height, bytesPerPixel, rows, (bytes, n) -> chunk(data, "IDAT", bytes, n), progress, cancelled);
+        chunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    // The PNG signature goes before the header.
+    static void writeSignature(OutputStream out) throws IOException {
+        out.write(SIGNATURE);
+    }
+
+    static void writeHeader(DataOutputStream data, int width, int height, int bytesPerPixel) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8);                              // bits per channel
+        ihdr.writeByte(bytesPerPixel == 4 ? 6 : 2);     // RGBA or RGB
+        ihdr.writeByte(0);                              // deflate
+        ihdr.writeByte(0);                              // adaptive filtering
+        ihdr.writeByte(0);                              // not interlaced
+        chunk(data, "IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Filter and compress rows into one zlib stream, strips in parallel,
+     * and pass it to the sink in order: the zlib header, each strip, then
+     * the checksum. cancelled is checked between strips.
+     */
+    void deflate(int width, int height, int bytesPerPixel, Supplier<RowSource> rows, DataSink sink,
+                 IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int stride = 1 + width * bytesPerPixel; // filter type and row
+        int stripRows = Math.max(1, Math.min(height, STRIP_BYTES / stride));
+        int strips = (height + stripRows - 1) / stripRows;
+        sink.write(zlibHeader(), 2);
+
+        // Keep a few strips ahead of the writer, so every core has one and memory stays bounded.
+        int ahead = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+        Deque<CompletableFuture<Strip>> queue = new ArrayDeque<>();
+        long adler = 1;
+        int next = 0;
+        for (int i = 0; i < strips; i++) {
+            while (next < strips && queue.size() < ahead) {
+                int y0 = next * stripRows, y1 = Math.min(height, y0 + stripRows);
+                boolean last = next == strips - 1;
+                queue.add(CompletableFuture.supplyAsync(() -> strip(width, bytesPerPixel, rows.get(), y0, y1, last),
+                        ForkJoinPool.commonPool()));
+                next++;
+            }
+            Strip strip;
+            try {
+                strip = queue.remove().join();
+            } catch (CompletionException ex) {
+                throw new IOException("Could not encode the image", ex.getCause());
+            }
+            sink.write(strip.compressed.buf(), strip.compressed.size());
+            adler = combine(adler, strip.adler, strip.length);
+            progress.accept((int) ((i + 1) * 100L / strips));
+            if (cancelled.getAsBoolean()) {
+                throw new IOException("Save cancelled");
+            }
+        }
+        byte[] checksum = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        sink.write(checksum, 4);
+    }
+
+    /** A strip of rows, filtered and deflated. */
+    private static final class Strip {
+        final Buffer compressed;
+        final long adler;
+        final int length;
+
+        Strip(Buffer compressed, long adler, int length) {
+            this.compressed = compressed;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /** A ByteArrayOutputStream whose array can be written without copying it. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+    /**
+     * Filter and deflate rows [y0, y1). The rows before y0 that fill the
+     * dictionary are filtered again here, exactly as the strip before did,
+     * so strips need nothing from each other.
+     */
+    private Strip strip(int width, int bytesPerPixel, RowSource rows, int y0, int y1, boolean last) {
+        int stride = 1 + width * bytesPerPixel;
+        int start = Math.max(0, y0 - (WINDOW + stride - 1) / stride);
+        byte[] filtered = new byte[(y1 - start) * stride];
+        byte[] previous = new byte[stride - 1], current = new byte[stride - 1];
+        if (start > 0) {
+            rows.read(start - 1, previous);
+        }
+        int[] sums = new int[5];
+        for (int y = start; y < y1; y++) {
+            rows.read(y, current);
+            filter(current, previous, bytesPerPixel, filtered, (y - start) * stride, sums);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int offset = (y0 - start) * stride, length = filtered.length - offset;
+        Deflater deflater = new Deflater(level, true);
+        Buffer compressed = new Buffer(length / 4 + 64);
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            if (offset > 0) {
+                int dictionary = Math.min(WINDOW, offset);
+                deflater.setDictionary(filtered, offset - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, offset, length);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // a sync flush ends on a byte boundary, so the next strip's output follows on
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        Adler32 adler = new Adler32();
+        adler.update(filtered, offset, length);
+        return new Strip(compressed, adler.getValue(), length);
+    }
+
+    // Write the filter type and the filtered row at out[at], choosing the filter if adaptive.
+    private void filter(byte[] row, byte[] previous, int bpp, byte[] out, int at, int[] sums) {
+        Filter chosen = filter;
+        if (chosen == Filter.ADAPTIVE) {
+            // the filter with the smallest sum of absolute (signed) differences, as libpng chooses
+            Arrays.fill(sums, 0);
+            for (int i = 0; i < row.length; i++) {
+                int x = row[i] & 0xFF;
+                int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                int b = previous[i] & 0xFF;
+                int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                sums[0] += Math.abs((byte) x);
+                sums[1] += Math.abs((byte) (x - a));
+                sums[2] += Math.abs((byte) (x - b));
+                sums[3] += Math.abs((byte) (x - ((a + b) >> 1)));
+                sums[4] += Math.abs((byte) (x - paeth(a, b, c)));
+            }
+            int best = 0;
+            for (int f = 1; f < 5; f++) {
+                if (sums[f] < sums[best]) {
+                    best = f;
+                }
+            }
+            chosen = Filter.values()[best];
+        }
+        out[at] = (byte) chosen.ordinal();
+        at++;
+        switch (chosen) {
+            case SUB:
+                for (int i = 0; i < row.length; i++) {
+                    out[at + i] = (byte) (row[i] - (i >= bpp ? row[i - bpp] : 0));
+                }
+                break;
+            case UP:
+                for (int i = 0; i < row.length; i++) {
+                    out[at + i] = (byte) (row[i] - previous[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    out[at + i] = (byte) (row[i] - ((a + (previous[i] & 0xFF)) >> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    out[at + i] = (byte) (row[i] - paeth(a, previous[i] & 0xFF, c));
+                }
+                break;
+            default:
+                System.arraycopy(row, 0, out, at, row.length);
+                break;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /** Reads rows of a canvas, flattened over the matte or with alpha, keeping the tiles of the current tile row. */
+    private static final class Rows implements RowSource {
+        private final TiledCanvas canvas;
+        private final Integer matte;
+        private final int bpp;
+        private final int[][] tiles;
+        private final int[] colors;
+        private int tileRow = -1;
+
+        Rows(TiledCanvas canvas, Integer matte, int bpp) {
+            this.canvas = canvas;
+            this.matte = matte;
+            this.bpp = bpp;
+            tiles = new int[canvas.getColumns()][];
+            colors = new int[canvas.getColumns()];
+        }
+
+        // The tiles of the tile row holding y; a snapshot's tiles are never written again, so they can be kept.
+        private int[][] tileRow(int y) {
+            int ty = y / TiledCanvas.TILE_SIZE;
+            if (ty != tileRow) {
+                for (int tx = 0; tx < tiles.length; tx++) {
+                    tiles[tx] = canvas.getTilePixels(tx, ty);
+                    colors[tx] = canvas.getTileColor(tx, ty);
+                }
+                tileRow = ty;
+            }
+            return tiles;
+        }
+
+        // Row y as flattened ARGB pixels, a tile at a time.
+        void read(int y, int[] row) {
+            int width = canvas.getWidth();
+            int[][] tiles = tileRow(y);
+            int offset = (y % TiledCanvas.TILE_SIZE) * TiledCanvas.TILE_SIZE;
+            for (int tx = 0, x0 = 0; tx < tiles.length; tx++, x0 += TiledCanvas.TILE_SIZE) {
+                int[] tile = tiles[tx];
+                int n = Math.min(TiledCanvas.TILE_SIZE, width - x0);
+                if (tile == null) {
+                    Arrays.fill(row, x0, x0 + n, matte == null ? colors[tx] : over(colors[tx], matte));
+                } else if (matte == null) {
+                    System.arraycopy(tile, offset, row, x0, n);
+                } else {
+                    for (int x = 0; x < n; x++) {
+                        row[x0 + x] = over(tile[offset + x], matte);
+                    }
+                }
+            }
+        }
+
+        // Row y as RGB or RGBA bytes, a tile at a time.
+        @Override
+        public void read(int y, byte[] row) {
+            int width = canvas.getWidth();
+            int[][] tiles = tileRow(y);
+            int offset = (y % TiledCanvas.TILE_SIZE) * TiledCanvas.TILE_SIZE;
+            for (int tx = 0, i = 0; tx < tiles.length; tx++) {
+                int[] tile = tiles[tx];
+                int n = Math.min(TiledCanvas.TILE_SIZE, width - tx * TiledCanvas.TILE_SIZE);
+                for (int x = 0; x < n; x++, i += bpp) {
+                    int argb = tile == null ? colors[tx] : tile[offset + x];
+                    if (matte != null) {
+                        argb = over(argb, matte);
+                    }
+                    row[i] = (byte) (argb >> 16);
+                    row[i + 1] = (byte) (argb >> 8);
+                    row[i + 2] = (byte) argb;
+                    if (bpp == 4) {
+                        row[i + 3] = (byte) (argb >>> 24);
+                    }
+                }
+            }
+        }
+    }
+
+    // A straight-alpha pixel over an opaque colour.
+    static int over(int argb, int matte) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        int r = blend(argb >> 16 & 0xFF, matte >> 16 & 0xFF, a);
+        int g = blend(argb >> 8 & 0xFF, matte >> 8 & 0xFF, a);
+        int b = blend(argb & 0xFF, matte & 0xFF, a);
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int blend(int source, int matte, int alpha) {
+        return (source * alpha + matte * (255 - alpha) + 127) / 255;
+    }
+
+    private byte[] zlibHeader() {
+        // deflate with a 32 KB window, and the level hint zlib would write (decoders ignore it)
+        int hint = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78, flg = hint << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    // adler32 of two pieces of data joined, from the checksums of each (zlib's adler32_combine).
+    static long combine(long adler1, long adler2, long length2) {
+        final int base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += (adler1 >>> 16) + (adler2 >>> 16) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= 2L * base) {
+            sum2 -= 2L * base;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    static void chunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private void writeJpeg(TiledCanvas canvas, int matte, OutputStream out) throws IOException {
+        ImageWriter writer = FileHandler.writerFor("jpg");
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(tileImage(canvas, matte), null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * An RGB image of the canvas over the matte whose pixels are read from
+     * the tiles as the JPEG writer asks for them, a row at a time, instead
+     * of being copied into an image first.
+     */
+    static BufferedImage tileImage(TiledCanvas canvas, int matte) {
+        int width = canvas.getWidth(), height = canvas.getHeight();
+        Rows rows = new Rows(canvas, matte, 3);
+        int[] row = new int[width];
+        DataBuffer pixels = new DataBuffer(DataBuffer.TYPE_INT, width * height) {
+            private int rowStart = -width; // index of the first pixel in row
+
+            @Override
+            public int getElem(int bank, int i) {
+                int x = i - rowStart;
+                if (x < 0 || x >= width) {
+                    int y = i / width;
+                    rows.read(y, row);
+                    rowStart = y * width;
+                    x = i - rowStart;
+                }
+                return row[x];
+            }
+
+            @Override
+            public void setElem(int bank, int i, int value) {
+                throw new UnsupportedOperationException("The canvas image is read-only");
+            }
+        };
+        int[] masks = {0xFF0000, 0xFF00, 0xFF};
+        WritableRaster raster = Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, masks), pixels, null);
+        return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+    }
+}
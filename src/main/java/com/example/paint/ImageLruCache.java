@@ -0,0 +1,70 @@
+package com.example.paint;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImageLruCache holds images up to a budget of bytes of pixels, evicting the
+ * least recently used first. It backs TemplateCache and ThumbnailCache. It
+ * is not thread-safe: the caches using it lock around every call.
+ */
+public class ImageLruCache<K> {
+    private final long budgetBytes;
+    private final LinkedHashMap<K, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public ImageLruCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // The image cached under key, marking it as the most recently used; null if there is none.
+    public BufferedImage get(K key) {
+        return images.get(key);
+    }
+
+    public void put(K key, BufferedImage image) {
+        BufferedImage old = images.put(key, image);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(image);
+        // Evict least recently used entries, but always keep the one just added.
+        Iterator<Map.Entry<K, BufferedImage>> it = images.entrySet().iterator();
+        while (bytes > budgetBytes && it.hasNext()) {
+            Map.Entry<K, BufferedImage> entry = it.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            bytes -= sizeOf(entry.getValue());
+            it.remove();
+        }
+    }
+
+    public void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    public long getMemoryBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return images.size();
+    }
+
+    // Bytes of pixels: a packed pixel takes a whole int (or short), other layouts a sample per band.
+    static long sizeOf(BufferedImage image) {
+        SampleModel model = image.getSampleModel();
+        int bits = DataBuffer.getDataTypeSize(model.getDataType());
+        if (!(model instanceof SinglePixelPackedSampleModel)) {
+            bits *= model.getNumBands();
+        }
+        return (long) image.getWidth() * image.getHeight() * Math.max(1, bits / 8);
+    }
+}
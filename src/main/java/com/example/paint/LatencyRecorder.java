@@ -0,0 +1,66 @@
+package com.example.paint;
+
+import java.util.Arrays;
+
+/**
+ * LatencyRecorder keeps the most recent latency samples in a fixed ring
+ * buffer and reports percentiles over them. Recording never allocates.
+ */
+public class LatencyRecorder {
+    private final long[] samples;
+    private int next;
+    private long count;
+
+    public LatencyRecorder(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count++;
+    }
+
+    // Total samples recorded, including those that have rolled out of the window.
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void reset() {
+        next = 0;
+        count = 0;
+    }
+
+    // Percentile (0-100) of the samples in the window, in nanoseconds; 0 if empty.
+    public long percentile(double p) {
+        long[] sorted = sortedWindow();
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private synchronized long[] sortedWindow() {
+        int size = (int) Math.min(count, samples.length);
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // e.g. "n=120 p50=1.20ms p90=2.05ms p99=4.81ms max=6.02ms"
+    public String summary() {
+        long[] sorted = sortedWindow();
+        if (sorted.length == 0) {
+            return "n=0";
+        }
+        return String.format("n=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms", getCount(),
+                at(sorted, 50) / 1e6, at(sorted, 90) / 1e6, at(sorted, 99) / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long at(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
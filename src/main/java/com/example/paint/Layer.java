@@ -0,0 +1,96 @@
+package com.example.paint;
+
+/**
+ * Layer is one sheet of a LayerStack: a TiledCanvas with the opacity, blend
+ * mode and visibility it is composited with. A locked layer is shown but
+ * cannot be drawn on, e.g. the tracing template.
+ *
+ * The properties are changed through the LayerStack that owns the layer, so
+ * its composite is updated; they can be read from any thread.
+ */
+public class Layer {
+    /** How a layer's colours combine with the layers below it (the W3C separable blend modes). */
+    public enum Blend {
+        NORMAL("Normal"), MULTIPLY("Multiply"), SCREEN("Screen"), DARKEN("Darken");
+
+        private final String label;
+
+        Blend(String label) {
+            this.label = label;
+        }
+
+        // Blend one 0-255 channel of the layer (source) with the backdrop below it.
+        int apply(int backdrop, int source) {
+            switch (this) {
+                case MULTIPLY:
+                    return LayerStack.div255(backdrop * source);
+                case SCREEN:
+                    return backdrop + source - LayerStack.div255(backdrop * source);
+                case DARKEN:
+                    return Math.min(backdrop, source);
+                default:
+                    return source;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final TiledCanvas canvas;
+    private volatile String name;
+    private volatile float opacity = 1f;
+    private volatile boolean visible = true;
+    private volatile Blend blend = Blend.NORMAL;
+    private volatile boolean locked;
+
+    public Layer(String name, TiledCanvas canvas) {
+        this.name = name;
+        this.canvas = canvas;
+    }
+
+    public TiledCanvas getCanvas() {
+        return canvas;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public Blend getBlend() {
+        return blend;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    // Opacity as a 0-255 alpha, 0 when hidden.
+    int effectiveAlpha() {
+        return visible ? Math.round(opacity * 255) : 0;
+    }
+
+    // Change every property at once; called by LayerStack.update.
+    void set(String name, float opacity, boolean visible, Blend blend, boolean locked) {
+        this.name = name;
+        this.opacity = Math.max(0f, Math.min(1f, opacity));
+        this.visible = visible;
+        this.blend = blend;
+        this.locked = locked;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
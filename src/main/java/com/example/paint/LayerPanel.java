@@ -0,0 +1,193 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * LayerPanel lists the layers of a LayerStack, top first, with buttons to
+ * add, delete and reorder them and controls for the selected layer's
+ * visibility, lock, opacity and blend mode. Double-click a layer to rename
+ * it.
+ *
+ * Every change is made as a DrawingOp.LayerOp on the panel's StrokePipeline,
+ * in order with the strokes, and passed to the recorder on the render thread
+ * (e.g. to journal it).
+ */
+public class LayerPanel extends JPanel {
+    private final LayerStack layers;
+    private final StrokePipeline pipeline;
+    private final Consumer<DrawingOp> recorder;
+    private final DefaultListModel<Layer> model = new DefaultListModel<>();
+    private final JList<Layer> list = new JList<>(model);
+    private final JCheckBox visibleBox = new JCheckBox("Visible");
+    private final JCheckBox lockedBox = new JCheckBox("Locked");
+    private final JSpinner opacitySpinner = new JSpinner(new SpinnerNumberModel(100, 0, 100, 5));
+    private final JComboBox<Layer.Blend> blendBox = new JComboBox<>(Layer.Blend.values());
+    private boolean reloading;              // showing the stack, so the controls' listeners stay quiet
+    private volatile boolean reloadPending;
+
+    public LayerPanel(LayerStack layers, StrokePipeline pipeline, Consumer<DrawingOp> recorder) {
+        super(new BorderLayout());
+        this.layers = layers;
+        this.pipeline = pipeline;
+        this.recorder = recorder;
+
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                Layer layer = (Layer) value;
+                String text = layer.getName() + (layer.isVisible() ? "" : " (hidden)")
+                        + (layer.isLocked() ? " (locked)" : "");
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        list.addListSelectionListener(e -> {
+            if (!reloading && !e.getValueIsAdjusting() && list.getSelectedIndex() >= 0) {
+                apply(DrawingOp.LayerOp.select(stackIndex(list.getSelectedIndex()), System.currentTimeMillis()));
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    rename();
+                }
+            }
+        });
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.setPreferredSize(new Dimension(160, 200));
+        add(new JLabel("Layers"), BorderLayout.NORTH);
+        add(scroll, BorderLayout.CENTER);
+
+        JPanel buttons = new JPanel(new GridLayout(2, 2));
+        buttons.add(button("Add", this::addLayer));
+        buttons.add(button("Delete", () -> {
+            if (layers.getActive().isLocked() || layers.getLayerCount() <= 1) {
+                Toolkit.getDefaultToolkit().beep(); // unlock a layer to delete it; the last one stays
+            } else {
+                apply(DrawingOp.LayerOp.remove(layers.getActiveIndex(), System.currentTimeMillis()));
+            }
+        }));
+        buttons.add(button("Up", () -> move(1)));
+        buttons.add(button("Down", () -> move(-1)));
+
+        visibleBox.addActionListener(e -> updateActive());
+        lockedBox.addActionListener(e -> updateActive());
+        opacitySpinner.addChangeListener(e -> updateActive());
+        blendBox.addActionListener(e -> updateActive());
+        JPanel properties = new JPanel(new GridLayout(0, 1));
+        properties.add(visibleBox);
+        properties.add(lockedBox);
+        properties.add(new JLabel("Opacity %:"));
+        properties.add(opacitySpinner);
+        properties.add(new JLabel("Blend:"));
+        properties.add(blendBox);
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.add(buttons, BorderLayout.NORTH);
+        south.add(properties, BorderLayout.CENTER);
+        add(south, BorderLayout.SOUTH);
+
+        layers.addChangeListener(() -> {
+            if (!reloadPending) {
+                reloadPending = true;
+                SwingUtilities.invokeLater(this::reload);
+            }
+        });
+        reload();
+    }
+
+    private static JButton button(String label, Runnable action) {
+        JButton button = new JButton(label);
+        button.addActionListener(e -> action.run());
+        return button;
+    }
+
+    // The list shows the top layer first.
+    private int stackIndex(int listIndex) {
+        return model.getSize() - 1 - listIndex;
+    }
+
+    // Show the stack's layers and the active layer's properties.
+    private void reload() {
+        reloadPending = false;
+        List<Layer> current;
+        int active;
+        synchronized (layers) {
+            current = layers.getLayers();
+            active = layers.getActiveIndex();
+        }
+        reloading = true;
+        try {
+            model.clear();
+            for (int i = current.size() - 1; i >= 0; i--) {
+                model.addElement(current.get(i));
+            }
+            if (active >= 0) {
+                Layer layer = current.get(active);
+                list.setSelectedIndex(current.size() - 1 - active);
+                visibleBox.setSelected(layer.isVisible());
+                lockedBox.setSelected(layer.isLocked());
+                opacitySpinner.setValue(Math.round(layer.getOpacity() * 100));
+                blendBox.setSelectedItem(layer.getBlend());
+            }
+        } finally {
+            reloading = false;
+        }
+    }
+
+    // Insert a transparent layer above the active one.
+    private void addLayer() {
+        int index = layers.getActiveIndex() + 1;
+        apply(DrawingOp.LayerOp.add(index, "Layer " + (layers.getLayerCount() + 1), 0, System.currentTimeMillis()));
+    }
+
+    // Move the active layer up (+1) or down (-1) the stack.
+    private void move(int direction) {
+        int from = layers.getActiveIndex();
+        int to = from + direction;
+        if (from >= 0 && to >= 0 && to < layers.getLayerCount()) {
+            apply(DrawingOp.LayerOp.move(from, to, System.currentTimeMillis()));
+        }
+    }
+
+    private void rename() {
+        Layer layer = layers.getActive();
+        String name = (String) JOptionPane.showInputDialog(this, "Layer name:", "Rename Layer",
+                JOptionPane.PLAIN_MESSAGE, null, null, layer.getName());
+        if (name != null && !name.trim().isEmpty()) {
+            update(layer, name.trim());
+        }
+    }
+
+    // Apply the property controls to the active layer.
+    private void updateActive() {
+        if (!reloading) {
+            update(layers.getActive(), layers.getActive().getName());
+        }
+    }
+
+    private void update(Layer layer, String name) {
+        int index = layers.indexOf(layer.getCanvas());
+        if (index >= 0) {
+            apply(DrawingOp.LayerOp.update(index, name, (Integer) opacitySpinner.getValue() / 100f,
+                    visibleBox.isSelected(), (Layer.Blend) blendBox.getSelectedItem(), lockedBox.isSelected(),
+                    System.currentTimeMillis()));
+        }
+    }
+
+    // Make the change in order with the strokes, then record it.
+    private void apply(DrawingOp.LayerOp op) {
+        pipeline.submit(() -> {
+            Rectangle changed = op.apply(layers);
+            recorder.accept(op);
+            return changed;
+        });
+    }
+}
@@ -0,0 +1,545 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * LayerStack is a drawing made of layers, bottom first, and the flattened
+ * composite the panels put on screen and export. One layer is active: the
+ * tools draw on its canvas.
+ *
+ * The composite is a TiledCanvas that is only recomputed where something
+ * changed (see invalidate and refresh). To keep that cost independent of
+ * the number of layers, the layers below the active one are kept flattened
+ * in one cache and, when they all blend normally, the layers above it in
+ * another, so updating a region after a stroke composites three sources at
+ * most. A change to any other layer (an undo, the tracing template being
+ * redrawn) only recomputes the cached tiles it touched. Uniform tiles are
+ * composited as a single colour and transparent ones are skipped.
+ *
+ * The stack is its own lock: layers must only be changed while holding it,
+ * which the StrokePipeline created with the stack does for every task.
+ */
+public class LayerStack implements TiledCanvas.TileListener {
+    public static final String BACKGROUND_NAME = "Background";
+    private static final int TILE = TiledCanvas.TILE_SIZE;
+    private static final int GRID = TiledCanvas.GRID; // tile index stride of the dirty sets
+
+    private final List<Layer> layers = new ArrayList<>();
+    private final TiledCanvas composite;
+    private final TiledCanvas below; // layers under the active one, flattened onto the backdrop
+    private final TiledCanvas above; // layers over the active one, flattened onto transparency
+    private final Layer aboveLayer;
+    private final BitSet belowDirty = new BitSet();
+    private final BitSet aboveDirty = new BitSet();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile Layer active;
+    private Rectangle dirty;      // composite region that is out of date
+    private boolean cachesStale;  // rebuild both caches on the next refresh
+    private final List<TiledCanvas.TileListener> tileListeners = new ArrayList<>();
+
+    // Per-tile scratch for compose, used under the lock
+    private int[][] sourcePixels = new int[4][];
+    private int[] sourceColors = new int[4];
+    private int[] sourceAlphas = new int[4];
+    private Layer.Blend[] sourceBlends = new Layer.Blend[4];
+
+    /**
+     * An empty stack whose composite has the given size and backdrop colour,
+     * the colour shown where every layer is transparent.
+     */
+    public LayerStack(int width, int height, int backdrop) {
+        composite = new TiledCanvas(width, height, backdrop);
+        below = new TiledCanvas(width, height, backdrop);
+        above = new TiledCanvas(width, height, 0);
+        aboveLayer = new Layer("Above", above);
+    }
+
+    // A stack with one opaque background layer, as a document starts out.
+    public static LayerStack withBackground(int width, int height, int background) {
+        LayerStack stack = new LayerStack(width, height, background);
+        stack.addLayer(0, BACKGROUND_NAME, background);
+        return stack;
+    }
+
+    // Also pass tile changes on every layer, present and future, to a listener such as an UndoHistory or Autosave.
+    public synchronized void addTileListener(TiledCanvas.TileListener listener) {
+        for (Layer layer : layers) {
+            layer.getCanvas().addTileListener(listener);
+        }
+        tileListeners.add(listener);
+    }
+
+    // Run an action, on the thread making the change, whenever layers are added, removed or changed.
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+
+    public synchronized int getWidth() {
+        return composite.getWidth();
+    }
+
+    public synchronized int getHeight() {
+        return composite.getHeight();
+    }
+
+    public synchronized Rectangle getBounds() {
+        return composite.getBounds();
+    }
+
+    public synchronized int getLayerCount() {
+        return layers.size();
+    }
+
+    public synchronized Layer getLayer(int index) {
+        return layers.get(index);
+    }
+
+    // The layers, bottom first.
+    public synchronized List<Layer> getLayers() {
+        return new ArrayList<>(layers);
+    }
+
+    // The layer being drawn on; can be read without the lock, e.g. on the EDT.
+    public Layer getActive() {
+        return active;
+    }
+
+    public TiledCanvas getActiveCanvas() {
+        return active.getCanvas();
+    }
+
+    public synchronized int getActiveIndex() {
+        return layers.indexOf(active);
+    }
+
+    // Index of the layer drawing on the canvas, or -1.
+    public synchronized int indexOf(TiledCanvas canvas) {
+        return find(canvas);
+    }
+
+    // indexOf without taking the lock, for the tile listener (which runs under a layer's lock).
+    private int find(TiledCanvas canvas) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).getCanvas() == canvas) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The flattened drawing. It is only brought up to date by refresh, and
+     * must only be read on the thread that refreshes it (the EDT).
+     */
+    public TiledCanvas getComposite() {
+        return composite;
+    }
+
+    // Heap held by the tile pixels of the layers, the composite and its caches, in bytes.
+    public long getMemoryBytes() {
+        long bytes = composite.getMemoryBytes() + below.getMemoryBytes() + above.getMemoryBytes();
+        for (Layer layer : getLayers()) {
+            bytes += layer.getCanvas().getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    // Insert a blank layer with the given background at index and make it active.
+    public synchronized Layer addLayer(int index, String name, int background) {
+        Layer layer = new Layer(name, new TiledCanvas(composite.getWidth(), composite.getHeight(), background));
+        insert(index, layer);
+        active = layer;
+        invalidateAll();
+        return layer;
+    }
+
+    private void insert(int index, Layer layer) {
+        layers.add(index, layer);
+        layer.getCanvas().addTileListener(this);
+        for (TiledCanvas.TileListener listener : tileListeners) {
+            layer.getCanvas().addTileListener(listener);
+        }
+    }
+
+    private void detach(Layer layer) {
+        layer.getCanvas().removeTileListener(this);
+        for (TiledCanvas.TileListener listener : tileListeners) {
+            layer.getCanvas().removeTileListener(listener);
+        }
+    }
+
+    // Remove a layer; the last one is kept. The layer above it (or below, for the top one) becomes active.
+    public synchronized void removeLayer(int index) {
+        if (layers.size() <= 1) {
+            return;
+        }
+        Layer removed = layers.remove(index);
+        detach(removed);
+        if (removed == active) {
+            active = layers.get(Math.min(index, layers.size() - 1));
+        }
+        invalidateAll();
+    }
+
+    // Remove every layer, e.g. before rebuilding the stack from a keyframe.
+    public synchronized void removeAll() {
+        for (Layer layer : layers) {
+            detach(layer);
+        }
+        layers.clear();
+        active = null;
+        invalidateAll();
+    }
+
+    // Make another layer the one drawn on. The composite looks the same, only the caches move.
+    public synchronized void select(int index) {
+        Layer layer = layers.get(index);
+        if (layer != active) {
+            active = layer;
+            cachesStale = true;
+            fireChanged();
+        }
+    }
+
+    // Move a layer to another position in the stack.
+    public synchronized void moveLayer(int from, int to) {
+        if (from != to) {
+            layers.add(to, layers.remove(from));
+            invalidateAll();
+        }
+    }
+
+    // Change every property of a layer at once.
+    public synchronized void update(int index, String name, float opacity, boolean visible, Layer.Blend blend,
+                                    boolean locked) {
+        Layer layer = layers.get(index);
+        boolean looksSame = layer.getOpacity() == opacity && layer.isVisible() == visible
+                && layer.getBlend() == blend;
+        layer.set(name, opacity, visible, blend, locked);
+        if (looksSame) {
+            fireChanged();
+        } else {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Take over the layers of another stack (e.g. a document that was read
+     * from disk), keeping this stack's composite and listeners. The other
+     * stack must not be used afterwards.
+     */
+    public synchronized void replaceWith(LayerStack other) {
+        synchronized (other) {
+            for (Layer layer : layers) {
+                detach(layer);
+            }
+            layers.clear();
+            for (Layer layer : other.layers) {
+                other.detach(layer);
+                insert(layers.size(), layer);
+            }
+            active = other.active;
+            other.layers.clear();
+        }
+        invalidateAll();
+    }
+
+    // Grow every layer and the composite so they are at least the given size.
+    public synchronized void ensureSize(int width, int height) {
+        for (Layer layer : layers) {
+            layer.getCanvas().ensureSize(width, height);
+        }
+        fitLayers();
+    }
+
+    // Grow the composite and caches to the largest layer, and the layers to match.
+    private void fitLayers() {
+        int width = composite.getWidth(), height = composite.getHeight();
+        for (Layer layer : layers) {
+            width = Math.max(width, layer.getCanvas().getWidth());
+            height = Math.max(height, layer.getCanvas().getHeight());
+        }
+        if (width == composite.getWidth() && height == composite.getHeight()) {
+            return;
+        }
+        for (Layer layer : layers) {
+            layer.getCanvas().ensureSize(width, height);
+        }
+        composite.ensureSize(width, height);
+        below.ensureSize(width, height);
+        above.ensureSize(width, height);
+        cachesStale = true;
+        dirty = composite.getBounds();
+    }
+
+    // Mark a region of the active layer as changed, e.g. stroke damage.
+    public synchronized void invalidate(Rectangle r) {
+        if (r != null) {
+            dirty = DrawingOp.union(dirty, r);
+        }
+    }
+
+    // Recompute everything, after a change to the order or look of the layers.
+    public synchronized void invalidateAll() {
+        cachesStale = true;
+        dirty = composite.getBounds();
+        fireChanged();
+    }
+
+    // A tile of a layer other than the active one is about to change: its cached tile is out of date.
+    @Override
+    public void tileWillChange(TiledCanvas canvas, int tx, int ty) {
+        int index = find(canvas);
+        int activeIndex = layers.indexOf(active);
+        if (index < 0 || index == activeIndex) {
+            return; // changes to the active layer come with their damage through invalidate
+        }
+        (index < activeIndex ? belowDirty : aboveDirty).set(ty * GRID + tx);
+        dirty = DrawingOp.union(dirty, TiledCanvas.tileBounds(tx, ty));
+    }
+
+    /**
+     * Bring the composite up to date and return the region that was
+     * recomputed (null if nothing changed), to be repainted from it.
+     */
+    public synchronized Rectangle refresh() {
+        if (active == null) {
+            return null;
+        }
+        fitLayers();
+        int activeIndex = layers.indexOf(active);
+        List<Layer> under = layers.subList(0, activeIndex);
+        List<Layer> over = layers.subList(activeIndex + 1, layers.size());
+        boolean cacheAbove = over.size() > 1 && allNormal(over);
+        if (cachesStale) {
+            cachesStale = false;
+            belowDirty.clear();
+            aboveDirty.clear();
+            rebuild(below, under);
+            if (cacheAbove) {
+                rebuild(above, over);
+            }
+        } else {
+            update(below, under, belowDirty);
+            if (cacheAbove) {
+                update(above, over, aboveDirty);
+            }
+            aboveDirty.clear();
+        }
+        Rectangle changed = dirty;
+        dirty = null;
+        if (changed != null) {
+            List<Layer> sources = new ArrayList<>();
+            sources.add(active);
+            if (cacheAbove) {
+                sources.add(aboveLayer);
+            } else {
+                sources.addAll(over);
+            }
+            compose(composite, under.isEmpty() ? null : below, sources, changed);
+        }
+        return changed;
+    }
+
+    private static boolean allNormal(List<Layer> layers) {
+        for (Layer layer : layers) {
+            if (layer.getBlend() != Layer.Blend.NORMAL) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Recompute a whole cache; cheap where the layers are uniform.
+    private void rebuild(TiledCanvas cache, List<Layer> sources) {
+        compose(cache, null, sources, cache.getBounds());
+    }
+
+    // Recompute the tiles of a cache that were marked dirty.
+    private void update(TiledCanvas cache, List<Layer> sources, BitSet tiles) {
+        for (int i = tiles.nextSetBit(0); i >= 0; i = tiles.nextSetBit(i + 1)) {
+            compose(cache, null, sources, TiledCanvas.tileBounds(i % GRID, i / GRID));
+        }
+        tiles.clear();
+    }
+
+    /**
+     * Composite the sources over a base canvas (or the target's background
+     * when base is null) into a region of the target. Every canvas must have
+     * the target's tile grid.
+     */
+    private void compose(TiledCanvas target, TiledCanvas base, List<Layer> sources, Rectangle region) {
+        Rectangle r = region.intersection(target.getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        if (sourcePixels.length < sources.size()) {
+            int n = sources.size();
+            sourcePixels = new int[n][];
+            sourceColors = new int[n];
+            sourceAlphas = new int[n];
+            sourceBlends = new Layer.Blend[n];
+        }
+        for (int ty = r.y / TILE; ty <= (r.y + r.height - 1) / TILE; ty++) {
+            for (int tx = r.x / TILE; tx <= (r.x + r.width - 1) / TILE; tx++) {
+                int x0 = Math.max(r.x - tx * TILE, 0), x1 = Math.min(r.x + r.width - tx * TILE, TILE);
+                int y0 = Math.max(r.y - ty * TILE, 0), y1 = Math.min(r.y + r.height - ty * TILE, TILE);
+                composeTile(target, base, sources, tx, ty, x0, y0, x1, y1);
+            }
+        }
+    }
+
+    private void composeTile(TiledCanvas target, TiledCanvas base, List<Layer> sources, int tx, int ty,
+                             int x0, int y0, int x1, int y1) {
+        // Gather the sources that show in this tile
+        int n = 0;
+        boolean uniform = true;
+        for (Layer layer : sources) {
+            int alpha = layer.effectiveAlpha();
+            TiledCanvas canvas = layer.getCanvas();
+            if (alpha == 0) {
+                continue;
+            }
+            int[] pixels = canvas.getTilePixels(tx, ty);
+            int color = canvas.getTileColor(tx, ty);
+            if (pixels == null && color >>> 24 == 0) {
+                continue;
+            }
+            sourcePixels[n] = pixels;
+            sourceColors[n] = color;
+            sourceAlphas[n] = alpha;
+            sourceBlends[n] = layer.getBlend();
+            uniform &= pixels == null;
+            n++;
+        }
+        int[] basePixels = base == null ? null : base.getTilePixels(tx, ty);
+        int baseColor = base == null ? target.getBackground() : base.getTileColor(tx, ty);
+        boolean whole = x0 == 0 && y0 == 0 && x1 == TILE && y1 == TILE;
+
+        if (uniform && basePixels == null) {
+            int color = baseColor;
+            for (int i = 0; i < n; i++) {
+                color = blend(color, sourceColors[i], sourceAlphas[i], sourceBlends[i]);
+            }
+            if (target.getTilePixels(tx, ty) == null && target.getTileColor(tx, ty) == color) {
+                return;
+            }
+            if (whole) {
+                target.setTile(tx, ty, null, color);
+            } else {
+                int[] out = target.editTilePixels(tx, ty);
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(out, y * TILE + x0, y * TILE + x1, color);
+                }
+            }
+            return;
+        }
+        if (n == 0 && whole) {
+            target.setTile(tx, ty, basePixels, 0);
+            return;
+        }
+        int[] out = target.editTilePixels(tx, ty);
+        for (int y = y0; y < y1; y++) {
+            int from = y * TILE + x0, to = y * TILE + x1;
+            if (basePixels != null) {
+                System.arraycopy(basePixels, from, out, from, to - from);
+            } else {
+                Arrays.fill(out, from, to, baseColor);
+            }
+            for (int i = 0; i < n; i++) {
+                blendRow(out, from, to, sourcePixels[i], sourceColors[i], sourceAlphas[i], sourceBlends[i]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            sourcePixels[i] = null;
+        }
+    }
+
+    private static void blendRow(int[] out, int from, int to, int[] pixels, int color, int alpha,
+                                 Layer.Blend mode) {
+        if (pixels == null) {
+            for (int i = from; i < to; i++) {
+                out[i] = blend(out[i], color, alpha, mode);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                out[i] = blend(out[i], pixels[i], alpha, mode);
+            }
+        }
+    }
+
+    /**
+     * Composite a non-premultiplied ARGB pixel, with its alpha scaled by the
+     * layer's opacity (0-255), over a backdrop pixel: the blend mode mixes
+     * the colours where the backdrop is opaque, then the result is drawn
+     * source-over.
+     */
+    static int blend(int backdrop, int source, int opacity, Layer.Blend mode) {
+        int sa = source >>> 24;
+        if (opacity != 255) {
+            sa = div255(sa * opacity);
+        }
+        if (sa == 0) {
+            return backdrop;
+        }
+        if (mode != Layer.Blend.NORMAL || backdrop >>> 24 != 255) {
+            return mix(backdrop, source, sa, mode);
+        }
+        int ka = 255 - sa; // over an opaque backdrop, the common case, kept small enough to inline
+        return 0xFF000000
+                | div255((source >> 16 & 0xFF) * sa + (backdrop >> 16 & 0xFF) * ka) << 16
+                | div255((source >> 8 & 0xFF) * sa + (backdrop >> 8 & 0xFF) * ka) << 8
+                | div255((source & 0xFF) * sa + (backdrop & 0xFF) * ka);
+    }
+
+    // blend for a blend mode other than normal or a backdrop that is not opaque, with sa > 0.
+    private static int mix(int backdrop, int source, int sa, Layer.Blend mode) {
+        int da = backdrop >>> 24;
+        int sr = source >> 16 & 0xFF, sg = source >> 8 & 0xFF, sb = source & 0xFF;
+        int dr = backdrop >> 16 & 0xFF, dg = backdrop >> 8 & 0xFF, db = backdrop & 0xFF;
+        if (mode != Layer.Blend.NORMAL && da != 0) {
+            sr = div255((255 - da) * sr + da * mode.apply(dr, sr));
+            sg = div255((255 - da) * sg + da * mode.apply(dg, sg));
+            sb = div255((255 - da) * sb + da * mode.apply(db, sb));
+        }
+        if (da == 255) {
+            int ka = 255 - sa;
+            return 0xFF000000
+                    | div255(sr * sa + dr * ka) << 16
+                    | div255(sg * sa + dg * ka) << 8
+                    | div255(sb * sa + db * ka);
+        }
+        int keep = da * (255 - sa); // backdrop weight, times 255
+        int total = sa * 255 + keep;
+        int half = total / 2;
+        return (total + 127) / 255 << 24
+                | (sr * sa * 255 + dr * keep + half) / total << 16
+                | (sg * sa * 255 + dg * keep + half) / total << 8
+                | (sb * sa * 255 + db * keep + half) / total;
+    }
+
+    // Round x / 255 for 0 <= x <= 65025, without a branch.
+    static int div255(int x) {
+        return (x + 128 + ((x + 128) >> 8)) >> 8;
+    }
+
+    /**
+     * Up-to-date copy-on-write snapshot of the composite, e.g. for saving in
+     * the background: exports flatten from the same cache the screen shows.
+     */
+    public synchronized TiledCanvas flatten() {
+        refresh();
+        return composite.snapshot();
+    }
+}
@@ -5,80 +5,166 @@ import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  * PaintPanel provides a drawing area with core features:
- * - Freehand drawing (brush)
- * - Eraser tool (draws in white)
+ * - Freehand drawing (brush) with hard, soft, airbrush and crayon tips and opacity
+ * - Eraser tool (draws in white on the background layer, erases to transparency on the others)
  * - Shapes: rectangle, circle, and line
+ * - Fill bucket with an adjustable colour tolerance
  * - Color selection and brush size adjustment
  * - File operations: Save, Open, and Clear canvas
+ * - Undo and redo (Ctrl+Z / Ctrl+Y)
+ * - Layers with opacity, visibility, blend modes and locking; the tools work on the selected layer
+ * - Filters for the selected layer (blur, sharpen, grayscale, invert, brightness/contrast, posterize)
+ * - A performance HUD (F3, see TelemetryHud)
+ * - Autosave of the changed tiles, offered back after a crash (see Autosave)
+ * - Zoom and pan (see Viewport); zoomed out views are drawn from a CanvasMipmap
+ * - Large images open from a subsampled preview while they decode in the background (see TiledImageLoader)
+ * - Classroom sharing: Share streams the drawing to other machines, Join follows one (see ClassroomServer)
+ *
+ * Every edit is also recorded as a DrawingOp in a StrokeJournal, so the
+ * drawing can be saved as a paint document (.bpj) that later saves append to,
+ * and replayed as a timelapse of how it was made (see Timelapse).
  */
 public class PaintPanel extends JPanel {
     // Enumeration for drawing tools
     public enum Tool {
-        BRUSH, ERASER, RECTANGLE, CIRCLE, LINE
+        BRUSH, ERASER, RECTANGLE, CIRCLE, LINE, FILL
     }
 
-    private BufferedImage canvas;
-    private Graphics2D g2d;
+    private LayerStack layers;
     private Point startPoint, endPoint;
     private Color currentColor = Color.BLACK;
     private int brushSize = 5;
+    private int fillTolerance = 32;
+    private DabBrush.Tip brushTip = DabBrush.Tip.HARD;
+    private float opacity = 1f;
     private Tool currentTool = Tool.BRUSH;
+    private final DamageTracker damage = new DamageTracker(this);
+    private final TelemetryHud hud;
+    private final Autosave autosave;
+    private final Viewport viewport;
+    private final UndoHistory history = UndoHistory.withConfiguredBudget();
+    private StrokePipeline pipeline;
+    private CanvasSurface surface;
+    private CanvasMipmap mipmap;
+    private volatile StrokeJournal journal;
+    private final TileCodec journalCodec = new TileCodec(); // used on the render thread
+    private DrawingOp.StrokeOp currentStroke;
+    private DrawingOp.ShapeOp preview; // shape being dragged out
+    private TiledCanvas overlay;       // transparent layer holding the preview, on the EDT only
+    private boolean filtering;         // a filter is running; edits wait until its result is in
+    private TiledImageLoader loading;  // an image still decoding onto a layer; edits wait until it is in
+    private volatile ClassroomServer sharing; // set on the render thread while the drawing is shared
+    private String lastJoined = "localhost:" + ClassroomServer.DEFAULT_PORT;
 
     // Toolbar components
-    private JButton colorButton, eraserButton, brushButton, rectangleButton, circleButton, lineButton;
+    private JButton colorButton, eraserButton, brushButton, rectangleButton, circleButton, lineButton, fillButton;
     private JSlider brushSizeSlider;
+    private JSpinner toleranceSpinner;
+    private JComboBox<DabBrush.Tip> tipBox;
+    private JSpinner opacitySpinner;
+    private JButton filterButton;
     private JButton clearButton;
-    private JButton saveButton, openButton;
+    private JButton saveButton, openButton, galleryButton;
+    private JButton undoButton, redoButton;
+    private JButton shareButton, joinButton;
+    private JButton timelapseButton;
 
     public PaintPanel() {
         setLayout(new BorderLayout());
         initCanvas();
         initToolbar();
+        add(new LayerPanel(layers, pipeline, this::record), BorderLayout.EAST);
+        UndoHistory.installKeyBindings(this, this::undo, this::redo);
+        hud = new TelemetryHud(this, "Paint", () -> layers.getMemoryBytes() + mipmap.getMemoryBytes());
+        autosave = new Autosave("Paint", layers);
+        SwingUtilities.invokeLater(() -> autosave.start(this, this::restore));
+        viewport = new Viewport(this, layers::getBounds);
 
-        // Mouse listener for drawing events
+        // Mouse listener for drawing events, in canvas coordinates
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                startPoint = e.getPoint();
+                if (viewport.handles(e)) {
+                    return;
+                }
+                startPoint = viewport.toCanvas(e.getPoint());
                 if (currentTool == Tool.BRUSH || currentTool == Tool.ERASER) {
-                    drawLine(e.getPoint(), e.getPoint());
+                    beginStroke(startPoint, e.getWhen());
+                } else if (currentTool == Tool.FILL) {
+                    fill(startPoint);
                 }
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
+                if (viewport.handles(e)) {
+                    return;
+                }
                 if (currentTool == Tool.RECTANGLE || currentTool == Tool.CIRCLE || currentTool == Tool.LINE) {
-                    endPoint = e.getPoint();
+                    endPoint = viewport.toCanvas(e.getPoint());
                     drawShape();
+                } else if (currentTool == Tool.BRUSH || currentTool == Tool.ERASER) {
+                    endStroke();
                 }
                 startPoint = null;
                 endPoint = null;
-                repaint();
             }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
+                if (viewport.handles(e)) {
+                    return;
+                }
+                Point p = viewport.toCanvas(e.getPoint());
                 if (currentTool == Tool.BRUSH || currentTool == Tool.ERASER) {
-                    Point currentPoint = e.getPoint();
-                    drawLine(startPoint, currentPoint);
-                    startPoint = currentPoint;
+                    if (currentStroke != null) {
+                        pipeline.addPoint(p.x, p.y, e.getWhen());
+                        currentStroke.addPoint(p.x, p.y, e.getWhen());
+                        sharePoint(p, e.getWhen());
+                    }
+                } else if (startPoint != null && currentTool != Tool.FILL) {
+                    setPreview(shapeOp(p));
                 }
             }
         });
+        viewport.install();
     }
 
-    // Initialize the canvas as a BufferedImage and fill it with a white background.
+    // Initialize the tiled canvas with a white background. The size can be raised
+    // with -Dpaint.canvasWidth / -Dpaint.canvasHeight (up to TiledCanvas.MAX_DIMENSION).
     private void initCanvas() {
-        canvas = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
-        g2d = canvas.createGraphics();
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-        g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        int width = Integer.getInteger("paint.canvasWidth", 800);
+        int height = Integer.getInteger("paint.canvasHeight", 600);
+        int paper = Color.WHITE.getRGB(); // as in newCanvas
+        layers = LayerStack.withBackground(width, height, paper);
+        layers.addTileListener(history);
+        journal = new StrokeJournal(width, height, paper);
+        overlay = new TiledCanvas(width, height, 0);
+        pipeline = StrokePipeline.create(layers, this::repaintDamage);
+        surface = CanvasSurface.configured(layers.getComposite(), this::getGraphicsConfiguration, true);
+        mipmap = new CanvasMipmap(layers.getComposite(), this::repaint);
+        setPreferredSize(new Dimension(width, height));
+    }
+
+    // A blank Paint canvas: white, like a fresh sheet of paper.
+    static TiledCanvas newCanvas(int width, int height) {
+        return new TiledCanvas(width, height, Color.WHITE.getRGB());
+    }
+
+    // Place an opened image at the top-left of the canvas, growing the canvas to fit it.
+    static Rectangle placeImage(TiledCanvas canvas, BufferedImage img) {
+        canvas.ensureSize(img.getWidth(), img.getHeight());
+        canvas.drawImage(img, 0, 0);
+        return new Rectangle(0, 0, img.getWidth(), img.getHeight());
     }
 
     // Create a toolbar with buttons for tool selection and file operations.
@@ -110,6 +196,15 @@ public class PaintPanel extends JPanel {
         lineButton.addActionListener(e -> currentTool = Tool.LINE);
         toolbar.add(lineButton);
 
+        // Fill bucket and how different a colour may be and still get filled
+        fillButton = new JButton("Fill");
+        fillButton.addActionListener(e -> currentTool = Tool.FILL);
+        toolbar.add(fillButton);
+        toleranceSpinner = new JSpinner(new SpinnerNumberModel(fillTolerance, 0, FloodFill.MAX_TOLERANCE, 8));
+        toleranceSpinner.addChangeListener(e -> fillTolerance = (Integer) toleranceSpinner.getValue());
+        toolbar.add(new JLabel("Tolerance:"));
+        toolbar.add(toleranceSpinner);
+
         // Color chooser button
         colorButton = new JButton("Color");
         colorButton.addActionListener(e -> {
@@ -122,86 +217,637 @@ public class PaintPanel extends JPanel {
 
         // Brush size slider
         brushSizeSlider = new JSlider(1, 20, brushSize);
-        ChangeListener sliderListener = e -> {
-            brushSize = brushSizeSlider.getValue();
-            g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        };
+        ChangeListener sliderListener = e -> brushSize = brushSizeSlider.getValue();
         brushSizeSlider.addChangeListener(sliderListener);
         toolbar.add(new JLabel("Brush Size:"));
         toolbar.add(brushSizeSlider);
 
+        // Brush tip and opacity (percent) for the brush and eraser
+        tipBox = new JComboBox<>(DabBrush.Tip.values());
+        tipBox.addActionListener(e -> brushTip = (DabBrush.Tip) tipBox.getSelectedItem());
+        tipBox.setEnabled(DabBrush.ENABLED);
+        toolbar.add(tipBox);
+        opacitySpinner = new JSpinner(new SpinnerNumberModel(100, 5, 100, 5));
+        opacitySpinner.addChangeListener(e -> opacity = (Integer) opacitySpinner.getValue() / 100f);
+        toolbar.add(new JLabel("Opacity %:"));
+        toolbar.add(opacitySpinner);
+
+        // Filters menu; the filters with settings open a dialog with a preview
+        filterButton = new JButton("Filters");
+        JPopupMenu filterMenu = new JPopupMenu();
+        for (CanvasFilter.Kind kind : CanvasFilter.Kind.values()) {
+            JMenuItem item = new JMenuItem(kind.getSettings().length > 0 ? kind + "..." : kind.toString());
+            item.addActionListener(e -> chooseFilter(kind));
+            filterMenu.add(item);
+        }
+        filterButton.addActionListener(e -> filterMenu.show(filterButton, 0, filterButton.getHeight()));
+        toolbar.add(filterButton);
+
         // Clear canvas button
         clearButton = new JButton("Clear");
         clearButton.addActionListener(e -> {
             clearCanvas();
-            repaint();
         });
         toolbar.add(clearButton);
 
         // Save image button
         saveButton = new JButton("Save");
-        saveButton.addActionListener(e -> FileHandler.saveImage(canvas, this));
+        saveButton.addActionListener(e -> save());
         toolbar.add(saveButton);
 
         // Open image button
         openButton = new JButton("Open");
-        openButton.addActionListener(e -> {
-            BufferedImage img = FileHandler.openImage(this);
-            if (img != null) {
-                g2d.drawImage(img, 0, 0, null);
-                repaint();
-            }
-        });
+        openButton.addActionListener(e -> open());
         toolbar.add(openButton);
+        galleryButton = new JButton("Gallery");
+        galleryButton.addActionListener(e -> openFile(ThumbnailGallery.choose(this)));
+        toolbar.add(galleryButton);
+
+        // Undo / redo buttons
+        undoButton = new JButton("Undo");
+        undoButton.addActionListener(e -> undo());
+        toolbar.add(undoButton);
+        redoButton = new JButton("Redo");
+        redoButton.addActionListener(e -> redo());
+        toolbar.add(redoButton);
+
+        // Classroom buttons: share this drawing, or follow one shared elsewhere
+        shareButton = new JButton("Share");
+        shareButton.addActionListener(e -> toggleSharing());
+        toolbar.add(shareButton);
+        joinButton = new JButton("Join");
+        joinButton.addActionListener(e -> join());
+        toolbar.add(joinButton);
+
+        // Timelapse of how the drawing was made, replayed from the journal
+        timelapseButton = new JButton("Timelapse");
+        timelapseButton.addActionListener(e -> Timelapse.export(this, journal));
+        toolbar.add(timelapseButton);
 
         add(toolbar, BorderLayout.NORTH);
     }
 
-    // Draw a freehand line between two points.
-    private void drawLine(Point p1, Point p2) {
-        if (currentTool == Tool.ERASER) {
-            g2d.setColor(Color.WHITE);
+    // Select a tool without the toolbar, e.g. from the benchmarks.
+    void setTool(Tool tool) {
+        currentTool = tool;
+    }
+
+    // Set the brush size through the slider so the toolbar shows it.
+    void setBrushSize(int size) {
+        brushSizeSlider.setValue(size);
+    }
+
+    // True (after a beep) if the selected layer is locked or the panel is busy, so the tools must leave it alone.
+    private boolean activeLayerLocked() {
+        if (busy() || layers.getActive().isLocked()) {
+            Toolkit.getDefaultToolkit().beep();
+            return true;
+        }
+        return false;
+    }
+
+    // True if a filter or an image being opened will replace tiles, so edits and undo must wait.
+    private boolean busy() {
+        return filtering || loading != null;
+    }
+
+    // Save as an image (the flattened layers), or as a paint document if a .bpj file is chosen.
+    private void save() {
+        File file = FileHandler.chooseFile(this, true, journal.getFile());
+        if (file == null) {
+            return;
+        }
+        if (StrokeJournal.isDocument(file)) {
+            saveDocument(file);
         } else {
-            g2d.setColor(currentColor);
+            FileHandler.saveImage(layers.flatten(), file, this);
         }
-        g2d.drawLine(p1.x, p1.y, p2.x, p2.y);
-        repaint();
+    }
+
+    // Write the journal once the edits queued so far are recorded; a document saved before is appended to.
+    private void saveDocument(File file) {
+        StrokeJournal target = journal;
+        pipeline.submit(() -> {
+            SwingUtilities.invokeLater(() -> new FileTask<Long>(this, "Saving " + file.getName()) {
+                @Override
+                protected Long work() throws Exception {
+                    return target.save(file);
+                }
+
+                @Override
+                protected void succeeded(Long written) {
+                    JOptionPane.showMessageDialog(PaintPanel.this,
+                            "Document saved (" + (written + 1023) / 1024 + " KB written).");
+                }
+            }.start());
+            return null;
+        });
+    }
+
+    private void open() {
+        openFile(FileHandler.chooseFile(this, false, null));
+    }
+
+    // Open an image onto the selected layer, or replace the drawing with a paint document; null does nothing.
+    private void openFile(File file) {
+        if (file == null) {
+            return;
+        }
+        if (StrokeJournal.isDocument(file)) {
+            openDocument(file);
+            return;
+        }
+        if (activeLayerLocked()) {
+            return;
+        }
+        new FileTask<TiledImageLoader>(this, "Opening " + file.getName()) {
+            @Override
+            protected TiledImageLoader work() throws Exception {
+                TiledImageLoader loader = TiledImageLoader.open(file, reader -> track(reader, 0, 100));
+                if (isCancelled()) {
+                    loader.close();
+                    return null;
+                }
+                return loader;
+            }
+
+            @Override
+            protected void succeeded(TiledImageLoader loader) {
+                if (loader != null) {
+                    addImage(loader);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Put an opened image on the selected layer as one undoable step. A
+     * large image shows its preview at once, zoomed to fit, while the bands
+     * decode in the background; edits wait until the last one is in.
+     */
+    private void addImage(TiledImageLoader loader) {
+        Rectangle bounds = loader.getBounds();
+        if (loader.isComplete()) {
+            loader.close();
+            BufferedImage img = loader.getPreview();
+            pipeline.submit(() -> {
+                TiledCanvas canvas = layers.getActiveCanvas();
+                history.begin("Open image");
+                placeImage(canvas, img);
+                history.end();
+                layers.invalidate(bounds);
+                record(DrawingOp.TilesOp.capture(canvas, bounds, journalCodec, System.currentTimeMillis()));
+                return bounds;
+            });
+            return;
+        }
+        TiledCanvas canvas = layers.getActiveCanvas();
+        loading = loader;
+        pipeline.submit(() -> {
+            history.begin("Open image");
+            canvas.ensureSize(bounds.width, bounds.height);
+            return bounds;
+        });
+        if (viewport.overflows(bounds)) {
+            viewport.fit(bounds);
+        }
+        loader.loadInBackground(pipeline, (img, at) -> {
+            canvas.drawImage(img, at.x, at.y);
+            layers.invalidate(new Rectangle(at.x, at.y, img.getWidth(), img.getHeight()));
+        }, error -> {
+            history.end();
+            canvas.compact();
+            if (layers.indexOf(canvas) >= 0) {
+                recordTiles(canvas, bounds, System.currentTimeMillis());
+            }
+            SwingUtilities.invokeLater(() -> {
+                loading = null;
+                if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Could not read all of " + loader.getFile().getName()
+                            + ": " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        });
+    }
+
+    // Replay a document in the background, then replace the layers with it. Its edits cannot be undone.
+    private void openDocument(File file) {
+        new FileTask<StrokeJournal.Loaded>(this, "Opening " + file.getName()) {
+            @Override
+            protected StrokeJournal.Loaded work() throws Exception {
+                return StrokeJournal.load(file);
+            }
+
+            @Override
+            protected void succeeded(StrokeJournal.Loaded loaded) {
+                pipeline.submit(() -> {
+                    history.end();
+                    layers.replaceWith(loaded.layers);
+                    history.clear();
+                    journal = loaded.journal;
+                    share(DrawingOp.LayerOp.reset(layers, journalCodec, System.currentTimeMillis()));
+                    return layers.getBounds();
+                });
+            }
+        }.start();
+    }
+
+    // Replace the drawing with the one autosaved by an earlier run, journalled as a keyframe. It cannot be undone.
+    private void restore(StrokeJournal.Loaded loaded) {
+        pipeline.submit(() -> {
+            history.end();
+            layers.replaceWith(loaded.layers);
+            history.clear();
+            record(DrawingOp.LayerOp.reset(layers, journalCodec, System.currentTimeMillis()));
+            return layers.getBounds();
+        });
+    }
+
+    // Add edits to the journal, then a keyframe of every layer when one is due. Runs on the render thread.
+    private void record(DrawingOp... ops) {
+        StrokeJournal target = journal;
+        for (DrawingOp op : ops) {
+            target.record(op);
+        }
+        if (target.needsKeyframe()) {
+            target.record(DrawingOp.LayerOp.reset(layers, journalCodec, ops[ops.length - 1].getTime()));
+        }
+        share(ops);
+    }
+
+    // Send edits to a shared session, then a keyframe for clients joining later when one is due. Render thread.
+    private void share(DrawingOp... ops) {
+        ClassroomServer session = sharing;
+        if (session == null) {
+            return;
+        }
+        for (DrawingOp op : ops) {
+            session.publish(op);
+        }
+        if (session.wantsKeyframe()) {
+            session.keyframe(DrawingOp.LayerOp.reset(layers, journalCodec, ops[ops.length - 1].getTime()));
+        }
+    }
+
+    // Stream a point of the stroke being drawn to a shared session, in order with the edits around it.
+    private void sharePoint(Point p, long when) {
+        ClassroomServer session = sharing;
+        if (session != null) {
+            pipeline.submit(() -> {
+                session.strokePoint(p.x, p.y, when);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Start sharing the drawing on -Dpaint.classroomPort (5150 by default),
+     * or stop. The server starts on the render thread from a keyframe of the
+     * layers, so it sees every edit after that and none twice.
+     */
+    private void toggleSharing() {
+        shareButton.setEnabled(false);
+        pipeline.submit(() -> {
+            ClassroomServer session = sharing;
+            String message;
+            if (session != null) {
+                sharing = null;
+                session.close();
+                message = null;
+            } else {
+                try {
+                    sharing = new ClassroomServer(ClassroomServer.DEFAULT_PORT, layers.getWidth(), layers.getHeight(),
+                            Color.WHITE.getRGB(), DrawingOp.LayerOp.reset(layers, journalCodec,
+                                    System.currentTimeMillis()));
+                    message = "Sharing this drawing. Others can choose Join and enter " + localAddress() + ":"
+                            + sharing.getPort() + ".";
+                } catch (IOException ex) {
+                    message = "Could not share on port " + ClassroomServer.DEFAULT_PORT + ": " + ex.getMessage();
+                }
+            }
+            boolean shared = sharing != null;
+            String note = message;
+            SwingUtilities.invokeLater(() -> {
+                shareButton.setText(shared ? "Stop Sharing" : "Share");
+                shareButton.setEnabled(true);
+                if (note != null) {
+                    JOptionPane.showMessageDialog(this, note, "Classroom",
+                            shared ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+                }
+            });
+            return null;
+        });
+    }
+
+    private static String localAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (IOException ex) {
+            return "localhost";
+        }
+    }
+
+    // Follow a drawing shared from another machine (host:port) in a window of its own.
+    private void join() {
+        String address = JOptionPane.showInputDialog(this, "Address of the shared drawing (host:port):",
+                lastJoined);
+        if (address == null || address.trim().isEmpty()) {
+            return;
+        }
+        String text = address.trim();
+        int colon = text.lastIndexOf(':');
+        InetSocketAddress target;
+        try {
+            target = colon < 0 ? new InetSocketAddress(text, ClassroomServer.DEFAULT_PORT)
+                    : new InetSocketAddress(text.substring(0, colon), Integer.parseInt(text.substring(colon + 1)));
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "Not an address: " + text, "Classroom", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        lastJoined = text;
+        new FileTask<ClassroomClient>(this, "Joining " + text) {
+            @Override
+            protected ClassroomClient work() throws Exception {
+                return ClassroomClient.connect(target, System.getProperty("user.name", "student"));
+            }
+
+            @Override
+            protected void succeeded(ClassroomClient client) {
+                ClassroomViewer.open(PaintPanel.this, client, text);
+            }
+        }.start();
+    }
+
+    // Undo the last stroke, shape, clear, filter or image open.
+    public void undo() {
+        if (busy()) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        pipeline.submit(() -> recordPatch(history.undo()));
+    }
+
+    // Redo the last undone step.
+    public void redo() {
+        if (busy()) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        pipeline.submit(() -> recordPatch(history.redo()));
+    }
+
+    // Journal the tiles an undo or redo changed, on whichever layers they are.
+    private Rectangle recordPatch(Rectangle changed) {
+        if (changed == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (TiledCanvas canvas : history.getLastChanged()) {
+            recordTiles(canvas, changed, now);
+        }
+        return changed;
+    }
+
+    // Journal a region of a layer's tiles, selecting the layer around them if it is not the active one.
+    private void recordTiles(TiledCanvas canvas, Rectangle changed, long now) {
+        int active = layers.getActiveIndex();
+        int index = layers.indexOf(canvas);
+        if (index == active) {
+            record(DrawingOp.TilesOp.capture(canvas, changed, journalCodec, now));
+        } else if (index >= 0) { // other layers update the composite through their tile listener
+            record(DrawingOp.LayerOp.select(index, now),
+                    DrawingOp.TilesOp.capture(canvas, changed, journalCodec, now),
+                    DrawingOp.LayerOp.select(active, now));
+        }
+    }
+
+    // Repaint a region changed on the canvas; called on the EDT by the stroke pipeline.
+    private void repaintDamage(Rectangle r) {
+        layers.invalidate(r);
+        surface.invalidate(r);
+        damage.add(viewport.toView(r));
+        damage.flush();
+    }
+
+    // Start a freehand brush or eraser stroke. The points are rasterized by the stroke pipeline.
+    private void beginStroke(Point p, long when) {
+        if (activeLayerLocked()) {
+            return;
+        }
+        String name = currentTool == Tool.ERASER ? "Eraser" : "Brush";
+        pipeline.submit(() -> {
+            history.begin(name);
+            return null;
+        });
+        currentStroke = newStroke(p, when);
+        pipeline.beginStroke(currentStroke.rasterizer(layers.getActiveCanvas()));
+        pipeline.addPoint(p.x, p.y, when);
+        ClassroomServer session = sharing;
+        if (session != null) {
+            DrawingOp.StrokeOp begun = newStroke(p, when); // a copy: currentStroke grows on the EDT meanwhile
+            pipeline.submit(() -> {
+                session.strokeBegan(begun);
+                return null;
+            });
+        }
+    }
+
+    // A stroke with the current tool's settings, starting at a point.
+    private DrawingOp.StrokeOp newStroke(Point p, long when) {
+        boolean eraser = currentTool == Tool.ERASER;
+        Color color = eraser ? Color.WHITE : currentColor;
+        DrawingOp.StrokeOp stroke = new DrawingOp.StrokeOp(eraser, color, brushSize, pipeline.getSmoothing(),
+                DabBrush.ENABLED ? brushTip : null, opacity, when);
+        stroke.addPoint(p.x, p.y, when);
+        return stroke;
+    }
+
+    private void endStroke() {
+        DrawingOp.StrokeOp op = currentStroke;
+        if (op == null) {
+            return; // refused on a locked layer
+        }
+        currentStroke = null;
+        pipeline.endStroke();
+        pipeline.submit(() -> {
+            history.end();
+            layers.getActiveCanvas().compact();
+            record(op);
+            return null;
+        });
+    }
+
+    // The shape the current tool draws from startPoint to the given point.
+    private DrawingOp.ShapeOp shapeOp(Point end) {
+        return new DrawingOp.ShapeOp(DrawingOp.ShapeOp.Kind.valueOf(currentTool.name()), currentColor, brushSize,
+                startPoint, end, System.currentTimeMillis());
+    }
+
+    /**
+     * Show a rubber-band preview, repainting only the old and new preview
+     * areas. The preview is drawn into a transparent overlay with the same
+     * tile grid and code path as the canvas, so the committed shape has
+     * exactly the preview's pixels. The old outline is erased by filling it
+     * again with AlphaComposite.Clear, so overlay tiles are reused while
+     * dragging and only released when the preview ends.
+     */
+    private void setPreview(DrawingOp.ShapeOp shape) {
+        if (preview != null) {
+            DrawingOp.ShapeOp old = preview;
+            overlay.draw(old.getBounds(), g -> {
+                g.setComposite(AlphaComposite.Clear);
+                old.paint(g);
+            });
+            damage.add(viewport.toView(old.getBounds()));
+        }
+        preview = shape;
+        if (shape != null) {
+            overlay.ensureSize(layers.getWidth(), layers.getHeight());
+            shape.apply(overlay);
+            damage.add(viewport.toView(shape.getBounds()));
+        } else {
+            overlay.clear();
+        }
+        damage.flush();
     }
 
     // Draw a shape (rectangle, circle, or line) based on the start and end points.
+    // The preview stays up until the shape is on the canvas, so it never flickers.
     private void drawShape() {
         if (startPoint == null || endPoint == null)
             return;
-        g2d.setColor(currentColor);
-        int x = Math.min(startPoint.x, endPoint.x);
-        int y = Math.min(startPoint.y, endPoint.y);
-        int width = Math.abs(startPoint.x - endPoint.x);
-        int height = Math.abs(startPoint.y - endPoint.y);
-        switch (currentTool) {
-            case RECTANGLE:
-                g2d.drawRect(x, y, width, height);
-                break;
-            case CIRCLE:
-                int diameter = Math.min(width, height);
-                g2d.drawOval(x, y, diameter, diameter);
-                break;
-            case LINE:
-                g2d.drawLine(startPoint.x, startPoint.y, endPoint.x, endPoint.y);
-                break;
-            default:
-                break;
-        }
-    }
-
-    // Clears the canvas by filling it with white.
+        if (activeLayerLocked()) {
+            setPreview(null);
+            return;
+        }
+        DrawingOp.ShapeOp op = shapeOp(endPoint);
+        setPreview(op);
+        String name = currentTool.name();
+        pipeline.submit(() -> {
+            history.begin(name);
+            Rectangle bounds = op.apply(layers);
+            history.end();
+            record(op);
+            SwingUtilities.invokeLater(() -> {
+                if (preview == op) {
+                    setPreview(null);
+                }
+            });
+            return bounds;
+        });
+    }
+
+    // Fill the area of similar colour around a point with the current colour; only its bounding box is repainted.
+    private void fill(Point p) {
+        if (activeLayerLocked()) {
+            return;
+        }
+        DrawingOp.FillOp op = new DrawingOp.FillOp(p.x, p.y, currentColor, fillTolerance, System.currentTimeMillis());
+        pipeline.submit(() -> {
+            history.begin("Fill");
+            Rectangle bounds = op.apply(layers);
+            history.end();
+            layers.getActiveCanvas().compact();
+            record(op);
+            return bounds;
+        });
+    }
+
+    // Run a filter on the selected layer, asking for its settings first if it has any.
+    private void chooseFilter(CanvasFilter.Kind kind) {
+        if (activeLayerLocked()) {
+            return;
+        }
+        CanvasFilter filter = kind.getSettings().length == 0 ? new CanvasFilter(kind)
+                : FilterDialog.choose(this, kind, layers.getActiveCanvas().snapshot());
+        if (filter != null && !activeLayerLocked()) {
+            applyFilter(filter);
+        }
+    }
+
+    /**
+     * Filter the selected layer at full size. Once the edits queued so far
+     * are drawn, a snapshot of the layer is filtered in the background with
+     * a progress dialog and Cancel, so the window stays responsive; the
+     * result then replaces the layer's tiles as one undoable step. Edits are
+     * refused until then, since the result would paint over them.
+     */
+    private void applyFilter(CanvasFilter filter) {
+        filtering = true;
+        pipeline.submit(() -> {
+            TiledCanvas canvas = layers.getActiveCanvas();
+            TiledCanvas source = canvas.snapshot();
+            SwingUtilities.invokeLater(() -> new FileTask<CanvasFilter.Result>(this, filter.getName()) {
+                @Override
+                protected CanvasFilter.Result work() {
+                    return filter.apply(source, this::progress, this::isCancelled);
+                }
+
+                @Override
+                protected void finished() {
+                    filtering = false;
+                }
+
+                @Override
+                protected void succeeded(CanvasFilter.Result result) {
+                    pipeline.submit(() -> {
+                        if (layers.indexOf(canvas) < 0) {
+                            return null; // the layer was deleted meanwhile
+                        }
+                        history.begin(filter.getName());
+                        Rectangle bounds = result.writeTo(canvas);
+                        history.end();
+                        canvas.compact();
+                        if (!bounds.isEmpty()) {
+                            recordTiles(canvas, bounds, System.currentTimeMillis());
+                        }
+                        return bounds;
+                    });
+                }
+            }.start());
+            return null;
+        });
+    }
+
+    // Clears the selected layer by dropping all its tiles back to its background (white or transparent).
     public void clearCanvas() {
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (activeLayerLocked()) {
+            return;
+        }
+        DrawingOp.ClearOp op = new DrawingOp.ClearOp(System.currentTimeMillis());
+        pipeline.submit(() -> {
+            history.begin("Clear");
+            Rectangle bounds = op.apply(layers);
+            history.end();
+            record(op);
+            return bounds;
+        });
     }
 
     @Override
     protected void paintComponent(Graphics g) {
+        Telemetry.Span span = hud.beginPaint();
         super.paintComponent(g);
-        g.drawImage(canvas, 0, 0, null);
+        Rectangle changed = layers.refresh();
+        surface.invalidate(changed);
+        mipmap.invalidate(changed);
+        Graphics2D view = (Graphics2D) g.create();
+        if (viewport.getScale() < 1) {
+            mipmap.paint(view, viewport);
+            viewport.transform(view);
+        } else {
+            viewport.transform(view);
+            surface.paint(view);
+        }
+        if (loading != null) {
+            loading.setVisible(viewport.getVisibleCanvas());
+            loading.paintPending(view);
+        }
+        if (preview != null) {
+            overlay.paint(view);
+        }
+        view.dispose();
+        damage.paintDebug(g);
+        hud.endPaint(g, span);
     }
 }
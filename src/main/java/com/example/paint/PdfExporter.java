@@ -0,0 +1,113 @@
+package com.example.paint;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * PdfExporter writes drawings to a PDF, one page per drawing, with each page
+ * sized to its image. Pages are encoded in memory and handed straight to
+ * iText, so no temporary files are needed.
+ *
+ * LOSSLESS pages are encoded as opaque PNG, whose compressed data iText
+ * embeds as a Flate stream without decoding it again; JPEG pages are
+ * embedded as DCT streams. Each page is written out as soon as it is added,
+ * so memory stays bounded by one page no matter how many are exported.
+ */
+public class PdfExporter implements Closeable {
+    public enum Compression {
+        LOSSLESS, JPEG
+    }
+
+    private final OutputStream out;
+    private final Compression compression;
+    private final float jpegQuality;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private Document document;
+    private int pageCount;
+
+    /**
+     * @param jpegQuality 0.0 to 1.0, only used with JPEG compression
+     */
+    public PdfExporter(OutputStream out, Compression compression, float jpegQuality) {
+        this.out = out;
+        this.compression = compression;
+        this.jpegQuality = jpegQuality;
+    }
+
+    // Compression from -Dpaint.pdfCompression=lossless|jpeg, lossless by default.
+    public static Compression configuredCompression() {
+        return Compression.valueOf(System.getProperty("paint.pdfCompression", "lossless").toUpperCase());
+    }
+
+    // JPEG quality from -Dpaint.pdfJpegQuality, 0.85 by default.
+    public static float configuredJpegQuality() {
+        return Float.parseFloat(System.getProperty("paint.pdfJpegQuality", "0.85"));
+    }
+
+    /**
+     * Add a page holding the image at its pixel size (1 px = 1 pt). The image
+     * must be opaque (e.g. TYPE_INT_RGB) and can be discarded afterwards.
+     */
+    public void addPage(BufferedImage image) throws IOException, DocumentException {
+        Telemetry.Span span = Telemetry.begin(Telemetry.Metric.PDF_PAGE);
+        Rectangle pageSize = new Rectangle(image.getWidth(), image.getHeight());
+        if (document == null) {
+            document = new Document(pageSize, 0, 0, 0, 0);
+            PdfWriter.getInstance(document, out);
+            document.open();
+        } else {
+            document.setPageSize(pageSize);
+            document.newPage();
+        }
+        Image pdfImage = Image.getInstance(encode(image));
+        pdfImage.setAbsolutePosition(0, 0);
+        document.add(pdfImage);
+        pageCount++;
+        Telemetry.endPdfPage(span, compression.name(), image.getWidth(), image.getHeight());
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    // Encode the page image in memory as PNG or JPEG.
+    private byte[] encode(BufferedImage image) throws IOException {
+        buffer.reset();
+        ImageWriter writer = FileHandler.writerFor(compression == Compression.JPEG ? "jpg" : "png");
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(buffer)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (compression == Compression.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+
+    // Finish the document; iText closes the output stream with it.
+    @Override
+    public void close() throws IOException {
+        if (document == null) {
+            throw new IOException("PDF has no pages");
+        }
+        document.close();
+    }
+}
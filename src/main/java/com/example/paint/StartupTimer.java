@@ -0,0 +1,75 @@
+package com.example.paint;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * StartupTimer logs where startup time goes: JVM start to main (class
+ * loading and JVM boot, from RuntimeMXBean), main to the frame being
+ * visible, and how long each panel took to build. Lines are printed to
+ * standard output with a "Startup:" prefix so they are easy to grep when
+ * tracking regressions; -Dpaint.startupLog=false turns them off.
+ */
+public class StartupTimer {
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("paint.startupLog"));
+    private static final Map<String, Long> PANELS = new LinkedHashMap<>();
+    private static long mainMillis;
+
+    // Call first thing in main.
+    public static void mainStarted() {
+        mainMillis = uptimeMillis();
+    }
+
+    // Milliseconds since the JVM started.
+    public static long uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    // Build a panel, recording how long it took.
+    public static <T> T time(String name, Supplier<T> build) {
+        long start = System.nanoTime();
+        T result = build.get();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        synchronized (PANELS) {
+            PANELS.put(name, millis);
+        }
+        return result;
+    }
+
+    // Log the breakdown once the frame is on screen.
+    public static void frameVisible() {
+        if (!ENABLED) {
+            return;
+        }
+        long visible = uptimeMillis();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Startup: frame visible ").append(visible).append(" ms after JVM start (JVM to main ")
+                .append(mainMillis).append(" ms, main to visible ").append(visible - mainMillis).append(" ms");
+        synchronized (PANELS) {
+            for (Map.Entry<String, Long> entry : PANELS.entrySet()) {
+                sb.append(", ").append(entry.getKey()).append(' ').append(entry.getValue()).append(" ms");
+            }
+        }
+        System.out.println(sb.append(')'));
+    }
+
+    // Log another startup finding, e.g. a choice made from a measurement.
+    public static void log(String message) {
+        if (ENABLED) {
+            System.out.println("Startup: " + message);
+        }
+    }
+
+    // Log a panel built after startup, e.g. when its tab is first opened.
+    public static void panelBuilt(String name) {
+        if (!ENABLED) {
+            return;
+        }
+        synchronized (PANELS) {
+            System.out.println("Startup: " + name + " built in " + PANELS.get(name) + " ms, "
+                    + uptimeMillis() + " ms after JVM start");
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.paint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * StrokeJournal is the native document format (.bpj): an append-only log of
+ * DrawingOps behind a small header. Saving a document that was saved before
+ * only appends the operations recorded since, so the cost of a save depends
+ * on the work done since the last one, not on the size of the drawing.
+ *
+ * Every so many operations a keyframe (a full tile snapshot, or a reset of
+ * every layer with its tiles) is recorded, so opening a document only
+ * replays the operations after the last keyframe. Documents are read through a memory-mapped buffer, and a record cut short
+ * by a crash during an append is ignored.
+ *
+ * File layout: magic "BPJ1", version (short), width, height, background
+ * (ints), then DrawingOp records until the end of the file.
+ */
+public class StrokeJournal {
+    public static final String EXTENSION = "bpj";
+    private static final int MAGIC = 0x42504A31; // "BPJ1"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 18;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final int WRITE_SLICE = 64 * 1024;
+
+    private final int width, height, background;
+    private final int keyframeInterval;
+    private final Object saveLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingCount;
+    private int opsSinceKeyframe;
+    private File file;       // document file, or null until the first save
+    private long savedLength; // bytes of the file that hold complete records
+    private volatile long writeLimit; // bytes per second, 0 for no limit
+
+    /** A document read from disk: the replayed layers and the journal to continue it. */
+    public static final class Loaded {
+        public final LayerStack layers;
+        public final TiledCanvas canvas; // the layers flattened
+        public final StrokeJournal journal;
+        public final int operationCount; // complete records in the file
+        public final int replayedCount;  // records replayed from the last keyframe
+
+        Loaded(LayerStack layers, StrokeJournal journal, int operationCount, int replayedCount) {
+            this.layers = layers;
+            this.canvas = layers.flatten();
+            this.journal = journal;
+            this.operationCount = operationCount;
+            this.replayedCount = replayedCount;
+        }
+    }
+
+    /**
+     * Journal for a canvas that starts out blank with the given size and
+     * background. A keyframe is due every keyframeInterval operations
+     * (-Dpaint.journalKeyframeInterval, 200 by default).
+     */
+    public StrokeJournal(int width, int height, int background) {
+        this(width, height, background, Integer.getInteger("paint.journalKeyframeInterval", 200));
+    }
+
+    StrokeJournal(int width, int height, int background, int keyframeInterval) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    public static boolean isDocument(File file) {
+        return file.getName().toLowerCase().endsWith("." + EXTENSION);
+    }
+
+    // Append an operation to the unsaved tail of the journal.
+    public synchronized void record(DrawingOp op) {
+        try {
+            op.write(new DataOutputStream(pending));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // in-memory stream
+        }
+        pendingCount++;
+        opsSinceKeyframe = op.isKeyframe() ? 0 : opsSinceKeyframe + 1;
+    }
+
+    // True once enough operations were recorded since the last keyframe to record a new one.
+    public synchronized boolean needsKeyframe() {
+        return opsSinceKeyframe >= keyframeInterval;
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    public synchronized File getFile() {
+        return file;
+    }
+
+    // Size and background of the canvas the journal starts from.
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    /**
+     * Pace the records a save writes to at most the given bytes per second
+     * (0, the default, for no limit), so a large save in the background
+     * leaves the disk to the rest of the program.
+     */
+    public void setWriteLimit(long bytesPerSecond) {
+        writeLimit = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Write the journal to a file and return the number of bytes written.
+     * Saving again to the same file appends only the operations recorded since
+     * the last save; saving to another file copies the saved part first. A new
+     * file is created atomically, and an append that is cut short leaves a
+     * partial record that the next save overwrites and loading ignores.
+     */
+    public long save(File target) throws Exception {
+        synchronized (saveLock) {
+            byte[] chunk;
+            int count;
+            File current;
+            long length;
+            synchronized (this) {
+                chunk = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+                count = pendingCount;
+                current = file;
+                length = savedLength;
+            }
+            try {
+                boolean appending = current != null && current.getCanonicalFile().equals(target.getCanonicalFile());
+                long written;
+                if (appending) {
+                    written = append(target, length, chunk);
+                } else {
+                    written = writeNew(target, current, length, chunk);
+                }
+                synchronized (this) {
+                    file = target;
+                    savedLength = appending ? length + written : written;
+                    pendingCount -= count;
+                }
+                return written;
+            } catch (Exception ex) {
+                // Put the unsaved operations back in front of anything recorded meanwhile.
+                synchronized (this) {
+                    ByteArrayOutputStream restored = new ByteArrayOutputStream(chunk.length + pending.size());
+                    restored.write(chunk, 0, chunk.length);
+                    pending.writeTo(restored);
+                    pending = restored;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    // Append records after the saved part of the file, dropping any torn tail first.
+    private long append(File target, long length, byte[] chunk) throws IOException {
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() > length) {
+                channel.truncate(length);
+            }
+            write(channel, chunk, length);
+            channel.force(false);
+        }
+        return chunk.length;
+    }
+
+    // Write bytes at a position of the file in slices, sleeping between them to keep to the write limit.
+    private void write(FileChannel channel, byte[] chunk, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long start = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(Math.min(buffer.limit(), buffer.position() + WRITE_SLICE));
+            buffer.position(buffer.position() + channel.write(slice, position + buffer.position()));
+            long limit = writeLimit;
+            if (limit > 0 && buffer.hasRemaining()) {
+                long ahead = buffer.position() * 1_000_000_000L / limit - (System.nanoTime() - start);
+                if (ahead > 0) {
+                    try {
+                        Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Save interrupted");
+                    }
+                }
+            }
+        }
+    }
+
+    // Write a whole document: the header or the saved part of the previous file, then the new records.
+    private long writeNew(File target, File previous, long previousLength, byte[] chunk) throws Exception {
+        long[] written = new long[1];
+        FileHandler.writeAtomically(target, tmp -> {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                if (previous == null) {
+                    DataOutputStream header = new DataOutputStream(out);
+                    header.writeInt(MAGIC);
+                    header.writeShort(VERSION);
+                    header.writeInt(width);
+                    header.writeInt(height);
+                    header.writeInt(background);
+                    header.flush();
+                    written[0] = HEADER_SIZE;
+                } else {
+                    try (FileChannel in = FileChannel.open(previous.toPath(), StandardOpenOption.READ)) {
+                        long position = 0;
+                        while (position < previousLength) {
+                            position += in.transferTo(position, previousLength - position, out.getChannel());
+                        }
+                    }
+                    written[0] = previousLength;
+                }
+                write(out.getChannel(), chunk, written[0]);
+                out.getFD().sync();
+                written[0] += chunk.length;
+            }
+        });
+        return written[0];
+    }
+
+    /**
+     * Read a document: replay the operations after its last keyframe onto
+     * new layers and return them with a journal that appends to the same
+     * file. A document starts out with one background layer.
+     */
+    public static Loaded load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            StrokeJournal journal = readHeader(buffer, file);
+            List<Integer> records = scan(buffer, HEADER_SIZE);
+            int keyframe = 0;
+            for (int i = 0; i < records.size(); i++) {
+                if (isKeyframe(buffer, records.get(i))) {
+                    keyframe = i;
+                }
+            }
+            LayerStack layers = LayerStack.withBackground(journal.width, journal.height, journal.background);
+            for (int i = keyframe; i < records.size(); i++) {
+                read(buffer, records.get(i)).apply(layers);
+            }
+            for (Layer layer : layers.getLayers()) {
+                layer.getCanvas().compact();
+            }
+            journal.file = file;
+            journal.savedLength = records.isEmpty() ? HEADER_SIZE : end(buffer, records.get(records.size() - 1));
+            journal.opsSinceKeyframe = records.size() - keyframe;
+            return new Loaded(layers, journal, records.size(), records.size() - keyframe);
+        }
+    }
+
+    /**
+     * Pass every operation in a document to the consumer, oldest first, e.g.
+     * to replay the whole drawing. Returns a canvas sized like the document's
+     * initial canvas to replay onto.
+     */
+    public static TiledCanvas readAll(File file, Consumer<DrawingOp> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            StrokeJournal journal = readHeader(buffer, file);
+            for (int offset : scan(buffer, HEADER_SIZE)) {
+                consumer.accept(read(buffer, offset));
+            }
+            return new TiledCanvas(journal.width, journal.height, journal.background);
+        }
+    }
+
+    /**
+     * Pass every operation recorded so far to the consumer, oldest first:
+     * those saved to the document, then the unsaved ones, e.g. to replay how
+     * the drawing was made. What is recorded meanwhile is not passed; the
+     * progress consumer gets the percentage passed.
+     */
+    public void replay(Consumer<DrawingOp> consumer, IntConsumer progress) throws IOException {
+        File source;
+        long length;
+        byte[] unsaved;
+        synchronized (saveLock) { // not halfway between the unsaved bytes and the file
+            synchronized (this) {
+                source = file;
+                length = savedLength;
+                unsaved = pending.toByteArray();
+            }
+        }
+        ByteBuffer tail = ByteBuffer.wrap(unsaved);
+        List<Integer> tailRecords = scan(tail, 0);
+        if (source == null) {
+            replay(tail, tailRecords, 0, tailRecords.size(), consumer, progress);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            List<Integer> records = scan(buffer, HEADER_SIZE);
+            int total = records.size() + tailRecords.size();
+            replay(buffer, records, 0, total, consumer, progress);
+            replay(tail, tailRecords, records.size(), total, consumer, progress);
+        }
+    }
+
+    private static void replay(ByteBuffer buffer, List<Integer> records, int done, int total,
+                               Consumer<DrawingOp> consumer, IntConsumer progress) throws IOException {
+        for (int i = 0; i < records.size(); i++) {
+            consumer.accept(read(buffer, records.get(i)));
+            progress.accept((int) ((done + i + 1) * 100L / total));
+        }
+    }
+
+    /**
+     * A journal that continues a document without replaying it, e.g. to
+     * replay the whole of it with replay.
+     */
+    public static StrokeJournal open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            StrokeJournal journal = readHeader(buffer, file);
+            List<Integer> records = scan(buffer, HEADER_SIZE);
+            journal.file = file;
+            journal.savedLength = records.isEmpty() ? HEADER_SIZE : end(buffer, records.get(records.size() - 1));
+            return journal;
+        }
+    }
+
+    private static StrokeJournal readHeader(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not a paint document");
+        }
+        if (buffer.getShort(4) > VERSION) {
+            throw new IOException(file.getName() + " was written by a newer version");
+        }
+        return new StrokeJournal(buffer.getInt(6), buffer.getInt(10), buffer.getInt(14));
+    }
+
+    // Offsets of the complete records from an offset on, stopping at a truncated one.
+    private static List<Integer> scan(ByteBuffer buffer, int offset) {
+        List<Integer> records = new ArrayList<>();
+        while (buffer.limit() - offset >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(offset + 1);
+            if (length < 8 || length > buffer.limit() - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            records.add(offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return records;
+    }
+
+    // A tile keyframe, or a layer reset (its action byte follows the record header and time).
+    private static boolean isKeyframe(ByteBuffer buffer, int offset) {
+        byte type = buffer.get(offset);
+        return type == DrawingOp.KEYFRAME || type == DrawingOp.LAYER
+                && buffer.get(offset + RECORD_HEADER_SIZE + 8) == DrawingOp.LayerOp.Action.RESET.ordinal();
+    }
+
+    private static int end(ByteBuffer buffer, int offset) {
+        return offset + RECORD_HEADER_SIZE + buffer.getInt(offset + 1);
+    }
+
+    private static DrawingOp read(ByteBuffer buffer, int offset) throws IOException {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + RECORD_HEADER_SIZE).limit(end(buffer, offset));
+        return DrawingOp.read(buffer.get(offset), payload.slice());
+    }
+}
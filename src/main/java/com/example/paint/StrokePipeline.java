@@ -0,0 +1,388 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * StrokePipeline moves stroke rasterization off the Event Dispatch Thread.
+ *
+ * The EDT only queues timestamped points (and other canvas edits as tasks).
+ * A dedicated render thread drains the queue in batches, rasterizes all the
+ * points that arrived since the last batch as a single polyline, and posts
+ * the merged damage back to the EDT, where it is handed to the damage sink.
+ * Because every canvas edit goes through the same queue, the render thread
+ * is the only writer and edits are applied in the order they were made.
+ *
+ * Configuration:
+ * -Dpaint.strokePipeline=sync  rasterize on the calling thread (the old path)
+ * -Dpaint.strokeSmoothing=none|interpolate|smooth
+ * -Dpaint.strokeStats=true     print input-to-pixel latency after each stroke
+ */
+public class StrokePipeline {
+    /** Draws a polyline into the canvas and returns the region it changed. */
+    public interface Rasterizer {
+        Rectangle drawPolyline(float[] xs, float[] ys, int count);
+
+        // Called once the stroke is over, to release per-stroke buffers.
+        default void finish() {
+        }
+    }
+
+    public enum Smoothing {
+        NONE,        // straight segments between input points
+        INTERPOLATE, // Catmull-Rom curve through the input points
+        SMOOTH       // pull each point toward the previous one to steady a shaky hand
+    }
+
+    private static final float SPLINE_STEP = 3f;
+    private static final float SMOOTH_FACTOR = 0.45f;
+    // Longer polylines are split so each one only touches a few tiles.
+    private static final int MAX_POLYLINE_POINTS = 32;
+
+    // Queue entries. A point carries the nanoTime its input event happened.
+    private static final class PointCommand {
+        final float x, y;
+        final long inputNanos;
+
+        PointCommand(float x, float y, long inputNanos) {
+            this.x = x;
+            this.y = y;
+            this.inputNanos = inputNanos;
+        }
+    }
+
+    private static final class BeginCommand {
+        final Rasterizer rasterizer;
+
+        BeginCommand(Rasterizer rasterizer) {
+            this.rasterizer = rasterizer;
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final Object lock;
+    private final Consumer<Rectangle> damageSink;
+    private final boolean async;
+    private final Smoothing smoothing;
+    private final boolean printStats;
+    private final LatencyRecorder latency = new LatencyRecorder(4096);
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    // Damage waiting to be delivered to the EDT, and whether a delivery is already posted.
+    private Rectangle pendingDamage;
+    private boolean deliveryScheduled;
+
+    // Stroke state, owned by the render thread (or the EDT in sync mode).
+    private Rasterizer rasterizer;
+    private float[] xs = new float[64], ys = new float[64];
+    private int count;
+    private boolean started;
+    private boolean carried; // xs[0] is the already drawn end of the previous polyline
+    private float lastX, lastY;
+    private float ax, ay, bx, by, cx, cy; // Catmull-Rom window
+    private long[] pointTimes = new long[64];
+    private int pointCount;
+
+    public StrokePipeline(Object lock, Consumer<Rectangle> damageSink, boolean async, Smoothing smoothing) {
+        this.lock = lock;
+        this.damageSink = damageSink;
+        this.async = async;
+        this.smoothing = smoothing;
+        this.printStats = Boolean.getBoolean("paint.strokeStats");
+        if (async) {
+            Thread thread = new Thread(this::renderLoop, "stroke-renderer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Pipeline configured from system properties, locking on what it draws on (a canvas or a LayerStack).
+    public static StrokePipeline create(Object lock, Consumer<Rectangle> damageSink) {
+        boolean async = !"sync".equalsIgnoreCase(System.getProperty("paint.strokePipeline"));
+        Smoothing smoothing = Smoothing.valueOf(
+                System.getProperty("paint.strokeSmoothing", "none").toUpperCase());
+        return new StrokePipeline(lock, damageSink, async, smoothing);
+    }
+
+    // Java2D rasterizer that strokes the polyline into the canvas with the given colour and stroke.
+    public static Rasterizer java2d(TiledCanvas canvas, Color color, BasicStroke stroke) {
+        return java2d(canvas, color, stroke, null);
+    }
+
+    // Java2D rasterizer that fills the stroke with a composite, e.g. DstOut to erase; null for src-over.
+    public static Rasterizer java2d(TiledCanvas canvas, Color color, BasicStroke stroke, Composite composite) {
+        return (px, py, n) -> {
+            Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, n + 1);
+            path.moveTo(px[0], py[0]);
+            for (int i = 1; i < n; i++) {
+                path.lineTo(px[i], py[i]);
+            }
+            if (n == 1) {
+                path.lineTo(px[0], py[0]); // a single click draws a dot
+            }
+            // Stroke the outline once, then fill it into each tile it covers.
+            Shape outline = stroke.createStrokedShape(path);
+            Rectangle bounds = DamageTracker.strokeBounds(path, stroke.getLineWidth());
+            canvas.draw(bounds, g -> {
+                if (composite != null) {
+                    g.setComposite(composite);
+                }
+                g.setColor(color);
+                g.fill(outline);
+            });
+            return bounds;
+        };
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public Smoothing getSmoothing() {
+        return smoothing;
+    }
+
+    public void beginStroke(Rasterizer rasterizer) {
+        enqueue(new BeginCommand(rasterizer));
+    }
+
+    /**
+     * Queue a stroke point. The event time (MouseEvent.getWhen()) lets the
+     * latency figures include the time the event spent waiting on the EDT.
+     */
+    public void addPoint(int x, int y, long eventWhenMillis) {
+        long waited = Math.max(0, System.currentTimeMillis() - eventWhenMillis) * 1_000_000L;
+        enqueue(new PointCommand(x, y, System.nanoTime() - waited));
+    }
+
+    public void endStroke() {
+        enqueue(END);
+    }
+
+    /**
+     * Run a canvas edit in order with the queued strokes. The task returns the
+     * region it changed (or null), which is repainted like stroke damage.
+     */
+    public void submit(Supplier<Rectangle> task) {
+        enqueue(task);
+    }
+
+    private void enqueue(Object command) {
+        if (async) {
+            queue.add(command);
+        } else {
+            synchronized (lock) {
+                process(command);
+                flushPolyline();
+            }
+            deliver();
+        }
+    }
+
+    private void renderLoop() {
+        List<Object> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            synchronized (lock) {
+                // A failing command is reported and skipped; the ones after it still run.
+                for (Object command : batch) {
+                    try {
+                        process(command);
+                    } catch (RuntimeException ex) {
+                        System.err.println("Stroke pipeline: skipped a failed command: " + ex);
+                    }
+                }
+                try {
+                    flushPolyline();
+                } catch (RuntimeException ex) {
+                    System.err.println("Stroke pipeline: stroke segment failed: " + ex);
+                }
+            }
+            batch.clear();
+            scheduleDelivery();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void process(Object command) {
+        if (command instanceof PointCommand) {
+            PointCommand point = (PointCommand) command;
+            if (rasterizer != null) {
+                recordPointTime(point.inputNanos);
+                addStrokePoint(point.x, point.y);
+            }
+        } else if (command instanceof BeginCommand) {
+            flushPolyline();
+            if (rasterizer != null) {
+                rasterizer.finish();
+            }
+            rasterizer = ((BeginCommand) command).rasterizer;
+            started = false;
+            count = 0;
+            carried = false;
+        } else if (command == END) {
+            finishStroke();
+        } else {
+            flushPolyline();
+            addDamage(((Supplier<Rectangle>) command).get());
+        }
+    }
+
+    private void addStrokePoint(float x, float y) {
+        switch (smoothing) {
+            case SMOOTH:
+                if (started) {
+                    x = lastX + (x - lastX) * SMOOTH_FACTOR;
+                    y = lastY + (y - lastY) * SMOOTH_FACTOR;
+                }
+                emit(x, y);
+                break;
+            case INTERPOLATE:
+                if (!started) {
+                    ax = bx = cx = x;
+                    ay = by = cy = y;
+                    emit(x, y);
+                } else {
+                    emitSpline(x, y);
+                    ax = bx;
+                    ay = by;
+                    bx = cx;
+                    by = cy;
+                    cx = x;
+                    cy = y;
+                }
+                break;
+            default:
+                emit(x, y);
+                break;
+        }
+    }
+
+    // Emit the Catmull-Rom curve from B to C using A, B, C and the new point D.
+    private void emitSpline(float dx, float dy) {
+        float length = (float) Math.hypot(cx - bx, cy - by);
+        int steps = Math.max(1, (int) Math.ceil(length / SPLINE_STEP));
+        if (length == 0) {
+            return;
+        }
+        for (int i = 1; i <= steps; i++) {
+            float t = (float) i / steps, t2 = t * t, t3 = t2 * t;
+            float x = 0.5f * (2 * bx + (-ax + cx) * t + (2 * ax - 5 * bx + 4 * cx - dx) * t2
+                    + (-ax + 3 * bx - 3 * cx + dx) * t3);
+            float y = 0.5f * (2 * by + (-ay + cy) * t + (2 * ay - 5 * by + 4 * cy - dy) * t2
+                    + (-ay + 3 * by - 3 * cy + dy) * t3);
+            emit(x, y);
+        }
+    }
+
+    private void finishStroke() {
+        if (rasterizer != null && started && smoothing == Smoothing.INTERPOLATE) {
+            emitSpline(cx, cy);
+        }
+        flushPolyline();
+        if (rasterizer != null) {
+            rasterizer.finish();
+        }
+        rasterizer = null;
+        count = 0;
+        carried = false;
+        if (printStats) {
+            System.out.println("Stroke latency (" + (async ? "async" : "sync") + "): " + latency.summary());
+        }
+    }
+
+    private void emit(float x, float y) {
+        if (count >= MAX_POLYLINE_POINTS) {
+            flushPolyline();
+        }
+        if (count == xs.length) {
+            xs = Arrays.copyOf(xs, count * 2);
+            ys = Arrays.copyOf(ys, count * 2);
+        }
+        xs[count] = x;
+        ys[count] = y;
+        count++;
+        lastX = x;
+        lastY = y;
+        started = true;
+    }
+
+    private void recordPointTime(long inputNanos) {
+        if (pointCount == pointTimes.length) {
+            pointTimes = Arrays.copyOf(pointTimes, pointCount * 2);
+        }
+        pointTimes[pointCount++] = inputNanos;
+    }
+
+    // Rasterize the points gathered so far, keeping the last one as the start of the next polyline.
+    private void flushPolyline() {
+        if (rasterizer == null) {
+            count = 0;
+            carried = false;
+        } else if (count > (carried ? 1 : 0)) {
+            Telemetry.Span span = Telemetry.begin(Telemetry.Metric.STROKE_SEGMENT);
+            Rectangle damage = rasterizer.drawPolyline(xs, ys, count);
+            Telemetry.endStroke(span, count, damage);
+            addDamage(damage);
+            xs[0] = xs[count - 1];
+            ys[0] = ys[count - 1];
+            count = 1;
+            carried = true;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < pointCount; i++) {
+            latency.record(now - pointTimes[i]);
+        }
+        pointCount = 0;
+    }
+
+    private void addDamage(Rectangle r) {
+        if (r == null) {
+            return;
+        }
+        synchronized (this) {
+            if (pendingDamage == null) {
+                pendingDamage = new Rectangle(r);
+            } else {
+                pendingDamage.add(r);
+            }
+        }
+    }
+
+    private synchronized void scheduleDelivery() {
+        if (pendingDamage != null && !deliveryScheduled) {
+            deliveryScheduled = true;
+            SwingUtilities.invokeLater(this::deliver);
+        }
+    }
+
+    // Hand the merged damage to the sink; runs on the EDT.
+    private void deliver() {
+        Rectangle r;
+        synchronized (this) {
+            r = pendingDamage;
+            pendingDamage = null;
+            deliveryScheduled = false;
+        }
+        if (r != null) {
+            damageSink.accept(r);
+        }
+    }
+}
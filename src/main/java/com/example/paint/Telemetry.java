@@ -0,0 +1,463 @@
+package com.example.paint;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Telemetry times the hot paths of the program so slow painting can be
+ * measured where it happens:
+ * - stroke segment rasterization (StrokePipeline)
+ * - paintComponent of the Paint and Tracing Pad canvases, with the area painted
+ * - input to paint: from a mouse event to the end of the paint that follows it
+ * - image encoding and decoding (FileHandler) and PDF pages (PdfExporter)
+ * - autosave checkpoints (Autosave), with the tiles and bytes written
+ *
+ * Each measurement is committed as a custom JFR event (category "Paint"), so
+ * a flight recording shows them next to GC and thread activity, and is
+ * added to the metric's counters and a window of its last 1024 times. The
+ * metrics are JMX MXBeans under com.example.paint:type=Telemetry, for
+ * JConsole or VisualVM, and the HUD (see TelemetryHud) shows them on the
+ * canvas.
+ *
+ * Telemetry is off unless -Dpaint.telemetry=true; it is also switched on by
+ * showing the HUD or through the Enabled attribute of the Telemetry MXBean.
+ * While it is off, begin returns null and the end calls return at once, so
+ * an instrumented path costs one volatile read. The MXBeans are registered
+ * the first time telemetry is switched on.
+ */
+public class Telemetry {
+    private static final int WINDOW = 1024;
+    private static volatile boolean enabled;
+    private static boolean registered;
+    private static long fpsTime, fpsFrames;
+    private static double fps;
+
+    static {
+        if (Boolean.getBoolean("paint.telemetry")) {
+            setEnabled(true);
+        }
+    }
+
+    /** The measured paths. Each one is also an MXBean with its counts and recent percentiles. */
+    public enum Metric implements MetricMXBean {
+        STROKE_SEGMENT("StrokeSegment"), PAINT("Paint"), INPUT_TO_PAINT("InputToPaint"),
+        IMAGE_ENCODE("ImageEncode"), IMAGE_DECODE("ImageDecode"), PDF_PAGE("PdfPage"), AUTOSAVE("Autosave");
+
+        private final String beanName;
+        private final LatencyRecorder window = new LatencyRecorder(WINDOW);
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder pixels = new LongAdder();
+
+        Metric(String beanName) {
+            this.beanName = beanName;
+        }
+
+        void record(long nanos, long pixelCount) {
+            window.record(nanos);
+            totalNanos.add(nanos);
+            pixels.add(pixelCount);
+        }
+
+        // Percentile (0-100) of the last 1024 times, in nanoseconds.
+        public long percentile(double p) {
+            return window.percentile(p);
+        }
+
+        @Override
+        public long getCount() {
+            return window.getCount();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return totalNanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalMillis() / count;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentile(50) / 1e6;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return percentile(90) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentile(99) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return percentile(100) / 1e6;
+        }
+
+        @Override
+        public long getPixels() {
+            return pixels.sum();
+        }
+
+        @Override
+        public void reset() {
+            window.reset();
+            totalNanos.reset();
+            pixels.reset();
+        }
+    }
+
+    /** JMX view of a Metric; the percentiles and maximum are over its last 1024 times. */
+    public interface MetricMXBean {
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+
+        // Pixels rasterized, painted, encoded, decoded, exported or autosaved; 0 for input to paint.
+        long getPixels();
+
+        void reset();
+    }
+
+    /** JMX switch and summary for the whole program. */
+    public interface TelemetryMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        double getFramesPerSecond();
+
+        void resetAll();
+    }
+
+    private static final class Bean implements TelemetryMXBean {
+        @Override
+        public boolean isEnabled() {
+            return Telemetry.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            Telemetry.setEnabled(on);
+        }
+
+        @Override
+        public double getFramesPerSecond() {
+            return Telemetry.getFramesPerSecond();
+        }
+
+        @Override
+        public void resetAll() {
+            for (Metric metric : Metric.values()) {
+                metric.reset();
+            }
+        }
+    }
+
+    /**
+     * A measurement in progress, also the JFR event for it. The start time
+     * is kept out of the recording; JFR takes its own from begin().
+     */
+    @Category("Paint")
+    public abstract static class Span extends Event {
+        transient Metric metric;
+        transient long start;
+    }
+
+    @Name("com.example.paint.StrokeSegment")
+    @Label("Stroke Segment")
+    @Category("Paint")
+    @Description("Rasterizing the stroke points that arrived together")
+    static final class StrokeSegmentEvent extends Span {
+        @Label("Points")
+        int points;
+        @Label("Damaged Pixels")
+        long pixels;
+    }
+
+    @Name("com.example.paint.Paint")
+    @Label("Canvas Paint")
+    @Category("Paint")
+    @Description("paintComponent of a canvas panel")
+    static final class PaintEvent extends Span {
+        @Label("Component")
+        String component;
+        @Label("Painted Pixels")
+        long pixels;
+    }
+
+    @Name("com.example.paint.ImageEncode")
+    @Label("Image Encode")
+    @Category("Paint")
+    static final class ImageEncodeEvent extends Span {
+        @Label("Format")
+        String format;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("com.example.paint.ImageDecode")
+    @Label("Image Decode")
+    @Category("Paint")
+    static final class ImageDecodeEvent extends Span {
+        @Label("Format")
+        String format;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("com.example.paint.PdfPage")
+    @Label("PDF Page Export")
+    @Category("Paint")
+    @Description("Encoding an image and adding it to a PDF as a page")
+    static final class PdfPageEvent extends Span {
+        @Label("Compression")
+        String compression;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("com.example.paint.Autosave")
+    @Label("Autosave Checkpoint")
+    @Category("Paint")
+    @Description("Copying, encoding and writing the tiles changed since the last checkpoint")
+    static final class AutosaveEvent extends Span {
+        @Label("Component")
+        String component;
+        @Label("Full")
+        @Description("Every layer was written, not only the changed tiles")
+        boolean full;
+        @Label("Tiles")
+        int tiles;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.example.paint.InputToPaint")
+    @Label("Input To Paint")
+    @Category("Paint")
+    @Description("Time from a mouse event to the end of the next paint of its canvas")
+    static final class InputToPaintEvent extends Event {
+        @Label("Component")
+        String component;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    private Telemetry() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Switch telemetry on or off; the MXBeans are registered in the background the first time it is on.
+    public static synchronized void setEnabled(boolean on) {
+        enabled = on;
+        if (on && !registered) {
+            registered = true;
+            FileHandler.execute(Telemetry::register);
+        }
+    }
+
+    private static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new Bean(), new ObjectName("com.example.paint:type=Telemetry"));
+            for (Metric metric : Metric.values()) {
+                server.registerMBean(metric, new ObjectName("com.example.paint:type=Telemetry,name=" + metric.beanName));
+            }
+        } catch (Exception ex) {
+            System.err.println("Telemetry: cannot register MXBeans: " + ex);
+        }
+    }
+
+    // Start timing a path; null while telemetry is off.
+    public static Span begin(Metric metric) {
+        if (!enabled) {
+            return null;
+        }
+        Span span;
+        switch (metric) {
+            case STROKE_SEGMENT:
+                span = new StrokeSegmentEvent();
+                break;
+            case PAINT:
+                span = new PaintEvent();
+                break;
+            case IMAGE_ENCODE:
+                span = new ImageEncodeEvent();
+                break;
+            case IMAGE_DECODE:
+                span = new ImageDecodeEvent();
+                break;
+            case PDF_PAGE:
+                span = new PdfPageEvent();
+                break;
+            case AUTOSAVE:
+                span = new AutosaveEvent();
+                break;
+            default:
+                throw new IllegalArgumentException(metric + " is not timed with a span");
+        }
+        span.metric = metric;
+        span.begin();
+        span.start = System.nanoTime();
+        return span;
+    }
+
+    // A stroke segment of the given points was drawn, damaging the given region (or nothing).
+    public static void endStroke(Span span, int points, Rectangle damage) {
+        if (span != null) {
+            StrokeSegmentEvent event = (StrokeSegmentEvent) span;
+            event.points = points;
+            event.pixels = area(damage);
+            finish(span, event.pixels);
+        }
+    }
+
+    // A canvas panel finished painting the given clip.
+    public static void endPaint(Span span, String component, Rectangle clip) {
+        if (span != null) {
+            PaintEvent event = (PaintEvent) span;
+            event.component = component;
+            event.pixels = area(clip);
+            finish(span, event.pixels);
+            synchronized (Telemetry.class) {
+                fpsFrames++;
+            }
+        }
+    }
+
+    // An image of the given format and size was encoded or decoded.
+    public static void endImage(Span span, String format, int width, int height) {
+        if (span instanceof ImageEncodeEvent) {
+            ImageEncodeEvent event = (ImageEncodeEvent) span;
+            event.format = format;
+            event.width = width;
+            event.height = height;
+        } else if (span instanceof ImageDecodeEvent) {
+            ImageDecodeEvent event = (ImageDecodeEvent) span;
+            event.format = format;
+            event.width = width;
+            event.height = height;
+        }
+        if (span != null) {
+            finish(span, (long) width * height);
+        }
+    }
+
+    // A PDF page of the given size was encoded and added.
+    public static void endPdfPage(Span span, String compression, int width, int height) {
+        if (span != null) {
+            PdfPageEvent event = (PdfPageEvent) span;
+            event.compression = compression;
+            event.width = width;
+            event.height = height;
+            finish(span, (long) width * height);
+        }
+    }
+
+    // An autosave checkpoint of a component wrote the given tiles (every layer if full) in so many bytes.
+    public static void endAutosave(Span span, String component, boolean full, int tiles, long bytes) {
+        if (span != null) {
+            AutosaveEvent event = (AutosaveEvent) span;
+            event.component = component;
+            event.full = full;
+            event.tiles = tiles;
+            event.bytes = bytes;
+            finish(span, (long) tiles * TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE);
+        }
+    }
+
+    /**
+     * Convert a mouse event's time (InputEvent.getWhen, wall clock millis)
+     * to System.nanoTime, to pass to inputToPaint later; 0 while telemetry
+     * is off.
+     */
+    public static long inputTime(long whenMillis) {
+        if (!enabled) {
+            return 0;
+        }
+        return System.nanoTime() - Math.max(0, System.currentTimeMillis() - whenMillis) * 1_000_000L;
+    }
+
+    // The input at inputNanos (from inputTime) has been painted on the given component.
+    public static void inputToPaint(String component, long inputNanos) {
+        if (inputNanos == 0 || !enabled) {
+            return;
+        }
+        long latency = System.nanoTime() - inputNanos;
+        Metric.INPUT_TO_PAINT.record(latency, 0);
+        InputToPaintEvent event = new InputToPaintEvent();
+        if (event.shouldCommit()) {
+            event.component = component;
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    /**
+     * Canvas paints per second, over the time since the last call at least
+     * a second ago (both canvas panels together).
+     */
+    public static synchronized double getFramesPerSecond() {
+        long now = System.nanoTime();
+        if (fpsTime == 0) {
+            fpsTime = now;
+            fpsFrames = 0;
+        } else if (now - fpsTime >= 1_000_000_000L) {
+            fps = fpsFrames * 1e9 / (now - fpsTime);
+            fpsTime = now;
+            fpsFrames = 0;
+        }
+        return fps;
+    }
+
+    private static void finish(Span span, long pixels) {
+        long nanos = System.nanoTime() - span.start;
+        span.end();
+        if (span.shouldCommit()) {
+            span.commit();
+        }
+        span.metric.record(nanos, pixels);
+    }
+
+    private static long area(Rectangle r) {
+        return r == null || r.isEmpty() ? 0 : (long) r.width * r.height;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.function.LongSupplier;
+
+/**
+ * TelemetryHud is the performance overlay of a canvas panel. Press F3 to
+ * show the panel's frames per second, paint and input-to-paint times, stroke
+ * segment times and the memory held by its canvas tiles in the bottom-left
+ * corner; -Dpaint.hud=true shows it from the start. Showing the HUD
+ * switches telemetry on, and hiding it switches it off again unless it was
+ * on before (see Telemetry).
+ *
+ * The HUD also does the panel's share of the measuring: the panel calls
+ * beginPaint and endPaint around paintComponent, and the HUD notes the time
+ * of the first mouse event since the last paint, so endPaint can record the
+ * input-to-paint latency. The figures are refreshed twice a second.
+ */
+public class TelemetryHud {
+    private static final Color BACKGROUND = new Color(0, 0, 0, 170);
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+    private final JComponent owner;
+    private final String name;
+    private final LongSupplier canvasBytes;
+    private final Timer refresh = new Timer(500, e -> update());
+    private boolean visible;
+    private boolean enabledBefore;   // telemetry was on before the HUD was shown
+    private long pendingInput;       // time of the first unpainted mouse event (Telemetry.inputTime), or 0
+    private int frames;
+    private long framesSince;
+    private String[] lines = new String[0];
+    private final Rectangle bounds = new Rectangle(); // where the HUD was last drawn
+
+    /**
+     * HUD for a canvas panel; name identifies the panel in the telemetry and
+     * canvasBytes reports the memory of its tiles.
+     */
+    public TelemetryHud(JComponent owner, String name, LongSupplier canvasBytes) {
+        this.owner = owner;
+        this.name = name;
+        this.canvasBytes = canvasBytes;
+        MouseAdapter input = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                input(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                input(e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                input(e);
+            }
+        };
+        owner.addMouseListener(input);
+        owner.addMouseMotionListener(input);
+        owner.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("F3"), "toggleHud");
+        owner.getActionMap().put("toggleHud", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setVisible(!visible);
+            }
+        });
+        if (Boolean.getBoolean("paint.hud")) {
+            setVisible(true);
+        }
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean show) {
+        if (show == visible) {
+            return;
+        }
+        visible = show;
+        if (show) {
+            enabledBefore = Telemetry.isEnabled();
+            Telemetry.setEnabled(true);
+            frames = 0;
+            framesSince = System.nanoTime();
+            update();
+            refresh.start();
+        } else {
+            refresh.stop();
+            Telemetry.setEnabled(enabledBefore);
+            owner.repaint(bounds);
+        }
+    }
+
+    private void input(MouseEvent e) {
+        if (pendingInput == 0) {
+            pendingInput = Telemetry.inputTime(e.getWhen());
+        }
+    }
+
+    // Call first in paintComponent; null while telemetry is off.
+    public Telemetry.Span beginPaint() {
+        return Telemetry.begin(Telemetry.Metric.PAINT);
+    }
+
+    // Call last in paintComponent: records the paint and the input it shows, then draws the HUD if shown.
+    public void endPaint(Graphics g, Telemetry.Span span) {
+        Telemetry.endPaint(span, name, g.getClipBounds());
+        if (pendingInput != 0) {
+            Telemetry.inputToPaint(name, pendingInput);
+            pendingInput = 0;
+        }
+        frames++;
+        if (visible) {
+            paintHud(g);
+        }
+    }
+
+    // Take new figures and repaint the HUD.
+    private void update() {
+        long now = System.nanoTime();
+        double fps = frames * 1e9 / Math.max(1, now - framesSince);
+        frames = 0;
+        framesSince = now;
+        Telemetry.Metric paint = Telemetry.Metric.PAINT;
+        Telemetry.Metric input = Telemetry.Metric.INPUT_TO_PAINT;
+        Telemetry.Metric stroke = Telemetry.Metric.STROKE_SEGMENT;
+        Runtime runtime = Runtime.getRuntime();
+        lines = new String[]{
+                String.format("%s  %.0f fps", name, fps),
+                String.format("paint          p50 %6.2f  p99 %6.2f ms", paint.getP50Millis(), paint.getP99Millis()),
+                String.format("input to paint p50 %6.1f  p90 %6.1f  p99 %6.1f ms",
+                        input.getP50Millis(), input.getP90Millis(), input.getP99Millis()),
+                String.format("stroke segment p50 %6.2f  p99 %6.2f ms", stroke.getP50Millis(), stroke.getP99Millis()),
+                String.format("canvas %.1f MB  heap %d / %d MB", canvasBytes.getAsLong() / 1048576.0,
+                        (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.maxMemory() >> 20),
+        };
+        owner.repaint(bounds);
+        FontMetrics metrics = owner.getFontMetrics(FONT);
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, metrics.stringWidth(line));
+        }
+        int height = lines.length * metrics.getHeight();
+        bounds.setBounds(8, owner.getHeight() - height - 16, width + 12, height + 8);
+        owner.repaint(bounds);
+    }
+
+    private void paintHud(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g2.setColor(BACKGROUND);
+        g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        g2.setColor(Color.WHITE);
+        g2.setFont(FONT);
+        FontMetrics metrics = g2.getFontMetrics();
+        int y = bounds.y + 4 + metrics.getAscent();
+        for (String line : lines) {
+            g2.drawString(line, bounds.x + 6, y);
+            y += metrics.getHeight();
+        }
+        g2.dispose();
+    }
+}
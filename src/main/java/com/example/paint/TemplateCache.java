@@ -0,0 +1,131 @@
+package com.example.paint;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * TemplateCache holds decoded tracing templates and copies of them scaled to
+ * a panel size, so the Tracing Pad can blit its background unscaled instead
+ * of rescaling the image on every repaint. Scaled copies are created in the
+ * pixel format of the screen (GraphicsConfiguration.createCompatibleImage)
+ * and flattened onto the panel's background colour, so drawing one is a
+ * plain opaque copy without conversion or alpha blending.
+ *
+ * Templates are decoded and scaled on FileHandler's background threads.
+ * Entries are evicted least recently used first once the cache holds more
+ * than -Dpaint.templateCacheMB (64 by default) of pixels.
+ */
+public class TemplateCache {
+    private final ImageLruCache<Key> images;
+    private final Set<Key> loading = new HashSet<>();
+
+    /** A decoded template (width and height 0) or a copy scaled to a size over a matte colour. */
+    private static final class Key {
+        final File file;
+        final int width, height, matte;
+
+        Key(File file, int width, int height, int matte) {
+            this.file = file.getAbsoluteFile();
+            this.width = width;
+            this.height = height;
+            this.matte = matte;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return file.equals(k.file) && width == k.width && height == k.height && matte == k.matte;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, width, height, matte);
+        }
+    }
+
+    public TemplateCache(long budgetBytes) {
+        images = new ImageLruCache<>(budgetBytes);
+    }
+
+    public static TemplateCache withConfiguredBudget() {
+        return new TemplateCache(Long.getLong("paint.templateCacheMB", 64) * 1024 * 1024);
+    }
+
+    /**
+     * The template scaled to width x height over the matte colour, or null if
+     * it is not cached yet. In that case it is loaded in the background and
+     * onReady is called on the EDT when it is available (onError if it cannot
+     * be read). gc may be null, e.g. when headless.
+     */
+    public synchronized BufferedImage get(File file, int width, int height, Color matte, GraphicsConfiguration gc,
+                                          Consumer<BufferedImage> onReady, Consumer<Exception> onError) {
+        Key key = new Key(file, width, height, matte.getRGB());
+        BufferedImage scaled = images.get(key);
+        if (scaled != null || !loading.add(key)) {
+            return scaled;
+        }
+        FileHandler.execute(() -> {
+            try {
+                BufferedImage image = load(key, gc);
+                SwingUtilities.invokeLater(() -> onReady.accept(image));
+            } catch (Exception ex) {
+                SwingUtilities.invokeLater(() -> onError.accept(ex));
+            } finally {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+            }
+        });
+        return null;
+    }
+
+    // Decode (or reuse) the template and scale it, caching both. Runs on a background thread.
+    private BufferedImage load(Key key, GraphicsConfiguration gc) throws Exception {
+        File file = key.file;
+        Key originalKey = new Key(file, 0, 0, 0);
+        BufferedImage original;
+        synchronized (this) {
+            original = images.get(originalKey);
+        }
+        if (original == null) {
+            try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                original = FileHandler.decode(in, file.getName(), reader -> { });
+            }
+            put(originalKey, original);
+        }
+        BufferedImage scaled = gc != null
+                ? gc.createCompatibleImage(key.width, key.height, Transparency.OPAQUE)
+                : new BufferedImage(key.width, key.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setColor(new Color(key.matte));
+        g.fillRect(0, 0, key.width, key.height);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(original, 0, 0, key.width, key.height, null);
+        g.dispose();
+        put(key, scaled);
+        return scaled;
+    }
+
+    private synchronized void put(Key key, BufferedImage image) {
+        images.put(key, image);
+    }
+
+    public synchronized long getMemoryBytes() {
+        return images.getMemoryBytes();
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+}
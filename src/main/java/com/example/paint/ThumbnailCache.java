@@ -0,0 +1,326 @@
+package com.example.paint;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ThumbnailCache makes small previews of image files for the
+ * ThumbnailGallery. A thumbnail is decoded with source subsampling (as
+ * TiledImageLoader decodes its preview), so a large photo is never decoded
+ * at full size, then scaled to fit -Dpaint.thumbnailSize (128) pixels.
+ *
+ * Thumbnails are kept in memory, least recently used evicted first beyond
+ * -Dpaint.thumbnailCacheMB (64), and written as small PNGs to a disk cache
+ * (-Dpaint.thumbnailDir, ~/.basic-paint/thumbnails by default) named by a
+ * hash of the file's path, length and modification time, so a changed file
+ * gets a new thumbnail and revisiting a folder reads nothing but those. The
+ * disk cache is trimmed to -Dpaint.thumbnailDiskMB (256), oldest first.
+ *
+ * Thumbnails are made on -Dpaint.thumbnailThreads threads (one per core by
+ * default), the most recently requested first: a gallery asks for the cells
+ * it paints, so what is on screen after a scroll comes before what scrolled
+ * past, and requests that have waited too long are dropped (the cells ask
+ * again if they are painted again).
+ */
+public class ThumbnailCache {
+    private static final int MAX_PENDING = 256;
+    private static final int MAX_FAILED = 1024; // failures remembered, so unreadable files are not retried on every paint
+    private static final ThumbnailCache SHARED = new ThumbnailCache(Integer.getInteger("paint.thumbnailSize", 128),
+            Long.getLong("paint.thumbnailCacheMB", 64) * 1024 * 1024,
+            new File(System.getProperty("paint.thumbnailDir",
+                    new File(System.getProperty("user.home"), ".basic-paint/thumbnails").getPath())),
+            Long.getLong("paint.thumbnailDiskMB", 256) * 1024 * 1024,
+            Integer.getInteger("paint.thumbnailThreads", Runtime.getRuntime().availableProcessors()));
+
+    /** An image file as it was when listed: a thumbnail is only reused while its length and time are the same. */
+    public static final class Key {
+        final File file;
+        final long length, modified;
+
+        private Key(File file, long length, long modified) {
+            this.file = file;
+            this.length = length;
+            this.modified = modified;
+        }
+
+        // Reads the file's length and time, so list folders off the EDT.
+        public static Key of(File file) {
+            return new Key(file.getAbsoluteFile(), file.length(), file.lastModified());
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return file.equals(k.file) && length == k.length && modified == k.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, length, modified);
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    private final int size;
+    private final File dir;
+    private final long diskBudgetBytes;
+    private final ExecutorService executor;
+    private final ImageLruCache<Key> images;
+    private final Map<Key, Runnable> loading = new HashMap<>(); // pending or being made, with who to tell
+    private final Deque<Key> pending = new ArrayDeque<>();       // newest first
+    private final Map<Key, Exception> failed = new LinkedHashMap<Key, Exception>() { // oldest dropped first
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Exception> eldest) {
+            return size() > MAX_FAILED;
+        }
+    };
+    private final AtomicLong made = new AtomicLong(), fromDisk = new AtomicLong();
+    private boolean trimmed;
+
+    public ThumbnailCache(int size, long budgetBytes, File dir, long diskBudgetBytes, int threads) {
+        this.size = size;
+        images = new ImageLruCache<>(budgetBytes);
+        this.dir = dir;
+        this.diskBudgetBytes = diskBudgetBytes;
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "thumbnails");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    // The cache configured with the -Dpaint.thumbnail* properties, shared by all galleries.
+    public static ThumbnailCache shared() {
+        return SHARED;
+    }
+
+    // Largest width and height of a thumbnail.
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The thumbnail of a file, or null if it is not in memory. In that case
+     * it is read from the disk cache or made in the background, and onReady
+     * is called on the EDT when it is available. A file that cannot be read
+     * gets no thumbnail; see getError.
+     */
+    public synchronized BufferedImage get(Key key, Runnable onReady) {
+        BufferedImage image = images.get(key);
+        if (image != null || failed.containsKey(key)) {
+            return image;
+        }
+        if (loading.put(key, onReady) != null) {
+            // already asked for: move it to the front, the cell is on screen again
+            if (pending.remove(key)) {
+                pending.addFirst(key);
+            }
+            return null;
+        }
+        pending.addFirst(key);
+        if (pending.size() > MAX_PENDING) {
+            loading.remove(pending.removeLast());
+        } else {
+            executor.execute(this::makeNext);
+        }
+        if (!trimmed) {
+            trimmed = true;
+            executor.execute(this::trimDisk);
+        }
+        return null;
+    }
+
+    // Why a file got no thumbnail, or null.
+    public synchronized Exception getError(Key key) {
+        return failed.get(key);
+    }
+
+    // Thumbnails decoded from image files, and read from the disk cache, since start.
+    public long getMadeCount() {
+        return made.get();
+    }
+
+    public long getDiskHitCount() {
+        return fromDisk.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return images.getMemoryBytes();
+    }
+
+    // Forget the thumbnails in memory, e.g. to time the disk cache; the disk cache is kept.
+    public synchronized void clearMemory() {
+        images.clear();
+    }
+
+    // Make the newest pending thumbnail; one of these is queued per request, so none is left behind.
+    private void makeNext() {
+        Key key;
+        synchronized (this) {
+            key = pending.pollFirst();
+        }
+        if (key == null) {
+            return; // dropped, or made by an earlier run
+        }
+        BufferedImage image = null;
+        Exception error = null;
+        try {
+            image = load(key);
+        } catch (Exception ex) {
+            error = ex;
+        }
+        Runnable onReady;
+        synchronized (this) {
+            onReady = loading.remove(key);
+            if (image != null) {
+                images.put(key, image);
+            } else {
+                failed.put(key, error);
+            }
+        }
+        if (onReady != null) {
+            SwingUtilities.invokeLater(onReady);
+        }
+    }
+
+    // Read the thumbnail from the disk cache, or make it and write it there. Runs on a background thread.
+    private BufferedImage load(Key key) throws IOException {
+        File cached = new File(dir, name(key));
+        if (cached.isFile()) {
+            try {
+                BufferedImage image = ImageIO.read(cached);
+                if (image != null) {
+                    fromDisk.incrementAndGet();
+                    return image;
+                }
+            } catch (IOException ex) {
+                // made again below
+            }
+        }
+        BufferedImage image = make(key.file);
+        made.incrementAndGet();
+        try {
+            dir.mkdirs();
+            FileHandler.writeAtomically(cached, file -> ImageIO.write(image, "png", file));
+        } catch (Exception ex) {
+            // the cache is only a shortcut; the thumbnail is still shown
+        }
+        return image;
+    }
+
+    // Decode every n-th pixel of every n-th row, n as large as keeps at least the thumbnail size, then scale.
+    BufferedImage make(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("Cannot read " + file.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            BufferedImage decoded;
+            Telemetry.Span span = Telemetry.begin(Telemetry.Metric.IMAGE_DECODE);
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                int step = Math.max(1, Math.max(width, height) / size);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                decoded = reader.read(0, param);
+                Telemetry.endImage(span, reader.getFormatName(), decoded.getWidth(), decoded.getHeight());
+            } finally {
+                reader.dispose();
+            }
+            return scale(decoded);
+        }
+    }
+
+    private BufferedImage scale(BufferedImage decoded) {
+        int width = decoded.getWidth(), height = decoded.getHeight();
+        double fit = Math.min(1, (double) size / Math.max(width, height));
+        int w = Math.max(1, (int) Math.round(width * fit)), h = Math.max(1, (int) Math.round(height * fit));
+        boolean alpha = decoded.getColorModel().hasAlpha();
+        BufferedImage thumbnail = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(decoded, 0, 0, w, h, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    // Name in the disk cache: a hash of what makes the thumbnail, so a changed file or size gets a new one.
+    private String name(Key key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((key.file.getPath() + '\n' + key.length + '\n' + key.modified + '\n' + size)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 4);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return name.append(".png").toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every Java platform has SHA-1
+        }
+    }
+
+    // Delete the oldest thumbnails on disk beyond the budget; once, on first use.
+    private void trimDisk() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".png"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= diskBudgetBytes) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= diskBudgetBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * ThumbnailGallery shows the PNG and JPEG files of a folder as a grid of
+ * thumbnails to pick an image from. Thumbnails come from the shared
+ * ThumbnailCache: the grid's cells all have the same size, so the list
+ * never measures a cell it does not show, and a cell that is painted
+ * before its thumbnail is ready shows a blank frame and asks for it, so
+ * scrolling never waits for a decode. The folder is listed on a
+ * SwingWorker. The gallery starts in the folder it was last used in
+ * (-Dpaint.galleryDir, the home folder at first).
+ */
+public class ThumbnailGallery extends JDialog {
+    private static File lastFolder = new File(System.getProperty("paint.galleryDir", System.getProperty("user.home")));
+
+    private final ThumbnailCache cache;
+    private final DefaultListModel<ThumbnailCache.Key> model = new DefaultListModel<>();
+    private final JList<ThumbnailCache.Key> list = new JList<>(model);
+    private final JLabel folderLabel = new JLabel();
+    private final JButton open = new JButton("Open");
+    private SwingWorker<List<ThumbnailCache.Key>, Void> lister;
+    private File folder;
+    private File chosen;
+
+    private ThumbnailGallery(Window owner, ThumbnailCache cache, File folder) {
+        super(owner, "Gallery", ModalityType.APPLICATION_MODAL);
+        this.cache = cache;
+        int size = cache.getSize();
+
+        list.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        list.setVisibleRowCount(-1);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFixedCellWidth(size + 24);
+        list.setFixedCellHeight(size + 16 + list.getFontMetrics(list.getFont()).getHeight());
+        list.setCellRenderer(new Cell());
+        list.addListSelectionListener(e -> open.setEnabled(list.getSelectedValue() != null));
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && list.getSelectedValue() != null) {
+                    choose();
+                }
+            }
+        });
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.getVerticalScrollBar().setUnitIncrement(list.getFixedCellHeight() / 4);
+        scroll.setPreferredSize(new Dimension(5 * list.getFixedCellWidth() + 24, 3 * list.getFixedCellHeight() + 8));
+        add(scroll, BorderLayout.CENTER);
+
+        JButton up = new JButton("Up");
+        up.addActionListener(e -> {
+            File parent = this.folder.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                showFolder(parent);
+            }
+        });
+        JButton browse = new JButton("Folder...");
+        browse.addActionListener(e -> browse());
+        JPanel north = new JPanel(new BorderLayout(8, 0));
+        north.setBorder(BorderFactory.createEmptyBorder(4, 8, 4, 8));
+        JPanel navigation = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        navigation.add(up);
+        navigation.add(browse);
+        north.add(navigation, BorderLayout.WEST);
+        north.add(folderLabel, BorderLayout.CENTER);
+        add(north, BorderLayout.NORTH);
+
+        open.setEnabled(false);
+        open.addActionListener(e -> choose());
+        JButton cancel = new JButton("Cancel");
+        cancel.addActionListener(e -> close());
+        JPanel buttons = new JPanel();
+        buttons.add(open);
+        buttons.add(cancel);
+        add(buttons, BorderLayout.SOUTH);
+        getRootPane().setDefaultButton(open);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        pack();
+        showFolder(folder);
+    }
+
+    /**
+     * Show the gallery and wait until the user picks an image or cancels.
+     * Returns the image file, or null if cancelled. Must be called on the EDT.
+     */
+    public static File choose(Component parent) {
+        ThumbnailGallery gallery = new ThumbnailGallery(SwingUtilities.getWindowAncestor(parent),
+                ThumbnailCache.shared(), lastFolder);
+        gallery.setLocationRelativeTo(parent);
+        gallery.setVisible(true);
+        return gallery.chosen;
+    }
+
+    // The image files of a folder, sorted by name, with their length and time; off the EDT.
+    static List<ThumbnailCache.Key> list(File folder) {
+        File[] files = folder.listFiles(file -> isImage(file.getName()) && file.isFile());
+        List<ThumbnailCache.Key> keys = new ArrayList<>();
+        if (files == null) {
+            return keys;
+        }
+        Arrays.sort(files, (a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+        for (File file : files) {
+            keys.add(ThumbnailCache.Key.of(file));
+        }
+        return keys;
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+    }
+
+    // List a folder in the background and show it when done; a newer folder cancels it.
+    private void showFolder(File dir) {
+        if (lister != null) {
+            lister.cancel(false);
+        }
+        folder = dir;
+        lastFolder = dir;
+        folderLabel.setText(dir.getAbsolutePath() + " - listing...");
+        model.clear();
+        lister = new SwingWorker<List<ThumbnailCache.Key>, Void>() {
+            @Override
+            protected List<ThumbnailCache.Key> doInBackground() {
+                return list(dir);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    List<ThumbnailCache.Key> keys = get();
+                    model.addAll(keys);
+                    folderLabel.setText(dir.getAbsolutePath() + " - " + keys.size() + " images");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    folderLabel.setText(dir.getAbsolutePath() + " - " + ex.getCause().getMessage());
+                }
+            }
+        };
+        lister.execute();
+    }
+
+    private void browse() {
+        JFileChooser chooser = new JFileChooser(folder);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            showFolder(chooser.getSelectedFile());
+        }
+    }
+
+    private void choose() {
+        chosen = list.getSelectedValue().getFile();
+        close();
+    }
+
+    private void close() {
+        if (lister != null) {
+            lister.cancel(false);
+        }
+        dispose();
+    }
+
+    /** A thumbnail centred over its file name; a frame until the thumbnail is ready. */
+    private final class Cell extends DefaultListCellRenderer implements Icon {
+        private Image thumbnail;
+
+        Cell() {
+            setHorizontalAlignment(CENTER);
+            setHorizontalTextPosition(CENTER);
+            setVerticalTextPosition(BOTTOM);
+            setIcon(this);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            ThumbnailCache.Key key = (ThumbnailCache.Key) value;
+            thumbnail = cache.get(key, list::repaint);
+            Exception error = thumbnail == null ? cache.getError(key) : null;
+            setToolTipText(error != null ? error.getMessage() : null);
+            setIcon(this); // super set it to null
+            return this;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            int size = cache.getSize();
+            if (thumbnail == null) {
+                g.setColor(Color.LIGHT_GRAY);
+                g.drawRect(x, y, size - 1, size - 1);
+                return;
+            }
+            int w = thumbnail.getWidth(null), h = thumbnail.getHeight(null);
+            g.drawImage(thumbnail, x + (size - w) / 2, y + (size - h) / 2, null);
+        }
+
+        @Override
+        public int getIconWidth() {
+            return cache.getSize();
+        }
+
+        @Override
+        public int getIconHeight() {
+            return cache.getSize();
+        }
+    }
+}
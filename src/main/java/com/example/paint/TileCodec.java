@@ -0,0 +1,71 @@
+package com.example.paint;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * TileCodec turns one canvas tile into a compact byte array and back. A
+ * uniform tile is stored as [0, argb] (5 bytes); any other tile as [1,
+ * deflated pixels]. Used for undo history and saved documents.
+ *
+ * An instance reuses its buffers and is not thread-safe.
+ */
+public class TileCodec {
+    private static final int TILE_PIXELS = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] raw = new byte[TILE_PIXELS * 4];
+    private final byte[] packed = new byte[TILE_PIXELS * 4 + (TILE_PIXELS >> 8) + 64]; // deflate's worst case is a little over the raw size
+    private final int[] unpacked = new int[TILE_PIXELS];
+
+    public byte[] encode(TiledCanvas canvas, int tx, int ty) {
+        synchronized (canvas) {
+            int[] data = canvas.getTilePixels(tx, ty);
+            if (data == null) {
+                return ByteBuffer.allocate(5).put((byte) 0).putInt(canvas.getTileColor(tx, ty)).array();
+            }
+            ByteBuffer.wrap(raw).asIntBuffer().put(data);
+        }
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        packed[0] = 1;
+        int length = 1;
+        while (!deflater.finished()) {
+            length += deflater.deflate(packed, length, packed.length - length);
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(packed, 0, out, 0, length);
+        return out;
+    }
+
+    // Write encoded contents back into a tile of the canvas.
+    public void decode(TiledCanvas canvas, int tx, int ty, byte[] encoded) {
+        if (encoded[0] == 0) {
+            canvas.setTile(tx, ty, null, ByteBuffer.wrap(encoded, 1, 4).getInt());
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(encoded, 1, encoded.length - 1);
+        try {
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated after " + n + " of " + raw.length + " bytes");
+                }
+                n += read;
+            }
+            if (n < raw.length) {
+                throw new DataFormatException("ended after " + n + " of " + raw.length + " bytes");
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupt tile data", ex);
+        }
+        ByteBuffer.wrap(raw).asIntBuffer().get(unpacked);
+        canvas.setTile(tx, ty, unpacked, 0);
+    }
+}
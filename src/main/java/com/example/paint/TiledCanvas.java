@@ -0,0 +1,397 @@
+package com.example.paint;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * TiledCanvas stores a drawing as a grid of 256x256 ARGB tiles that are only
+ * allocated when first painted. A tile that has never been painted (or that
+ * has been cleared) is kept as a single colour value, so memory grows with
+ * the painted area rather than with the canvas size.
+ *
+ * Coordinates are canvas pixels; (0, 0) is the top-left corner. All methods
+ * lock on the canvas, so strokes can be rasterized on a background thread
+ * while the EDT paints.
+ */
+public class TiledCanvas {
+    public static final int TILE_SIZE = 256;
+    public static final int MAX_DIMENSION = 16384;
+    public static final int GRID = MAX_DIMENSION / TILE_SIZE; // stride of tile indices that outlive a resize: ty * GRID + tx
+
+    /**
+     * Notified just before a tile's pixels change, while its old contents can
+     * still be read through getTilePixels/getTileColor.
+     */
+    public interface TileListener {
+        void tileWillChange(TiledCanvas canvas, int tx, int ty);
+    }
+
+    private final int background;
+    private int width, height;
+    private int cols, rows;
+    private BufferedImage[] tiles;  // null entry = uniform tile
+    private int[] colors;           // colour of each uniform tile
+    private final BitSet modified = new BitSet(); // tiles drawn since the last compact()
+    private final BitSet shared = new BitSet();   // tiles also referenced by a snapshot
+    private final List<TileListener> listeners = new CopyOnWriteArrayList<>();
+
+    public TiledCanvas(int width, int height, int background) {
+        checkSize(width, height);
+        this.background = background;
+        this.width = width;
+        this.height = height;
+        this.cols = tilesFor(width);
+        this.rows = tilesFor(height);
+        this.tiles = new BufferedImage[cols * rows];
+        this.colors = new int[cols * rows];
+        Arrays.fill(colors, background);
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IllegalArgumentException("Canvas size must be between 1 and " + MAX_DIMENSION
+                    + " pixels per side: " + width + "x" + height);
+        }
+    }
+
+    private static int tilesFor(int pixels) {
+        return (pixels + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public void addTileListener(TileListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTileListener(TileListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireTileWillChange(int tx, int ty) {
+        for (TileListener listener : listeners) {
+            listener.tileWillChange(this, tx, ty);
+        }
+    }
+
+    // Canvas-space rectangle covered by a tile.
+    public static Rectangle tileBounds(int tx, int ty) {
+        return new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+    }
+
+    // Grow the canvas so it is at least the given size. Existing tiles are kept.
+    public synchronized void ensureSize(int newWidth, int newHeight) {
+        newWidth = Math.min(Math.max(width, newWidth), MAX_DIMENSION);
+        newHeight = Math.min(Math.max(height, newHeight), MAX_DIMENSION);
+        if (newWidth == width && newHeight == height) {
+            return;
+        }
+        int newCols = tilesFor(newWidth);
+        int newRows = tilesFor(newHeight);
+        BufferedImage[] newTiles = new BufferedImage[newCols * newRows];
+        int[] newColors = new int[newCols * newRows];
+        Arrays.fill(newColors, background);
+        for (int ty = 0; ty < rows; ty++) {
+            for (int tx = 0; tx < cols; tx++) {
+                newTiles[ty * newCols + tx] = tiles[ty * cols + tx];
+                newColors[ty * newCols + tx] = colors[ty * cols + tx];
+            }
+        }
+        remap(modified, cols, newCols);
+        remap(shared, cols, newCols);
+        width = newWidth;
+        height = newHeight;
+        cols = newCols;
+        rows = newRows;
+        tiles = newTiles;
+        colors = newColors;
+    }
+
+    // Move tile bits to their index in a grid that is newCols wide.
+    private static void remap(BitSet bits, int oldCols, int newCols) {
+        BitSet moved = new BitSet();
+        for (int index = bits.nextSetBit(0); index >= 0; index = bits.nextSetBit(index + 1)) {
+            moved.set(index / oldCols * newCols + index % oldCols);
+        }
+        bits.clear();
+        bits.or(moved);
+    }
+
+    /**
+     * Copy-on-write snapshot of the canvas, e.g. for saving in the background.
+     * The snapshot shares tile pixels with this canvas; whichever side draws
+     * on a shared tile first copies it, so taking a snapshot is cheap and the
+     * user can keep drawing while the snapshot is written out.
+     */
+    public synchronized TiledCanvas snapshot() {
+        TiledCanvas copy = new TiledCanvas(width, height, background);
+        System.arraycopy(tiles, 0, copy.tiles, 0, tiles.length);
+        System.arraycopy(colors, 0, copy.colors, 0, colors.length);
+        for (int index = 0; index < tiles.length; index++) {
+            if (tiles[index] != null) {
+                shared.set(index);
+                copy.shared.set(index);
+            }
+        }
+        return copy;
+    }
+
+    // Give a tile that is shared with a snapshot its own copy of the pixels.
+    private void unshare(int index) {
+        if (shared.get(index)) {
+            shared.clear(index);
+            BufferedImage tile = tiles[index];
+            if (tile != null) {
+                BufferedImage copy = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                System.arraycopy(pixels(tile), 0, pixels(copy), 0, TILE_SIZE * TILE_SIZE);
+                tiles[index] = copy;
+            }
+        }
+    }
+
+    /**
+     * Runs a Java2D drawing operation on every tile that intersects the given
+     * bounds. The Graphics2D is translated so the operation can use canvas
+     * coordinates; each call gets a fresh context, so colour and stroke must
+     * be set inside the operation.
+     */
+    public synchronized void draw(Rectangle bounds, Consumer<Graphics2D> op) {
+        Rectangle r = bounds.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        int tx0 = r.x / TILE_SIZE, tx1 = (r.x + r.width - 1) / TILE_SIZE;
+        int ty0 = r.y / TILE_SIZE, ty1 = (r.y + r.height - 1) / TILE_SIZE;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                BufferedImage tile = materialize(tx, ty);
+                Graphics2D g = tile.createGraphics();
+                g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+                op.accept(g);
+                g.dispose();
+            }
+        }
+    }
+
+    // Copy an image onto the canvas with its top-left corner at (x, y).
+    public synchronized void drawImage(Image img, int x, int y) {
+        Rectangle bounds = new Rectangle(x, y, img.getWidth(null), img.getHeight(null));
+        draw(bounds, g -> g.drawImage(img, x, y, null));
+    }
+
+    // Reset every tile to the background colour and release its pixels.
+    public synchronized void clear() {
+        for (int index = 0; index < tiles.length; index++) {
+            if (tiles[index] != null || colors[index] != background) {
+                fireTileWillChange(index % cols, index / cols);
+            }
+        }
+        Arrays.fill(tiles, null);
+        Arrays.fill(colors, background);
+        modified.clear();
+        shared.clear();
+    }
+
+    // Live pixel array of a tile, or null if the tile is a single colour (see getTileColor).
+    // Callers must hold the canvas lock while they use the array.
+    public synchronized int[] getTilePixels(int tx, int ty) {
+        BufferedImage tile = tiles[ty * cols + tx];
+        return tile == null ? null : pixels(tile);
+    }
+
+    // Colour of a uniform tile; undefined while the tile holds its own pixels.
+    public synchronized int getTileColor(int tx, int ty) {
+        return colors[ty * cols + tx];
+    }
+
+    // Live pixel array of a tile that is about to be written directly, allocated from its
+    // uniform colour if needed. Callers must hold the canvas lock while they write to it.
+    public synchronized int[] editTilePixels(int tx, int ty) {
+        return pixels(materialize(tx, ty));
+    }
+
+    /**
+     * Replace a tile's contents, e.g. when undoing. A null pixel array makes
+     * the tile uniform with the given colour; otherwise the pixels are copied.
+     */
+    public synchronized void setTile(int tx, int ty, int[] data, int color) {
+        fireTileWillChange(tx, ty);
+        int index = ty * cols + tx;
+        if (data == null) {
+            tiles[index] = null;
+            colors[index] = color;
+            shared.clear(index);
+            return;
+        }
+        unshare(index);
+        BufferedImage tile = tiles[index];
+        if (tile == null) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            tiles[index] = tile;
+        }
+        System.arraycopy(data, 0, pixels(tile), 0, TILE_SIZE * TILE_SIZE);
+        modified.set(index);
+    }
+
+    // Replace the contents with another canvas's, growing to fit it; tiles beyond it become background.
+    public synchronized void copyFrom(TiledCanvas source) {
+        synchronized (source) {
+            ensureSize(source.width, source.height);
+            for (int ty = 0; ty < rows; ty++) {
+                for (int tx = 0; tx < cols; tx++) {
+                    if (tx < source.cols && ty < source.rows) {
+                        setTile(tx, ty, source.getTilePixels(tx, ty), source.getTileColor(tx, ty));
+                    } else if (tiles[ty * cols + tx] != null || colors[ty * cols + tx] != background) {
+                        setTile(tx, ty, null, background);
+                    }
+                }
+            }
+        }
+    }
+
+    // Return the image of a tile about to be drawn on, allocating it from its uniform colour if needed.
+    private BufferedImage materialize(int tx, int ty) {
+        fireTileWillChange(tx, ty);
+        int index = ty * cols + tx;
+        unshare(index);
+        BufferedImage tile = tiles[index];
+        if (tile == null) {
+            tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            int color = colors[index];
+            if (color != 0) {
+                Arrays.fill(pixels(tile), color);
+            }
+            tiles[index] = tile;
+        }
+        modified.set(index);
+        return tile;
+    }
+
+    static int[] pixels(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Turn tiles drawn since the last call back into single colour values if
+     * every pixel ended up the same (for example after erasing to white).
+     */
+    public synchronized void compact() {
+        for (int index = modified.nextSetBit(0); index >= 0; index = modified.nextSetBit(index + 1)) {
+            BufferedImage tile = tiles[index];
+            if (tile == null) {
+                continue;
+            }
+            int[] data = pixels(tile);
+            int first = data[0];
+            boolean uniform = true;
+            for (int i = 1; i < data.length; i++) {
+                if (data[i] != first) {
+                    uniform = false;
+                    break;
+                }
+            }
+            if (uniform) {
+                tiles[index] = null;
+                colors[index] = first;
+                shared.clear(index);
+            }
+        }
+        modified.clear();
+    }
+
+    // Paint the tiles that intersect the clip of g at the origin of g.
+    public synchronized void paint(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        Rectangle r = clip == null ? getBounds() : clip.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        Shape oldClip = g.getClip();
+        Color oldColor = g.getColor();
+        g.clipRect(0, 0, width, height); // edge tiles extend past the canvas
+        int tx0 = r.x / TILE_SIZE, tx1 = (r.x + r.width - 1) / TILE_SIZE;
+        int ty0 = r.y / TILE_SIZE, ty1 = (r.y + r.height - 1) / TILE_SIZE;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int index = ty * cols + tx;
+                int x = tx * TILE_SIZE, y = ty * TILE_SIZE;
+                BufferedImage tile = tiles[index];
+                if (tile != null) {
+                    g.drawImage(tile, x, y, null);
+                } else if ((colors[index] >>> 24) != 0) {
+                    g.setColor(new Color(colors[index], true));
+                    g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+        g.setColor(oldColor);
+        g.setClip(oldClip);
+    }
+
+    // Flatten the whole canvas into a single ARGB image, e.g. for saving.
+    public BufferedImage toImage() {
+        return toImage(BufferedImage.TYPE_INT_ARGB, null);
+    }
+
+    /**
+     * Flatten the canvas into a new image of the given type, painted over the
+     * matte colour if one is given (e.g. white for formats without alpha).
+     */
+    public synchronized BufferedImage toImage(int imageType, Color matte) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Graphics2D g = image.createGraphics();
+        if (matte != null) {
+            g.setColor(matte);
+            g.fillRect(0, 0, width, height);
+        } else {
+            g.setComposite(AlphaComposite.Src);
+        }
+        paint(g);
+        g.dispose();
+        return image;
+    }
+
+    // Number of tiles currently holding their own pixels.
+    public synchronized int getAllocatedTileCount() {
+        int count = 0;
+        for (BufferedImage tile : tiles) {
+            if (tile != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Approximate heap used by tile pixels, in bytes.
+    public long getMemoryBytes() {
+        return (long) getAllocatedTileCount() * TILE_SIZE * TILE_SIZE * 4;
+    }
+}
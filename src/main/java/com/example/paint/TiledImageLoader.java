@@ -0,0 +1,240 @@
+package com.example.paint;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * TiledImageLoader opens an image onto a canvas without decoding it in one
+ * piece. open reads the size from the file header and decodes a preview
+ * subsampled to at most -Dpaint.openPreviewSize pixels a side (2048 by
+ * default), which is all there is to do for most images. For a larger one
+ * the preview is shown straight away (paintPending) and the image is then
+ * decoded in bands of 1024 rows on a background thread, each band placed on
+ * the canvas through the stroke pipeline. The bands in view are decoded
+ * first, so the detail arrives where the user zooms in. No full-size copy
+ * of the image is ever held besides the canvas tiles themselves.
+ *
+ * An image larger than the canvas allows (TiledCanvas.MAX_DIMENSION a side)
+ * or than -Dpaint.openMaxMegapixels (a twelfth of the maximum heap in
+ * megapixels by default, i.e. a third of it in ARGB tiles) is decoded
+ * subsampled to fit instead of being cropped.
+ */
+public class TiledImageLoader {
+    private static final int PREVIEW_SIZE = Math.max(256, Integer.getInteger("paint.openPreviewSize", 2048));
+    private static final long MAX_PIXELS = Math.max(1, Long.getLong("paint.openMaxMegapixels",
+            Runtime.getRuntime().maxMemory() / 12 / 1_000_000)) * 1_000_000;
+    private static final int BAND_ROWS = 4 * TiledCanvas.TILE_SIZE;
+
+    private final File file;
+    private final ImageReader reader;        // kept open for the bands; only one thread decodes at a time
+    private final ImageInputStream in;
+    private final int subsampling;           // source pixels per canvas pixel
+    private final int width, height;         // size on the canvas
+    private final BufferedImage preview;
+    private final int previewSubsampling;    // source pixels per preview pixel
+    private final List<Rectangle> pending = new ArrayList<>(); // bands still to decode, in canvas coordinates
+    private volatile Rectangle visible;
+
+    private TiledImageLoader(File file, ImageInputStream in, ImageReader reader, Consumer<ImageReader> onReader)
+            throws IOException {
+        this.file = file;
+        this.in = in;
+        this.reader = reader;
+        reader.setInput(in, false, true);
+        int sourceWidth = reader.getWidth(0), sourceHeight = reader.getHeight(0);
+        int fit = Math.max(ceilDiv(sourceWidth, TiledCanvas.MAX_DIMENSION),
+                ceilDiv(sourceHeight, TiledCanvas.MAX_DIMENSION));
+        int budget = (int) Math.ceil(Math.sqrt((double) sourceWidth * sourceHeight / MAX_PIXELS));
+        subsampling = Math.max(1, Math.max(fit, budget));
+        width = ceilDiv(sourceWidth, subsampling);
+        height = ceilDiv(sourceHeight, subsampling);
+        previewSubsampling = Math.max(subsampling, ceilDiv(Math.max(sourceWidth, sourceHeight), PREVIEW_SIZE));
+
+        onReader.accept(reader);
+        preview = read(new Rectangle(0, 0, sourceWidth, sourceHeight), previewSubsampling);
+        reader.removeAllIIOReadProgressListeners();
+        if (previewSubsampling != subsampling) {
+            for (int y = 0; y < height; y += BAND_ROWS) {
+                pending.add(new Rectangle(0, y, width, Math.min(BAND_ROWS, height - y)));
+            }
+        }
+    }
+
+    /**
+     * Read the size of an image file and decode its preview. onReader sees
+     * the reader first, e.g. to track progress. Close the loader when done.
+     */
+    public static TiledImageLoader open(File file, Consumer<ImageReader> onReader) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("Cannot read " + file.getName());
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("Unsupported image format: " + file.getName());
+        }
+        ImageReader reader = readers.next();
+        try {
+            return new TiledImageLoader(file, in, reader, onReader);
+        } catch (IOException | RuntimeException ex) {
+            reader.dispose();
+            in.close();
+            throw ex;
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    // True if the preview is the whole image at canvas size, so there are no bands to decode.
+    public boolean isComplete() {
+        return previewSubsampling == subsampling;
+    }
+
+    public BufferedImage getPreview() {
+        return preview;
+    }
+
+    // Source pixels per canvas pixel; above 1 when the image was too large to open at full size.
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    // The canvas region in view, whose bands are decoded next. Called by the panel as it paints.
+    public void setVisible(Rectangle canvasRegion) {
+        visible = canvasRegion;
+    }
+
+    // Draw the preview, scaled up, where the bands are not decoded yet. g is in canvas coordinates.
+    public void paintPending(Graphics2D g) {
+        List<Rectangle> bands;
+        synchronized (pending) {
+            bands = new ArrayList<>(pending);
+        }
+        if (bands.isEmpty()) {
+            return;
+        }
+        Graphics2D scaled = (Graphics2D) g.create();
+        scaled.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        double ratio = (double) subsampling / previewSubsampling; // preview pixels per canvas pixel
+        for (Rectangle band : bands) {
+            int sy0 = (int) (band.y * ratio), sy1 = (int) Math.ceil((band.y + band.height) * ratio);
+            scaled.drawImage(preview, band.x, band.y, band.x + band.width, band.y + band.height,
+                    0, sy0, preview.getWidth(), Math.min(sy1, preview.getHeight()), null);
+        }
+        scaled.dispose();
+    }
+
+    /**
+     * Decode the bands on a background thread, the ones in view first. Each
+     * is handed to place (with its position on the canvas) on the stroke
+     * pipeline, one at a time, and repainted; done then runs on the pipeline
+     * with null, or with the error if a band could not be read. The loader
+     * is closed at the end.
+     */
+    public void loadInBackground(StrokePipeline pipeline, BiConsumer<BufferedImage, Point> place,
+                                 Consumer<Exception> done) {
+        Thread thread = new Thread(() -> {
+            Exception error = null;
+            Semaphore placed = new Semaphore(0);
+            try {
+                for (Rectangle band = nextBand(); band != null; band = nextBand()) {
+                    Rectangle source = new Rectangle(band.x * subsampling, band.y * subsampling,
+                            band.width * subsampling, band.height * subsampling);
+                    BufferedImage image = read(source, subsampling);
+                    Rectangle target = band;
+                    SwingUtilities.invokeLater(() -> pipeline.submit(() -> {
+                        place.accept(image, target.getLocation());
+                        synchronized (pending) {
+                            pending.remove(target);
+                        }
+                        placed.release();
+                        return target;
+                    }));
+                    placed.acquire(); // hold one decoded band at most
+                }
+            } catch (Exception ex) {
+                error = ex;
+                synchronized (pending) {
+                    pending.clear();
+                }
+            } finally {
+                close();
+            }
+            Exception result = error;
+            SwingUtilities.invokeLater(() -> pipeline.submit(() -> {
+                done.accept(result);
+                return getBounds();
+            }));
+        }, "Open " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The pending band nearest the middle of the view, or null when all are decoded.
+    private Rectangle nextBand() {
+        Rectangle view = visible;
+        double middle = view == null || view.isEmpty() ? 0 : view.getCenterY();
+        Rectangle next = null;
+        synchronized (pending) {
+            for (Rectangle band : pending) {
+                if (next == null || Math.abs(band.getCenterY() - middle) < Math.abs(next.getCenterY() - middle)) {
+                    next = band;
+                }
+            }
+        }
+        return next;
+    }
+
+    // Decode a region of the source image with the given subsampling.
+    private BufferedImage read(Rectangle source, int step) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(source.intersection(new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0))));
+        param.setSourceSubsampling(step, step, 0, 0);
+        Telemetry.Span span = Telemetry.begin(Telemetry.Metric.IMAGE_DECODE);
+        BufferedImage image = reader.read(0, param);
+        Telemetry.endImage(span, reader.getFormatName(), image.getWidth(), image.getHeight());
+        return image;
+    }
+
+    // Release the reader and the file; done by loadInBackground, or by the caller if the image was complete.
+    public void close() {
+        reader.dispose();
+        try {
+            in.close();
+        } catch (IOException ex) {
+            // nothing left to read
+        }
+    }
+}
@@ -0,0 +1,696 @@
+package com.example.paint;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Timelapse replays the operations of a StrokeJournal onto offscreen layers
+ * and writes how the drawing was made as an animated PNG, an animated GIF or
+ * a folder of numbered PNG frames (frame00000.png, ...), e.g. to turn into a
+ * video for the Videos tab.
+ *
+ * The journal's clock is sped up (10x by default) and sampled at the frame
+ * rate (30 frames per second by default); strokes are drawn in point by
+ * point, as they were drawn, and pauses longer than -Dpaint.timelapseMaxPause
+ * milliseconds (2000) of drawing time are cut to that. Frames are at most
+ * -Dpaint.timelapseMaxSize (1280) pixels on their longest side.
+ *
+ * Each frame is encoded as soon as the next one is known to differ from it,
+ * so only two frames are held however long the drawing took. Animated frames
+ * hold just the rectangle that changed, drawn over the frame before with the
+ * pixels that did not change transparent, and a frame that does not change
+ * is shown longer instead of written again.
+ */
+public class Timelapse {
+    private static final int HOLD_SECONDS = 2; // the finished drawing stays up at the end
+
+    /** What a timelapse is written as. */
+    public enum Format {
+        APNG("Animated PNG", "png"), GIF("Animated GIF", "gif"), FRAMES("Numbered PNG frames", null);
+
+        private final String label;
+        private final String extension; // null for a folder
+
+        Format(String label, String extension) {
+            this.label = label;
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final Format format;
+    private final int fps;
+    private final double speed;
+    private final long maxPause;
+    private final int maxSize;
+    private final ImageEncoder encoder = ImageEncoder.configured("png");
+
+    /**
+     * A timelapse at fps frames per second, each second showing speed
+     * seconds of drawing; pauses longer than maxPause milliseconds are cut,
+     * and frames are scaled down to at most maxSize pixels.
+     */
+    public Timelapse(Format format, int fps, double speed, long maxPause, int maxSize) {
+        if (fps < 1 || fps > 100 || speed <= 0 || maxSize < 1) {
+            throw new IllegalArgumentException("Unsupported frame rate, speed-up or size");
+        }
+        this.format = format;
+        this.fps = fps;
+        this.speed = speed;
+        this.maxPause = Math.max(0, maxPause);
+        this.maxSize = maxSize;
+    }
+
+    // A timelapse with the -Dpaint.timelapseMaxPause and -Dpaint.timelapseMaxSize settings.
+    public static Timelapse configured(Format format, int fps, double speed) {
+        return new Timelapse(format, fps, speed, Long.getLong("paint.timelapseMaxPause", 2000),
+                Integer.getInteger("paint.timelapseMaxSize", 1280));
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    /**
+     * Replay the journal and write the timelapse to target, a file, or a
+     * folder for FRAMES. Returns the number of frames, fps per second of
+     * timelapse. progress hears the percentage of operations replayed, and
+     * cancelled is checked after each operation.
+     */
+    public int write(StrokeJournal journal, File target, IntConsumer progress, BooleanSupplier cancelled)
+            throws IOException {
+        int width = journal.getWidth(), height = journal.getHeight();
+        double scale = Math.min(1, (double) maxSize / Math.max(width, height));
+        int frameWidth = Math.max(1, (int) Math.round(width * scale));
+        int frameHeight = Math.max(1, (int) Math.round(height * scale));
+        FrameSink sink;
+        if (format == Format.FRAMES) {
+            sink = new PngFrames(target, frameWidth, frameHeight, encoder);
+        } else if (format == Format.GIF) {
+            sink = new GifFrames(target, frameWidth, frameHeight, fps);
+        } else {
+            sink = new ApngFrames(target, frameWidth, frameHeight, fps, encoder);
+        }
+        try {
+            Replay replay = new Replay(LayerStack.withBackground(width, height, journal.getBackground()),
+                    frameWidth, frameHeight, sink);
+            journal.replay(op -> {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Timelapse cancelled");
+                }
+                try {
+                    replay.apply(op);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, progress);
+            return replay.finish();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Replays operations on the drawing's clock, rendering a frame at every
+     * frame time and passing the frames that changed to the sink.
+     */
+    private final class Replay {
+        private final LayerStack layers;
+        private final FrameSink sink;
+        private final int frameWidth, frameHeight;
+        private final BufferedImage next;     // the frame being rendered
+        private final int[] nextPixels;
+        private final int[] shown;            // the frame last passed to the sink
+        private final double frameSpan;       // milliseconds of drawing per frame
+        private double scale;
+        private int canvasWidth, canvasHeight;
+        private Rectangle dirty;              // canvas area changed since the last frame
+        private long last = Long.MIN_VALUE;   // time of the last operation or point
+        private double clock;                 // drawing time since the start, pauses cut
+        private double nextFrame;
+        private int frames, held;             // frames so far, and how many of them the last one is shown for
+
+        Replay(LayerStack layers, int frameWidth, int frameHeight, FrameSink sink) throws IOException {
+            this.layers = layers;
+            this.sink = sink;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            next = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_RGB);
+            nextPixels = ((DataBufferInt) next.getRaster().getDataBuffer()).getData();
+            shown = new int[frameWidth * frameHeight];
+            frameSpan = speed * 1000 / fps;
+            frame(); // the blank canvas
+            nextFrame = frameSpan;
+        }
+
+        void apply(DrawingOp op) throws IOException {
+            if (op instanceof DrawingOp.StrokeOp) {
+                stroke((DrawingOp.StrokeOp) op);
+                return;
+            }
+            advance(op.getTime());
+            Rectangle changed = op.apply(layers);
+            layers.ensureSize(0, 0); // grow to the largest layer, as the drawing grew
+            layers.invalidate(changed);
+        }
+
+        // Draw a stroke point by point, frames falling between its points as they did while it was drawn.
+        private void stroke(DrawingOp.StrokeOp stroke) throws IOException {
+            advance(stroke.getTime());
+            StrokePipeline pipeline = new StrokePipeline(layers, layers::invalidate, false, stroke.getSmoothing());
+            pipeline.beginStroke(stroke.rasterizer(layers.getActiveCanvas()));
+            for (int i = 0; i < stroke.getPointCount(); i++) {
+                long when = stroke.getPointTime(i);
+                advance(when);
+                pipeline.addPoint(stroke.getX(i), stroke.getY(i), when);
+            }
+            pipeline.endStroke();
+            layers.getActiveCanvas().compact();
+        }
+
+        // Move the clock to an event, rendering the frames that fall before it.
+        private void advance(long time) throws IOException {
+            if (last != Long.MIN_VALUE) {
+                clock += Math.max(0, Math.min(maxPause, time - last));
+            }
+            last = Math.max(last, time);
+            while (clock >= nextFrame) {
+                frame();
+                nextFrame += frameSpan;
+            }
+        }
+
+        // The final drawing, shown a little longer. Returns the number of frames.
+        int finish() throws IOException {
+            frame();
+            held += HOLD_SECONDS * fps;
+            frames += HOLD_SECONDS * fps;
+            sink.end(held);
+            sink.finish();
+            return frames;
+        }
+
+        // Scale the canvas to fit the frame; a canvas that grew is shrunk to fit.
+        private boolean fit() {
+            int width = layers.getWidth(), height = layers.getHeight();
+            if (width == canvasWidth && height == canvasHeight) {
+                return false;
+            }
+            canvasWidth = width;
+            canvasHeight = height;
+            scale = Math.min((double) frameWidth / width, (double) frameHeight / height);
+            return true;
+        }
+
+        // Render what changed since the last frame, and pass it on if it looks any different.
+        private void frame() throws IOException {
+            dirty = DrawingOp.union(dirty, layers.refresh());
+            Rectangle region = null;
+            boolean whole = fit() || frames == 0;
+            if (whole) {
+                region = new Rectangle(frameWidth, frameHeight);
+            } else if (dirty != null) {
+                int x0 = (int) Math.floor(dirty.x * scale), y0 = (int) Math.floor(dirty.y * scale);
+                int x1 = (int) Math.ceil((dirty.x + dirty.width) * scale) + 1; // bilinear reaches a pixel further
+                int y1 = (int) Math.ceil((dirty.y + dirty.height) * scale) + 1;
+                region = new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(frameWidth, frameHeight));
+            }
+            dirty = null;
+            Rectangle changed = null;
+            if (region != null && !region.isEmpty()) {
+                render(region);
+                changed = whole ? region : compare(region); // the first frame, or the canvas grew and was scaled anew
+            }
+            if (changed != null) {
+                if (frames > 0) {
+                    sink.end(held);
+                }
+                sink.begin(nextPixels, whole ? null : shown, frameWidth, changed);
+                held = 0;
+                for (int y = changed.y; y < changed.y + changed.height; y++) {
+                    int row = y * frameWidth + changed.x;
+                    System.arraycopy(nextPixels, row, shown, row, changed.width);
+                }
+            }
+            held++;
+            frames++;
+        }
+
+        private void render(Rectangle region) {
+            Graphics2D g = next.createGraphics();
+            g.setClip(region);
+            g.setColor(Color.WHITE);
+            g.fill(region);
+            if (scale != 1) {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.scale(scale, scale);
+            }
+            layers.getComposite().paint(g);
+            g.dispose();
+        }
+
+        // The bounds of the pixels of a region that differ from the shown frame, or null if none do.
+        private Rectangle compare(Rectangle region) {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+            for (int y = region.y; y < region.y + region.height; y++) {
+                int row = y * frameWidth;
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    if (nextPixels[row + x] != shown[row + x]) {
+                        minX = Math.min(minX, x);
+                        maxX = Math.max(maxX, x);
+                        minY = Math.min(minY, y);
+                        maxY = y;
+                    }
+                }
+            }
+            return maxX < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+    }
+
+    /** Where the frames of a timelapse go, each as soon as the one after it is known. */
+    private interface FrameSink {
+        /**
+         * A frame that differs from the one before in region. pixels (0xRRGGBB,
+         * stride wide) hold the whole frame and previous the one before, or
+         * null if the region is to be drawn whole, as the first frame is.
+         */
+        void begin(int[] pixels, int[] previous, int stride, Rectangle region) throws IOException;
+
+        // The frame begun last is shown for this many frame times.
+        void end(int frames) throws IOException;
+
+        void finish() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * The rows of a region of a frame as RGB bytes, or as RGBA bytes with
+     * the pixels that are the same as in the previous frame transparent.
+     */
+    private static ImageEncoder.RowSource rows(int[] pixels, int[] previous, int stride, Rectangle region, int bpp) {
+        return (y, row) -> {
+            int at = (region.y + y) * stride + region.x;
+            for (int x = 0, i = 0; x < region.width; x++, i += bpp) {
+                int rgb = pixels[at + x];
+                boolean same = previous != null && previous[at + x] == rgb;
+                row[i] = same ? 0 : (byte) (rgb >> 16);
+                row[i + 1] = same ? 0 : (byte) (rgb >> 8);
+                row[i + 2] = same ? 0 : (byte) rgb;
+                if (bpp == 4) {
+                    row[i + 3] = same ? 0 : (byte) 0xFF;
+                }
+            }
+        };
+    }
+
+    /**
+     * An animated PNG: frames after the first are the changed rectangle,
+     * drawn over the frame before. The frame count in the header is written
+     * once the last frame is.
+     */
+    private static final class ApngFrames implements FrameSink {
+        private static final int FRAME_COUNT_OFFSET = 8 + 25 + 8; // signature, IHDR, acTL length and type
+
+        private final File file;
+        private final DataOutputStream out;
+        private final int fps;
+        private final ImageEncoder encoder;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private Rectangle region;
+        private boolean over;
+        private int sequence, count;
+
+        ApngFrames(File file, int width, int height, int fps, ImageEncoder encoder) throws IOException {
+            this.file = file;
+            this.fps = fps;
+            this.encoder = encoder;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            ImageEncoder.writeSignature(out);
+            ImageEncoder.writeHeader(out, width, height, 4);
+            ImageEncoder.chunk(out, "acTL", new byte[8], 8); // frame count, then 0 plays: loop forever
+        }
+
+        @Override
+        public void begin(int[] pixels, int[] previous, int stride, Rectangle region) throws IOException {
+            this.region = region;
+            over = previous != null;
+            data.reset();
+            encoder.deflate(region.width, region.height, 4, () -> rows(pixels, previous, stride, region, 4),
+                    (bytes, n) -> data.write(bytes, 0, n), percent -> { }, () -> false);
+        }
+
+        @Override
+        public void end(int frames) throws IOException {
+            ByteArrayOutputStream control = new ByteArrayOutputStream(26);
+            DataOutputStream fctl = new DataOutputStream(control);
+            fctl.writeInt(sequence++);
+            fctl.writeInt(region.width);
+            fctl.writeInt(region.height);
+            fctl.writeInt(region.x);
+            fctl.writeInt(region.y);
+            fctl.writeShort(Math.min(frames, 0xFFFF)); // delay, in 1/fps seconds
+            fctl.writeShort(fps);
+            fctl.writeByte(0); // leave the frame for the next one to draw over
+            fctl.writeByte(over ? 1 : 0); // draw over the frame before, or replace it
+            ImageEncoder.chunk(out, "fcTL", control.toByteArray(), control.size());
+            if (count++ == 0) {
+                ImageEncoder.chunk(out, "IDAT", data.toByteArray(), data.size());
+            } else {
+                ByteArrayOutputStream fdat = new ByteArrayOutputStream(data.size() + 4);
+                new DataOutputStream(fdat).writeInt(sequence++);
+                data.writeTo(fdat);
+                ImageEncoder.chunk(out, "fdAT", fdat.toByteArray(), fdat.size());
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            ImageEncoder.chunk(out, "IEND", new byte[0], 0);
+            out.close();
+            try (RandomAccessFile patch = new RandomAccessFile(file, "rw")) {
+                byte[] actl = {'a', 'c', 'T', 'L', (byte) (count >>> 24), (byte) (count >>> 16),
+                        (byte) (count >>> 8), (byte) count, 0, 0, 0, 0};
+                CRC32 crc = new CRC32();
+                crc.update(actl);
+                patch.seek(FRAME_COUNT_OFFSET);
+                patch.write(actl, 4, 8);
+                patch.writeInt((int) crc.getValue());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * An animated GIF written by ImageIO, each frame a rectangle over the one
+     * before with its own palette. GIF delays are in hundredths of a second,
+     * so they are rounded, carrying the error on to the next frame.
+     */
+    private static final class GifFrames implements FrameSink {
+        private final ImageWriter writer;
+        private final ImageOutputStream stream;
+        private final int width, height, fps;
+        private BufferedImage image;
+        private Rectangle region;
+        private long framesWritten, centisWritten;
+        private boolean first = true;
+
+        GifFrames(File file, int width, int height, int fps) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            writer = ImageIO.getImageWritersByFormatName("gif").next();
+            Files.deleteIfExists(file.toPath());
+            stream = ImageIO.createImageOutputStream(file);
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+        }
+
+        @Override
+        public void begin(int[] pixels, int[] previous, int stride, Rectangle region) {
+            this.region = region;
+            image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+            int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < region.height; y++) {
+                int at = (region.y + y) * stride + region.x;
+                for (int x = 0; x < region.width; x++) {
+                    int rgb = pixels[at + x];
+                    argb[y * region.width + x] = previous != null && previous[at + x] == rgb ? 0 : 0xFF000000 | rgb;
+                }
+            }
+        }
+
+        @Override
+        public void end(int frames) throws IOException {
+            framesWritten += frames;
+            long centis = Math.round(framesWritten * 100.0 / fps);
+            int delay = (int) Math.min(0xFFFF, centis - centisWritten);
+            centisWritten += delay;
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+                    param);
+            String name = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(name);
+            IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+            descriptor.setAttribute("imageLeftPosition", Integer.toString(region.x));
+            descriptor.setAttribute("imageTopPosition", Integer.toString(region.y));
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "doNotDispose");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("delayTime", Integer.toString(delay));
+            if (first) {
+                first = false;
+                IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+                loop.setAttribute("applicationID", "NETSCAPE");
+                loop.setAttribute("authenticationCode", "2.0");
+                loop.setUserObject(new byte[]{1, 0, 0}); // loop forever
+                child(root, "ApplicationExtensions").appendChild(loop);
+            }
+            metadata.setFromTree(name, root);
+            writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            image = null;
+        }
+
+        private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+            for (int i = 0; i < root.getLength(); i++) {
+                if (root.item(i).getNodeName().equals(name)) {
+                    return (IIOMetadataNode) root.item(i);
+                }
+            }
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            root.appendChild(node);
+            return node;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.endWriteSequence();
+            stream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.dispose();
+            stream.close();
+        }
+    }
+
+    /** Every frame as a PNG of its own, numbered from 0; a frame shown longer is copied. */
+    private static final class PngFrames implements FrameSink {
+        private final File dir;
+        private final int width, height;
+        private final ImageEncoder encoder;
+        private File current;
+        private int index;
+
+        PngFrames(File dir, int width, int height, ImageEncoder encoder) throws IOException {
+            this.dir = dir;
+            this.width = width;
+            this.height = height;
+            this.encoder = encoder;
+            Files.createDirectories(dir.toPath());
+        }
+
+        private File frame(int i) {
+            return new File(dir, String.format(Locale.ROOT, "frame%05d.png", i));
+        }
+
+        @Override
+        public void begin(int[] pixels, int[] previous, int stride, Rectangle region) throws IOException {
+            current = frame(index);
+            Rectangle all = new Rectangle(width, height);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(current), 64 * 1024)) {
+                encoder.writePng(width, height, 3, () -> rows(pixels, null, stride, all, 3), out, percent -> { },
+                        () -> false);
+            }
+        }
+
+        @Override
+        public void end(int frames) throws IOException {
+            for (int i = 1; i < frames; i++) {
+                Files.copy(current.toPath(), frame(index + i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            index += frames;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Ask for the format, frame rate and speed-up and where to save, then
+     * write a timelapse of the journal in the background. Must be called on
+     * the EDT.
+     */
+    public static void export(Component parent, StrokeJournal journal) {
+        JComboBox<Format> formatBox = new JComboBox<>(Format.values());
+        JSpinner fpsSpinner = new JSpinner(new SpinnerNumberModel(
+                Integer.getInteger("paint.timelapseFps", 30).intValue(), 1, 60, 1));
+        JSpinner speedSpinner = new JSpinner(new SpinnerNumberModel(
+                Double.parseDouble(System.getProperty("paint.timelapseSpeed", "10")), 0.5, 1000.0, 1.0));
+        JPanel options = new JPanel(new GridLayout(0, 2, 8, 4));
+        options.add(new JLabel("Format:"));
+        options.add(formatBox);
+        options.add(new JLabel("Frames per second:"));
+        options.add(fpsSpinner);
+        options.add(new JLabel("Speed-up (x):"));
+        options.add(speedSpinner);
+        if (JOptionPane.showConfirmDialog(parent, options, "Timelapse", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        Format format = (Format) formatBox.getSelectedItem();
+        Timelapse timelapse = configured(format, (Integer) fpsSpinner.getValue(), (Double) speedSpinner.getValue());
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Save Timelapse");
+        if (format == Format.FRAMES) {
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        } else {
+            chooser.setFileFilter(new FileNameExtensionFilter(format.toString(), format.getExtension()));
+        }
+        if (chooser.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File chosen = chooser.getSelectedFile();
+        if (format != Format.FRAMES && !chosen.getName().toLowerCase().endsWith("." + format.getExtension())) {
+            chosen = new File(chosen.getAbsolutePath() + "." + format.getExtension());
+        }
+        File target = chosen;
+        new FileTask<Integer>(parent, "Making timelapse " + target.getName()) {
+            @Override
+            protected Integer work() throws Exception {
+                if (format == Format.FRAMES) {
+                    return timelapse.write(journal, target, this::progress, this::isCancelled);
+                }
+                int[] frames = new int[1];
+                FileHandler.writeAtomically(target,
+                        tmp -> frames[0] = timelapse.write(journal, tmp, this::progress, this::isCancelled));
+                return frames[0];
+            }
+
+            @Override
+            protected void succeeded(Integer frames) {
+                JOptionPane.showMessageDialog(parent, String.format("Timelapse saved: %d frames, %.1f seconds.",
+                        frames, frames / (double) timelapse.getFps()));
+            }
+        }.start();
+    }
+
+    /**
+     * Write a timelapse of a paint document without the UI:
+     * Timelapse drawing.bpj output [--fps N] [--speed X] [--format apng|gif|frames]
+     * The format follows the output's extension (.png, .gif, or a folder for frames) unless given.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int fps = Integer.getInteger("paint.timelapseFps", 30);
+        double speed = Double.parseDouble(System.getProperty("paint.timelapseSpeed", "10"));
+        Format format = null;
+        String[] paths = new String[2];
+        int count = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    if (count == 2) {
+                        throw new IllegalArgumentException("Unexpected argument " + arg);
+                    }
+                    paths[count++] = arg;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--fps":
+                        fps = Integer.parseInt(value);
+                        break;
+                    case "--speed":
+                        speed = Double.parseDouble(value);
+                        break;
+                    case "--format":
+                        format = Format.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (count != 2) {
+                throw new IllegalArgumentException("Expected a paint document and an output");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: Timelapse drawing.bpj output [--fps N] [--speed X] "
+                    + "[--format apng|gif|frames]");
+            System.exit(2);
+        }
+        File output = new File(paths[1]);
+        if (format == null) {
+            String name = output.getName().toLowerCase(Locale.ROOT);
+            format = name.endsWith(".gif") ? Format.GIF : name.endsWith(".png") ? Format.APNG : Format.FRAMES;
+        }
+        try {
+            Timelapse timelapse = configured(format, fps, speed);
+            long start = System.nanoTime();
+            int frames = timelapse.write(StrokeJournal.open(new File(paths[0])), output, percent -> { }, () -> false);
+            System.out.printf("%d frames (%.1f s at %d fps) in %d ms%n", frames, frames / (double) fps, fps,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception ex) {
+            System.err.println("Could not write the timelapse: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
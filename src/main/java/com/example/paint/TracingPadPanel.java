@@ -1,69 +1,271 @@
 package com.example.paint;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import com.itextpdf.text.Document;
-import com.itextpdf.text.DocumentException;
-import com.itextpdf.text.Image;
-import com.itextpdf.text.pdf.PdfWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
 
 /**
- * TracingPadPanel provides a drawing area with a preloaded background image.
+ * TracingPadPanel provides a drawing area over a tracing template.
+ *
+ * Templates are the images in resources/ (tracing_background.png, then any in
+ * resources/templates/), or any image added from disk. The pad takes the
+ * panel's size when it is first shown; resizing the window later does not
+ * change it. The template is loaded in the background, scaled to the pad
+ * once (the copy is kept in a TemplateCache) and drawn into the bottom
+ * layer, which is locked, so it can be hidden or faded like any other
+ * layer. The ink goes on the layers above it, and saving flattens the
+ * visible layers.
+ *
+ * The ink layers are autosaved (see Autosave); the template layer is left
+ * out of the checkpoints and redrawn after a restore. The pad zooms and
+ * pans like the Paint tab (see Viewport).
+ *
+ * Every edit, and each template chosen for the template layer, is recorded
+ * in a StrokeJournal, so how a drawing was traced can be replayed as a
+ * timelapse (see Timelapse).
  */
 public class TracingPadPanel extends JPanel {
-    private BufferedImage backgroundImage;
-    private BufferedImage canvas;
-    private Graphics2D g2d;
-    private Point lastPoint;
+    static final File DEFAULT_TEMPLATE = new File("resources/tracing_background.png");
+    private static final File TEMPLATE_DIR = new File("resources/templates");
+
+    private final TemplateCache templates = TemplateCache.withConfiguredBudget();
+    private File template = DEFAULT_TEMPLATE;
+    private File failedTemplate;           // template that could not be read, not retried
+    private BufferedImage background;      // template scaled to the pad, or a stale one while loading
+    private File backgroundFile;           // the template background was scaled from
+    private BufferedImage shownTemplate;   // the image drawn into the template layer, on the EDT
+    private Dimension padSize;             // size the template is scaled to, once the panel was first shown; on the EDT
+    private File journaledTemplate;        // template last recorded in the journal, on the render thread
+    private JComboBox<File> templateBox;
+    private LayerStack layers;
+    private Layer templateLayer;
+    private StrokeJournal journal;
+    private final TileCodec journalCodec = new TileCodec(); // used on the render thread
+    private DrawingOp.StrokeOp currentStroke;
     private Color currentColor = Color.BLUE;
     private int brushSize = 5;
+    private DabBrush.Tip brushTip = DabBrush.Tip.HARD;
+    private float opacity = 1f;
+    private final DamageTracker damage = new DamageTracker(this);
+    private final TelemetryHud hud;
+    private final Autosave autosave;
+    private final UndoHistory history = UndoHistory.withConfiguredBudget();
+    private StrokePipeline pipeline;
+    private CanvasSurface surface;
+    private CanvasMipmap mipmap;
+    private final Viewport viewport;
 
     public TracingPadPanel() {
         setLayout(new BorderLayout());
-        loadBackgroundImage();
         initCanvas();
         initToolbar();
+        add(new LayerPanel(layers, pipeline, this::record), BorderLayout.EAST);
+        UndoHistory.installKeyBindings(this, this::undo, this::redo);
+        hud = new TelemetryHud(this, "Tracing", () -> layers.getMemoryBytes() + mipmap.getMemoryBytes());
+        autosave = new Autosave("Tracing", layers);
+        autosave.skip(templateLayer.getCanvas());
+        SwingUtilities.invokeLater(() -> autosave.start(this, this::restore));
+        viewport = new Viewport(this, layers::getBounds);
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                lastPoint = e.getPoint();
-                drawLine(lastPoint, lastPoint);
+                if (!viewport.handles(e)) {
+                    beginStroke(viewport.toCanvas(e.getPoint()), e.getWhen());
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                endStroke();
             }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                Point currentPoint = e.getPoint();
-                drawLine(lastPoint, currentPoint);
-                lastPoint = currentPoint;
+                if (currentStroke != null) {
+                    Point p = viewport.toCanvas(e.getPoint());
+                    pipeline.addPoint(p.x, p.y, e.getWhen());
+                    currentStroke.addPoint(p.x, p.y, e.getWhen());
+                }
             }
         });
+        viewport.install();
+    }
+
+    // The bundled templates: the default background, then resources/templates/ by name.
+    static List<File> findTemplates() {
+        List<File> found = new ArrayList<>();
+        found.add(DEFAULT_TEMPLATE);
+        File[] files = TEMPLATE_DIR.listFiles(
+                (dir, name) -> name.toLowerCase().matches(".*\\.(png|jpe?g|gif|bmp)"));
+        if (files != null) {
+            Arrays.sort(files);
+            found.addAll(Arrays.asList(files));
+        }
+        return found;
+    }
+
+    // Switch to another template; it is loaded and scaled in the background.
+    void setTemplate(File file) {
+        if (!file.equals(template)) {
+            template = file;
+            repaint();
+        }
+    }
+
+    // True once the current template is shown at the pad size.
+    boolean isBackgroundReady() {
+        BufferedImage bg = background();
+        return bg != null && template.equals(backgroundFile) && bg.getWidth() == padSize.width
+                && bg.getHeight() == padSize.height;
     }
 
-    // Load a background image from the resources folder.
-    private void loadBackgroundImage() {
-        try {
-            backgroundImage = ImageIO.read(new File("resources/tracing_background.png"));
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(this, "Background image not found.", "Error", JOptionPane.ERROR_MESSAGE);
+    /**
+     * The template scaled to the pad. Only a template change (or a restored
+     * drawing of another size) misses the cache; until the new copy is ready
+     * the previous one is returned.
+     */
+    private BufferedImage background() {
+        if (padSize == null) {
+            int width = getWidth(), height = getHeight();
+            if (width <= 0 || height <= 0) {
+                return background;
+            }
+            // Take the panel's size the first time it is shown; later resizes leave the drawing as it is
+            padSize = new Dimension(Math.max(width, layers.getWidth()), Math.max(height, layers.getHeight()));
+            Dimension size = padSize;
+            pipeline.submit(() -> {
+                layers.ensureSize(size.width, size.height);
+                return layers.getBounds();
+            });
+        }
+        if (template.equals(failedTemplate)) {
+            return background;
         }
+        File requested = template;
+        BufferedImage scaled = templates.get(requested, padSize.width, padSize.height, getBackground(),
+                getGraphicsConfiguration(),
+                image -> {
+                    if (requested.equals(template)) {
+                        background = image;
+                        backgroundFile = requested;
+                        repaint();
+                    }
+                },
+                ex -> {
+                    failedTemplate = requested;
+                    JOptionPane.showMessageDialog(this, "Background image not found: " + requested.getName(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                });
+        if (scaled != null) {
+            background = scaled;
+            backgroundFile = requested;
+        }
+        return background;
     }
 
-    // Initialize the drawing canvas.
+    // Initialize the layers: the locked template at the bottom, which undo ignores, and a transparent ink layer.
     private void initCanvas() {
-        canvas = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
-        g2d = canvas.createGraphics();
-        g2d.setComposite(AlphaComposite.SrcOver);
-        g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        repaint();
+        layers = new LayerStack(800, 600, 0);
+        templateLayer = layers.addLayer(0, "Template", 0);
+        layers.update(0, "Template", 1f, true, Layer.Blend.NORMAL, true);
+        layers.addLayer(1, "Ink", 0);
+        layers.addTileListener(history);
+        history.detach(templateLayer.getCanvas());
+        journal = new StrokeJournal(layers.getWidth(), layers.getHeight(), 0);
+        journal.record(DrawingOp.LayerOp.reset(layers, journalCodec, System.currentTimeMillis()));
+        pipeline = StrokePipeline.create(layers, this::repaintDamage);
+        surface = CanvasSurface.configured(layers.getComposite(), this::getGraphicsConfiguration, false);
+        mipmap = new CanvasMipmap(layers.getComposite(), this::repaint);
+    }
+
+    /**
+     * Redraw the template layer once a new scaled template is ready. The
+     * layer is only journaled when the template changed since it was last
+     * recorded, not each time the same template is redrawn.
+     */
+    private void showTemplate(BufferedImage image, File file) {
+        if (image == null || image == shownTemplate || image.getWidth() != padSize.width
+                || image.getHeight() != padSize.height) {
+            return; // nothing new, or a copy for the size before a restore
+        }
+        shownTemplate = image;
+        pipeline.submit(() -> {
+            TiledCanvas canvas = templateLayer.getCanvas();
+            canvas.clear();
+            canvas.drawImage(image, 0, 0);
+            canvas.compact();
+            if (!file.equals(journaledTemplate)) {
+                journaledTemplate = file;
+                recordTiles(canvas, layers.getBounds(), System.currentTimeMillis());
+            }
+            return layers.getBounds();
+        });
+    }
+
+    // Replace the layers with the ones autosaved by an earlier run. The template layer was saved blank and is redrawn.
+    private void restore(StrokeJournal.Loaded loaded) {
+        pipeline.submit(() -> {
+            history.end();
+            layers.replaceWith(loaded.layers);
+            history.clear();
+            record(DrawingOp.LayerOp.reset(layers, journalCodec, System.currentTimeMillis()));
+            journaledTemplate = null; // the reset holds the template layer blank
+            templateLayer = layers.getLayer(0);
+            for (Layer layer : layers.getLayers()) {
+                if (layer.isLocked() && layer.getName().equals("Template")) {
+                    templateLayer = layer;
+                    break;
+                }
+            }
+            history.detach(templateLayer.getCanvas());
+            autosave.skip(templateLayer.getCanvas());
+            Dimension size = new Dimension(layers.getWidth(), layers.getHeight());
+            SwingUtilities.invokeLater(() -> {
+                padSize = size;
+                shownTemplate = null;
+                repaint();
+            });
+            return layers.getBounds();
+        });
+    }
+
+    // True (after a beep) if the selected layer is locked, like the template.
+    private boolean activeLayerLocked() {
+        if (layers.getActive().isLocked()) {
+            Toolkit.getDefaultToolkit().beep();
+            return true;
+        }
+        return false;
+    }
+
+    // A blank tracing canvas: transparent ink over the background image.
+    static TiledCanvas newCanvas(int width, int height) {
+        return new TiledCanvas(width, height, 0);
+    }
+
+    // Clear the selected layer by dropping all its painted tiles.
+    private void clearCanvas() {
+        if (activeLayerLocked()) {
+            return;
+        }
+        DrawingOp.ClearOp op = new DrawingOp.ClearOp(System.currentTimeMillis());
+        pipeline.submit(() -> {
+            history.begin("Clear");
+            Rectangle bounds = op.apply(layers);
+            history.end();
+            record(op);
+            return bounds;
+        });
     }
 
     // Create a toolbar for changing color, brush size, clearing the canvas, and
@@ -71,6 +273,23 @@ public class TracingPadPanel extends JPanel {
     private void initToolbar() {
         JPanel toolbar = new JPanel();
 
+        templateBox = new JComboBox<>(findTemplates().toArray(new File[0]));
+        templateBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                Object name = value instanceof File ? ((File) value).getName() : value;
+                return super.getListCellRendererComponent(list, name, index, isSelected, cellHasFocus);
+            }
+        });
+        templateBox.addActionListener(e -> setTemplate((File) templateBox.getSelectedItem()));
+        toolbar.add(new JLabel("Template:"));
+        toolbar.add(templateBox);
+
+        JButton addTemplateButton = new JButton("Add Template");
+        addTemplateButton.addActionListener(e -> addTemplate());
+        toolbar.add(addTemplateButton);
+
         JButton colorButton = new JButton("Color");
         colorButton.addActionListener(e -> {
             Color selected = JColorChooser.showDialog(this, "Choose color", currentColor);
@@ -81,46 +300,164 @@ public class TracingPadPanel extends JPanel {
         toolbar.add(colorButton);
 
         JSlider brushSizeSlider = new JSlider(1, 20, brushSize);
-        brushSizeSlider.addChangeListener(e -> {
-            brushSize = brushSizeSlider.getValue();
-            g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        });
+        brushSizeSlider.addChangeListener(e -> brushSize = brushSizeSlider.getValue());
         toolbar.add(new JLabel("Brush Size:"));
         toolbar.add(brushSizeSlider);
 
+        JComboBox<DabBrush.Tip> tipBox = new JComboBox<>(DabBrush.Tip.values());
+        tipBox.addActionListener(e -> brushTip = (DabBrush.Tip) tipBox.getSelectedItem());
+        tipBox.setEnabled(DabBrush.ENABLED);
+        toolbar.add(tipBox);
+        JSpinner opacitySpinner = new JSpinner(new SpinnerNumberModel(100, 5, 100, 5));
+        opacitySpinner.addChangeListener(e -> opacity = (Integer) opacitySpinner.getValue() / 100f);
+        toolbar.add(new JLabel("Opacity %:"));
+        toolbar.add(opacitySpinner);
+
         JButton clearButton = new JButton("Clear");
         clearButton.addActionListener(e -> {
-            initCanvas();
-            repaint();
+            clearCanvas();
         });
         toolbar.add(clearButton);
 
+        JButton undoButton = new JButton("Undo");
+        undoButton.addActionListener(e -> undo());
+        toolbar.add(undoButton);
+
+        JButton redoButton = new JButton("Redo");
+        redoButton.addActionListener(e -> redo());
+        toolbar.add(redoButton);
+
         JButton saveButton = new JButton("Save");
         saveButton.addActionListener(e -> saveDrawing());
         toolbar.add(saveButton);
 
+        JButton timelapseButton = new JButton("Timelapse");
+        timelapseButton.addActionListener(e -> Timelapse.export(this, journal));
+        toolbar.add(timelapseButton);
+
         add(toolbar, BorderLayout.NORTH);
     }
 
-    // Draw a freehand line over the canvas.
-    private void drawLine(Point p1, Point p2) {
-        g2d.setColor(currentColor);
-        g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        g2d.drawLine(p1.x, p1.y, p2.x, p2.y);
-        repaint();
+    // Let the user pick an image from disk to trace over.
+    private void addTemplate() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Images", "png", "jpg",
+                "jpeg", "gif", "bmp"));
+        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            templateBox.addItem(file);
+            templateBox.setSelectedItem(file);
+        }
+    }
+
+    // Undo the last stroke or clear.
+    private void undo() {
+        pipeline.submit(() -> recordPatch(history.undo()));
+    }
+
+    // Redo the last undone step.
+    private void redo() {
+        pipeline.submit(() -> recordPatch(history.redo()));
+    }
+
+    // Add edits to the journal, then a keyframe of every layer when one is due. Runs on the render thread.
+    private void record(DrawingOp... ops) {
+        for (DrawingOp op : ops) {
+            journal.record(op);
+        }
+        if (journal.needsKeyframe()) {
+            journal.record(DrawingOp.LayerOp.reset(layers, journalCodec, ops[ops.length - 1].getTime()));
+        }
+    }
+
+    // Journal the tiles an undo or redo changed, on whichever layers they are.
+    private Rectangle recordPatch(Rectangle changed) {
+        if (changed == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (TiledCanvas canvas : history.getLastChanged()) {
+            recordTiles(canvas, changed, now);
+        }
+        return changed;
+    }
+
+    // Journal a region of a layer's tiles, selecting the layer around them if it is not the active one.
+    private void recordTiles(TiledCanvas canvas, Rectangle changed, long now) {
+        int active = layers.getActiveIndex();
+        int index = layers.indexOf(canvas);
+        if (index == active) {
+            record(DrawingOp.TilesOp.capture(canvas, changed, journalCodec, now));
+        } else if (index >= 0) {
+            record(DrawingOp.LayerOp.select(index, now),
+                    DrawingOp.TilesOp.capture(canvas, changed, journalCodec, now),
+                    DrawingOp.LayerOp.select(active, now));
+        }
+    }
+
+    // Repaint a region changed on the canvas; called on the EDT by the stroke pipeline.
+    private void repaintDamage(Rectangle r) {
+        layers.invalidate(r);
+        surface.invalidate(r);
+        damage.add(viewport.toView(r));
+        damage.flush();
+    }
+
+    // Start a tracing stroke. The points are rasterized by the stroke pipeline.
+    private void beginStroke(Point p, long when) {
+        if (activeLayerLocked()) {
+            return;
+        }
+        DrawingOp.StrokeOp pen = new DrawingOp.StrokeOp(false, currentColor, brushSize, pipeline.getSmoothing(),
+                DabBrush.ENABLED ? brushTip : null, opacity, when);
+        pen.addPoint(p.x, p.y, when);
+        currentStroke = pen;
+        pipeline.submit(() -> {
+            history.begin("Trace");
+            return null;
+        });
+        pipeline.beginStroke(pen.rasterizer(layers.getActiveCanvas()));
+        pipeline.addPoint(p.x, p.y, when);
+    }
+
+    private void endStroke() {
+        DrawingOp.StrokeOp op = currentStroke;
+        if (op == null) {
+            return;
+        }
+        currentStroke = null;
+        pipeline.endStroke();
+        pipeline.submit(() -> {
+            history.end();
+            layers.getActiveCanvas().compact();
+            record(op);
+            return null;
+        });
     }
 
     @Override
     protected void paintComponent(Graphics g) {
+        Telemetry.Span span = hud.beginPaint();
         super.paintComponent(g);
-        if (backgroundImage != null) {
-            g.drawImage(backgroundImage, 0, 0, this.getWidth(), this.getHeight(), this);
+        showTemplate(background(), backgroundFile);
+        Rectangle changed = layers.refresh();
+        surface.invalidate(changed);
+        mipmap.invalidate(changed);
+        Graphics2D view = (Graphics2D) g.create();
+        if (viewport.getScale() < 1) {
+            mipmap.paint(view, viewport);
+        } else {
+            viewport.transform(view);
+            surface.paint(view);
         }
-        g.drawImage(canvas, 0, 0, null);
+        view.dispose();
+        damage.paintDebug(g);
+        hud.endPaint(g, span);
     }
 
     // Save the current drawing to a file.
     private void saveDrawing() {
+        TiledCanvas snapshot = layers.flatten(); // what the user sees when pressing Save
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Save Drawing");
 
@@ -130,6 +467,14 @@ public class TracingPadPanel extends JPanel {
         fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("PDF Document", "pdf"));
         fileChooser.setAcceptAllFileFilterUsed(false);
 
+        // PDF pages can be stored losslessly or as smaller JPEG images
+        JComboBox<PdfExporter.Compression> pdfCompression = new JComboBox<>(PdfExporter.Compression.values());
+        pdfCompression.setSelectedItem(PdfExporter.configuredCompression());
+        JPanel accessory = new JPanel(new BorderLayout());
+        accessory.add(new JLabel("PDF compression:"), BorderLayout.NORTH);
+        accessory.add(pdfCompression, BorderLayout.SOUTH);
+        fileChooser.setAccessory(accessory);
+
         int userSelection = fileChooser.showSaveDialog(this);
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
@@ -150,22 +495,17 @@ public class TracingPadPanel extends JPanel {
                 }
             }
 
-            try {
-                switch (extension) {
-                    case "png":
-                    case "jpg":
-                        saveAsImage(fileToSave, extension);
-                        break;
-                    case "pdf":
-                        saveAsPDF(fileToSave);
-                        break;
-                    default:
-                        JOptionPane.showMessageDialog(this, "Unsupported file format.", "Error",
-                                JOptionPane.ERROR_MESSAGE);
-                }
-            } catch (IOException | DocumentException ex) {
-                JOptionPane.showMessageDialog(this, "Error saving file: " + ex.getMessage(), "Error",
-                        JOptionPane.ERROR_MESSAGE);
+            switch (extension) {
+                case "png":
+                case "jpg":
+                    saveAsImage(fileToSave, extension, snapshot);
+                    break;
+                case "pdf":
+                    saveAsPDF(fileToSave, snapshot, (PdfExporter.Compression) pdfCompression.getSelectedItem());
+                    break;
+                default:
+                    JOptionPane.showMessageDialog(this, "Unsupported file format.", "Error",
+                            JOptionPane.ERROR_MESSAGE);
             }
         }
     }
@@ -180,33 +520,44 @@ public class TracingPadPanel extends JPanel {
         return "";
     }
 
-    // Save the drawing as an image file (PNG or JPG).
-    private void saveAsImage(File file, String format) throws IOException {
-        BufferedImage combined = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics g = combined.getGraphics();
-        g.setColor(Color.WHITE);
-        g.fillRect(0, 0, combined.getWidth(), combined.getHeight());
-        g.drawImage(canvas, 0, 0, null);
-        g.dispose();
+    // Flatten a snapshot of the drawing onto white, as saved to PNG, JPG and PDF.
+    static BufferedImage flatten(TiledCanvas snapshot) {
+        return snapshot.toImage(BufferedImage.TYPE_INT_RGB, Color.WHITE);
+    }
 
-        ImageIO.write(combined, format, file);
-        JOptionPane.showMessageDialog(this, "File saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+    // Save the drawing as an image file (PNG or JPG), encoding in the background.
+    private void saveAsImage(File file, String format, TiledCanvas snapshot) {
+        FileHandler.exportImage(this, file, snapshot, Color.WHITE, ImageEncoder.configured(format),
+                "File saved successfully!");
     }
 
-    // Save the drawing as a PDF file.
-    private void saveAsPDF(File file) throws IOException, DocumentException {
-        Document document = new Document();
-        PdfWriter.getInstance(document, new FileOutputStream(file));
-        document.open();
+    // Write a one-page PDF of the flattened snapshot, reporting progress as a percentage.
+    static void writePdf(File file, TiledCanvas snapshot, PdfExporter.Compression compression,
+                         IntConsumer progress) throws Exception {
+        FileHandler.writeAtomically(file, tmp -> {
+            try (FileOutputStream out = new FileOutputStream(tmp);
+                 PdfExporter pdf = new PdfExporter(out, compression, PdfExporter.configuredJpegQuality())) {
+                BufferedImage page = flatten(snapshot);
+                progress.accept(40);
+                pdf.addPage(page);
+            }
+        });
+    }
 
-        // Convert BufferedImage to iText Image
-        File tempImageFile = new File(file.getAbsolutePath() + ".png");
-        saveAsImage(tempImageFile, "png");
-        Image image = Image.getInstance(tempImageFile.getAbsolutePath());
-        document.add(image);
-        document.close();
-        tempImageFile.delete(); // Remove temporary image file
+    // Save the drawing as a PDF file in the background, encoding the page in memory.
+    private void saveAsPDF(File file, TiledCanvas snapshot, PdfExporter.Compression compression) {
+        new FileTask<File>(this, "Saving " + file.getName()) {
+            @Override
+            protected File work() throws Exception {
+                writePdf(file, snapshot, compression, this::progress);
+                return file;
+            }
 
-        JOptionPane.showMessageDialog(this, "PDF saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            protected void succeeded(File result) {
+                JOptionPane.showMessageDialog(TracingPadPanel.this, "PDF saved successfully!", "Success",
+                        JOptionPane.INFORMATION_MESSAGE);
+            }
+        }.start();
     }
 }
@@ -0,0 +1,270 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * UndoHistory records undo/redo steps as deltas of the canvas tiles an
+ * operation touched. The before and after contents of each tile are stored
+ * compressed with TileCodec (a uniform tile costs a few bytes), so a brush stroke
+ * costs memory in proportion to the area it painted, not the canvas size.
+ *
+ * When the total size of the history passes the memory budget the oldest
+ * steps are dropped first. Undo and redo only rewrite the recorded tiles.
+ */
+public class UndoHistory implements TiledCanvas.TileListener {
+    private static final int STEP_OVERHEAD = 64;  // rough bookkeeping cost per step
+    private static final int DELTA_OVERHEAD = 48; // rough bookkeeping cost per tile
+
+    // One tile's contents before and after a step.
+    private static final class TileDelta {
+        final TiledCanvas canvas;
+        final int tx, ty;
+        final byte[] before;
+        byte[] after;
+
+        TileDelta(TiledCanvas canvas, int tx, int ty, byte[] before) {
+            this.canvas = canvas;
+            this.tx = tx;
+            this.ty = ty;
+            this.before = before;
+        }
+
+        long size() {
+            return DELTA_OVERHEAD + before.length + (after == null ? 0 : after.length);
+        }
+    }
+
+    /** A single undoable operation such as one brush stroke. */
+    public static final class Step {
+        private final String name;
+        private final List<TileDelta> deltas = new ArrayList<>();
+        private final Map<TiledCanvas, Set<Integer>> recorded = new HashMap<>();
+        private long size = STEP_OVERHEAD;
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Compressed size of this step in bytes.
+        public long getSize() {
+            return size;
+        }
+
+        public int getTileCount() {
+            return deltas.size();
+        }
+    }
+
+    private final Deque<Step> undoStack = new ArrayDeque<>();
+    private final Deque<Step> redoStack = new ArrayDeque<>();
+    private long budgetBytes;
+    private long totalBytes;
+    private Step open;
+    private boolean applying;
+    private final Set<TiledCanvas> lastChanged = new HashSet<>();
+
+    private final TileCodec codec = new TileCodec();
+
+    public UndoHistory(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Budget from -Dpaint.undoBudgetMB, 64 MB by default.
+    public static UndoHistory withConfiguredBudget() {
+        return new UndoHistory(Long.getLong("paint.undoBudgetMB", 64) * 1024 * 1024);
+    }
+
+    /**
+     * Bind Ctrl+Z to undo and Ctrl+Y / Ctrl+Shift+Z to redo while the
+     * component is showing.
+     */
+    public static void installKeyBindings(JComponent component, Runnable undo, Runnable redo) {
+        InputMap inputMap = component.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        inputMap.put(KeyStroke.getKeyStroke("control Z"), "undo");
+        inputMap.put(KeyStroke.getKeyStroke("control Y"), "redo");
+        inputMap.put(KeyStroke.getKeyStroke("control shift Z"), "redo");
+        component.getActionMap().put("undo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                undo.run();
+            }
+        });
+        component.getActionMap().put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                redo.run();
+            }
+        });
+    }
+
+    // Record changes to this canvas from now on.
+    public void attach(TiledCanvas canvas) {
+        canvas.addTileListener(this);
+    }
+
+    // Stop recording changes to this canvas, e.g. a layer that is redrawn rather than edited.
+    public void detach(TiledCanvas canvas) {
+        canvas.removeTileListener(this);
+    }
+
+    // Drop every step, e.g. when the drawing is replaced by a document.
+    public void clear() {
+        open = null;
+        clearRedo();
+        for (Step step : undoStack) {
+            totalBytes -= step.size;
+        }
+        undoStack.clear();
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    // Bytes currently held by undo and redo steps.
+    public long getMemoryBytes() {
+        return totalBytes;
+    }
+
+    // Start recording a step. Tile changes until end() belong to it.
+    public void begin(String name) {
+        end();
+        open = new Step(name);
+    }
+
+    // Finish the current step, capturing the new contents of every tile it touched.
+    public void end() {
+        Step step = open;
+        if (step == null) {
+            return;
+        }
+        open = null;
+        if (step.deltas.isEmpty()) {
+            return;
+        }
+        for (TileDelta delta : step.deltas) {
+            delta.after = codec.encode(delta.canvas, delta.tx, delta.ty);
+            step.size += delta.size();
+        }
+        clearRedo();
+        undoStack.push(step);
+        totalBytes += step.size;
+        evict();
+    }
+
+    @Override
+    public void tileWillChange(TiledCanvas canvas, int tx, int ty) {
+        if (applying) {
+            return;
+        }
+        if (open == null) {
+            open = new Step("Edit");
+        }
+        Set<Integer> tiles = open.recorded.computeIfAbsent(canvas, c -> new HashSet<>());
+        if (tiles.add((ty << 16) | tx)) {
+            open.deltas.add(new TileDelta(canvas, tx, ty, codec.encode(canvas, tx, ty)));
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Undo the most recent step and return the canvas region it changed,
+     * or null if there is nothing to undo.
+     */
+    public Rectangle undo() {
+        end();
+        Step step = undoStack.poll();
+        if (step == null) {
+            return null;
+        }
+        Rectangle damage = apply(step, true);
+        redoStack.push(step);
+        return damage;
+    }
+
+    // Redo the most recently undone step and return the region it changed, or null.
+    public Rectangle redo() {
+        end();
+        Step step = redoStack.poll();
+        if (step == null) {
+            return null;
+        }
+        Rectangle damage = apply(step, false);
+        undoStack.push(step);
+        return damage;
+    }
+
+    // The undo steps, newest first; each reports its compressed size for diagnostics.
+    public List<Step> getSteps() {
+        return new ArrayList<>(undoStack);
+    }
+
+    // Canvases the last undo or redo changed, e.g. to tell which layers to journal.
+    public Set<TiledCanvas> getLastChanged() {
+        return new HashSet<>(lastChanged);
+    }
+
+    private Rectangle apply(Step step, boolean useBefore) {
+        Rectangle damage = null;
+        lastChanged.clear();
+        applying = true;
+        try {
+            for (TileDelta delta : step.deltas) {
+                lastChanged.add(delta.canvas);
+                codec.decode(delta.canvas, delta.tx, delta.ty, useBefore ? delta.before : delta.after);
+                Rectangle r = TiledCanvas.tileBounds(delta.tx, delta.ty);
+                if (damage == null) {
+                    damage = r;
+                } else {
+                    damage.add(r);
+                }
+            }
+        } finally {
+            applying = false;
+        }
+        return damage;
+    }
+
+    private void clearRedo() {
+        for (Step step : redoStack) {
+            totalBytes -= step.size;
+        }
+        redoStack.clear();
+    }
+
+    // Drop the oldest steps until the history fits the budget, keeping at least the newest one.
+    private void evict() {
+        while (totalBytes > budgetBytes && !redoStack.isEmpty()) {
+            totalBytes -= redoStack.removeLast().size;
+        }
+        while (totalBytes > budgetBytes && undoStack.size() > 1) {
+            totalBytes -= undoStack.removeLast().size;
+        }
+    }
+}
@@ -2,92 +2,290 @@ package com.example.paint;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.HierarchyEvent;
 import javafx.application.Platform;
 import javafx.embed.swing.JFXPanel;
 import javafx.scene.*;
 import javafx.scene.media.*;
+import javafx.util.Duration;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * VideoPlayerPanel allows selecting and playing multiple videos using JavaFX's
- * MediaPlayer.
+ * VideoPlayerPanel plays the lesson videos found in the resources folder
+ * using JavaFX's MediaPlayer.
+ *
+ * One Scene and MediaView are reused for every video. A replaced player is
+ * disposed so its native decoder is released, and the next lesson is
+ * pre-buffered in a second player so switching to it starts at once. While
+ * the tab is hidden, playback is paused and both players are released; the
+ * video resumes where it left off when the tab is shown again.
+ *
+ * The player counts and an estimate of native memory are shown under the
+ * video (see getLivePlayerCount and getNativeMemoryBytes) to make leaks visible.
  */
 public class VideoPlayerPanel extends JPanel {
-    private JFXPanel jfxPanel;
-    private MediaPlayer mediaPlayer;
-    private JComboBox<String> videoSelector;
-    private HashMap<String, String> videoPaths; // Stores video titles and file paths
+    static final File VIDEO_DIR = new File("resources");
+    private static final AtomicInteger LIVE_PLAYERS = new AtomicInteger();
+    private static final AtomicInteger CREATED_PLAYERS = new AtomicInteger();
+
+    private final JFXPanel jfxPanel;
+    private final JComboBox<String> videoSelector;
+    private final JLabel status = new JLabel();
+    private final Timer statusTimer = new Timer(1000, e -> updateStatus());
+    private final List<File> playlist;
+
+    // JavaFX state, only used on the JavaFX Application Thread
+    private MediaView mediaView;
+    private MediaPlayer mediaPlayer; // current lesson
+    private MediaPlayer nextPlayer;  // next lesson, buffering while the current one plays
+    private int currentIndex = -1, nextIndex = -1;
+    private Duration resumeAt = Duration.ZERO;
+    private boolean showing;
 
     public VideoPlayerPanel() {
         setLayout(new BorderLayout());
+        playlist = scanPlaylist(VIDEO_DIR);
         jfxPanel = new JFXPanel(); // JavaFX content panel
         add(jfxPanel, BorderLayout.CENTER);
 
-        // Initialize video list
-        initializeVideoList();
-
         // Create a dropdown for video selection
-        videoSelector = new JComboBox<>(videoPaths.keySet().toArray(new String[0]));
-        videoSelector.addActionListener(e -> playSelectedVideo());
+        videoSelector = new JComboBox<>(playlist.stream().map(VideoPlayerPanel::title).toArray(String[]::new));
+        videoSelector.addActionListener(e -> {
+            int index = videoSelector.getSelectedIndex();
+            Platform.runLater(() -> play(index, Duration.ZERO));
+        });
         add(videoSelector, BorderLayout.NORTH); // Add dropdown at the top
+        add(status, BorderLayout.SOUTH);
+        if (playlist.isEmpty()) {
+            status.setText("No videos found in " + VIDEO_DIR.getAbsolutePath());
+        }
+
+        Platform.runLater(this::initScene);
+        jfxPanel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                int width = jfxPanel.getWidth(), height = jfxPanel.getHeight();
+                Platform.runLater(() -> fit(width, height));
+            }
+        });
 
-        // Initialize JavaFX and play the first video by default
-        Platform.runLater(() -> playSelectedVideo());
+        // Play while the tab is visible; pause and release the players while it is hidden
+        addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+                showingChanged(isShowing());
+            }
+        });
     }
 
-    // Initialize available videos
-    private void initializeVideoList() {
-        videoPaths = new HashMap<>();
-        videoPaths.put("Lesson 1", "D:/BYU/cse310/BasicPaintProgram/resources/1.mp4");
-        videoPaths.put("Lesson 4", "D:/BYU/cse310/BasicPaintProgram/resources/4.mp4");
-        videoPaths.put("Sample Video", "D:/BYU/cse310/BasicPaintProgram/resources/paint.mp4");
-        videoPaths.put("Lesson 2", "D:/BYU/cse310/BasicPaintProgram/resources/2.mp4");
-        videoPaths.put("Lesson 3", "D:/BYU/cse310/BasicPaintProgram/resources/3.mp4");
+    /**
+     * The videos in a directory that JavaFX can play, in a fixed order:
+     * numbered files first by number (2.mp4 before 10.mp4), then by name.
+     */
+    static List<File> scanPlaylist(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.toLowerCase().matches(".*\\.(mp4|m4v|flv)"));
+        List<File> videos = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        videos.sort(Comparator.comparingLong(VideoPlayerPanel::lessonNumber).thenComparing(File::getName));
+        return videos;
     }
 
-    // Play the selected video
-    private void playSelectedVideo() {
-        String selectedVideo = (String) videoSelector.getSelectedItem();
-        if (selectedVideo != null) {
-            String videoPath = videoPaths.get(selectedVideo);
-            playVideo(videoPath);
-        }
+    // The number a video is named after, or Long.MAX_VALUE for other names.
+    private static long lessonNumber(File file) {
+        String base = baseName(file);
+        return base.matches("\\d{1,18}") ? Long.parseLong(base) : Long.MAX_VALUE;
     }
 
-    // Play video from the given file path
-    private void playVideo(String filePath) {
-        Platform.runLater(() -> {
-            try {
-                if (mediaPlayer != null) {
-                    mediaPlayer.stop(); // Stop any currently playing video
-                }
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // "Lesson 2" for 2.mp4, otherwise the file name without its extension.
+    static String title(File file) {
+        return lessonNumber(file) != Long.MAX_VALUE ? "Lesson " + baseName(file) : baseName(file);
+    }
+
+    // Media players currently holding native resources, across all panels.
+    public static int getLivePlayerCount() {
+        return LIVE_PLAYERS.get();
+    }
 
-                File videoFile = new File(filePath);
-                if (!videoFile.exists()) {
-                    throw new Exception("File not found: " + filePath);
+    // Media players created since startup.
+    public static int getCreatedPlayerCount() {
+        return CREATED_PLAYERS.get();
+    }
+
+    /**
+     * Estimated native (off-heap) memory of the process: the resident set
+     * size minus the committed Java heap where /proc is available (Linux),
+     * otherwise the memory used by NIO direct and mapped buffers.
+     */
+    public static long getNativeMemoryBytes() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+                if (line.startsWith("VmRSS:")) {
+                    long rss = Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+                    return Math.max(0, rss - heap);
                 }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // not Linux; fall back to buffer pools
+        }
+        long bytes = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bytes += pool.getMemoryUsed();
+        }
+        return bytes;
+    }
 
-                String videoURI = videoFile.toURI().toASCIIString(); // Fixes path issues
-                Media media = new Media(videoURI);
-                mediaPlayer = new MediaPlayer(media);
-                MediaView mediaView = new MediaView(mediaPlayer);
-                mediaView.setFitWidth(800);
-                mediaView.setFitHeight(600);
-
-                Group root = new Group();
-                Scene scene = new Scene(root, 800, 600);
-                root.getChildren().add(mediaView);
-
-                jfxPanel.setScene(scene);
-                mediaPlayer.play();
-            } catch (Exception ex) {
-                ex.printStackTrace(); // Log the error to console
-                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
-                        "Error loading video: " + filePath + "\n" + ex.getMessage(),
-                        "Error", JOptionPane.ERROR_MESSAGE));
+    private void updateStatus() {
+        if (!playlist.isEmpty()) {
+            status.setText(String.format("Players: %d live, %d created | native memory ~%d MB",
+                    getLivePlayerCount(), getCreatedPlayerCount(), getNativeMemoryBytes() >> 20));
+        }
+    }
+
+    private void showingChanged(boolean visible) {
+        int selected = videoSelector.getSelectedIndex();
+        if (visible) {
+            statusTimer.start();
+            Platform.runLater(() -> {
+                showing = true;
+                play(currentIndex >= 0 ? currentIndex : selected, resumeAt);
+            });
+        } else {
+            statusTimer.stop();
+            Platform.runLater(() -> {
+                showing = false;
+                release();
+            });
+        }
+        updateStatus();
+    }
+
+    // Create the scene and view once; every video is shown in the same view.
+    private void initScene() {
+        mediaView = new MediaView();
+        mediaView.setPreserveRatio(true);
+        Group root = new Group();
+        root.getChildren().add(mediaView);
+        jfxPanel.setScene(new Scene(root, 800, 600));
+        fit(jfxPanel.getWidth(), jfxPanel.getHeight());
+    }
+
+    private void fit(int width, int height) {
+        if (mediaView != null && width > 0 && height > 0) {
+            mediaView.setFitWidth(width);
+            mediaView.setFitHeight(height);
+        }
+    }
+
+    // Play a lesson from the given position, taking the pre-buffered player if it is that lesson.
+    private void play(int index, Duration start) {
+        if (!showing || mediaView == null || index < 0 || index >= playlist.size()) {
+            return;
+        }
+        if (index == currentIndex && mediaPlayer != null) {
+            mediaPlayer.play();
+            return;
+        }
+        MediaPlayer player;
+        if (index == nextIndex && nextPlayer != null) {
+            player = nextPlayer;
+            nextPlayer = null;
+            nextIndex = -1;
+        } else {
+            player = createPlayer(index);
+        }
+        dispose(mediaPlayer);
+        mediaPlayer = player;
+        currentIndex = index;
+        resumeAt = Duration.ZERO;
+        mediaView.setMediaPlayer(player);
+        if (player != null) {
+            if (start.toMillis() > 0) {
+                player.setOnReady(() -> {
+                    player.seek(start);
+                    player.play();
+                });
+            } else {
+                player.play();
             }
-        });
+            player.setOnEndOfMedia(this::playNext);
+        }
+        prebuffer(index + 1);
+    }
+
+    // Move on to the next lesson when a video ends; the selector change starts it.
+    private void playNext() {
+        int next = currentIndex + 1;
+        if (next < playlist.size()) {
+            SwingUtilities.invokeLater(() -> videoSelector.setSelectedIndex(next));
+        }
     }
 
+    // Start loading a lesson in a second player so it is ready when needed.
+    private void prebuffer(int index) {
+        if (index == nextIndex) {
+            return;
+        }
+        dispose(nextPlayer);
+        nextPlayer = index < playlist.size() ? createPlayer(index) : null;
+        nextIndex = nextPlayer != null ? index : -1;
+    }
+
+    private MediaPlayer createPlayer(int index) {
+        File file = playlist.get(index);
+        try {
+            Media media = new Media(file.toURI().toASCIIString()); // toASCIIString fixes path issues
+            MediaPlayer player = new MediaPlayer(media);
+            CREATED_PLAYERS.incrementAndGet();
+            LIVE_PLAYERS.incrementAndGet();
+            player.setOnError(() -> showError(file, player.getError()));
+            return player;
+        } catch (MediaException ex) {
+            showError(file, ex);
+            return null;
+        }
+    }
+
+    // Pause and release both players, remembering where the current video was.
+    private void release() {
+        if (mediaPlayer != null) {
+            resumeAt = mediaPlayer.getCurrentTime();
+            mediaView.setMediaPlayer(null);
+            dispose(mediaPlayer);
+            mediaPlayer = null;
+        }
+        dispose(nextPlayer);
+        nextPlayer = null;
+        nextIndex = -1;
+    }
+
+    private static void dispose(MediaPlayer player) {
+        if (player != null) {
+            player.stop();
+            player.dispose(); // frees the native decoder; stop() alone does not
+            LIVE_PLAYERS.decrementAndGet();
+        }
+    }
+
+    private void showError(File file, Exception ex) {
+        ex.printStackTrace(); // Log the error to console
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                "Error loading video: " + file + "\n" + ex.getMessage(),
+                "Error", JOptionPane.ERROR_MESSAGE));
+    }
 }
@@ -0,0 +1,236 @@
+package com.example.paint;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.util.function.Supplier;
+
+/**
+ * Viewport is the zoom and position of a canvas in a panel: the canvas is
+ * drawn scaled by getScale with its top-left corner at a view position.
+ * The mouse wheel zooms about the pointer, dragging with the middle button
+ * (or with the space bar held) pans, Ctrl+0 fits the canvas in the panel,
+ * Ctrl+1 shows it at 100% and Ctrl+= / Ctrl+- zoom about the centre.
+ *
+ * The panel's tools work in canvas coordinates: mouse positions go through
+ * toCanvas, and regions of the canvas to repaint through toView. Below
+ * 100% the panel draws from a CanvasMipmap. Only the EDT uses a viewport.
+ */
+public class Viewport {
+    public static final double MIN_SCALE = 1 / 64.0;
+    public static final double MAX_SCALE = 32;
+    private static final double WHEEL_ZOOM = 1.2;  // per wheel notch
+    private static final double KEY_ZOOM = 2;
+    private static final int MARGIN = 64;           // view pixels of the canvas kept in the panel when panning
+
+    private final JComponent owner;
+    private final Supplier<Rectangle> canvasBounds;
+    private double scale = 1;
+    private int x, y;             // view position of the canvas origin
+    private Point panFrom;        // last mouse position of a pan drag
+    private boolean spaceDown;
+
+    public Viewport(JComponent owner, Supplier<Rectangle> canvasBounds) {
+        this.owner = owner;
+        this.canvasBounds = canvasBounds;
+    }
+
+    /**
+     * Add the mouse and key handling to the owner. Install it after the
+     * tools' listeners, which should ignore the events handles returns true for.
+     */
+    public void install() {
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                owner.requestFocusInWindow(); // so the space bar comes here rather than to a toolbar button
+                if (SwingUtilities.isMiddleMouseButton(e) || spaceDown) {
+                    panFrom = e.getPoint();
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (panFrom != null) {
+                    panBy(e.getX() - panFrom.x, e.getY() - panFrom.y);
+                    panFrom = e.getPoint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                panFrom = null;
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoomAt(Math.pow(WHEEL_ZOOM, -e.getPreciseWheelRotation()), e.getPoint());
+            }
+        };
+        owner.addMouseListener(mouse);
+        owner.addMouseMotionListener(mouse);
+        owner.addMouseWheelListener(mouse);
+        owner.setFocusable(true);
+
+        bind("control 0", "zoomFit", this::fit);
+        bind("control 1", "zoomActual", () -> zoomAt(1 / scale, center()));
+        bind("control EQUALS", "zoomIn", () -> zoomAt(KEY_ZOOM, center()));
+        bind("control PLUS", "zoomIn", () -> zoomAt(KEY_ZOOM, center()));
+        bind("control ADD", "zoomIn", () -> zoomAt(KEY_ZOOM, center()));
+        bind("control MINUS", "zoomOut", () -> zoomAt(1 / KEY_ZOOM, center()));
+        bind("control SUBTRACT", "zoomOut", () -> zoomAt(1 / KEY_ZOOM, center()));
+        InputMap focused = owner.getInputMap(JComponent.WHEN_FOCUSED);
+        focused.put(KeyStroke.getKeyStroke("pressed SPACE"), "panOn");
+        focused.put(KeyStroke.getKeyStroke("released SPACE"), "panOff");
+        owner.getActionMap().put("panOn", action(() -> spaceDown = true));
+        owner.getActionMap().put("panOff", action(() -> spaceDown = false));
+    }
+
+    private void bind(String key, String name, Runnable run) {
+        owner.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(key), name);
+        owner.getActionMap().put(name, action(run));
+    }
+
+    private static Action action(Runnable run) {
+        return new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                run.run();
+            }
+        };
+    }
+
+    // True if a mouse event belongs to a pan, so the tools must leave it alone.
+    public boolean handles(MouseEvent e) {
+        return panFrom != null || spaceDown || SwingUtilities.isMiddleMouseButton(e);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    // Canvas pixel under a point of the view.
+    public Point toCanvas(Point p) {
+        return new Point((int) Math.floor((p.x - x) / scale), (int) Math.floor((p.y - y) / scale));
+    }
+
+    // View area covering a canvas region.
+    public Rectangle toView(Rectangle r) {
+        int x0 = viewX(r.x), y0 = viewY(r.y);
+        return new Rectangle(x0, y0, viewX(r.x + r.width) - x0 + 1, viewY(r.y + r.height) - y0 + 1);
+    }
+
+    // View column of a canvas column; adjacent regions meet without gaps.
+    public int viewX(int canvasX) {
+        return x + (int) Math.floor(canvasX * scale);
+    }
+
+    public int viewY(int canvasY) {
+        return y + (int) Math.floor(canvasY * scale);
+    }
+
+    // Canvas region shown in a view area.
+    public Rectangle toCanvas(Rectangle view) {
+        Point p0 = toCanvas(view.getLocation());
+        Point p1 = toCanvas(new Point(view.x + view.width, view.y + view.height));
+        return new Rectangle(p0.x, p0.y, p1.x - p0.x + 1, p1.y - p0.y + 1);
+    }
+
+    // Canvas region shown in the panel (not covered by its toolbars).
+    public Rectangle getVisibleCanvas() {
+        return toCanvas(area()).intersection(canvasBounds.get());
+    }
+
+    // Set up g to draw in canvas coordinates, with nearest neighbour scaling so zoomed in pixels stay sharp.
+    public void transform(Graphics2D g) {
+        g.translate(x, y);
+        if (scale != 1) {
+            g.scale(scale, scale);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        }
+    }
+
+    // Zoom by a factor, keeping the canvas point under the given view point in place.
+    public void zoomAt(double factor, Point p) {
+        double newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        if (Math.abs(newScale - 1) < 0.02) {
+            newScale = 1; // snap to 100%, which draws without scaling
+        }
+        if (newScale == scale) {
+            return;
+        }
+        x = (int) Math.round(p.x - (p.x - x) * newScale / scale);
+        y = (int) Math.round(p.y - (p.y - y) * newScale / scale);
+        scale = newScale;
+        keepInView();
+        owner.repaint();
+    }
+
+    public void panBy(int dx, int dy) {
+        x += dx;
+        y += dy;
+        keepInView();
+        owner.repaint();
+    }
+
+    // Show the whole canvas, centred, as large as fits (but not above 100%).
+    public void fit() {
+        fit(canvasBounds.get());
+    }
+
+    // Show a region of the canvas, centred, as large as fits (but not above 100%).
+    public void fit(Rectangle r) {
+        Rectangle area = area();
+        if (area.isEmpty() || r.isEmpty()) {
+            return;
+        }
+        scale = Math.max(MIN_SCALE, Math.min(1, Math.min(area.width / (double) r.width,
+                area.height / (double) r.height)));
+        x = area.x + (area.width - (int) Math.round(r.width * scale)) / 2 - (int) Math.round(r.x * scale);
+        y = area.y + (area.height - (int) Math.round(r.height * scale)) / 2 - (int) Math.round(r.y * scale);
+        owner.repaint();
+    }
+
+    // True if a region of the canvas does not fit in the panel at the current zoom.
+    public boolean overflows(Rectangle r) {
+        Rectangle area = area();
+        return r.width * scale > area.width || r.height * scale > area.height;
+    }
+
+    // Don't let the canvas be panned out of the panel altogether.
+    private void keepInView() {
+        Rectangle area = area();
+        Rectangle canvas = canvasBounds.get();
+        int width = (int) Math.round(canvas.width * scale), height = (int) Math.round(canvas.height * scale);
+        int marginX = Math.min(MARGIN, width), marginY = Math.min(MARGIN, height);
+        x = Math.max(area.x + marginX - width, Math.min(area.x + area.width - marginX, x));
+        y = Math.max(area.y + marginY - height, Math.min(area.y + area.height - marginY, y));
+    }
+
+    private Point center() {
+        Rectangle area = area();
+        return new Point(area.x + area.width / 2, area.y + area.height / 2);
+    }
+
+    // The part of the owner the canvas shows in: the centre of its BorderLayout, or all of it.
+    private Rectangle area() {
+        Rectangle area = new Rectangle(0, 0, owner.getWidth(), owner.getHeight());
+        LayoutManager layout = owner.getLayout();
+        if (layout instanceof BorderLayout) {
+            BorderLayout border = (BorderLayout) layout;
+            Component north = border.getLayoutComponent(BorderLayout.NORTH);
+            Component south = border.getLayoutComponent(BorderLayout.SOUTH);
+            Component west = border.getLayoutComponent(BorderLayout.WEST);
+            Component east = border.getLayoutComponent(BorderLayout.EAST);
+            int top = north != null && north.isVisible() ? north.getY() + north.getHeight() : 0;
+            int bottom = south != null && south.isVisible() ? south.getY() : owner.getHeight();
+            int left = west != null && west.isVisible() ? west.getX() + west.getWidth() : 0;
+            int right = east != null && east.isVisible() ? east.getX() : owner.getWidth();
+            area.setBounds(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+        }
+        return area;
+    }
+}